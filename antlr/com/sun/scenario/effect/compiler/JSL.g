@@ -25,9 +25,13 @@
 
 grammar JSL;
 
-options {
-    backtrack=true;
-}
+// The rules are left-factored so that the parser can decide between
+// alternatives by looking ahead a fixed number of tokens; the only
+// syntactic predicates are on the short prefixes that tell a declaration
+// from an expression or a function definition (see simple_statement,
+// for_init_statement and external_declaration).  There is no global
+// backtracking, which made parsing time grow much faster than the size
+// of the input for nested expressions.
 
 tokens {
     STAR  = '*'  ;
@@ -115,6 +119,19 @@ tokens {
         return symbols;
     }
 
+    // an operand can't directly follow a variable ("foo 3")
+    private void checkNoOperand() throws RecognitionException {
+        switch (input.LA(1)) {
+            case IDENTIFIER:
+            case INTCONSTANT:
+            case FLOATCONSTANT:
+            case BOOLCONSTANT:
+            case TYPE:
+            case VOID:
+                throw new NoViableAltException("", 0, 0, input);
+        }
+    }
+
     // fail on first error for now
     // TODO: collect errors and recover...
     protected void mismatch(IntStream input, int tokenType, BitSet follow) throws RecognitionException {
@@ -142,15 +159,33 @@ field_selection returns [String fields]
 
 primary_expression returns [Expr expr]
         : IDENTIFIER    { $expr = tm.variable($IDENTIFIER.text); }
-        | INTCONSTANT   { $expr = tm.literal(Types.INT, Integer.valueOf($INTCONSTANT.text)); }
+        | e=constant_or_group { $expr = $e.expr; }
+        ;
+
+constant_or_group returns [Expr expr]
+        : INTCONSTANT   { $expr = tm.literal(Types.INT, Integer.valueOf($INTCONSTANT.text)); }
         | FLOATCONSTANT { $expr = tm.literal(Types.FLOAT, Float.valueOf($FLOATCONSTANT.text)); }
         | BOOLCONSTANT  { $expr = tm.literal(Types.BOOL, Boolean.valueOf($BOOLCONSTANT.text)); }
         | LEFT_PAREN e=expression RIGHT_PAREN { $expr = tm.parenExpr($e.expr); }
         ;
 
+// an identifier is a function call only if a parenthesis follows it;
+// this is an optional suffix rather than a choice between alternatives
+// so that nothing has to be known about the tokens that may follow a
+// variable (an expression can end the input, as in the parser tests)
 primary_or_call returns [Expr expr]
-        : e=primary_expression { $expr = $e.expr; }
+        : id=IDENTIFIER
+          ( LEFT_PAREN p=function_call_parameter_list? RIGHT_PAREN
+                { $expr = tm.call($id.text, p!=null ? $p.exprList : null); }
+          )?
+                {
+                    if ($expr == null) {
+                        checkNoOperand();
+                        $expr = tm.variable($id.text);
+                    }
+                }
         | f=function_call      { $expr = $f.expr; }
+        | e=constant_or_group  { $expr = $e.expr; }
         ;
 
 //
@@ -166,18 +201,19 @@ primary_or_call returns [Expr expr]
 //   arr[3].r++
 //
 postfix_expression returns [Expr expr]
-        : e=primary_or_call LEFT_BRACKET ae=expression RIGHT_BRACKET fs=field_selection
-              { $expr = tm.fieldSelect(tm.arrayAccess($e.expr, $ae.expr), $fs.fields); }
-        | e=primary_or_call LEFT_BRACKET ae=expression RIGHT_BRACKET
-              { $expr = tm.arrayAccess($e.expr, $ae.expr); }
-        | e=primary_or_call fs=field_selection
-              { $expr = tm.fieldSelect($e.expr, $fs.fields); }
-        | e=primary_or_call INC
-              { $expr = tm.unary(UnaryOpType.INC, $e.expr); }
-        | e=primary_or_call DEC
-              { $expr = tm.unary(UnaryOpType.DEC, $e.expr); }
-        | e=primary_or_call
-              { $expr = $e.expr; }
+        : e=primary_or_call { $expr = $e.expr; }
+          ( LEFT_BRACKET ae=expression RIGHT_BRACKET
+                { $expr = tm.arrayAccess($expr, $ae.expr); }
+            ( fs=field_selection
+                { $expr = tm.fieldSelect($expr, $fs.fields); }
+            )?
+          | fs=field_selection
+                { $expr = tm.fieldSelect($expr, $fs.fields); }
+          | INC
+                { $expr = tm.unary(UnaryOpType.INC, $expr); }
+          | DEC
+                { $expr = tm.unary(UnaryOpType.DEC, $expr); }
+          )?
         ;
 
 // From the GLSL spec...
@@ -185,12 +221,9 @@ postfix_expression returns [Expr expr]
 // analysis recognized most of them as keywords.  They are now
 // recognized through "type_specifier".
 
+// calls of named functions are handled in primary_or_call
 function_call returns [Expr expr]
-        : id=IDENTIFIER LEFT_PAREN p=function_call_parameter_list? RIGHT_PAREN
-            {
-                $expr = tm.call($id.text, p!=null ? $p.exprList : null);
-            }
-        | ts=type_specifier LEFT_PAREN p=function_call_parameter_list? RIGHT_PAREN
+        : ts=type_specifier LEFT_PAREN p=function_call_parameter_list? RIGHT_PAREN
             {
                 Type type = Type.fromToken($ts.text);
                 $expr = tm.vectorCtor(type, p!=null ? $p.exprList : null);
@@ -220,8 +253,8 @@ unary_expression returns [Expr expr]
 
 multiplicative_expression returns [Expr expr]
         : a=unary_expression { $expr = $a.expr; }
-          (STAR  b=multiplicative_expression { $expr = tm.binary(BinaryOpType.MUL, $expr, $b.expr); }
-          |SLASH b=multiplicative_expression { $expr = tm.binary(BinaryOpType.DIV, $expr, $b.expr); }
+          (STAR  b=unary_expression { $expr = tm.binary(BinaryOpType.MUL, $expr, $b.expr); }
+          |SLASH b=unary_expression { $expr = tm.binary(BinaryOpType.DIV, $expr, $b.expr); }
           )*
         ;
         
@@ -275,11 +308,16 @@ conditional_expression returns [Expr expr]
         : a=logical_or_expression ternary_part? { $expr = $a.expr; }
         ;
 
+// the left-hand side is parsed as a conditional_expression (which starts
+// with a unary_expression) so that no lookahead is needed to find the
+// assignment operator; TreeMaker.binary() rejects anything but a variable
+// or a field selection of one on the left of an assignment; as before,
+// in "a ? b : c = d" the assignment belongs to the last operand
 assignment_expression returns [Expr expr]
-        : a=unary_expression op=assignment_operator b=assignment_expression
+        : a=conditional_expression { $expr = $a.expr; }
+          ( options {greedy=true;} : op=assignment_operator b=assignment_expression
               { $expr = tm.binary(BinaryOpType.forSymbol($op.text), $a.expr, $b.expr); }
-        | c=conditional_expression
-              { $expr = $c.expr; }
+          )?
         ;
 
 assignment_operator
@@ -466,8 +504,11 @@ statement returns [Stmt stmt]
 // From GLSL spec...
 // Grammar Note:  No labeled statements; 'goto' is not supported. 
 
+// a type can start either a declaration or an expression (a vector
+// constructor), so look at the type and the identifier that follows it
 simple_statement returns [Stmt stmt]
-        : d=declaration_statement { $stmt = $d.stmt; }
+        : (fully_specified_type IDENTIFIER)=>
+          d=declaration_statement { $stmt = $d.stmt; }
         | e=expression_statement  { $stmt = $e.stmt; }
         | s=selection_statement   { $stmt = $s.stmt; }
         | i=iteration_statement   { $stmt = $i.stmt; }
@@ -505,7 +546,9 @@ constant_expression returns [Expr expr]
         ;
 
 selection_statement returns [Stmt stmt]
-        : IF LEFT_PAREN e=expression RIGHT_PAREN a=statement (ELSE b=statement)?
+        : IF LEFT_PAREN e=expression RIGHT_PAREN a=statement
+          // an else belongs to the innermost if
+          (options {greedy=true;} : ELSE b=statement)?
               { $stmt = tm.selectStmt($e.expr, $a.stmt, (b != null) ? $b.stmt : null); }
         ;
 
@@ -532,8 +575,9 @@ unroll_modifier returns [int max, int check]
         ;
 
 for_init_statement returns [Stmt stmt]
-        : e=expression_statement  { $stmt = $e.stmt; }
-        | d=declaration_statement { $stmt = $d.stmt; }
+        : (fully_specified_type IDENTIFIER)=>
+          d=declaration_statement { $stmt = $d.stmt; }
+        | e=expression_statement  { $stmt = $e.stmt; }
         ;
         
 for_rest_statement returns [Expr cond, Expr expr]
@@ -561,7 +605,8 @@ translation_unit returns [ProgramUnit prog]
         ;
         
 external_declaration returns [List<ExtDecl> res = new ArrayList<ExtDecl>()]
-        : f=function_definition { $res.add($f.def); }
+        : (type_specifier IDENTIFIER LEFT_PAREN)=>
+          f=function_definition { $res.add($f.def); }
         | d=declaration         { $res.addAll($d.declList); }
         | g=glue_block          { $res.add($g.block); }
         ;
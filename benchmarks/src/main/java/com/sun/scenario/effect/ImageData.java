@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect;
+
+import java.awt.image.BufferedImage;
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.impl.HeapImage;
+
+/**
+ * Stand-in for the class of the same name in the decora runtime.  The
+ * images used by the benchmarks are never transformed, so the transformed
+ * image and bounds are the untransformed ones.  The image is a HeapImage
+ * for the JSW and SSE peers, and a BufferedImage for the ME peers.
+ */
+public class ImageData {
+
+    private final Object image;
+    private final Rectangle bounds;
+
+    public ImageData(FilterContext fctx, HeapImage image, Rectangle bounds) {
+        this.image = image;
+        this.bounds = bounds;
+    }
+
+    public ImageData(FilterContext fctx, BufferedImage image, Rectangle bounds) {
+        this.image = image;
+        this.bounds = bounds;
+    }
+
+    public Object getImage() {
+        return image;
+    }
+
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    public HeapImage getUntransformedImage() {
+        return (HeapImage)image;
+    }
+
+    public HeapImage getTransformedImage(Rectangle clip) {
+        return (HeapImage)image;
+    }
+
+    public void releaseTransformedImage(HeapImage image) {
+    }
+
+    public Rectangle getUntransformedBounds() {
+        return bounds;
+    }
+
+    public Rectangle getTransformedBounds(Rectangle clip) {
+        return bounds;
+    }
+
+    public BaseTransform getTransform() {
+        return BaseTransform.IDENTITY_TRANSFORM;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.bench;
+
+import java.util.concurrent.TimeUnit;
+import com.sun.scenario.effect.compiler.JSLC;
+import com.sun.scenario.effect.compiler.backend.hw.ES2Backend;
+import com.sun.scenario.effect.compiler.backend.hw.HLSLBackend;
+import com.sun.scenario.effect.compiler.backend.hw.ShaderModel;
+import com.sun.scenario.effect.compiler.backend.prism.PrismBackend;
+import com.sun.scenario.effect.compiler.backend.sw.avx2.AVX2Backend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.backend.sw.me.MEBackend;
+import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each backend on a program that was parsed (and simplified by
+ * the shared passes in JSLC.getParserInfo()) beforehand.  {@code scan}
+ * runs the backend's own passes and tree scanners, which the SW backends
+ * do in their constructors; {@code genCode} also fills in the templates,
+ * so the difference between the two is the time spent in getGenCode().
+ *
+ * As with FrontEndBenchmark, run it with {@code -prof gc} to see the
+ * allocations of each backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackendBenchmark {
+
+    private static final String EFFECT_NAME = "BenchEffect";
+
+    @Param({"Blend", "DisplacementMap", "LinearConvolve", "Synthetic16", "Synthetic128"})
+    public String shader;
+
+    @Param({"JSW", "JSWV", "SSE", "ME", "AVX2", "D3D", "D3D11", "ES2", "PRISM"})
+    public String backend;
+
+    private JSLC.ParserInfo pinfo;
+
+    @Setup
+    public void setup() throws Exception {
+        pinfo = JSLC.getParserInfo(ShaderCorpus.getSource(shader));
+    }
+
+    @Benchmark
+    public Object scan() {
+        switch (backend) {
+            case "JSW":
+                return new JSWBackend(pinfo.parser, pinfo.program);
+            case "JSWV":
+                return new JSWVBackend(pinfo.parser, pinfo.program);
+            case "SSE":
+                return new SSEBackend(pinfo.parser, pinfo.program);
+            case "ME":
+                return new MEBackend(pinfo.parser, pinfo.program);
+            case "AVX2":
+                return new AVX2Backend(pinfo.parser, pinfo.program);
+            case "D3D":
+                return scan(new HLSLBackend(pinfo.parser, ShaderModel.SM3));
+            case "D3D11":
+                return scan(new HLSLBackend(pinfo.parser, ShaderModel.SM5_1));
+            case "ES2":
+                return scan(new ES2Backend(pinfo.parser));
+            case "PRISM":
+                return new PrismBackend(pinfo.parser, pinfo.program);
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+    }
+
+    private Object scan(HLSLBackend hlslBackend) {
+        hlslBackend.scan(pinfo.program);
+        return hlslBackend;
+    }
+
+    private Object scan(ES2Backend es2Backend) {
+        es2Backend.scan(pinfo.program);
+        return es2Backend;
+    }
+
+    @Benchmark
+    public Object genCode() {
+        switch (backend) {
+            case "JSW":
+                return new JSWBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, shader, null, null);
+            case "JSWV":
+                return new JSWVBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, shader, null, null);
+            case "SSE":
+                return new SSEBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, shader, null, null);
+            case "ME":
+                return new MEBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, shader, null, null);
+            case "AVX2":
+                return new AVX2Backend(pinfo.parser, pinfo.program)
+                    .getGenCode(shader);
+            case "D3D":
+            case "D3D11":
+                return ((HLSLBackend)scan()).getShader();
+            case "ES2":
+                return ((ES2Backend)scan()).getShader();
+            case "PRISM":
+                return new PrismBackend(pinfo.parser, pinfo.program)
+                    .getGlueCode(EFFECT_NAME, shader, null, null);
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+    }
+}
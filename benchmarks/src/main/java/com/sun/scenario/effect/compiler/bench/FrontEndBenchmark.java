@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.sun.scenario.effect.compiler.JSLLexer;
+import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.TreeMaker;
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the front end of the compiler phase by phase: lexing (in
+ * tokens/s), JSLParser.translation_unit() on tokens that were lexed
+ * beforehand, and the construction of the tree through a TreeMaker.
+ *
+ * Run it with the gc profiler to see the allocations of each phase
+ * (gc.alloc.rate.norm is in bytes per operation), e.g.:
+ * <pre>
+ *   java -jar target/benchmarks.jar FrontEndBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    @Param({"Blend", "Brightpass", "DisplacementMap", "LinearConvolve", "SepiaTone", "Zoom",
+            "Synthetic16", "Synthetic128", "Synthetic1024"})
+    public String shader;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    private String source;
+    private List<Token> tokens;
+    private JSLParser parser;
+    private ProgramUnit program;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        source = ShaderCorpus.getSource(shader);
+
+        tokens = new ArrayList<Token>();
+        JSLLexer lexer = new JSLLexer(new ANTLRStringStream(source));
+        Token t;
+        do {
+            t = lexer.nextToken();
+            tokens.add(t);
+        } while (t.getType() != Token.EOF);
+
+        parser = newParser();
+        program = parser.translation_unit();
+    }
+
+    private JSLParser newParser() {
+        return new JSLParser(new CommonTokenStream(new ReplayTokenSource(tokens)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int lex(Counters counters) {
+        JSLLexer lexer = new JSLLexer(new ANTLRStringStream(source));
+        int n = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            n++;
+        }
+        counters.tokens += n;
+        return n;
+    }
+
+    @Benchmark
+    public ProgramUnit parse() throws Exception {
+        return newParser().translation_unit();
+    }
+
+    @Benchmark
+    public ProgramUnit treeMaker() {
+        TreeMaker tm = new TreeMaker(parser.getSymbolTable());
+        return new TreeRebuilder(tm).rebuild(program);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import com.sun.javafx.geom.AffineTransform;
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.BenchEffect;
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.FloatMap;
+import com.sun.scenario.effect.ImageData;
+import com.sun.scenario.effect.compiler.JSLC;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWPeerCompiler;
+import com.sun.scenario.effect.compiler.backend.sw.me.MEBackend;
+import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.impl.EffectPeer;
+import com.sun.scenario.effect.impl.HeapImage;
+import com.sun.scenario.effect.impl.Renderer;
+import com.sun.scenario.effect.impl.sw.me.MEEffectPeer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the filter loops of the software peers generated for the
+ * shaders in this package, for each backend, effect and image size.
+ *
+ * The peers are generated and compiled in memory when the trial starts
+ * (see JSWPeerCompiler) and run against the stand-ins for the decora
+ * runtime classes in this module.  The {@code pixels} counter is reported
+ * in pixels per microsecond, i.e. in Mpixels/s.
+ *
+ * The SSE and ME peers call native code, so they can only be measured
+ * when the decora_sse or decora_me library built from the generated
+ * native code is on java.library.path, e.g.:
+ * <pre>
+ *   java -Djava.library.path=... -jar target/benchmarks.jar PeerBenchmark -p backend=SSE
+ * </pre>
+ * The SSE_STEPPED peers load the decora_sse_stepped library instead,
+ * which is built in the same way from the native code generated with
+ * {@code -stepped}, so that both variants can be measured in one run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PeerBenchmark {
+
+    /**
+     * The name of the effect class that the generated peers are built
+     * against; the name of each shader is used as the peer name.
+     */
+    private static final String EFFECT_NAME = "BenchEffect";
+
+    private static final Map<String, float[]> PARAM_VALUES = new HashMap<>();
+    static {
+        PARAM_VALUES.put("Blend.opacity", new float[] {0.75f});
+        PARAM_VALUES.put("Brightpass.threshold", new float[] {0.3f});
+        PARAM_VALUES.put("DisplacementMap.scale", new float[] {0.05f, 0.05f});
+        PARAM_VALUES.put("DisplacementMap.offset", new float[] {0f, 0f});
+        PARAM_VALUES.put("LinearConvolve.offset", new float[] {0.002f, 0f});
+        PARAM_VALUES.put("LinearConvolve.weights",
+                         new float[] {0.02f, 0.08f, 0.15f, 0.25f, 0.25f, 0.15f, 0.08f, 0.02f});
+        PARAM_VALUES.put("SepiaTone.level", new float[] {0.8f});
+        PARAM_VALUES.put("Zoom.zoom", new float[] {2f, 2f});
+    }
+
+    @Param({"Blend", "Brightpass", "DisplacementMap", "LinearConvolve", "SepiaTone", "Zoom"})
+    public String effect;
+
+    /**
+     * One of JSW, JSW_PARALLEL (the JSW peer with -parallel), JSWV, SSE,
+     * SSE_STEPPED (the SSE peer with -stepped) or ME.
+     */
+    @Param({"JSW", "JSW_PARALLEL", "JSWV"})
+    public String backend;
+
+    /**
+     * The width and height of the inputs and of the destination.
+     */
+    @Param({"64", "512", "2048"})
+    public int size;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    private final FilterContext fctx = new FilterContext();
+    private final BenchEffect benchEffect = new BenchEffect();
+    private final AffineTransform identity = new AffineTransform();
+    private Rectangle outputClip;
+    private ImageData[] inputs;
+    private EffectPeer<?> peer;
+    private MEEffectPeer<?> mePeer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        InputStream in = PeerBenchmark.class.getResourceAsStream(effect + ".jsl");
+        if (in == null) {
+            throw new IllegalArgumentException("Unknown effect: " + effect);
+        }
+        JSLC.ParserInfo pinfo;
+        try {
+            pinfo = JSLC.getParserInfo(in);
+        } finally {
+            in.close();
+        }
+
+        String className;
+        String genCode;
+        List<String> options = Collections.<String>emptyList();
+        switch (backend) {
+            case "JSW":
+            case "JSW_PARALLEL":
+                className = "com.sun.scenario.effect.impl.sw.java.JSW" + effect + "Peer";
+                genCode = new JSWBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, effect, null, null, backend.equals("JSW_PARALLEL"));
+                break;
+            case "JSWV":
+                className = "com.sun.scenario.effect.impl.sw.vector.JSWV" + effect + "Peer";
+                genCode = new JSWVBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, effect, null, null);
+                options = Arrays.asList("--add-modules", "jdk.incubator.vector");
+                break;
+            case "SSE":
+            case "SSE_STEPPED":
+                // the peer loads its library itself, since the native
+                // methods are only looked up in the libraries loaded by
+                // the class loader of their class (see JSWPeerCompiler)
+                boolean stepped = backend.equals("SSE_STEPPED");
+                className = "com.sun.scenario.effect.impl.sw.sse.SSE" + effect + "Peer";
+                genCode = new SSEBackend(pinfo.parser, pinfo.program, stepped)
+                    .getGenCode(EFFECT_NAME, effect, null, null, "SSE",
+                                stepped ? "decora_sse_stepped" : "decora_sse")
+                    .javaCode;
+                break;
+            case "ME":
+                className = "com.sun.scenario.effect.impl.sw.me.ME" + effect + "Peer";
+                genCode = new MEBackend(pinfo.parser, pinfo.program)
+                    .getGenCode(EFFECT_NAME, effect, null, null).javaCode;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+
+        JSWPeerCompiler compiler =
+            new JSWPeerCompiler(PeerBenchmark.class.getClassLoader(), options);
+        Object p = compiler.compile(className, genCode)
+            .getConstructor(FilterContext.class, Renderer.class, String.class)
+            .newInstance(fctx, new Renderer(), effect);
+        if (p instanceof MEEffectPeer) {
+            mePeer = (MEEffectPeer<?>)p;
+        } else {
+            peer = (EffectPeer<?>)p;
+        }
+
+        Random random = new Random(0);
+        outputClip = new Rectangle(0, 0, size, size);
+        Map<String, Variable> vars = pinfo.parser.getSymbolTable().getGlobalVariables();
+        inputs = new ImageData[pinfo.parser.getSymbolTable().getNumSamplers()];
+        for (Variable v : vars.values()) {
+            if (v.getQualifier() != Qualifier.PARAM) {
+                continue;
+            }
+            if (v.getType().getBaseType() != BaseType.SAMPLER) {
+                float[] values = PARAM_VALUES.get(effect + "." + v.getName());
+                if (values == null) {
+                    throw new IllegalStateException("No value for param " + v.getName());
+                }
+                benchEffect.setValues(v.getName(), values);
+                continue;
+            }
+            // every register gets an image, so that the ME peers can take
+            // the destination bounds from the first input
+            int[] pixels = new int[size * size];
+            for (int i = 0; i < pixels.length; i++) {
+                // INT_ARGB_PRE, so no color component exceeds the alpha
+                int a = random.nextInt(256);
+                int r = random.nextInt(a + 1);
+                int g = random.nextInt(a + 1);
+                int b = random.nextInt(a + 1);
+                pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+            if (mePeer != null) {
+                BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB_PRE);
+                int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+                System.arraycopy(pixels, 0, data, 0, pixels.length);
+                inputs[v.getReg()] = new ImageData(fctx, img, outputClip);
+            } else {
+                HeapImage img = new HeapImage(size, size);
+                System.arraycopy(pixels, 0, img.getPixelArray(), 0, pixels.length);
+                inputs[v.getReg()] = new ImageData(fctx, img, outputClip);
+            }
+            if (v.getType() == Types.FSAMPLER) {
+                FloatMap map = new FloatMap(size, size);
+                float[] data = map.getData();
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = random.nextFloat() - 0.5f;
+                }
+                benchEffect.setSamplerData(v.getReg(), map);
+            }
+        }
+    }
+
+    @Benchmark
+    public ImageData filter(Counters counters) {
+        ImageData res;
+        if (mePeer != null) {
+            res = mePeer.filter(benchEffect, identity, inputs);
+        } else {
+            res = peer.filter(benchEffect, null, BaseTransform.IDENTITY_TRANSFORM,
+                              outputClip, inputs);
+        }
+        counters.pixels += size * size;
+        return res;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * The shaders that the compiler benchmarks run on: the shaders in this
+ * package (by name, e.g. "Blend"), and synthetic shaders with a given
+ * number of statement groups in main() (e.g. "Synthetic64"), which stand
+ * in for the large generated effect variants.
+ */
+final class ShaderCorpus {
+
+    private static final String SYNTHETIC = "Synthetic";
+
+    private ShaderCorpus() {
+    }
+
+    static String getSource(String name) throws IOException {
+        if (name.startsWith(SYNTHETIC)) {
+            return synthetic(Integer.parseInt(name.substring(SYNTHETIC.length())));
+        }
+        InputStream in = ShaderCorpus.class.getResourceAsStream(name + ".jsl");
+        if (in == null) {
+            throw new IllegalArgumentException("Unknown shader: " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a shader with the given number of groups of statements, each
+     * picked (with a fixed seed) from a mix of sampling, built-in calls,
+     * swizzles and loops.  Every group adds its result to the color, so
+     * none of them is removed as dead code.  Only what every SW backend
+     * supports is used: there are no per-pixel conditions, and the param
+     * array is only indexed by a loop variable.
+     */
+    static String synthetic(int numGroups) {
+        Random random = new Random(numGroups);
+        StringBuilder sb = new StringBuilder();
+        sb.append("param sampler img;\n");
+        sb.append("param float4 tint;\n");
+        sb.append("param float2 offset;\n");
+        sb.append("param float weights[8];\n");
+        sb.append("\n");
+        sb.append("void main()\n");
+        sb.append("{\n");
+        sb.append("    float2 loc = pos0;\n");
+        sb.append("    float4 acc = float4(0.0);\n");
+        sb.append("    float4 v0 = sample(img, loc);\n");
+        for (int k = 1; k <= numGroups; k++) {
+            String v = "v" + k;
+            String p = "v" + (k - 1);
+            switch (random.nextInt(6)) {
+            case 0:
+                sb.append("    float4 " + v + " = sample(img, loc + offset) * tint.a + tint;\n");
+                break;
+            case 1:
+                sb.append("    float4 " + v + " = mix(" + p + ", tint, dot(" + p + ".rgb, float3(0.3, 0.59, 0.11)));\n");
+                break;
+            case 2:
+                sb.append("    float4 " + v + " = max(" + p + " - float4(0.25), float4(0.0));\n");
+                break;
+            case 3:
+                sb.append("    float4 " + v + " = " + p + ";\n");
+                sb.append("    " + v + ".rgb = " + v + ".rgb * 0.5 + tint.rgb * " + v + ".a;\n");
+                break;
+            case 4:
+                sb.append("    float4 " + v + " = float4(0.0);\n");
+                sb.append("    for (int i" + k + " = 0; i" + k + " < 4; i" + k + "++) {\n");
+                sb.append("        " + v + " += weights[i" + k + "] * sample(img, loc);\n");
+                sb.append("        loc += offset;\n");
+                sb.append("    }\n");
+                break;
+            default:
+                sb.append("    float4 " + v + " = clamp(" + p + " * 1.5 - float4(0.1, 0.2, 0.3, 0.0), float4(0.0), float4(1.0));\n");
+                break;
+            }
+            sb.append("    acc += " + v + " * 0.01;\n");
+        }
+        sb.append("    color = acc;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.*;
+
+/**
+ * Builds a copy of a parsed tree through a TreeMaker, making the same
+ * TreeMaker calls (with the same type checks) as the parser actions, so
+ * that tree construction can be measured apart from parsing.
+ *
+ * Variable references are shared with the original tree rather than
+ * looked up again, since the local scopes of the parser are gone by the
+ * time the tree is complete.
+ */
+final class TreeRebuilder extends TreeVisitor {
+
+    private final TreeMaker tm;
+    private Tree result;
+
+    TreeRebuilder(TreeMaker tm) {
+        this.tm = tm;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends Tree> T rebuild(T node) {
+        if (node == null) {
+            return null;
+        }
+        node.accept(this);
+        return (T)result;
+    }
+
+    private <T extends Tree> List<T> rebuild(List<T> nodes) {
+        List<T> res = new ArrayList<T>(nodes.size());
+        for (T node : nodes) {
+            res.add(rebuild(node));
+        }
+        return res;
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        result = tm.binary(e.getOp(), rebuild(e.getLeft()), rebuild(e.getRight()));
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        result = tm.unary(e.getOp(), rebuild(e.getExpr()));
+    }
+
+    @Override
+    public void visitLiteralExpr(LiteralExpr e) {
+        result = tm.literal(e.getResultType(), e.getValue());
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        result = e;
+    }
+
+    @Override
+    public void visitVectorCtorExpr(VectorCtorExpr e) {
+        result = tm.vectorCtor(e.getType(), rebuild(e.getParams()));
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        result = tm.parenExpr(rebuild(e.getExpr()));
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        // the parser passes the fields with their leading '.'
+        result = tm.fieldSelect(rebuild(e.getExpr()), "." + e.getFields());
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        result = tm.arrayAccess(rebuild(e.getExpr()), rebuild(e.getIndex()));
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        result = tm.call(e.getFunction().getName(), rebuild(e.getParams()));
+    }
+
+    @Override
+    public void visitContinueStmt(ContinueStmt s) {
+        result = tm.continueStmt();
+    }
+
+    @Override
+    public void visitBreakStmt(BreakStmt s) {
+        result = tm.breakStmt();
+    }
+
+    @Override
+    public void visitDiscardStmt(DiscardStmt s) {
+        result = tm.discardStmt();
+    }
+
+    @Override
+    public void visitReturnStmt(ReturnStmt s) {
+        result = tm.returnStmt(rebuild(s.getExpr()));
+    }
+
+    @Override
+    public void visitSelectStmt(SelectStmt s) {
+        result = tm.selectStmt(rebuild(s.getIfExpr()),
+                               rebuild(s.getThenStmt()),
+                               rebuild(s.getElseStmt()));
+    }
+
+    @Override
+    public void visitWhileStmt(WhileStmt s) {
+        result = tm.whileStmt(rebuild(s.getCondition()), rebuild(s.getStmt()));
+    }
+
+    @Override
+    public void visitDoWhileStmt(DoWhileStmt s) {
+        result = tm.doWhileStmt(rebuild(s.getStmt()), rebuild(s.getExpr()));
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        result = tm.forStmt(rebuild(s.getInit()), rebuild(s.getCondition()),
+                            rebuild(s.getExpr()), rebuild(s.getStmt()),
+                            s.getUnrollMax(), s.getUnrollCheck());
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        result = tm.exprStmt(rebuild(s.getExpr()));
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        result = tm.declStmt(rebuild(s.getDecls()));
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        result = tm.compoundStmt(rebuild(s.getStmts()));
+    }
+
+    @Override
+    public void visitFuncDef(FuncDef d) {
+        result = tm.funcDef(d.getFunction(), rebuild(d.getStmt()));
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        result = tm.varDecl(d.getVariable(), rebuild(d.getInit()));
+    }
+
+    @Override
+    public void visitGlueBlock(GlueBlock b) {
+        result = tm.glueBlock(b.getText());
+    }
+
+    @Override
+    public void visitProgramUnit(ProgramUnit p) {
+        result = tm.programUnit(rebuild(p.getDecls()));
+    }
+}
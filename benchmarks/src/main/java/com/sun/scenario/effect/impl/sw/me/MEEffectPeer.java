@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.impl.sw.me;
+
+import java.awt.image.BufferedImage;
+import com.sun.javafx.geom.AffineTransform;
+import com.sun.javafx.geom.Rectangle;
+import com.sun.scenario.effect.BenchEffect;
+import com.sun.scenario.effect.Effect;
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.ImageData;
+import com.sun.scenario.effect.impl.Renderer;
+import com.sun.scenario.effect.impl.state.RenderState;
+
+/**
+ * Stand-in for the base class of the peers generated by the ME backend,
+ * which work on BufferedImages rather than HeapImages.  The native
+ * filter() methods of the peers are looked up in the decora_me library,
+ * which must be built from the generated native code and be on
+ * java.library.path.
+ */
+public abstract class MEEffectPeer<T extends RenderState> {
+
+    static {
+        System.loadLibrary("decora_me");
+    }
+
+    private final FilterContext fctx;
+    private Effect effect;
+    private Rectangle destBounds;
+    private BufferedImage destImage;
+    private final float[] sourceRegion = {0f, 0f, 1f, 1f};
+
+    protected MEEffectPeer(FilterContext fctx, Renderer renderer, String uniqueName) {
+        this.fctx = fctx;
+    }
+
+    public abstract ImageData filter(Effect effect,
+                                     AffineTransform transform,
+                                     ImageData... inputs);
+
+    protected void setEffect(Effect effect) {
+        this.effect = effect;
+    }
+
+    protected Effect getEffect() {
+        return effect;
+    }
+
+    protected FilterContext getFilterContext() {
+        return fctx;
+    }
+
+    /**
+     * All of the inputs used by the benchmarks have the same bounds.
+     */
+    protected Rectangle getResultBounds(AffineTransform transform,
+                                        ImageData... inputs)
+    {
+        return inputs[0].getBounds();
+    }
+
+    protected void setDestBounds(Rectangle r) {
+        this.destBounds = r;
+    }
+
+    protected Rectangle getDestBounds() {
+        return destBounds;
+    }
+
+    protected void setDestNativeBounds(int w, int h) {
+    }
+
+    protected void setInputBounds(int inputIndex, Rectangle r) {
+    }
+
+    protected void setInputNativeBounds(int inputIndex, Rectangle r) {
+    }
+
+    protected Object getSamplerData(int i) {
+        return ((BenchEffect)effect).getSamplerData(i);
+    }
+
+    protected float[] getSourceRegion(int inputIndex) {
+        return sourceRegion;
+    }
+
+    /**
+     * Like the Renderer stand-in, this hands out the same image for every
+     * request of the same size.
+     */
+    protected BufferedImage getDestImageFromPool(int w, int h) {
+        if (destImage == null ||
+            destImage.getWidth() != w ||
+            destImage.getHeight() != h)
+        {
+            destImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        return destImage;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.impl.sw.sse;
+
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.impl.EffectPeer;
+import com.sun.scenario.effect.impl.Renderer;
+import com.sun.scenario.effect.impl.state.RenderState;
+
+/**
+ * Stand-in for the base class of the peers generated by the SSE backend.
+ * The peers load the library with their native filter() methods (see
+ * PeerBenchmark), which must be built from the generated native code (and
+ * the SSEUtils.h header of the decora runtime) and be on java.library.path.
+ */
+public abstract class SSEEffectPeer<T extends RenderState> extends EffectPeer<T> {
+
+    protected SSEEffectPeer(FilterContext fctx, Renderer renderer, String uniqueName) {
+        super(fctx, renderer, uniqueName);
+    }
+}
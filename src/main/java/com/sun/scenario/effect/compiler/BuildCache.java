@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, for each file generated by JSLC, a hash of everything that
+ * went into it: the source of the shader, the compiler itself (its
+ * classes and templates), the options and the output type.  An output
+ * whose hash hasn't changed is up to date, whatever the timestamps of
+ * the files say, so a fresh checkout doesn't regenerate anything.
+ *
+ * A cache can be shared by concurrent compilations; it is only written
+ * to disk by save().
+ */
+public class BuildCache {
+
+    private final File file;
+    private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Creates a cache backed by the given file, reading the entries
+     * saved in it, if any.
+     */
+    public BuildCache(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            for (String name : props.stringPropertyNames()) {
+                keys.put(name, props.getProperty(name));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given output exists and was generated from
+     * inputs with the given key.
+     */
+    public boolean isUpToDate(File outFile, String key) {
+        return key.equals(keys.get(getName(outFile))) && outFile.exists();
+    }
+
+    /**
+     * Records that the given output was generated from inputs with the
+     * given key.
+     */
+    public void put(File outFile, String key) {
+        keys.put(getName(outFile), key);
+    }
+
+    public synchronized void save() throws IOException {
+        Properties props = new Properties();
+        props.putAll(keys);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        // replace the old file in one step, so that it is never left
+        // half written
+        File tmp = File.createTempFile(file.getName(), null, dir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "JSLC build cache");
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String getName(File outFile) {
+        return outFile.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * Returns the key for generating the output of the given type from
+     * the given source with the given options.
+     */
+    public static String getKey(byte[] source, JSLC.JSLCInfo jslcinfo, int outType) {
+        MessageDigest md = newDigest();
+        update(md, getCompilerVersion());
+        update(md, Integer.toString(outType));
+        update(md, jslcinfo.shaderName);
+        update(md, jslcinfo.peerName);
+        update(md, jslcinfo.genericsName);
+        update(md, jslcinfo.interfaceName);
+        update(md, jslcinfo.pkgName);
+        update(md, Boolean.toString(jslcinfo.parallel));
+        update(md, Boolean.toString(jslcinfo.stepped));
+        md.update(source);
+        return toHex(md.digest());
+    }
+
+    private static void update(MessageDigest md, String s) {
+        // the length keeps ("ab", "c") apart from ("a", "bc")
+        byte[] bytes = (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        md.update((byte)(s == null ? 0 : 1));
+        md.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+        md.update((byte)':');
+        md.update(bytes);
+    }
+
+    private static class CompilerVersion {
+        static final String VALUE = computeCompilerVersion();
+    }
+
+    /**
+     * Returns a hash of the classes and templates of the compiler, i.e. of
+     * the jar file or the directory that JSLC was loaded from.
+     */
+    static String getCompilerVersion() {
+        return CompilerVersion.VALUE;
+    }
+
+    private static String computeCompilerVersion() {
+        MessageDigest md = newDigest();
+        try {
+            CodeSource cs = JSLC.class.getProtectionDomain().getCodeSource();
+            URL location = (cs != null) ? cs.getLocation() : null;
+            if (location == null || !"file".equals(location.getProtocol())) {
+                throw new IOException("Unknown location: " + location);
+            }
+            File root = new File(location.toURI());
+            List<File> files = new ArrayList<File>();
+            if (root.isDirectory()) {
+                listFiles(root, files);
+            } else {
+                files.add(root);
+            }
+            for (File f : files) {
+                update(md, root.toPath().relativize(f.toPath()).toString());
+                md.update(Files.readAllBytes(f.toPath()));
+            }
+        } catch (Exception e) {
+            // without it, the outputs would be kept when the compiler
+            // changes, so don't let them match any key from another run
+            update(md, Long.toString(System.nanoTime()));
+        }
+        return toHex(md.digest());
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        List<File> sorted = new ArrayList<File>();
+        Collections.addAll(sorted, list);
+        Collections.sort(sorted);
+        for (File f : sorted) {
+            if (f.isDirectory()) {
+                listFiles(f, files);
+            } else {
+                files.add(f);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -29,9 +29,16 @@ import com.sun.scenario.effect.compiler.backend.hw.ES2Backend;
 import com.sun.scenario.effect.compiler.backend.hw.HLSLBackend;
 import com.sun.scenario.effect.compiler.backend.hw.ShaderModel;
 import com.sun.scenario.effect.compiler.backend.prism.PrismBackend;
+import com.sun.scenario.effect.compiler.backend.sw.avx2.AVX2Backend;
 import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBytecodeBackend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWPeerCompiler;
+import com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend;
 import com.sun.scenario.effect.compiler.backend.sw.me.MEBackend;
 import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import com.sun.scenario.effect.compiler.tree.ConstantFolder;
+import com.sun.scenario.effect.compiler.tree.DeadCodeEliminator;
+import com.sun.scenario.effect.compiler.tree.LoopUnroller;
 import com.sun.scenario.effect.compiler.tree.ProgramUnit;
 import org.antlr.runtime.ANTLRInputStream;
 import org.antlr.runtime.CommonTokenStream;
@@ -39,10 +46,16 @@ import org.antlr.stringtemplate.CommonGroupLoader;
 import org.antlr.stringtemplate.StringTemplateGroup;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  */
@@ -59,9 +72,13 @@ public class JSLC {
     public static final int OUT_SSE_NATIVE      = (1 << 6);
     public static final int OUT_ME_JAVA         = (1 << 7);
     public static final int OUT_ME_NATIVE       = (1 << 8);
+    public static final int OUT_JAVA_VECTOR     = (1 << 9);
+    public static final int OUT_AVX2_NATIVE     = (1 << 10);
+    public static final int OUT_AVX2_JAVA       = (1 << 11);
 
     public static final int OUT_ME       = OUT_ME_JAVA | OUT_ME_NATIVE;
     public static final int OUT_SSE      = OUT_SSE_JAVA | OUT_SSE_NATIVE;
+    public static final int OUT_AVX2     = OUT_AVX2_JAVA | OUT_AVX2_NATIVE;
 
     public static final int OUT_SW_PEERS   = OUT_JAVA | OUT_SSE;
     public static final int OUT_HW_PEERS   = OUT_PRISM;
@@ -98,6 +115,10 @@ public class JSLC {
     public static ParserInfo getParserInfo(InputStream stream) throws Exception {
         JSLParser parser = parse(stream);
         ProgramUnit program = parser.translation_unit();
+        // shared by all backends, so they all see the simplified program
+        program = new LoopUnroller(parser.getSymbolTable()).unroll(program);
+        program = new ConstantFolder().fold(program);
+        program = new DeadCodeEliminator(parser.getSymbolTable()).eliminate(program);
         return new ParserInfo(parser, program);
     }
 
@@ -105,6 +126,7 @@ public class JSLC {
      * If trimToOutDir is provided by the user, then we will output all files
      * under the out directory, for example if outDir=/foo/bar:
      *   /foo/bar/ + rootPkg + /impl/sw/java
+     *   /foo/bar/ + rootPkg + /impl/sw/vector
      *   /foo/bar/ + rootPkg + /impl/sw/sse
      *   /foo/bar/ + rootPkg + /impl/sw/me
      *   /foo/bar/ + rootPkg + /impl/hw/d3d/hlsl
@@ -115,6 +137,7 @@ public class JSLC {
      * Otherwise, we use the layout currently expected by decora-runtime
      * for core effects:
      *   ../decora-jsw/build/gensrc/     + rootPkg + /impl/sw/java
+     *   ../decora-jsw-vector/build/gensrc/ + rootPkg + /impl/sw/vector
      *   ../decora-sse/build/gensrc/     + rootPkg + /impl/sw/sse
      *   ../decora-me/build/gensrc/      + rootPkg + /impl/sw/me
      *   ../decora-d3d/build/gensrc/     + rootPkg + /impl/hw/d3d/hlsl
@@ -128,11 +151,14 @@ public class JSLC {
         infoMap.put(OUT_D3D11,      "decora-d3d11/build/gensrc/{pkg}/impl/hw/d3d11/hlsl/{name}.hlsl");
         infoMap.put(OUT_ES2,        "decora-es2/build/gensrc/{pkg}/impl/es2/glsl/{name}.frag");
         infoMap.put(OUT_JAVA,       "decora-jsw/build/gensrc/{pkg}/impl/sw/java/JSW{name}Peer.java");
+        infoMap.put(OUT_JAVA_VECTOR, "decora-jsw-vector/build/gensrc/{pkg}/impl/sw/vector/JSWV{name}Peer.java");
         infoMap.put(OUT_PRISM,      "decora-prism-ps/build/gensrc/{pkg}/impl/prism/ps/PPS{name}Peer.java");
         infoMap.put(OUT_SSE_JAVA,   "decora-sse/build/gensrc/{pkg}/impl/sw/sse/SSE{name}Peer.java");
         infoMap.put(OUT_ME_JAVA,    "decora-me/build/gensrc/{pkg}/impl/sw/me/ME{name}Peer.java");
         infoMap.put(OUT_SSE_NATIVE, "decora-sse-native/build/gensrc/SSE{name}Peer.cc");
         infoMap.put(OUT_ME_NATIVE,  "decora-me-native/build/gensrc/ME{name}Peer.cc");
+        infoMap.put(OUT_AVX2_JAVA,  "decora-avx2/build/gensrc/{pkg}/impl/sw/sse/AVX2{name}Peer.java");
+        infoMap.put(OUT_AVX2_NATIVE, "decora-avx2-native/build/gensrc/AVX2{name}Peer.cc");
         return infoMap;
     }
 
@@ -148,7 +174,56 @@ public class JSLC {
     public static ParserInfo compile(JSLCInfo jslcinfo, File file)
         throws Exception
     {
-        return compile(jslcinfo, new FileInputStream(file), file.lastModified());
+        InputStream stream = new FileInputStream(file);
+        try {
+            return compile(jslcinfo, stream, file.lastModified());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Compiles all of the given files concurrently, on jslcinfo.threads
+     * threads (or one per processor), each with a copy of jslcinfo whose
+     * shaderName is the name of the file without the .jsl suffix.  Every
+     * file is compiled even if some of them fail; the failures are
+     * reported on System.err and the first one is then rethrown.
+     */
+    public static void compile(JSLCInfo jslcinfo, List<File> files)
+        throws Exception
+    {
+        if (files.isEmpty()) {
+            return;
+        }
+        int threads = jslcinfo.threads > 0 ?
+            jslcinfo.threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<Future<ParserInfo>> results = new ArrayList<Future<ParserInfo>>();
+            for (File file : files) {
+                String name = file.getName();
+                JSLCInfo info = jslcinfo.forShader(name.substring(0, name.length()-4));
+                results.add(executor.submit(() -> compile(info, file)));
+            }
+            Exception failure = null;
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    System.err.println("Error compiling " + files.get(i) + ": " + cause);
+                    if (failure == null) {
+                        failure = (cause instanceof Exception) ? (Exception)cause : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
     }
 
     public static JSLParser parse(String str)
@@ -191,45 +266,57 @@ public class JSLC {
         String peerName = jslcinfo.peerName;
         String shaderName = jslcinfo.shaderName;
         if (peerName == null) peerName = shaderName;
+        byte[] source = readAll(stream);
 
         // Compiler
         if ((outTypes & OUT_D3D) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_D3D);
-            if (jslcinfo.force || outOfDate(outFile, sourceTime)) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
+            if (isStale(jslcinfo, source, sourceTime, OUT_D3D, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
                 HLSLBackend hlslBackend = new HLSLBackend(pinfo.parser, ShaderModel.SM3);
                 hlslBackend.scan(pinfo.program);
-                write(hlslBackend.getShader(), outFile);
+                write(jslcinfo, source, OUT_D3D, hlslBackend.getShader(), outFile);
             }
         }
 
         if ((outTypes & OUT_D3D11) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_D3D11);
-            if (jslcinfo.force || outOfDate(outFile, sourceTime)) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
+            if (isStale(jslcinfo, source, sourceTime, OUT_D3D11, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
                 HLSLBackend hlslBackend = new HLSLBackend(pinfo.parser, ShaderModel.SM5_1);
                 hlslBackend.scan(pinfo.program);
-                write(hlslBackend.getShader(), outFile);
+                write(jslcinfo, source, OUT_D3D11, hlslBackend.getShader(), outFile);
             }
         }
 
         if ((outTypes & OUT_ES2) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_ES2);
-            if (jslcinfo.force || outOfDate(outFile, sourceTime)) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
+            if (isStale(jslcinfo, source, sourceTime, OUT_ES2, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
                 ES2Backend es2Backend = new ES2Backend(pinfo.parser);
                 es2Backend.scan(pinfo.program);
-                write(es2Backend.getShader(), outFile);
+                write(jslcinfo, source, OUT_ES2, es2Backend.getShader(), outFile);
             }
         }
 
         if ((outTypes & OUT_JAVA) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_JAVA);
-            if (jslcinfo.force || outOfDate(outFile, sourceTime)) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
+            if (isStale(jslcinfo, source, sourceTime, OUT_JAVA, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
                 JSWBackend javaBackend = new JSWBackend(pinfo.parser, pinfo.program);
-                String genCode = javaBackend.getGenCode(shaderName, peerName, genericsName, interfaceName);
-                write(genCode, outFile);
+                String genCode = javaBackend.getGenCode(shaderName, peerName, genericsName, interfaceName,
+                                                        jslcinfo.parallel);
+                write(jslcinfo, source, OUT_JAVA, genCode, outFile);
+            }
+        }
+
+        if ((outTypes & OUT_JAVA_VECTOR) != 0) {
+            File outFile = jslcinfo.getOutputFile(OUT_JAVA_VECTOR);
+            if (isStale(jslcinfo, source, sourceTime, OUT_JAVA_VECTOR, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
+                JSWVBackend vectorBackend = new JSWVBackend(pinfo.parser, pinfo.program);
+                String genCode = vectorBackend.getGenCode(shaderName, peerName, genericsName, interfaceName);
+                write(jslcinfo, source, OUT_JAVA_VECTOR, genCode, outFile);
             }
         }
 
@@ -239,65 +326,142 @@ public class JSLC {
             // destination directory for now; need to make this more flexible
             File genCFile = jslcinfo.getOutputFile(OUT_SSE_NATIVE);
 
-            boolean outFileStale = outOfDate(outFile, sourceTime);
-            boolean genCFileStale = outOfDate(genCFile, sourceTime);
-            if (jslcinfo.force || outFileStale || genCFileStale) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
-                SSEBackend sseBackend = new SSEBackend(pinfo.parser, pinfo.program);
+            // either half of the peer may be requested on its own
+            boolean outFileStale = (outTypes & OUT_SSE_JAVA) != 0 &&
+                isStale(jslcinfo, source, sourceTime, OUT_SSE_JAVA, outFile);
+            boolean genCFileStale = (outTypes & OUT_SSE_NATIVE) != 0 &&
+                isStale(jslcinfo, source, sourceTime, OUT_SSE_NATIVE, genCFile);
+            if (outFileStale || genCFileStale) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
+                SSEBackend sseBackend = new SSEBackend(pinfo.parser, pinfo.program, jslcinfo.stepped);
                 SSEBackend.GenCode gen =
                     sseBackend.getGenCode(shaderName, peerName, genericsName, interfaceName);
 
                 // write impl class
                 if (outFileStale) {
-                    write(gen.javaCode, outFile);
+                    write(jslcinfo, source, OUT_SSE_JAVA, gen.javaCode, outFile);
                 }
 
                 // write impl native code
                 if (genCFileStale) {
-                    write(gen.nativeCode, genCFile);
+                    write(jslcinfo, source, OUT_SSE_NATIVE, gen.nativeCode, genCFile);
                 }
             }
         }
 
+        if ((outTypes & OUT_AVX2) != 0) {
+            File outFile = jslcinfo.getOutputFile(OUT_AVX2_JAVA);
+            File genCFile = jslcinfo.getOutputFile(OUT_AVX2_NATIVE);
+
+            // the Java peer is the SSE one, with its own class name and
+            // library, so that the AVX2 and SSE peers can be loaded side by side
+            if ((outTypes & OUT_AVX2_JAVA) != 0 &&
+                isStale(jslcinfo, source, sourceTime, OUT_AVX2_JAVA, outFile))
+            {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
+                SSEBackend sseBackend = new SSEBackend(pinfo.parser, pinfo.program, jslcinfo.stepped);
+                SSEBackend.GenCode gen =
+                    sseBackend.getGenCode(shaderName, peerName, genericsName, interfaceName,
+                                          "AVX2", "decora_avx2");
+                write(jslcinfo, source, OUT_AVX2_JAVA, gen.javaCode, outFile);
+            }
+
+            if ((outTypes & OUT_AVX2_NATIVE) != 0 &&
+                isStale(jslcinfo, source, sourceTime, OUT_AVX2_NATIVE, genCFile))
+            {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
+                AVX2Backend avx2Backend = new AVX2Backend(pinfo.parser, pinfo.program);
+                write(jslcinfo, source, OUT_AVX2_NATIVE, avx2Backend.getGenCode(peerName), genCFile);
+            }
+        }
+
         if ((outTypes & OUT_ME) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_ME_JAVA);
             // TODO: native code is always generated into the same
             // destination directory for now; need to make this more flexible
             File genCFile = jslcinfo.getOutputFile(OUT_ME_NATIVE);
 
-            boolean outFileStale = outOfDate(outFile, sourceTime);
-            boolean genCFileStale = outOfDate(genCFile, sourceTime);
-            if (jslcinfo.force || outFileStale || genCFileStale) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
-                MEBackend sseBackend = new MEBackend(pinfo.parser, pinfo.program);
+            boolean outFileStale = isStale(jslcinfo, source, sourceTime, OUT_ME_JAVA, outFile);
+            boolean genCFileStale = isStale(jslcinfo, source, sourceTime, OUT_ME_NATIVE, genCFile);
+            if (outFileStale || genCFileStale) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
+                MEBackend sseBackend = new MEBackend(pinfo.parser, pinfo.program, jslcinfo.stepped);
                 MEBackend.GenCode gen =
                     sseBackend.getGenCode(shaderName, peerName, genericsName, interfaceName);
 
                 // write impl class
                 if (outFileStale) {
-                    write(gen.javaCode, outFile);
+                    write(jslcinfo, source, OUT_ME_JAVA, gen.javaCode, outFile);
                 }
 
                 // write impl native code
                 if (genCFileStale) {
-                    write(gen.nativeCode, genCFile);
+                    write(jslcinfo, source, OUT_ME_NATIVE, gen.nativeCode, genCFile);
                 }
             }
         }
 
         if ((outTypes & OUT_PRISM) != 0) {
             File outFile = jslcinfo.getOutputFile(OUT_PRISM);
-            if (jslcinfo.force || outOfDate(outFile, sourceTime)) {
-                if (pinfo == null) pinfo = getParserInfo(stream);
+            if (isStale(jslcinfo, source, sourceTime, OUT_PRISM, outFile)) {
+                if (pinfo == null) pinfo = getParserInfo(new ByteArrayInputStream(source));
                 PrismBackend prismBackend = new PrismBackend(pinfo.parser, pinfo.program);
                 String genCode = prismBackend.getGlueCode(shaderName, peerName, genericsName, interfaceName);
-                write(genCode, outFile);
+                write(jslcinfo, source, OUT_PRISM, genCode, outFile);
             }
         }
 
         return pinfo;
     }
 
+    /**
+     * Generates the OUT_JAVA peer for the given shader source and compiles
+     * it in memory, returning the loaded peer class; nothing is written
+     * to disk (see JSWPeerCompiler for the classpath that is used).
+     */
+    public static Class<?> compileJavaPeer(JSLCInfo jslcinfo,
+                                           String source,
+                                           JSWPeerCompiler compiler)
+        throws Exception
+    {
+        String peerName = jslcinfo.peerName;
+        if (peerName == null) peerName = jslcinfo.shaderName;
+
+        ParserInfo pinfo = getParserInfo(source);
+        JSWBackend javaBackend = new JSWBackend(pinfo.parser, pinfo.program);
+        String genCode = javaBackend.getGenCode(jslcinfo.shaderName, peerName,
+                                                jslcinfo.genericsName, jslcinfo.interfaceName,
+                                                jslcinfo.parallel);
+        return compiler.compile("com.sun.scenario.effect.impl.sw.java.JSW" + peerName + "Peer",
+                                genCode);
+    }
+
+    /**
+     * Generates the OUT_JAVA peer for the given shader source directly as
+     * bytecode, without a Java compiler, and returns the loaded peer class,
+     * which extends the given class (see JSWBytecodeBackend for what the
+     * superclass needs to provide).  Only serial peers can be generated
+     * in this way.
+     */
+    public static Class<?> compileBytecodePeer(JSLCInfo jslcinfo,
+                                               String source,
+                                               Class<?> superclass)
+        throws Exception
+    {
+        if (jslcinfo.parallel) {
+            throw new RuntimeException("Parallel peers are not supported by the bytecode backend");
+        }
+        String peerName = jslcinfo.peerName;
+        if (peerName == null) peerName = jslcinfo.shaderName;
+
+        ParserInfo pinfo = getParserInfo(source);
+        JSWBytecodeBackend backend = new JSWBytecodeBackend(pinfo.parser, pinfo.program);
+        byte[] bytes = backend.getClassFile(peerName, superclass);
+        return JSWPeerCompiler.defineClass(superclass.getClassLoader(),
+                                           "com.sun.scenario.effect.impl.sw.java.JSW" + peerName + "Peer",
+                                           bytes);
+    }
+
     public static boolean outOfDate(File outFile, long sourceTime) {
         if (sourceTime < outFile.lastModified()) {
             return false;
@@ -305,11 +469,59 @@ public class JSLC {
         return true;
     }
 
+    /**
+     * Returns true if the output of the given type needs to be generated
+     * again: with a build cache, if its key has changed (see BuildCache),
+     * otherwise if it is older than the source.
+     */
+    private static boolean isStale(JSLCInfo jslcinfo, byte[] source, long sourceTime,
+                                   int outType, File outFile)
+    {
+        if (jslcinfo.force) {
+            return true;
+        }
+        if (jslcinfo.cache != null) {
+            return !jslcinfo.cache.isUpToDate(outFile,
+                                              BuildCache.getKey(source, jslcinfo, outType));
+        }
+        return outOfDate(outFile, sourceTime);
+    }
+
+    private static void write(JSLCInfo jslcinfo, byte[] source, int outType,
+                              String str, File outFile)
+        throws Exception
+    {
+        write(str, outFile);
+        if (jslcinfo.cache != null) {
+            jslcinfo.cache.put(outFile, BuildCache.getKey(source, jslcinfo, outType));
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = stream.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the given string to the given file, unless the file already
+     * has that content, in which case it is left alone (so that it keeps
+     * its timestamp and doesn't need to be compiled again downstream).
+     */
     public static void write(String str, File outFile) throws Exception {
         File outDir = outFile.getParentFile();
         if (!outDir.exists()) {
             outDir.mkdirs();
         }
+        if (outFile.exists() && outFile.length() == str.length() &&
+            new String(Files.readAllBytes(outFile.toPath())).equals(str))
+        {
+            return;
+        }
         FileWriter fw = null;
         try {
             fw = new FileWriter(outFile);
@@ -325,6 +537,11 @@ public class JSLC {
     public static class JSLCInfo {
         public int outTypes;
         public boolean force;
+        public boolean parallel;
+        public boolean stepped;
+        public int threads;
+        public String cacheFile;
+        public BuildCache cache;
         public String outDir;
         public boolean trimToOutDir;
         public List<String> srcDirs = new ArrayList<String>();
@@ -350,8 +567,9 @@ public class JSLC {
             String prefix0 = "Usage: java "+prog+" ";
             String prefix1 = "";
             for (int i = 0; i < prefix0.length(); i++) prefix1 += " ";
-            out.println(prefix0+"[-d3d | -d3d11 | -es2 | -java | -sse | -me | -sw | -hw | -all]");
-            out.println(prefix1+"[-o <outdir>] [-i <srcdir>] [-t]");
+            out.println(prefix0+"[-d3d | -d3d11 | -es2 | -java | -vector | -sse | -avx2 | -me | -sw | -hw | -all]");
+            out.println(prefix1+"[-o <outdir>] [-i <srcdir>] [-t] [-parallel] [-stepped] [-threads <n>]");
+            out.println(prefix1+"[-cache <file>]");
             out.println(prefix1+"[-name <name>] [-ifname <interface name>]");
             if (extraOpts != null) {
                 out.println(prefix1+extraOpts);
@@ -376,8 +594,7 @@ public class JSLC {
             while (i < args.length) {
                 int consumed = parseArg(args, i);
                 if (consumed < 0) {
-                    usage(System.err);
-                    System.exit(1);
+                    error("missing or invalid value for "+args[i]);
                 } else if (consumed == 0) {
                     break;
                 }
@@ -398,8 +615,12 @@ public class JSLC {
                 outTypes |= OUT_ES2;
             } else if (arg.equals("-java")) {
                 outTypes |= OUT_JAVA;
+            } else if (arg.equals("-vector")) {
+                outTypes |= OUT_JAVA_VECTOR;
             } else if (arg.equals("-sse")) {
                 outTypes |= OUT_SSE;
+            } else if (arg.equals("-avx2")) {
+                outTypes |= OUT_AVX2;
             } else if (arg.equals("-me")) {
                 outTypes |= OUT_ME;
             } else if (arg.equals("-sw")) {
@@ -413,6 +634,10 @@ public class JSLC {
                 System.exit(0);
             } else if (arg.equals("-t")) {
                 trimToOutDir = true;
+            } else if (arg.equals("-parallel")) {
+                parallel = true;
+            } else if (arg.equals("-stepped")) {
+                stepped = true;
             } else {
                 try {
                     // options with 1 argument
@@ -432,10 +657,16 @@ public class JSLC {
                         case "-pkg":
                             pkgName = args[index];
                             break;
+                        case "-threads":
+                            threads = Integer.parseInt(args[index]);
+                            break;
+                        case "-cache":
+                            cacheFile = args[index];
+                            break;
                         default:
                             return 0;
                     }
-                } catch (ArrayIndexOutOfBoundsException e) {
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
                     return -1;
                 }
                 return 2;
@@ -443,6 +674,48 @@ public class JSLC {
             return 1;
         }
 
+        /**
+         * Returns a new, empty instance of this class; subclasses that
+         * override error() return an instance of their own class here.
+         */
+        protected JSLCInfo newInstance() {
+            return new JSLCInfo(extraOpts);
+        }
+
+        /**
+         * Returns the build cache backed by the given file; a long-running
+         * compiler (see JSLCDaemon) overrides this to keep one instance per
+         * file, so that concurrent runs don't save over each other's
+         * entries.
+         */
+        protected BuildCache getCache(File file) throws IOException {
+            return new BuildCache(file);
+        }
+
+        /**
+         * Returns a copy of these options for compiling the shader with
+         * the given name.
+         */
+        public JSLCInfo forShader(String shaderName) {
+            JSLCInfo info = newInstance();
+            info.outTypes = outTypes;
+            info.force = force;
+            info.parallel = parallel;
+            info.stepped = stepped;
+            info.threads = threads;
+            info.cacheFile = cacheFile;
+            info.cache = cache;
+            info.outDir = outDir;
+            info.trimToOutDir = trimToOutDir;
+            info.srcDirs = new ArrayList<String>(srcDirs);
+            info.shaderName = shaderName;
+            info.genericsName = genericsName;
+            info.interfaceName = interfaceName;
+            info.pkgName = pkgName;
+            info.outNameMap = new HashMap<Integer, String>(outNameMap);
+            return info;
+        }
+
         public File getJSLFile() {
             return getJSLFile(shaderName);
         }
@@ -487,21 +760,61 @@ public class JSLC {
     }
 
     public static void main(String[] args) throws Exception {
-        JSLCInfo jslcinfo = new JSLCInfo("<inputfile>");
+        run(new JSLCInfo("[<inputfile> ...]"), args);
+    }
+
+    /**
+     * Parses the given command line arguments into jslcinfo and compiles
+     * the input files they name, as main() does (see also JSLCDaemon).
+     */
+    public static void run(JSLCInfo jslcinfo, String[] args) throws Exception {
         int index = jslcinfo.parseArgs(args);
 
-        if (index != args.length - 1) {
-            jslcinfo.error("Must specify one input file");
+        List<File> inFiles = new ArrayList<File>();
+        for (int i = index; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.endsWith(".jsl") || arg.length() < 5) {
+                jslcinfo.error("Input file name must end with '.jsl'");
+            }
+            inFiles.add(jslcinfo.getInputFile(arg));
+        }
+        if (inFiles.isEmpty()) {
+            // compile all of the files in the source directories
+            for (String dir : jslcinfo.srcDirs) {
+                File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".jsl"));
+                if (files != null) {
+                    Arrays.sort(files);
+                    inFiles.addAll(Arrays.asList(files));
+                }
+            }
+            if (inFiles.isEmpty()) {
+                jslcinfo.error("Must specify an input file or a source directory");
+            }
         }
-        String arg = args[index];
-        if (!arg.endsWith(".jsl") || arg.length() < 5) {
-            jslcinfo.error("Input file name must end with '.jsl'");
+        if (inFiles.size() == 1 && jslcinfo.shaderName == null) {
+            // the file named on the command line, or the only one found
+            // in the source directories
+            String name = (index < args.length) ? args[index] : inFiles.get(0).getName();
+            jslcinfo.shaderName = name.substring(0, name.length()-4);
         }
-        File inFile = jslcinfo.getInputFile(arg);
-        if (jslcinfo.shaderName == null) {
-            jslcinfo.shaderName = arg.substring(0, arg.length()-4);
+        if (inFiles.size() > 1 && jslcinfo.shaderName != null) {
+            jslcinfo.error("-name can only be used with a single input file");
         }
 
-        compile(jslcinfo, inFile);
+        // the outputs are regenerated when their inputs change, rather
+        // than when the source is newer (see BuildCache)
+        File cacheFile = (jslcinfo.cacheFile != null) ?
+            new File(jslcinfo.cacheFile) :
+            new File(jslcinfo.outDir != null ? jslcinfo.outDir : ".", ".jslc-cache");
+        jslcinfo.cache = jslcinfo.getCache(cacheFile);
+        try {
+            if (inFiles.size() == 1) {
+                compile(jslcinfo, inFiles.get(0));
+            } else {
+                compile(jslcinfo, inFiles);
+            }
+        } finally {
+            jslcinfo.cache.save();
+        }
     }
 }
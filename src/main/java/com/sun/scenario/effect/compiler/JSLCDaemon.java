@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.JSLC.JSLCInfo;
+
+/**
+ * A long-running JSLC that compiles shaders on request, so that the cost
+ * of starting the JVM, loading the template groups (see GlueTemplates)
+ * and warming up the parser and backends is paid once rather than for
+ * every invocation.
+ *
+ * Each request is a single line holding the arguments that would be
+ * passed to JSLC on the command line (use double quotes around arguments
+ * that contain spaces) and gets a single line in reply, either
+ * "OK &lt;millis&gt;" or "ERROR &lt;message&gt;".  A line holding "exit"
+ * ends the session.  The requests are read from stdin, or from the
+ * connections made to a port on the loopback interface when -port is
+ * given, e.g.:
+ * <pre>
+ *   java com.sun.scenario.effect.compiler.JSLCDaemon -port 7070
+ * </pre>
+ */
+public class JSLCDaemon {
+
+    private static final String WARMUP_SOURCE =
+        "param sampler img;\n" +
+        "param float level;\n" +
+        "float4 scale(float4 v, float s) {\n" +
+        "    return v * s;\n" +
+        "}\n" +
+        "void main() {\n" +
+        "    float4 c = sample(img, pos0 + float2(0.5, 0.0));\n" +
+        "    c.rgb = mix(c.rgb, float3(dot(c.rgb, float3(0.3, 0.59, 0.11))), level);\n" +
+        "    color = scale(c, 0.5);\n" +
+        "}\n";
+
+    private static class DaemonInfo extends JSLCInfo {
+        DaemonInfo() {
+            super("[<inputfile> ...]");
+        }
+
+        @Override
+        protected JSLCInfo newInstance() {
+            return new DaemonInfo();
+        }
+
+        @Override
+        public void error(String error) {
+            throw new IllegalArgumentException(error);
+        }
+
+        @Override
+        protected BuildCache getCache(File file) throws IOException {
+            return JSLCDaemon.getCache(file);
+        }
+    }
+
+    // the build caches of the requests, by file, which are kept for the
+    // life of the daemon: each request saves all of the entries of its
+    // cache, including the ones added by any other request in the meantime
+    private static final Map<String, BuildCache> caches = new HashMap<String, BuildCache>();
+
+    static BuildCache getCache(File file) throws IOException {
+        String name = file.getAbsoluteFile().toPath().normalize().toString();
+        synchronized (caches) {
+            BuildCache cache = caches.get(name);
+            if (cache == null) {
+                cache = new BuildCache(file);
+                caches.put(name, cache);
+            }
+            return cache;
+        }
+    }
+
+    private JSLCDaemon() {
+    }
+
+    /**
+     * Splits a request line into arguments at whitespace, keeping what is
+     * enclosed in double quotes together.
+     */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    /**
+     * Compiles the shaders named by the arguments on the given request
+     * line and returns the reply to it.
+     */
+    public static String handle(String line) {
+        long start = System.nanoTime();
+        try {
+            List<String> args = split(line);
+            if (args.contains("-help")) {
+                throw new IllegalArgumentException("-help is not supported here");
+            }
+            JSLC.run(new DaemonInfo(), args.toArray(new String[args.size()]));
+        } catch (Throwable t) {
+            String msg = t.getMessage();
+            if (msg == null) {
+                msg = t.toString();
+            }
+            return "ERROR " + msg.replace('\n', ' ').replace('\r', ' ');
+        }
+        return "OK " + (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Answers the requests read from in, one line per request, until the
+     * input ends or an "exit" request is read.
+     */
+    public static void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals("exit") || line.equals("quit")) {
+                break;
+            }
+            out.println(handle(line));
+            out.flush();
+        }
+    }
+
+    /**
+     * Compiles a small shader for all of the backends a few times, so that
+     * the first requests don't run in the interpreter.
+     */
+    static void warmUp(int iterations) throws Exception {
+        File dir = Files.createTempDirectory("jslcd").toFile();
+        try {
+            File src = new File(dir, "Warmup.jsl");
+            Files.write(src.toPath(), WARMUP_SOURCE.getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < iterations; i++) {
+                JSLCInfo jslcinfo = new DaemonInfo();
+                jslcinfo.outDir = new File(dir, "out").getPath();
+                jslcinfo.outTypes = JSLC.OUT_ALL | JSLC.OUT_JAVA_VECTOR |
+                                    JSLC.OUT_ME | JSLC.OUT_AVX2;
+                jslcinfo.force = true;
+                jslcinfo.trimToOutDir = true;
+                jslcinfo.shaderName = "Warmup";
+                jslcinfo.cache = new BuildCache(new File(dir, ".jslc-cache"));
+                JSLC.compile(jslcinfo, src);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = -1;
+        int warmup = 20;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ((arg.equals("-port") || arg.equals("-warmup")) && i + 1 < args.length) {
+                int value = Integer.parseInt(args[++i]);
+                if (arg.equals("-port")) {
+                    port = value;
+                } else {
+                    warmup = value;
+                }
+            } else {
+                System.err.println("Usage: java " + JSLCDaemon.class.getName() +
+                                   " [-port <n>] [-warmup <iterations>]");
+                System.exit(1);
+            }
+        }
+
+        warmUp(warmup);
+
+        if (port < 0) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            out.println("READY");
+            out.flush();
+            serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), out);
+            return;
+        }
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("JSLCDaemon listening on " + server.getLocalSocketAddress());
+        while (true) {
+            Socket socket = server.accept();
+            Thread t = new Thread(() -> {
+                try (Socket s = socket) {
+                    serve(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)),
+                          new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+                } catch (IOException e) {
+                    System.err.println("JSLCDaemon: " + e);
+                }
+            }, "JSLCDaemon-" + socket.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateGroup;
+import org.antlr.stringtemplate.language.DefaultTemplateLexer;
+
+/**
+ * Loads the template groups (*.stg) that the backends fill in with the
+ * generated code.  Each group is parsed once and then kept, so that a
+ * long-running compiler (see JSLCDaemon) doesn't parse it again for
+ * every shader; the groups are safe to share between threads since
+ * StringTemplateGroup synchronizes its lookups.
+ */
+public class GlueTemplates {
+
+    private static final Map<String, StringTemplateGroup> groups =
+        new ConcurrentHashMap<String, StringTemplateGroup>();
+
+    private GlueTemplates() {
+    }
+
+    /**
+     * Returns a new instance of the "glue" template of the group in the
+     * given resource, which is relative to the class of the backend.
+     */
+    public static StringTemplate getGlue(Class<?> backend, String resource) {
+        String name = backend.getPackage().getName().replace('.', '/') + "/" + resource;
+        StringTemplateGroup group = groups.computeIfAbsent(name, n -> {
+            try (Reader template = new InputStreamReader(backend.getResourceAsStream(resource))) {
+                return new StringTemplateGroup(template, DefaultTemplateLexer.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return group.getInstanceOf("glue");
+    }
+}
@@ -169,6 +169,10 @@ public class HLSLBackend extends SLBackend {
     @Override
     public void visitVarDecl(VarDecl d) {
         Variable var = d.getVariable();
+        if (isUnused(var)) {
+            // the registers of the other params stay the same
+            return;
+        }
         Type type = var.getType();
         Qualifier qual = var.getQualifier();
         if (qual == Qualifier.PARAM && type.getBaseType() == BaseType.INT) {
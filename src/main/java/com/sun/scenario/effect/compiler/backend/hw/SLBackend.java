@@ -60,8 +60,6 @@ public abstract class SLBackend extends TreeScanner {
 
     private JSLParser parser;
     private StringBuilder sb = new StringBuilder();
-    private Variable unrollVar = null;
-    private int unrollIndex = -1;
     protected boolean isPixcoordReferenced;
     protected boolean isVertexColorReferenced;
     protected int maxTexCoordIndex = -1;
@@ -108,24 +106,22 @@ public abstract class SLBackend extends TreeScanner {
 
     protected abstract String getFuncName(String f);
 
+    /**
+     * Returns true if the given variable is a param (other than a sampler)
+     * or a constant that the program never reads, in which case there is
+     * no need to declare it.
+     */
+    protected static boolean isUnused(Variable var) {
+        return var.getQualifier() != null &&
+               var.getType().getBaseType() != BaseType.SAMPLER &&
+               !var.isReferenced();
+    }
+
     @Override
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         scan(e.getExpr());
         output("[");
-        boolean needsScan = true;
-        if (unrollVar != null) {
-            // TODO: this is flimsy...
-            if (e.getIndex() instanceof VariableExpr) {
-                VariableExpr vexpr = (VariableExpr)e.getIndex();
-                if (vexpr.getVariable() == unrollVar) {
-                    output("" + unrollIndex);
-                    needsScan = false;
-                }
-            }
-        }
-        if (needsScan) {
-            scan(e.getIndex());
-        }
+        scan(e.getIndex());
         output("]");
     }
 
@@ -201,64 +197,14 @@ public abstract class SLBackend extends TreeScanner {
 
     @Override
     public void visitForStmt(ForStmt s) {
-        boolean unroll = s.getUnrollMax() > 0;
-        if (unroll) {
-            if (unrollVar != null) {
-                throw new RuntimeException("Unrolling of nested 'for' loops not yet supported");
-            }
-
-            // TODO: This is very flimsy code; to make this work for real we
-            // will need much more validation of conditions, etc...
-            String maxName = null;
-            Expr cond = s.getCondition();
-            if (cond instanceof BinaryExpr) {
-                BinaryExpr bcond = (BinaryExpr)cond;
-                if (bcond.getOp() != BinaryOpType.LT) {
-                    throw new RuntimeException("Condition must be '<' in order to unroll 'for' loop (for now)");
-                }
-                Expr left = bcond.getLeft();
-                if (left instanceof VariableExpr) {
-                    VariableExpr vexpr = (VariableExpr)left;
-                    Variable var = vexpr.getVariable();
-                    if (var.getType() != Types.INT) {
-                        throw new RuntimeException("Condition LHS must be integer variable in order to unroll 'for' loop (for now)");
-                    }
-                    unrollVar = var;
-                } else {
-                    throw new RuntimeException("Condition LHS must be integer variable in order to unroll 'for' loop (for now)");
-                }
-                Expr right = bcond.getRight();
-                if (right instanceof VariableExpr) {
-                    VariableExpr vexpr = (VariableExpr)right;
-                    Variable var = vexpr.getVariable();
-                    maxName = var.getName();
-                } else if (s.getUnrollCheck() > 0) {
-                    throw new RuntimeException("Condition RHS must be variable in order to unroll 'for' loop");
-                }
-                // TODO: verify that last expression is postfix-increment
-            } else {
-                throw new RuntimeException("Invalid unrollable 'for' loop condition");
-            }
-            int max = s.getUnrollMax();
-            int check = max - s.getUnrollCheck();
-            for (int i = 0; i < s.getUnrollMax(); i++) {
-                if (i >= check) {
-                    output("if (" + i + " < " + maxName + ")\n");
-                }
-                unrollIndex = i;
-                scan(s.getStmt());
-            }
-            unrollVar = null;
-            unrollIndex = -1;
-        } else {
-            output("for (");
-            scan(s.getInit());
-            scan(s.getCondition());
-            output(";");
-            scan(s.getExpr());
-            output(")");
-            scan(s.getStmt());
-        }
+        // the loops marked with unroll() are expanded by LoopUnroller
+        output("for (");
+        scan(s.getInit());
+        scan(s.getCondition());
+        output(";");
+        scan(s.getExpr());
+        output(")");
+        scan(s.getStmt());
     }
 
     @Override
@@ -328,6 +274,9 @@ public abstract class SLBackend extends TreeScanner {
     @Override
     public void visitVarDecl(VarDecl d) {
         Variable var = d.getVariable();
+        if (isUnused(var)) {
+            return;
+        }
         Qualifier qual = var.getQualifier();
         if (qual != null) {
             output(getQualifier(qual) + " ");
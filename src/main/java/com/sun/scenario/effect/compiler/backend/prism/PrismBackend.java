@@ -25,18 +25,15 @@
 
 package com.sun.scenario.effect.compiler.backend.prism;
 
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.Map;
 import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.GlueTemplates;
 import com.sun.scenario.effect.compiler.model.*;
 import com.sun.scenario.effect.compiler.tree.GlueBlock;
 import com.sun.scenario.effect.compiler.tree.ProgramUnit;
 import com.sun.scenario.effect.compiler.tree.TreeScanner;
 import com.sun.scenario.effect.compiler.tree.VariableExpr;
 import org.antlr.stringtemplate.StringTemplate;
-import org.antlr.stringtemplate.StringTemplateGroup;
-import org.antlr.stringtemplate.language.DefaultTemplateLexer;
 
 /**
  */
@@ -52,9 +49,7 @@ public class PrismBackend extends TreeScanner {
     }
 
     private StringTemplate getTemplate(String type) {
-        Reader template = new InputStreamReader(getClass().getResourceAsStream(type + "Glue.stg"));
-        StringTemplateGroup group = new StringTemplateGroup(template, DefaultTemplateLexer.class);
-        return group.getInstanceOf("glue");
+        return GlueTemplates.getGlue(getClass(), type + "Glue.stg");
     }
 
     public String getGlueCode(String effectName,
@@ -79,7 +74,9 @@ public class PrismBackend extends TreeScanner {
                         samplerLinear.append("case " + v.getReg() + ":\n");
                         samplerLinear.append("    return true;\n");
                     }
-                } else {
+                } else if (v.isReferenced()) {
+                    // params that the shader never reads are not declared
+                    // by the HW backends, so there is nothing to upload
                     String accName = v.getAccessorName();
                     paramInit.append("params.put(\"" + vname + "\", " + v.getReg() + ");\n");
                     if (v.isArray()) {
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.scenario.effect.compiler.backend.sw.avx2;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.GlueTemplates;
+import com.sun.scenario.effect.compiler.model.*;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import org.antlr.stringtemplate.StringTemplate;
+
+/**
+ * Generates the native half of an SSE peer using AVX2/FMA intrinsics, so
+ * that 8 destination pixels are computed per iteration of the inner loop.
+ * The JNI entry point has the same signature as the one produced by
+ * SSEBackend, for the AVX2 peer class that SSEBackend generates from
+ * SSEJavaGlue.stg with its own name and library (decora_avx2), so the SSE
+ * and AVX2 variants can both be loaded.
+ * <p>
+ * The results match those of the SSE peer bit for bit as long as both are
+ * compiled with {@code -ffp-contract=off}: only an explicit {@code fma()}
+ * in the shader is fused, and otherwise the compiler would be free to
+ * contract the multiplies and adds of either peer into FMA instructions,
+ * which round differently (typically by 1 LSB of the 8-bit result).
+ */
+public class AVX2Backend extends TreeScanner {
+
+    private final JSLParser parser;
+    private final String body;
+    private final String invariantDecls;
+
+    public AVX2Backend(JSLParser parser, ProgramUnit program) {
+        this.parser = parser;
+
+        program = new CallLifter(parser.getSymbolTable()).lift(program);
+        InvariantHoister hoister = new InvariantHoister(parser.getSymbolTable());
+        program = hoister.hoist(program);
+        program = new CommonSubexprEliminator(parser.getSymbolTable()).eliminate(program);
+
+        AVX2TreeScanner scanner = new AVX2TreeScanner(this);
+        scanner.scan(program);
+        this.body = scanner.getResult();
+
+        // the hoisted values are computed once, before the per-pixel loop
+        AVX2TreeScanner invScanner = new AVX2TreeScanner(this);
+        for (VarDecl d : hoister.getInvariants()) {
+            invScanner.scan(d);
+        }
+        this.invariantDecls = invScanner.getResult();
+    }
+
+    private static void appendGetRelease(StringBuilder get,
+                                         StringBuilder rel,
+                                         String ctype,
+                                         String cbufName, String jarrayName)
+    {
+        get.append("j" + ctype + " *" + cbufName + " = (j" + ctype + " *)");
+        get.append("env->GetPrimitiveArrayCritical(" + jarrayName + ", 0);\n");
+        get.append("if (" + cbufName + " == NULL) return;\n");
+        rel.append("env->ReleasePrimitiveArrayCritical(" + jarrayName + ", " + cbufName + ", JNI_ABORT);\n");
+    }
+
+    private static SortedSet<Variable> getSortedVars(Collection<Variable> unsortedVars) {
+        Comparator<Variable> c = (v0, v1) -> v0.getName().compareTo(v1.getName());
+        SortedSet<Variable> sortedVars = new TreeSet<Variable>(c);
+        sortedVars.addAll(unsortedVars);
+        return sortedVars;
+    }
+
+    public final String getGenCode(String peerName) {
+        Map<String, Variable> vars = parser.getSymbolTable().getGlobalVariables();
+        StringBuilder posDecls = new StringBuilder();
+        StringBuilder pixInitY = new StringBuilder();
+        StringBuilder pixInitX = new StringBuilder();
+        StringBuilder posIncrY = new StringBuilder();
+        StringBuilder posInitY = new StringBuilder();
+        StringBuilder posInitX = new StringBuilder();
+        StringBuilder posRelease = new StringBuilder();
+        StringBuilder cparamDecls = new StringBuilder();
+        StringBuilder arrayGet = new StringBuilder();
+        StringBuilder arrayRelease = new StringBuilder();
+
+        appendGetRelease(arrayGet, arrayRelease, "int", "dst", "dst_arr");
+
+        if (parser.getSymbolTable().isCoreVariableReferenced("pixcoord")) {
+            pixInitY.append("__m256 pixcoord_y = _mm256_set1_ps((float)dy);\n");
+            pixInitX.append("__m256 pixcoord_x = _mm256_cvtepi32_ps(\n");
+            pixInitX.append("    _mm256_add_epi32(_mm256_set1_epi32(dx), _mm256_setr_epi32(0, 1, 2, 3, 4, 5, 6, 7)));\n");
+        }
+
+        // the parameters must be declared in the same order as in
+        // SSEBackend, since the Java side of the peer is shared
+        SortedSet<Variable> sortedVars = getSortedVars(vars.values());
+        for (Variable v : sortedVars) {
+            if (v.getQualifier() == Qualifier.CONST && v.getConstValue() == null) {
+                // this must be a special built-in variable (e.g. pos0);
+                // these are handled elsewhere, so just continue...
+                continue;
+            }
+
+            Type t = v.getType();
+            BaseType bt = t.getBaseType();
+            String vtype = bt.toString();
+            String vname = v.getName();
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER && !v.isReferenced()) {
+                // the program never reads this value (see DeadCodeEliminator)
+                continue;
+            }
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER) {
+                if (v.isArray()) {
+                    String arrayName = vname + "_arr";
+                    cparamDecls.append(",\n");
+                    cparamDecls.append("j" + vtype + "Array " + vname);
+                    appendGetRelease(arrayGet, arrayRelease, vtype, arrayName, vname);
+                } else {
+                    if (t.isVector()) {
+                        cparamDecls.append(",\n");
+                        for (int i = 0; i < t.getNumFields(); i++) {
+                            if (i > 0) {
+                                cparamDecls.append(", ");
+                            }
+                            cparamDecls.append("j" + vtype + " " + vname + getSuffix(i));
+                        }
+                    } else {
+                        cparamDecls.append(",\n");
+                        cparamDecls.append("j" + vtype + " " + vname);
+                    }
+                }
+            } else if (v.getQualifier() == Qualifier.PARAM && bt == BaseType.SAMPLER) {
+                int i = v.getReg();
+                if (t == Types.FSAMPLER) {
+                    arrayGet.append("float " + vname + "_vals[4];\n");
+
+                    cparamDecls.append(",\n");
+                    cparamDecls.append("jfloatArray " + vname + "_arr");
+
+                    appendGetRelease(arrayGet, arrayRelease, "float", vname, vname + "_arr");
+                } else {
+                    if (t == Types.LSAMPLER) {
+                        arrayGet.append("float " + vname + "_vals[4];\n");
+                    }
+
+                    cparamDecls.append(",\n");
+                    cparamDecls.append("jintArray " + vname + "_arr");
+
+                    appendGetRelease(arrayGet, arrayRelease, "int", vname, vname + "_arr");
+                }
+
+                if (parser.getSymbolTable().isCoreVariableReferenced("pos" + i)) {
+                    posDecls.append("float inc" + i + "_x = (src" + i + "Rect_x2 - src" + i + "Rect_x1) / dstw;\n");
+                    posDecls.append("float inc" + i + "_y = (src" + i + "Rect_y2 - src" + i + "Rect_y1) / dsth;\n");
+
+                    // the x coordinates are the same for every row, so they are
+                    // accumulated once up front (in the same order as in the SSE
+                    // peer, so that the results match) and then loaded 8 at a
+                    // time in the inner loop
+                    posDecls.append("float *pos" + i + "_xs = new float[dstw + 8];\n");
+                    posDecls.append("{\n");
+                    posDecls.append("    float pos" + i + "_x = src" + i + "Rect_x1 + inc" + i + "_x*0.5f;\n");
+                    posDecls.append("    for (int i = 0; i < dstw + 8; i++) {\n");
+                    posDecls.append("        pos" + i + "_xs[i] = pos" + i + "_x;\n");
+                    posDecls.append("        pos" + i + "_x += inc" + i + "_x;\n");
+                    posDecls.append("    }\n");
+                    posDecls.append("}\n");
+                    posRelease.append("delete[] pos" + i + "_xs;\n");
+
+                    posInitY.append("float pos" + i + "_yrow = src" + i + "Rect_y1 + inc" + i + "_y*0.5f;\n");
+                    posInitX.append("__m256 pos" + i + "_y = _mm256_set1_ps(pos" + i + "_yrow);\n");
+                    pixInitX.append("__m256 pos" + i + "_x = _mm256_loadu_ps(pos" + i + "_xs + (dx - dstx));\n");
+                    posIncrY.append("pos" + i + "_yrow += inc" + i + "_y;\n");
+                }
+
+                cparamDecls.append(",\n");
+                cparamDecls.append("jfloat src" + i + "Rect_x1, jfloat src" + i + "Rect_y1,\n");
+                cparamDecls.append("jfloat src" + i + "Rect_x2, jfloat src" + i + "Rect_y2,\n");
+                cparamDecls.append("jint src" + i + "w, jint src" + i + "h, jint src" + i + "scan");
+            }
+        }
+
+        StringTemplate cglue = GlueTemplates.getGlue(getClass(), "AVX2NativeGlue.stg");
+        cglue.setAttribute("peerName", peerName);
+        cglue.setAttribute("jniName", peerName.replace("_", "_1"));
+        cglue.setAttribute("paramDecls", cparamDecls.toString());
+        cglue.setAttribute("arrayGet", arrayGet.toString());
+        cglue.setAttribute("arrayRelease", arrayRelease.toString());
+        cglue.setAttribute("invariants", invariantDecls);
+        cglue.setAttribute("posDecls", posDecls.toString());
+        cglue.setAttribute("posRelease", posRelease.toString());
+        cglue.setAttribute("pixInitY", pixInitY.toString());
+        cglue.setAttribute("pixInitX", pixInitX.toString());
+        cglue.setAttribute("posIncrY", posIncrY.toString());
+        cglue.setAttribute("posInitY", posInitY.toString());
+        cglue.setAttribute("posInitX", posInitX.toString());
+        cglue.setAttribute("body", body);
+        return cglue.toString();
+    }
+    // TODO: need better mechanism for querying fields
+    private static char[] fields = {'x', 'y', 'z', 'w'};
+    public static String getSuffix(int i) {
+        return "_" + fields[i];
+    }
+
+    static int getFieldIndex(char field) {
+        switch (field) {
+        case 'r':
+        case 'x':
+            return 0;
+        case 'g':
+        case 'y':
+            return 1;
+        case 'b':
+        case 'z':
+            return 2;
+        case 'a':
+        case 'w':
+            return 3;
+        default:
+            throw new InternalError();
+        }
+    }
+
+    private final Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
+    void putFuncDef(FuncDef def) {
+        funcDefs.put(def.getFunction().getName(), def);
+    }
+    FuncDef getFuncDef(String name) {
+        return funcDefs.get(name);
+    }
+
+    private Set<String> resultVars = new HashSet<String>();
+    boolean isResultVarDeclared(String vname) {
+        return resultVars.contains(vname);
+    }
+    void declareResultVar(String vname) {
+        resultVars.add(vname);
+    }
+    Set<String> saveResultVars() {
+        return new HashSet<String>(resultVars);
+    }
+    void restoreResultVars(Set<String> vars) {
+        resultVars = vars;
+    }
+
+    private final StringBuilder usercode = new StringBuilder();
+    void addGlueBlock(String block) {
+        usercode.append(block);
+    }
+}
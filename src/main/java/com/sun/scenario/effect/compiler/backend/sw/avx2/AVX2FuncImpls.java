@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.avx2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.model.CoreSymbols;
+import com.sun.scenario.effect.compiler.model.FuncImpl;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.VariableExpr;
+
+import static com.sun.scenario.effect.compiler.model.Types.*;
+
+/**
+ * Contains the AVX2 implementations for all core (built-in) functions.
+ * All float arguments and results are {@code __m256} values holding one
+ * lane per destination pixel.
+ */
+class AVX2FuncImpls {
+
+    private static Map<Function, FuncImpl> funcs = new HashMap<Function, FuncImpl>();
+
+    static FuncImpl get(Function func) {
+        return funcs.get(func);
+    }
+
+    static {
+        // float4 sample(sampler s, float2 loc)
+        declareFunctionSample(SAMPLER);
+
+        // float4 sample(lsampler s, float2 loc)
+        declareFunctionSample(LSAMPLER);
+
+        // float4 sample(fsampler s, float2 loc)
+        declareFunctionSample(FSAMPLER);
+
+        // int intcast(float x)
+        declareFunctionIntCast();
+
+        // <ftype> min(<ftype> x, <ftype> y)
+        // <ftype> min(<ftype> x, float y)
+        declareOverloadsMinMax("min", "_mm256_min_ps(x_tmp$1, y_tmp$2)");
+
+        // <ftype> max(<ftype> x, <ftype> y)
+        // <ftype> max(<ftype> x, float y)
+        declareOverloadsMinMax("max", "_mm256_max_ps(x_tmp$1, y_tmp$2)");
+
+        // <ftype> clamp(<ftype> val, <ftype> min, <ftype> max)
+        // <ftype> clamp(<ftype> val, float min, float max)
+        declareOverloadsClamp();
+
+        // <ftype> smoothstep(<ftype> min, <ftype> max, <ftype> val)
+        // <ftype> smoothstep(float min, float max, <ftype> val)
+        declareOverloadsSmoothstep();
+
+        // <ftype> abs(<ftype> x)
+        declareOverloadsSimple("abs", "abs_ps(x_tmp$1)");
+
+        // <ftype> floor(<ftype> x)
+        declareOverloadsSimple("floor", "_mm256_floor_ps(x_tmp$1)");
+
+        // <ftype> ceil(<ftype> x)
+        declareOverloadsSimple("ceil", "_mm256_ceil_ps(x_tmp$1)");
+
+        // <ftype> fract(<ftype> x)
+        declareOverloadsSimple("fract", "_mm256_sub_ps(x_tmp$1, _mm256_floor_ps(x_tmp$1))");
+
+        // <ftype> sign(<ftype> x)
+        declareOverloadsSimple("sign", "sign_ps(x_tmp$1)");
+
+        // <ftype> sqrt(<ftype> x)
+        declareOverloadsSimple("sqrt", "_mm256_sqrt_ps(x_tmp$1)");
+
+        // <ftype> sin(<ftype> x)
+        declareOverloadsSimple("sin", "sin_ps(x_tmp$1)");
+
+        // <ftype> cos(<ftype> x)
+        declareOverloadsSimple("cos", "cos_ps(x_tmp$1)");
+
+        // <ftype> tan(<ftype> x)
+        declareOverloadsSimple("tan", "tan_ps(x_tmp$1)");
+
+        // <ftype> pow(<ftype> x, <ftype> y)
+        declareOverloadsSimple2("pow", "pow_ps(x_tmp$1, y_tmp$2)");
+
+        // <ftype> mod(<ftype> x, <ftype> y)
+        // <ftype> mod(<ftype> x, float y)
+        declareOverloadsMinMax("mod", "mod_ps(x_tmp$1, y_tmp$2)");
+
+        // float dot(<ftype> x, <ftype> y)
+        declareOverloadsDot();
+
+        // float distance(<ftype> x, <ftype> y)
+        declareOverloadsDistance();
+
+        // <ftype> mix(<ftype> x, <ftype> y, <ftype> a)
+        // <ftype> mix(<ftype> x, <ftype> y, float a)
+        declareOverloadsMix();
+
+        // <ftype> normalize(<ftype> x)
+        declareOverloadsNormalize();
+
+        // <ftype> ddx(<ftype> p)
+        declareOverloadsSimple("ddx", "<ddx() not implemented for sw backends>");
+
+        // <ftype> ddy(<ftype> p)
+        declareOverloadsSimple("ddy", "<ddy() not implemented for sw backends>");
+
+        // <ftype> fma(<ftype> x, <ftype> y, <ftype> z)
+        declareOverloadsSimple3("fma", "_mm256_fmadd_ps(x_tmp$1, y_tmp$2, z_tmp$3)");
+    }
+
+    private static void declareFunction(FuncImpl impl,
+                                        String name, Type... ptypes) {
+        Function f = CoreSymbols.getFunction(name, Arrays.asList(ptypes));
+        if (f == null) {
+            throw new InternalError("Core function not found (have you declared the function in CoreSymbols?)");
+        }
+        funcs.put(f, impl);
+    }
+
+    /**
+     * Used to declare sample function:
+     *   float4 sample([l,f]sampler s, float2 loc)
+     *
+     * Plain samplers are fetched with a single masked gather of the pixels
+     * for all lanes (lanes that fall outside of the source image are left
+     * transparent).  The lsampler/fsampler variants call the scalar
+     * lsample()/fsample() helpers once per lane and load the results
+     * back into vectors.
+     */
+    private static void declareFunctionSample(final Type type) {
+        FuncImpl fimpl = new FuncImpl() {
+            @Override
+            public String getPreamble(List<Expr> params) {
+                String s = getSamplerName(params);
+                String p = getPosName(params);
+                if (type == LSAMPLER || type == FSAMPLER) {
+                    String func = (type == LSAMPLER) ? "lsample" : "fsample";
+                    return
+                        "float " + s + "_locx[8], " + s + "_locy[8], " + s + "_lanes[4*8];\n" +
+                        "_mm256_storeu_ps(" + s + "_locx, loc_tmp_x);\n" +
+                        "_mm256_storeu_ps(" + s + "_locy, loc_tmp_y);\n" +
+                        "for (int lane = 0; lane < 8; lane++) {\n" +
+                        "    " + func + "(" + s + ", " + s + "_locx[lane], " + s + "_locy[lane],\n" +
+                        "            " + p + "w, " + p + "h, " + p + "scan,\n" +
+                        "            " + s + "_vals);\n" +
+                        "    " + s + "_lanes[lane     ] = " + s + "_vals[0];\n" +
+                        "    " + s + "_lanes[lane +  8] = " + s + "_vals[1];\n" +
+                        "    " + s + "_lanes[lane + 16] = " + s + "_vals[2];\n" +
+                        "    " + s + "_lanes[lane + 24] = " + s + "_vals[3];\n" +
+                        "}\n";
+                } else {
+                    // note that (int)(loc*w) >= w is the same as loc*w >= w
+                    // for non-negative values, so the bounds are checked
+                    // before converting the coordinates to ints
+                    return
+                        "__m256 floc_tmp_x = _mm256_mul_ps(loc_tmp_x, _mm256_set1_ps((float)" + p + "w));\n" +
+                        "__m256 floc_tmp_y = _mm256_mul_ps(loc_tmp_y, _mm256_set1_ps((float)" + p + "h));\n" +
+                        "__m256 in_tmp = _mm256_and_ps(\n" +
+                        "    _mm256_and_ps(_mm256_cmp_ps(loc_tmp_x, _mm256_setzero_ps(), _CMP_GE_OQ),\n" +
+                        "                  _mm256_cmp_ps(loc_tmp_y, _mm256_setzero_ps(), _CMP_GE_OQ)),\n" +
+                        "    _mm256_and_ps(_mm256_cmp_ps(floc_tmp_x, _mm256_set1_ps((float)" + p + "w), _CMP_LT_OQ),\n" +
+                        "                  _mm256_cmp_ps(floc_tmp_y, _mm256_set1_ps((float)" + p + "h), _CMP_LT_OQ)));\n" +
+                        "__m256i " + s + "_tmp = _mm256_mask_i32gather_epi32(\n" +
+                        "    _mm256_setzero_si256(), (const int *)" + s + ",\n" +
+                        "    _mm256_add_epi32(_mm256_mullo_epi32(_mm256_cvttps_epi32(floc_tmp_y),\n" +
+                        "                                        _mm256_set1_epi32(" + p + "scan)),\n" +
+                        "                     _mm256_cvttps_epi32(floc_tmp_x)),\n" +
+                        "    _mm256_castps_si256(in_tmp), 4);\n";
+                }
+            }
+            public String toString(int i, List<Expr> params) {
+                String s = getSamplerName(params);
+                if (type == LSAMPLER || type == FSAMPLER) {
+                    return (i < 0 || i > 3) ? null :
+                        "_mm256_loadu_ps(" + s + "_lanes + " + (i * 8) + ")";
+                } else {
+                    switch (i) {
+                    case 0:
+                        return "unpack_ps(" + s + "_tmp, 16)";
+                    case 1:
+                        return "unpack_ps(" + s + "_tmp,  8)";
+                    case 2:
+                        return "unpack_ps(" + s + "_tmp,  0)";
+                    case 3:
+                        return "unpack_ps(" + s + "_tmp, 24)";
+                    default:
+                        return null;
+                    }
+                }
+            }
+            private String getSamplerName(List<Expr> params) {
+                VariableExpr e = (VariableExpr)params.get(0);
+                return e.getVariable().getName();
+            }
+            private String getPosName(List<Expr> params) {
+                VariableExpr e = (VariableExpr)params.get(0);
+                return "src" + e.getVariable().getReg();
+            }
+        };
+        declareFunction(fimpl, "sample", type, FLOAT2);
+    }
+
+    /**
+     * Used to declare intcast function:
+     *   int intcast(float x)
+     *
+     * Integer values are kept in scalar form by this backend (they are
+     * only used for loop counters and array indices), so there is no
+     * way to narrow a per-pixel float value to an int.
+     */
+    private static void declareFunctionIntCast() {
+        FuncImpl fimpl = (i, params) -> "<intcast() not implemented for AVX2 backend>";
+        declareFunction(fimpl, "intcast", FLOAT);
+    }
+
+    /**
+     * Used to declare simple functions of the following form:
+     *   <ftype> name(<ftype> x)
+     */
+    private static void declareOverloadsSimple(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type);
+        }
+    }
+
+    /**
+     * Used to declare simple two parameter functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsSimple2(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Used to declare simple three parameter functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y, <ftype> z)
+     */
+    private static void declareOverloadsSimple3(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                s = s.replace("$3", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+        }
+    }
+
+    /**
+     * Used to declare normalize functions of the following form:
+     *   <ftype> normalize(<ftype> x)
+     */
+    private static void declareOverloadsNormalize() {
+        final String name = "normalize";
+        final String pattern = "_mm256_div_ps(x_tmp$1, denom)";
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            final String preamble;
+            if (n == 1) {
+                preamble = "__m256 denom = x_tmp;\n";
+            } else {
+                preamble = "__m256 denom = _mm256_sqrt_ps(" + getDot(n, "x_tmp", "x_tmp") + ");\n";
+            }
+
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = new FuncImpl() {
+                @Override
+                public String getPreamble(List<Expr> params) {
+                    return preamble;
+                }
+                public String toString(int i, List<Expr> params) {
+                    String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                    String s = pattern;
+                    s = s.replace("$1", sfx);
+                    return s;
+                }
+            };
+            declareFunction(fimpl, name, type);
+        }
+    }
+
+    /**
+     * Used to declare dot functions of the following form:
+     *   float dot(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsDot() {
+        final String name = "dot";
+        for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            final String str = getDot(n, "x_tmp", "y_tmp");
+            FuncImpl fimpl = (i, params) -> str;
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Used to declare distance functions of the following form:
+     *   float distance(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsDistance() {
+        final String name = "distance";
+        for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            final String preamble;
+            if (n == 1) {
+                preamble = "__m256 diff_tmp = _mm256_sub_ps(x_tmp, y_tmp);\n";
+            } else {
+                String s = "";
+                for (int i = 0; i < n; i++) {
+                    String sfx = AVX2Backend.getSuffix(i);
+                    s += "__m256 diff_tmp" + sfx + " = _mm256_sub_ps(x_tmp" + sfx + ", y_tmp" + sfx + ");\n";
+                }
+                preamble = s;
+            }
+            final String str = "_mm256_sqrt_ps(" + getDot(n, "diff_tmp", "diff_tmp") + ")";
+            FuncImpl fimpl = new FuncImpl() {
+                @Override
+                public String getPreamble(List<Expr> params) {
+                    return preamble;
+                }
+                public String toString(int i, List<Expr> params) {
+                    return str;
+                }
+            };
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Returns the sum of the products of the components of x and y, which
+     * are rounded and added in the same order as in the SSE peer (a fused
+     * multiply-add would skip the rounding of the products).
+     */
+    private static String getDot(int n, String x, String y) {
+        if (n == 1) {
+            return "_mm256_mul_ps(" + x + ", " + y + ")";
+        }
+        String s = "_mm256_mul_ps(" + x + "_x, " + y + "_x)";
+        for (int i = 1; i < n; i++) {
+            String sfx = AVX2Backend.getSuffix(i);
+            s = "_mm256_add_ps(" + s + ",\n    _mm256_mul_ps(" + x + sfx + ", " + y + sfx + "))";
+        }
+        return s;
+    }
+
+    /**
+     * Used to declare min/max functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y)
+     *   <ftype> name(<ftype> x, float y)
+     *
+     * TODO: this is currently geared to simple functions like
+     * min and max; we should make this more general...
+     */
+    private static void declareOverloadsMinMax(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,float) variants
+            fimpl = (i, params) -> {
+                String sfx = AVX2Backend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, FLOAT);
+        }
+    }
+
+    /**
+     * Used to declare clamp functions of the following form:
+     *   <ftype> clamp(<ftype> val, <ftype> min, <ftype> max)
+     *   <ftype> clamp(<ftype> val, float min, float max)
+     */
+    private static void declareOverloadsClamp() {
+        final String name = "clamp";
+        final String pattern =
+            "_mm256_blendv_ps(\n" +
+            "    _mm256_blendv_ps(val_tmp$1, max_tmp$2, _mm256_cmp_ps(val_tmp$1, max_tmp$2, _CMP_GT_OQ)),\n" +
+            "    min_tmp$2, _mm256_cmp_ps(val_tmp$1, min_tmp$2, _CMP_LT_OQ))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,float,float) variants
+            fimpl = (i, params) -> {
+                String sfx = AVX2Backend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, FLOAT, FLOAT);
+        }
+    }
+
+    /**
+     * Used to declare smoothstep functions of the following form:
+     *   <ftype> smoothstep(<ftype> min, <ftype> max, <ftype> val)
+     *   <ftype> smoothstep(float min, float max, <ftype> val)
+     */
+    private static void declareOverloadsSmoothstep() {
+        final String name = "smoothstep";
+        // TODO - the smoothstep function is defined to use Hermite interpolation
+        final String pattern =
+            "_mm256_blendv_ps(\n" +
+            "    _mm256_blendv_ps(_mm256_div_ps(val_tmp$1, _mm256_sub_ps(max_tmp$2, min_tmp$2)),\n" +
+            "                     _mm256_set1_ps(1.0f), _mm256_cmp_ps(val_tmp$1, max_tmp$2, _CMP_GT_OQ)),\n" +
+            "    _mm256_setzero_ps(), _mm256_cmp_ps(val_tmp$1, min_tmp$2, _CMP_LT_OQ))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (float,float,vectype) variants
+            fimpl = (i, params) -> {
+                String sfx = AVX2Backend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, FLOAT, FLOAT, type);
+        }
+    }
+
+    /**
+     * Used to declare mix functions of the following form:
+     *   <ftype> mix(<ftype> x, <ftype> y, <ftype> a)
+     *   <ftype> mix(<ftype> x, <ftype> y, float a)
+     */
+    private static void declareOverloadsMix() {
+        final String name = "mix";
+        // x*(1-a) + y*a, without fusing, as in the SSE peer
+        final String pattern =
+            "_mm256_add_ps(_mm256_mul_ps(x_tmp$1, _mm256_sub_ps(_mm256_set1_ps(1.0f), a_tmp$2)),\n" +
+            "    _mm256_mul_ps(y_tmp$1, a_tmp$2))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? AVX2Backend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,vectype,float) variants
+            fimpl = (i, params) -> {
+                String sfx = AVX2Backend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, FLOAT);
+        }
+    }
+}
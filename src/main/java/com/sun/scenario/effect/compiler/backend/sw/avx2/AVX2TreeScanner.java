@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.avx2;
+
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.*;
+import static com.sun.scenario.effect.compiler.backend.sw.avx2.AVX2Backend.getFieldIndex;
+import static com.sun.scenario.effect.compiler.backend.sw.avx2.AVX2Backend.getSuffix;
+
+/**
+ * Translates the main function body into C code that operates on 8
+ * destination pixels at once using AVX2 intrinsics.
+ *
+ * Every float-typed expression is evaluated as an {@code __m256}, with
+ * uniform values (literals, parameters and parameter array elements)
+ * broadcast with {@code _mm256_set1_ps()}.  Comparisons between floats
+ * produce a lane mask (also held in an {@code __m256}); int and bool
+ * values are never per-pixel, so they remain plain C scalars and can be
+ * used for loop counters and array indices as in the SSE backend.
+ */
+class AVX2TreeScanner extends TreeScanner {
+
+    private final AVX2Backend backend;
+    private final String funcName;
+    private StringBuilder sb = new StringBuilder();
+
+    private boolean inVectorOp = false;
+    private int vectorIndex = 0;
+    private boolean inFieldSelect = false;
+    private char selectedField = 'x';
+
+    AVX2TreeScanner(AVX2Backend backend) {
+        this(backend, null);
+    }
+
+    AVX2TreeScanner(AVX2Backend backend, String funcName) {
+        this.backend = backend;
+        this.funcName = funcName;
+    }
+
+    private void output(String s) {
+        sb.append(s);
+    }
+
+    String getResult() {
+        return (sb != null) ? sb.toString() : null;
+    }
+
+    /**
+     * Returns the code for the given function argument, in the form of an
+     * {@code __m256} for float arguments.
+     */
+    String getArgument(Expr e, boolean vectorOp, int index) {
+        inVectorOp = vectorOp;
+        vectorIndex = index;
+        return operand(e);
+    }
+
+    /**
+     * Returns the code for the given expression, without adding it to the
+     * result of this scanner.
+     */
+    private String capture(Expr e) {
+        StringBuilder saved = sb;
+        sb = new StringBuilder();
+        scan(e);
+        String res = sb.toString();
+        sb = saved;
+        return res;
+    }
+
+    /**
+     * Returns the code for the given operand; uniform float operands are
+     * broadcast to all lanes.
+     */
+    private String operand(Expr e) {
+        String s = capture(e);
+        if (isFloat(e) && isUniform(e)) {
+            s = "_mm256_set1_ps(" + s + ")";
+        }
+        return s;
+    }
+
+    /**
+     * Returns true if the given expression is evaluated as an
+     * {@code __m256} (or as a uniform float scalar).
+     */
+    private static boolean isFloat(Expr e) {
+        return e.getResultType().getBaseType() == BaseType.FLOAT;
+    }
+
+    /**
+     * Returns true if the given boolean expression depends on per-pixel
+     * float values, in which case it is evaluated as a lane mask.
+     */
+    private static boolean isMask(Expr e) {
+        if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            if (!be.getOp().isRelational()) {
+                return false;
+            }
+            return isFloat(be.getLeft()) || isMask(be.getLeft()) ||
+                   isFloat(be.getRight()) || isMask(be.getRight());
+        } else if (e instanceof UnaryExpr) {
+            return isMask(((UnaryExpr)e).getExpr());
+        } else if (e instanceof ParenExpr) {
+            return isMask(((ParenExpr)e).getExpr());
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given float expression has the same value for
+     * every pixel and is emitted as a plain scalar (to be broadcast).
+     */
+    private boolean isUniform(Expr e) {
+        if (e instanceof LiteralExpr) {
+            return true;
+        } else if (e instanceof ArrayAccessExpr) {
+            return true;
+        } else if (e instanceof VariableExpr) {
+            Variable var = ((VariableExpr)e).getVariable();
+            // built-in variables (e.g. pos0) have no constant value
+            return var.getQualifier() == Qualifier.PARAM ||
+                   (var.getQualifier() == Qualifier.CONST &&
+                    var.getConstValue() != null);
+        } else if (e instanceof FieldSelectExpr) {
+            return isUniform(((FieldSelectExpr)e).getExpr());
+        } else if (e instanceof ParenExpr) {
+            return isUniform(((ParenExpr)e).getExpr());
+        } else if (e instanceof VectorCtorExpr) {
+            return isUniform(((VectorCtorExpr)e).getParams().get(vectorIndex));
+        }
+        return false;
+    }
+
+    private static void checkCondition(Expr e) {
+        if (isMask(e)) {
+            throw new InternalError("Per-pixel conditions not supported by AVX2 backend");
+        }
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        if (e.getExpr() instanceof VariableExpr &&
+            (e.getIndex() instanceof VariableExpr ||
+             e.getIndex() instanceof LiteralExpr))
+        {
+            VariableExpr ve = (VariableExpr)e.getExpr();
+            int numFields = ve.getVariable().getType().getNumFields();
+            int field = 0;
+            if (inFieldSelect) {
+                field = getFieldIndex(selectedField);
+            } else if (inVectorOp && numFields > 1) {
+                field = vectorIndex;
+            }
+            output(ve.getVariable().getName());
+            if (e.getIndex() instanceof LiteralExpr) {
+                // a constant index, e.g. in an unrolled loop
+                int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                output("_arr[" + (index * numFields + field) + "]");
+            } else {
+                output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                output(" * " + numFields);
+                output(" + " + field + "]");
+            }
+        } else {
+            throw new InternalError("Array access only supports variable expr/index (for now)");
+        }
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        Expr left = e.getLeft();
+        Expr right = e.getRight();
+        BinaryOpType op = e.getOp();
+        if (op.isRelational()) {
+            if (isFloat(left) || isFloat(right)) {
+                output("_mm256_cmp_ps(" + operand(left) + ", " + operand(right));
+                output(", " + getComparison(op) + ")");
+                return;
+            } else if (isMask(e)) {
+                String l = operand(left);
+                String r = operand(right);
+                switch (op) {
+                case AND:
+                    output("_mm256_and_ps(" + l + ", " + r + ")");
+                    break;
+                case OR:
+                    output("_mm256_or_ps(" + l + ", " + r + ")");
+                    break;
+                case XOR:
+                case NEQ:
+                    output("_mm256_xor_ps(" + l + ", " + r + ")");
+                    break;
+                case EQEQ:
+                    output("not_ps(_mm256_xor_ps(" + l + ", " + r + "))");
+                    break;
+                default:
+                    throw new InternalError("Operator " + op + " not supported on masks");
+                }
+                return;
+            }
+        } else if (isFloat(left)) {
+            if (op.isAssignment()) {
+                String lhs = capture(left);
+                output(lhs + " = ");
+                if (op == BinaryOpType.EQ) {
+                    output(operand(right));
+                } else {
+                    output(getArithmetic(op, lhs, operand(right)));
+                }
+            } else {
+                output(getArithmetic(op, operand(left), operand(right)));
+            }
+            return;
+        }
+        scan(left);
+        output(" " + op + " ");
+        scan(right);
+    }
+
+    private static String getArithmetic(BinaryOpType op, String l, String r) {
+        switch (op) {
+        case ADD:
+        case ADDEQ:
+            return "_mm256_add_ps(" + l + ", " + r + ")";
+        case SUB:
+        case SUBEQ:
+            return "_mm256_sub_ps(" + l + ", " + r + ")";
+        case MUL:
+        case MULEQ:
+            return "_mm256_mul_ps(" + l + ", " + r + ")";
+        case DIV:
+        case DIVEQ:
+            return "_mm256_div_ps(" + l + ", " + r + ")";
+        case MOD:
+        case MODEQ:
+            return "mod_ps(" + l + ", " + r + ")";
+        default:
+            throw new InternalError("Operator " + op + " not supported on float vectors");
+        }
+    }
+
+    private static String getComparison(BinaryOpType op) {
+        // these match the results of the C operators for NaN operands
+        switch (op) {
+        case EQEQ:
+            return "_CMP_EQ_OQ";
+        case NEQ:
+            return "_CMP_NEQ_UQ";
+        case LTEQ:
+            return "_CMP_LE_OQ";
+        case GTEQ:
+            return "_CMP_GE_OQ";
+        case LT:
+            return "_CMP_LT_OQ";
+        case GT:
+            return "_CMP_GT_OQ";
+        default:
+            throw new InternalError("Operator " + op + " not supported on float vectors");
+        }
+    }
+
+    @Override
+    public void visitBreakStmt(BreakStmt s) {
+        output("break;");
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        Function func = e.getFunction();
+        output(func.getName() + "_res");
+        if (func.getReturnType().isVector()) {
+            // TODO: this needs more thought
+            if (inFieldSelect) {
+                output(getSuffix(getFieldIndex(selectedField)));
+            } else if (inVectorOp) {
+                output(getSuffix(vectorIndex));
+            } else {
+                throw new InternalError("TBD");
+            }
+        }
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        // the result variables declared in this block (as part of an
+        // inlined call) go out of scope at the end of it
+        Set<String> resultVars = backend.saveResultVars();
+        output("{\n");
+        super.visitCompoundStmt(s);
+        output("}\n");
+        backend.restoreResultVars(resultVars);
+    }
+
+    @Override
+    public void visitContinueStmt(ContinueStmt s) {
+        output("continue;");
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        super.visitDeclStmt(s);
+    }
+
+    @Override
+    public void visitDiscardStmt(DiscardStmt s) {
+        // TODO: not yet implemented
+    }
+
+    @Override
+    public void visitDoWhileStmt(DoWhileStmt s) {
+        checkCondition(s.getExpr());
+        output("do ");
+        scan(s.getStmt());
+        output(" while (");
+        scan(s.getExpr());
+        output(");");
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        Expr expr = s.getExpr();
+
+        outputPreambles(expr);
+
+        Type t = expr.getResultType();
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                vectorIndex = i;
+                scan(s.getExpr());
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            scan(s.getExpr());
+            output(";\n");
+        }
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        if (e.getFields().length() == 1) {
+            selectedField = e.getFields().charAt(0);
+        } else {
+            int index = inVectorOp ? vectorIndex : 0;
+            selectedField = e.getFields().charAt(index);
+        }
+        inFieldSelect = true;
+        scan(e.getExpr());
+        inFieldSelect = false;
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        checkCondition(s.getCondition());
+        output("for (");
+        scan(s.getInit());
+        scan(s.getCondition());
+        output(";");
+        scan(s.getExpr());
+        output(")");
+        scan(s.getStmt());
+    }
+
+    @Override
+    public void visitFuncDef(FuncDef d) {
+        if (d.getFunction().getName().equals("main")) {
+            scan(d.getStmt());
+        } else {
+            // TODO: this is a hacky approach to saving func defs, which
+            // will be inlined later at point of use)...
+            backend.putFuncDef(d);
+        }
+    }
+
+    @Override
+    public void visitGlueBlock(GlueBlock b) {
+        backend.addGlueBlock(b.getText());
+    }
+
+    @Override
+    public void visitLiteralExpr(LiteralExpr e) {
+        output(e.getValue().toString());
+        if (e.getValue() instanceof Float) {
+            output("f");
+        }
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        output("(");
+        scan(e.getExpr());
+        output(")");
+    }
+
+    @Override
+    public void visitProgramUnit(ProgramUnit p) {
+        super.visitProgramUnit(p);
+    }
+
+    @Override
+    public void visitReturnStmt(ReturnStmt s) {
+        Expr expr = s.getExpr();
+        if (expr == null) {
+            throw new InternalError("Empty return not yet implemented");
+        }
+        if (funcName == null) {
+            throw new RuntimeException("Return statement not expected");
+        }
+
+        outputPreambles(expr);
+
+        Type t = expr.getResultType();
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                vectorIndex = i;
+                output(funcName + "_res" + getSuffix(i) + " = ");
+                output(operand(expr));
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            output(funcName + "_res = ");
+            output(operand(expr));
+            output(";\n");
+        }
+    }
+
+    @Override
+    public void visitSelectStmt(SelectStmt s) {
+        checkCondition(s.getIfExpr());
+        output("if (");
+        scan(s.getIfExpr());
+        output(")");
+        scan(s.getThenStmt());
+        Stmt e = s.getElseStmt();
+        if (e != null) {
+            output(" else ");
+            scan(e);
+        }
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        Expr expr = e.getExpr();
+        UnaryOpType op = e.getOp();
+        if (isFloat(expr)) {
+            switch (op) {
+            case PLUS:
+                output(operand(expr));
+                return;
+            case MINUS:
+                output("_mm256_xor_ps(" + operand(expr) + ", _mm256_set1_ps(-0.0f))");
+                return;
+            case INC:
+            case DEC:
+                String v = capture(expr);
+                output(v + " = " + (op == UnaryOpType.INC ? "_mm256_add_ps" : "_mm256_sub_ps"));
+                output("(" + v + ", _mm256_set1_ps(1.0f))");
+                return;
+            default:
+                throw new InternalError("Operator " + op + " not supported on float vectors");
+            }
+        } else if (isMask(expr)) {
+            output("not_ps(" + operand(expr) + ")");
+            return;
+        }
+        output(op.toString());
+        scan(expr);
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        Variable var = d.getVariable();
+        if (var.getQualifier() != null) {
+            // these will be declared separately outside the loop body
+            return;
+        }
+
+        outputPreambles(d);
+
+        Type t = var.getType();
+        String vtype = getCType(t.getBaseType());
+        Expr init = d.getInit();
+        if (init != null) {
+            checkCondition(init);
+        }
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                output(vtype + " ");
+                output(var.getName() + getSuffix(i));
+                if (init != null) {
+                    output(" = ");
+                    vectorIndex = i;
+                    output(operand(init));
+                }
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            output(vtype + " " + var.getName());
+            if (init != null) {
+                output(" = ");
+                output(operand(init));
+            }
+            output(";\n");
+        }
+    }
+
+    static String getCType(BaseType t) {
+        return (t == BaseType.FLOAT) ? "__m256" : t.toString();
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        Variable var = e.getVariable();
+        output(var.getName());
+        if (var.isParam()) {
+            output("_tmp");
+        }
+        if (var.getType().isVector()) {
+            if (inFieldSelect) {
+                output(getSuffix(getFieldIndex(selectedField)));
+            } else if (inVectorOp) {
+                output(getSuffix(vectorIndex));
+            } else {
+                throw new InternalError("TBD");
+            }
+        }
+    }
+
+    @Override
+    public void visitVectorCtorExpr(VectorCtorExpr e) {
+        // TODO: this will likely work for simple variables and literals,
+        // but we need something more for embedded function calls, etc...
+        scan(e.getParams().get(vectorIndex));
+    }
+
+    @Override
+    public void visitWhileStmt(WhileStmt s) {
+        checkCondition(s.getCondition());
+        output("while (");
+        scan(s.getCondition());
+        output(")");
+        scan(s.getStmt());
+    }
+
+    private void outputPreambles(Tree tree) {
+        AVX2CallScanner scanner = new AVX2CallScanner(backend);
+        scanner.scan(tree);
+        String res = scanner.getResult();
+        if (res != null) {
+            output(scanner.getResult());
+        }
+    }
+}
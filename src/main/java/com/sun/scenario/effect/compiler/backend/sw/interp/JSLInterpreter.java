@@ -0,0 +1,1056 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.interp;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Param;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.ArrayAccessExpr;
+import com.sun.scenario.effect.compiler.tree.BinaryExpr;
+import com.sun.scenario.effect.compiler.tree.BreakStmt;
+import com.sun.scenario.effect.compiler.tree.CallExpr;
+import com.sun.scenario.effect.compiler.tree.CompoundStmt;
+import com.sun.scenario.effect.compiler.tree.ContinueStmt;
+import com.sun.scenario.effect.compiler.tree.DeclStmt;
+import com.sun.scenario.effect.compiler.tree.DiscardStmt;
+import com.sun.scenario.effect.compiler.tree.DoWhileStmt;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.ExprStmt;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.FieldSelectExpr;
+import com.sun.scenario.effect.compiler.tree.ForStmt;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.LiteralExpr;
+import com.sun.scenario.effect.compiler.tree.ParenExpr;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.ReturnStmt;
+import com.sun.scenario.effect.compiler.tree.SelectStmt;
+import com.sun.scenario.effect.compiler.tree.Stmt;
+import com.sun.scenario.effect.compiler.tree.UnaryExpr;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import com.sun.scenario.effect.compiler.tree.VariableExpr;
+import com.sun.scenario.effect.compiler.tree.VectorCtorExpr;
+import com.sun.scenario.effect.compiler.tree.WhileStmt;
+
+/**
+ * Executes a JSL program directly on its tree, one destination pixel at a
+ * time, without generating or compiling any code.  The inputs are plain
+ * {@code int[]} images in the INT_ARGB_PRE format (or {@code float[]} maps
+ * for an {@code fsampler}), and the pixels are addressed, sampled, clamped
+ * and packed exactly as in the loop generated from {@code JSWGlue.stg}, so
+ * that the result can be used as a reference for the output of the
+ * software backends.
+ *
+ * The values are held as {@code float[]}, {@code int[]} or
+ * {@code boolean[]} arrays with one element per component, and all of the
+ * arithmetic is done in the same precision and order as in the Java code
+ * emitted by {@code JSWBackend}.  The program should come from
+ * {@code JSLC.getParserInfo()}, so that it has been through the same
+ * simplifications as the one seen by the backends.
+ *
+ * The globals that are not params or constants are given their initial
+ * values again for each pixel, as they are declared in the loop body by
+ * the backends.  One place where the result differs from the generated
+ * code is an assignment whose right side reads components of the vector
+ * that it also writes, such as {@code t.ra = t.ar}: the interpreter
+ * evaluates the whole right side first (as do the SSE peers when t is a
+ * float3 or float4), whereas the backends assign the components one at a
+ * time, so that later ones see the new values of the earlier ones.
+ *
+ * An interpreter is not thread-safe.
+ */
+public class JSLInterpreter {
+
+    private enum Flow { NEXT, BREAK, CONTINUE, RETURN }
+
+    private static final class Discard extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Discard() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Input {
+        private final Type type;
+        private int[] pixels;
+        private float[] data;
+        private int w, h, scan;
+        private final float[] rect = { 0, 0, 1, 1 };
+
+        Input(Type type) {
+            this.type = type;
+        }
+    }
+
+    private static final class Frame {
+        private final Map<Variable, Object> locals = new IdentityHashMap<>();
+        private final Map<String, Object> params = new HashMap<>();
+        private Object result;
+    }
+
+    private final Map<String, Variable> globalVars;
+    private final Map<Function, FuncDef> funcDefs = new HashMap<>();
+    private final Map<Variable, Object> globals = new IdentityHashMap<>();
+    private final Map<Integer, Input> inputs = new HashMap<>();
+    private final ProgramUnit program;
+    private FuncDef main;
+
+    // the state of the pixel being computed
+    private final float[][] pos = new float[2][2];
+    private final float[] pixcoord = new float[2];
+    private float[] color;
+    private Frame frame;
+
+    public JSLInterpreter(JSLParser parser, ProgramUnit program) {
+        this.globalVars = parser.getSymbolTable().getGlobalVariables();
+        this.program = program;
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof FuncDef) {
+                FuncDef fd = (FuncDef)d;
+                Function func = fd.getFunction();
+                funcDefs.put(func, fd);
+                if (func.getName().equals("main") && func.getParams().isEmpty()) {
+                    main = fd;
+                }
+            }
+        }
+        if (main == null) {
+            throw new RuntimeException("Program does not define main()");
+        }
+        for (Variable v : globalVars.values()) {
+            if (v.getQualifier() == Qualifier.PARAM &&
+                v.getType().getBaseType() == BaseType.SAMPLER)
+            {
+                inputs.put(v.getReg(), new Input(v.getType()));
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a float param (or of the elements of a float param
+     * array), given as the consecutive components of each element.
+     */
+    public void setParam(String name, float... values) {
+        Variable v = getParam(name, BaseType.FLOAT, values.length);
+        globals.put(v, values.clone());
+    }
+
+    /**
+     * Sets the value of an int param (or of the elements of an int param
+     * array), given as the consecutive components of each element.
+     */
+    public void setParam(String name, int... values) {
+        Variable v = getParam(name, BaseType.INT, values.length);
+        globals.put(v, values.clone());
+    }
+
+    public void setParam(String name, boolean value) {
+        Variable v = getParam(name, BaseType.BOOL, 1);
+        globals.put(v, new boolean[] { value });
+    }
+
+    /**
+     * Sets the image read by a {@code sampler} or {@code lsampler} param.
+     * The pixels are in the INT_ARGB_PRE format, with {@code scan} ints
+     * between the starts of two rows.
+     */
+    public void setInput(String name, int[] pixels, int w, int h, int scan) {
+        Input in = getInput(name);
+        if (in.type == Types.FSAMPLER) {
+            throw new IllegalArgumentException("Param '" + name + "' is an fsampler");
+        }
+        in.pixels = pixels;
+        in.w = w;
+        in.h = h;
+        in.scan = scan;
+    }
+
+    /**
+     * Sets the map read by an {@code fsampler} param, which holds four
+     * floats for each of its {@code w*h} elements.
+     */
+    public void setInput(String name, float[] data, int w, int h) {
+        Input in = getInput(name);
+        if (in.type != Types.FSAMPLER) {
+            throw new IllegalArgumentException("Param '" + name + "' is not an fsampler");
+        }
+        in.data = data;
+        in.w = w;
+        in.h = h;
+        in.scan = w;
+    }
+
+    /**
+     * Sets the texture coordinates of the input that correspond to the
+     * corners of the destination (the values that the generated peers get
+     * from {@code getTextureCoordinates()}).  The default is [0,0,1,1].
+     */
+    public void setSourceRect(String name, float x1, float y1, float x2, float y2) {
+        float[] rect = getInput(name).rect;
+        rect[0] = x1;
+        rect[1] = y1;
+        rect[2] = x2;
+        rect[3] = y2;
+    }
+
+    public int[] filter(int dstw, int dsth) {
+        int[] dstPixels = new int[dstw * dsth];
+        filter(dstPixels, dstw, dsth, dstw);
+        return dstPixels;
+    }
+
+    /**
+     * Runs main() for each pixel of the destination and stores the results
+     * in {@code dstPixels} in the INT_ARGB_PRE format.  A pixel for which
+     * the program executes a {@code discard} statement is left unchanged.
+     */
+    public void filter(int[] dstPixels, int dstw, int dsth, int dstscan) {
+        for (Map.Entry<Integer, Input> e : inputs.entrySet()) {
+            if (e.getValue().pixels == null && e.getValue().data == null) {
+                throw new IllegalStateException("No input for sampler " + e.getKey());
+            }
+        }
+        initConstants();
+
+        float[][] inc = new float[pos.length][2];
+        for (int i = 0; i < pos.length; i++) {
+            Input in = inputs.get(i);
+            if (in != null) {
+                inc[i][0] = (in.rect[2] - in.rect[0]) / dstw;
+                inc[i][1] = (in.rect[3] - in.rect[1]) / dsth;
+                pos[i][1] = in.rect[1] + inc[i][1]*0.5f;
+            }
+        }
+        for (int dy = 0; dy < dsth; dy++) {
+            pixcoord[1] = (float)dy;
+            int dyi = dy*dstscan;
+            for (int i = 0; i < pos.length; i++) {
+                Input in = inputs.get(i);
+                if (in != null) {
+                    pos[i][0] = in.rect[0] + inc[i][0]*0.5f;
+                }
+            }
+            for (int dx = 0; dx < dstw; dx++) {
+                pixcoord[0] = (float)dx;
+                color = new float[4];
+                frame = new Frame();
+                boolean discarded = false;
+                try {
+                    initGlobals();
+                    exec(main.getStmt());
+                } catch (Discard d) {
+                    discarded = true;
+                }
+                if (!discarded) {
+                    float color_x = color[0];
+                    float color_y = color[1];
+                    float color_z = color[2];
+                    float color_w = color[3];
+                    if (color_w < 0f) color_w = 0f; else if (color_w > 1f) color_w = 1f;
+                    if (color_x < 0f) color_x = 0f; else if (color_x > color_w) color_x = color_w;
+                    if (color_y < 0f) color_y = 0f; else if (color_y > color_w) color_y = color_w;
+                    if (color_z < 0f) color_z = 0f; else if (color_z > color_w) color_z = color_w;
+                    dstPixels[dyi+dx] =
+                        ((int)(color_x * 0xff) << 16) |
+                        ((int)(color_y * 0xff) <<  8) |
+                        ((int)(color_z * 0xff) <<  0) |
+                        ((int)(color_w * 0xff) << 24);
+                }
+                for (int i = 0; i < pos.length; i++) {
+                    pos[i][0] += inc[i][0];
+                }
+            }
+            for (int i = 0; i < pos.length; i++) {
+                pos[i][1] += inc[i][1];
+            }
+        }
+        frame = null;
+    }
+
+    private Variable getParam(String name, BaseType baseType, int numValues) {
+        Variable v = globalVars.get(name);
+        if (v == null || v.getQualifier() != Qualifier.PARAM) {
+            throw new IllegalArgumentException("No such param: " + name);
+        }
+        Type t = v.getType();
+        int n = t.getNumFields() * (v.isArray() ? v.getArraySize() : 1);
+        if (t.getBaseType() != baseType || numValues != n) {
+            throw new IllegalArgumentException("Param '" + name + "' expects " +
+                                               n + " " + t.getBaseType() + " value(s)");
+        }
+        return v;
+    }
+
+    private Input getInput(String name) {
+        Variable v = globalVars.get(name);
+        if (v == null || v.getQualifier() != Qualifier.PARAM ||
+            v.getType().getBaseType() != BaseType.SAMPLER)
+        {
+            throw new IllegalArgumentException("No such sampler: " + name);
+        }
+        return inputs.get(v.getReg());
+    }
+
+    private void initConstants() {
+        frame = new Frame();
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof VarDecl) {
+                Variable v = ((VarDecl)d).getVariable();
+                Expr init = ((VarDecl)d).getInit();
+                if (v.getQualifier() == Qualifier.CONST && init != null) {
+                    globals.put(v, convert(eval(init), v.getType()));
+                }
+            }
+        }
+    }
+
+    private void initGlobals() {
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof VarDecl) {
+                Variable v = ((VarDecl)d).getVariable();
+                Expr init = ((VarDecl)d).getInit();
+                if (v.getQualifier() == null) {
+                    globals.put(v, (init != null) ?
+                                convert(eval(init), v.getType()) : newValue(v.getType()));
+                }
+            }
+        }
+    }
+
+    // statements
+
+    private Flow exec(Stmt s) {
+        if (s == null) {
+            return Flow.NEXT;
+        } else if (s instanceof CompoundStmt) {
+            for (Stmt stmt : ((CompoundStmt)s).getStmts()) {
+                Flow f = exec(stmt);
+                if (f != Flow.NEXT) {
+                    return f;
+                }
+            }
+            return Flow.NEXT;
+        } else if (s instanceof ExprStmt) {
+            eval(((ExprStmt)s).getExpr());
+            return Flow.NEXT;
+        } else if (s instanceof DeclStmt) {
+            for (VarDecl d : ((DeclStmt)s).getDecls()) {
+                Variable v = d.getVariable();
+                Object value = (d.getInit() != null) ?
+                    eval(d.getInit()) : new int[] { 0 };
+                frame.locals.put(v, convert(value, v.getType()));
+            }
+            return Flow.NEXT;
+        } else if (s instanceof SelectStmt) {
+            SelectStmt ss = (SelectStmt)s;
+            if (isTrue(eval(ss.getIfExpr()))) {
+                return exec(ss.getThenStmt());
+            } else {
+                return exec(ss.getElseStmt());
+            }
+        } else if (s instanceof ForStmt) {
+            ForStmt fs = (ForStmt)s;
+            for (exec(fs.getInit());
+                 fs.getCondition() == null || isTrue(eval(fs.getCondition()));
+                 eval(fs.getExpr()))
+            {
+                Flow f = exec(fs.getStmt());
+                if (f == Flow.BREAK) {
+                    break;
+                } else if (f == Flow.RETURN) {
+                    return f;
+                }
+            }
+            return Flow.NEXT;
+        } else if (s instanceof WhileStmt) {
+            WhileStmt ws = (WhileStmt)s;
+            while (isTrue(eval(ws.getCondition()))) {
+                Flow f = exec(ws.getStmt());
+                if (f == Flow.BREAK) {
+                    break;
+                } else if (f == Flow.RETURN) {
+                    return f;
+                }
+            }
+            return Flow.NEXT;
+        } else if (s instanceof DoWhileStmt) {
+            DoWhileStmt ds = (DoWhileStmt)s;
+            do {
+                Flow f = exec(ds.getStmt());
+                if (f == Flow.BREAK) {
+                    break;
+                } else if (f == Flow.RETURN) {
+                    return f;
+                }
+            } while (isTrue(eval(ds.getExpr())));
+            return Flow.NEXT;
+        } else if (s instanceof ReturnStmt) {
+            Expr expr = ((ReturnStmt)s).getExpr();
+            frame.result = (expr != null) ? eval(expr) : null;
+            return Flow.RETURN;
+        } else if (s instanceof BreakStmt) {
+            return Flow.BREAK;
+        } else if (s instanceof ContinueStmt) {
+            return Flow.CONTINUE;
+        } else if (s instanceof DiscardStmt) {
+            throw new Discard();
+        }
+        throw new InternalError("Unexpected statement: " + s.getClass().getSimpleName());
+    }
+
+    // expressions
+
+    private Object eval(Expr e) {
+        if (e == null) {
+            return null;
+        } else if (e instanceof LiteralExpr) {
+            return valueOf(((LiteralExpr)e).getValue());
+        } else if (e instanceof VariableExpr) {
+            return load(((VariableExpr)e).getVariable());
+        } else if (e instanceof ParenExpr) {
+            return eval(((ParenExpr)e).getExpr());
+        } else if (e instanceof FieldSelectExpr) {
+            FieldSelectExpr fe = (FieldSelectExpr)e;
+            Object value = eval(fe.getExpr());
+            String fields = fe.getFields();
+            Object res = newValue(fe.getResultType());
+            for (int i = 0; i < fields.length(); i++) {
+                copy(value, getFieldIndex(fields.charAt(i)), res, i);
+            }
+            return res;
+        } else if (e instanceof ArrayAccessExpr) {
+            ArrayAccessExpr ae = (ArrayAccessExpr)e;
+            Object array = eval(ae.getExpr());
+            int index = toInt(eval(ae.getIndex()));
+            Type t = ae.getResultType();
+            Object res = newValue(t);
+            for (int i = 0; i < t.getNumFields(); i++) {
+                copy(array, index * t.getNumFields() + i, res, i);
+            }
+            return res;
+        } else if (e instanceof VectorCtorExpr) {
+            VectorCtorExpr ve = (VectorCtorExpr)e;
+            Type t = ve.getType();
+            Object res = newValue(t);
+            int n = 0;
+            for (Expr param : ve.getParams()) {
+                Object value = eval(param);
+                for (int i = 0; i < length(value) && n < t.getNumFields(); i++) {
+                    copy(value, i, res, n++);
+                }
+            }
+            if (n == 1) {
+                // a single scalar fills all of the components
+                for (int i = 1; i < t.getNumFields(); i++) {
+                    copy(res, 0, res, i);
+                }
+            }
+            return res;
+        } else if (e instanceof UnaryExpr) {
+            return evalUnary((UnaryExpr)e);
+        } else if (e instanceof BinaryExpr) {
+            return evalBinary((BinaryExpr)e);
+        } else if (e instanceof CallExpr) {
+            return evalCall((CallExpr)e);
+        }
+        throw new InternalError("Unexpected expression: " + e.getClass().getSimpleName());
+    }
+
+    private Object evalUnary(UnaryExpr e) {
+        Object value = eval(e.getExpr());
+        switch (e.getOp()) {
+            case PLUS:
+                return value;
+            case MINUS:
+                value = copyOf(value);
+                if (value instanceof float[]) {
+                    float[] a = (float[])value;
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = -a[i];
+                    }
+                } else {
+                    int[] a = (int[])value;
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = -a[i];
+                    }
+                }
+                return value;
+            case NOT:
+                return new boolean[] { !isTrue(value) };
+            case INC:
+                return assign(e.getExpr(),
+                              math(BinaryOpType.ADD, value, new int[] { 1 }, e.getResultType()));
+            case DEC:
+                return assign(e.getExpr(),
+                              math(BinaryOpType.SUB, value, new int[] { 1 }, e.getResultType()));
+            default:
+                throw new InternalError("Unexpected operator: " + e.getOp());
+        }
+    }
+
+    private Object evalBinary(BinaryExpr e) {
+        BinaryOpType op = e.getOp();
+        switch (op) {
+            case EQ:
+                return assign(e.getLeft(), eval(e.getRight()));
+            case ADDEQ: return assignOp(e, BinaryOpType.ADD);
+            case SUBEQ: return assignOp(e, BinaryOpType.SUB);
+            case MULEQ: return assignOp(e, BinaryOpType.MUL);
+            case DIVEQ: return assignOp(e, BinaryOpType.DIV);
+            case MODEQ: return assignOp(e, BinaryOpType.MOD);
+            case LSEQ:  return assignOp(e, BinaryOpType.LSHFT);
+            case RSEQ:  return assignOp(e, BinaryOpType.RSHFT);
+            case ANDEQ: return assignOp(e, BinaryOpType.LAND);
+            case OREQ:  return assignOp(e, BinaryOpType.LOR);
+            case XOREQ: return assignOp(e, BinaryOpType.LXOR);
+            case AND:
+                // like the && in the generated Java code, the right side
+                // is only evaluated when needed
+                return new boolean[] { isTrue(eval(e.getLeft())) && isTrue(eval(e.getRight())) };
+            case OR:
+                return new boolean[] { isTrue(eval(e.getLeft())) || isTrue(eval(e.getRight())) };
+            case XOR:
+                return new boolean[] { isTrue(eval(e.getLeft())) != isTrue(eval(e.getRight())) };
+            case EQEQ:
+            case NEQ:
+            case LTEQ:
+            case GTEQ:
+            case LT:
+            case GT:
+                return new boolean[] { compare(op, eval(e.getLeft()), eval(e.getRight())) };
+            default:
+                Object l = eval(e.getLeft());
+                Object r = eval(e.getRight());
+                return math(op, l, r, e.getResultType());
+        }
+    }
+
+    private Object assignOp(BinaryExpr e, BinaryOpType op) {
+        Object l = eval(e.getLeft());
+        Object r = eval(e.getRight());
+        return assign(e.getLeft(), math(op, l, r, e.getResultType()));
+    }
+
+    private Object evalCall(CallExpr e) {
+        Function func = e.getFunction();
+        List<Expr> exprs = e.getParams();
+        Object[] args = new Object[exprs.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = eval(exprs.get(i));
+        }
+        if (func.isUserFunc()) {
+            FuncDef fd = funcDefs.get(func);
+            if (fd == null) {
+                throw new RuntimeException("Function '" + func.getName() + "' is not defined");
+            }
+            Frame callee = new Frame();
+            List<Param> params = func.getParams();
+            for (int i = 0; i < args.length; i++) {
+                Param p = params.get(i);
+                Object arg = (p.getType().getBaseType() == BaseType.SAMPLER) ?
+                    args[i] : convert(args[i], p.getType());
+                callee.params.put(p.getName(), arg);
+            }
+            Frame caller = frame;
+            frame = callee;
+            try {
+                exec(fd.getStmt());
+            } finally {
+                frame = caller;
+            }
+            return (callee.result != null) ?
+                convert(callee.result, func.getReturnType()) : null;
+        }
+        return callBuiltin(func, args);
+    }
+
+    // variables
+
+    private Object load(Variable v) {
+        Object value = frame.locals.get(v);
+        if (value != null) {
+            return value;
+        }
+        if (v.isParam()) {
+            value = frame.params.get(v.getName());
+            if (value != null) {
+                return value;
+            }
+        }
+        if (v.getQualifier() == Qualifier.PARAM && v.getType().getBaseType() == BaseType.SAMPLER) {
+            return inputs.get(v.getReg());
+        }
+        value = globals.get(v);
+        if (value != null) {
+            return value;
+        }
+        if (v.getQualifier() == Qualifier.CONST && v.getConstValue() != null) {
+            return convert(valueOf(v.getConstValue()), v.getType());
+        }
+        if (v.getQualifier() == Qualifier.PARAM) {
+            throw new IllegalStateException("Value of param '" + v.getName() + "' is not set");
+        }
+        switch (v.getName()) {
+            case "pos0":
+                return pos[0].clone();
+            case "pos1":
+                return pos[1].clone();
+            case "pixcoord":
+                return pixcoord.clone();
+            case "color":
+                return color;
+            default:
+                throw new RuntimeException("Variable '" + v.getName() +
+                                           "' is not supported by the interpreter");
+        }
+    }
+
+    private Object assign(Expr lhs, Object value) {
+        while (lhs instanceof ParenExpr) {
+            lhs = ((ParenExpr)lhs).getExpr();
+        }
+        if (lhs instanceof VariableExpr) {
+            Variable v = ((VariableExpr)lhs).getVariable();
+            Object res = convert(value, v.getType());
+            store(v, res);
+            return res;
+        } else if (lhs instanceof FieldSelectExpr) {
+            FieldSelectExpr fe = (FieldSelectExpr)lhs;
+            if (!(fe.getExpr() instanceof VariableExpr)) {
+                throw new RuntimeException("Invalid assignment target: " + lhs);
+            }
+            Variable v = ((VariableExpr)fe.getExpr()).getVariable();
+            Object res = convert(value, fe.getResultType());
+            Object target = copyOf(load(v));
+            String fields = fe.getFields();
+            for (int i = 0; i < fields.length(); i++) {
+                copy(res, i, target, getFieldIndex(fields.charAt(i)));
+            }
+            store(v, target);
+            return res;
+        }
+        throw new RuntimeException("Invalid assignment target: " + lhs);
+    }
+
+    private void store(Variable v, Object value) {
+        if (frame.locals.containsKey(v)) {
+            frame.locals.put(v, value);
+        } else if (v.isParam()) {
+            frame.params.put(v.getName(), value);
+        } else if (v.getQualifier() == null && v.getName().equals("color")) {
+            color = (float[])value;
+        } else if (v.getQualifier() == null && globals.containsKey(v)) {
+            globals.put(v, value);
+        } else if (v.getQualifier() == null) {
+            // a variable that was introduced without a declaration (which
+            // could only have been done by one of the optimization passes)
+            frame.locals.put(v, value);
+        } else {
+            throw new RuntimeException("Cannot assign to '" + v.getName() + "'");
+        }
+    }
+
+    // built-in functions (see JSWFuncImpls for the code that these mirror)
+
+    private Object callBuiltin(Function func, Object[] args) {
+        String name = func.getName();
+        Type rtype = func.getReturnType();
+        int n = rtype.getNumFields();
+        if (name.equals("sample")) {
+            float[] loc = (float[])args[1];
+            return sample((Input)args[0], loc[0], loc[1]);
+        } else if (name.equals("intcast")) {
+            return new int[] { (int)getFloat(args[0], 0) };
+        } else if (name.equals("any")) {
+            boolean[] b = (boolean[])args[0];
+            for (boolean v : b) {
+                if (v) {
+                    return new boolean[] { true };
+                }
+            }
+            return new boolean[] { false };
+        } else if (name.equals("dot")) {
+            float sum = getFloat(args[0], 0) * getFloat(args[1], 0);
+            for (int i = 1; i < length(args[0]); i++) {
+                sum = sum + (getFloat(args[0], i) * getFloat(args[1], i));
+            }
+            return new float[] { sum };
+        } else if (name.equals("distance")) {
+            float d = getFloat(args[0], 0) - getFloat(args[1], 0);
+            float sum = d * d;
+            for (int i = 1; i < length(args[0]); i++) {
+                d = getFloat(args[0], i) - getFloat(args[1], i);
+                sum = sum + (d * d);
+            }
+            return new float[] { (float)Math.sqrt(sum) };
+        } else if (name.equals("length")) {
+            return new float[] { (float)Math.sqrt(sumOfSquares(args[0])) };
+        } else if (name.equals("normalize")) {
+            float denom = (n == 1) ? getFloat(args[0], 0) : (float)Math.sqrt(sumOfSquares(args[0]));
+            float[] res = new float[n];
+            for (int i = 0; i < n; i++) {
+                res[i] = getFloat(args[0], i) / denom;
+            }
+            return res;
+        } else if (name.equals("ddx") || name.equals("ddy")) {
+            throw new RuntimeException(name + "() not implemented for sw backends");
+        }
+
+        float[] res = new float[n];
+        for (int i = 0; i < n; i++) {
+            float x = getFloat(args[0], i);
+            float y = (args.length > 1) ? getFloat(args[1], i) : 0f;
+            float z = (args.length > 2) ? getFloat(args[2], i) : 0f;
+            switch (name) {
+                case "min":        res[i] = (x < y) ? x : y; break;
+                case "max":        res[i] = (x > y) ? x : y; break;
+                case "mod":        res[i] = x % y; break;
+                // clamp(val, min, max)
+                case "clamp":      res[i] = (x < y) ? y : (x > z) ? z : x; break;
+                // smoothstep(min, max, val); TODO: the real thing uses
+                // Hermite interpolation, but the backends don't (yet)
+                case "smoothstep": res[i] = (z < x) ? 0.0f : (z > y) ? 1.0f : (z / (y - x)); break;
+                case "mix":        res[i] = x * (1.0f - z) + y * z; break;
+                case "abs":        res[i] = Math.abs(x); break;
+                case "floor":      res[i] = (float)Math.floor(x); break;
+                case "ceil":       res[i] = (float)Math.ceil(x); break;
+                case "fract":      res[i] = x - (float)Math.floor(x); break;
+                case "sign":       res[i] = Math.signum(x); break;
+                case "sqrt":       res[i] = (float)Math.sqrt(x); break;
+                case "sin":        res[i] = (float)Math.sin(x); break;
+                case "cos":        res[i] = (float)Math.cos(x); break;
+                case "tan":        res[i] = (float)Math.tan(x); break;
+                case "pow":        res[i] = (float)Math.pow(x, y); break;
+                case "fma":        res[i] = fma(x, y, z); break;
+                default:
+                    throw new InternalError("Core function not found: " + name);
+            }
+        }
+        return res;
+    }
+
+    private static float sumOfSquares(Object v) {
+        float sum = getFloat(v, 0) * getFloat(v, 0);
+        for (int i = 1; i < length(v); i++) {
+            sum = sum + (getFloat(v, i) * getFloat(v, i));
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the correctly rounded value of {@code x*y+z}, as
+     * {@code Math.fma(float, float, float)} does on JDK 9 and later.
+     */
+    private static float fma(float x, float y, float z) {
+        if (Float.isFinite(x) && Float.isFinite(y) && Float.isFinite(z) &&
+            x != 0f && y != 0f)
+        {
+            // the product of two floats is exact as a double
+            return new BigDecimal((double)x * (double)y)
+                .add(new BigDecimal((double)z)).floatValue();
+        }
+        return (float)((double)x * (double)y + (double)z);
+    }
+
+    private static float[] sample(Input in, float loc_x, float loc_y) {
+        float[] res = new float[4];
+        if (in.type == Types.SAMPLER) {
+            int pixel = 0;
+            if (loc_x >= 0 && loc_y >= 0) {
+                int iloc_x = (int)(loc_x*in.w);
+                int iloc_y = (int)(loc_y*in.h);
+                if (iloc_x < in.w && iloc_y < in.h) {
+                    pixel = in.pixels[iloc_y*in.scan + iloc_x];
+                }
+            }
+            res[0] = (((pixel >>  16) & 0xff) / 255f);
+            res[1] = (((pixel >>   8) & 0xff) / 255f);
+            res[2] = (((pixel       ) & 0xff) / 255f);
+            res[3] = (((pixel >>> 24)       ) / 255f);
+            return res;
+        }
+
+        // lsampler and fsampler interpolate between the four nearest
+        // elements, as done by JSWEffectPeer.lsample() and fsample()
+        int w = in.w;
+        int h = in.h;
+        loc_x = loc_x * w + 0.5f;
+        loc_y = loc_y * h + 0.5f;
+        int iloc_x = (int)loc_x;
+        int iloc_y = (int)loc_y;
+        if (loc_x > 0 && loc_y > 0 && iloc_x <= w && iloc_y <= h) {
+            loc_x -= iloc_x;
+            loc_y -= iloc_y;
+            int offset = iloc_y * in.scan + iloc_x;
+            float fract = loc_x * loc_y;
+            if (iloc_y < h) {
+                if (iloc_x < w) {
+                    accum(in, offset, fract, res);
+                }
+                if (iloc_x > 0) {
+                    accum(in, offset - 1, loc_y - fract, res);
+                }
+            }
+            if (iloc_y > 0) {
+                if (iloc_x < w) {
+                    accum(in, offset - in.scan, loc_x - fract, res);
+                }
+                if (iloc_x > 0) {
+                    accum(in, offset - in.scan - 1, 1f - loc_x - loc_y + fract, res);
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void accum(Input in, int offset, float mul, float[] res) {
+        if (in.type == Types.FSAMPLER) {
+            offset *= 4;
+            res[0] += in.data[offset    ] * mul;
+            res[1] += in.data[offset + 1] * mul;
+            res[2] += in.data[offset + 2] * mul;
+            res[3] += in.data[offset + 3] * mul;
+        } else {
+            int pixel = in.pixels[offset];
+            mul /= 255f;
+            res[0] += ((pixel >>  16) & 0xff) * mul;
+            res[1] += ((pixel >>   8) & 0xff) * mul;
+            res[2] += ((pixel       ) & 0xff) * mul;
+            res[3] += ((pixel >>> 24)       ) * mul;
+        }
+    }
+
+    // operations on values
+
+    private static Object math(BinaryOpType op, Object l, Object r, Type t) {
+        int n = t.getNumFields();
+        if (t.getBaseType() == BaseType.FLOAT) {
+            float[] res = new float[n];
+            for (int i = 0; i < n; i++) {
+                float a = getFloat(l, i);
+                float b = getFloat(r, i);
+                switch (op) {
+                    case ADD: res[i] = a + b; break;
+                    case SUB: res[i] = a - b; break;
+                    case MUL: res[i] = a * b; break;
+                    case DIV: res[i] = a / b; break;
+                    case MOD: res[i] = a % b; break;
+                    default:
+                        throw new RuntimeException("Operator " + op + " not supported for float values");
+                }
+            }
+            return res;
+        } else if (t.getBaseType() == BaseType.INT) {
+            int[] res = new int[n];
+            for (int i = 0; i < n; i++) {
+                int a = getInt(l, i);
+                int b = getInt(r, i);
+                switch (op) {
+                    case ADD:   res[i] = a + b; break;
+                    case SUB:   res[i] = a - b; break;
+                    case MUL:   res[i] = a * b; break;
+                    case DIV:   res[i] = a / b; break;
+                    case MOD:   res[i] = a % b; break;
+                    case LSHFT: res[i] = a << b; break;
+                    case RSHFT: res[i] = a >> b; break;
+                    case LAND:  res[i] = a & b; break;
+                    case LOR:   res[i] = a | b; break;
+                    case LXOR:  res[i] = a ^ b; break;
+                    default:
+                        throw new RuntimeException("Operator " + op + " not supported for int values");
+                }
+            }
+            return res;
+        }
+        throw new RuntimeException("Operator " + op + " not supported for " + t + " values");
+    }
+
+    private static boolean compare(BinaryOpType op, Object l, Object r) {
+        if (l instanceof boolean[] || r instanceof boolean[]) {
+            boolean a = isTrue(l);
+            boolean b = isTrue(r);
+            switch (op) {
+                case EQEQ: return a == b;
+                case NEQ:  return a != b;
+                default:
+                    throw new RuntimeException("Operator " + op + " not supported for bool values");
+            }
+        } else if (l instanceof float[] || r instanceof float[]) {
+            float a = getFloat(l, 0);
+            float b = getFloat(r, 0);
+            switch (op) {
+                case EQEQ: return a == b;
+                case NEQ:  return a != b;
+                case LTEQ: return a <= b;
+                case GTEQ: return a >= b;
+                case LT:   return a < b;
+                default:   return a > b;
+            }
+        } else {
+            int a = toInt(l);
+            int b = toInt(r);
+            switch (op) {
+                case EQEQ: return a == b;
+                case NEQ:  return a != b;
+                case LTEQ: return a <= b;
+                case GTEQ: return a >= b;
+                case LT:   return a < b;
+                default:   return a > b;
+            }
+        }
+    }
+
+    /**
+     * Returns a new value of the given type, with the components of the
+     * given value cast to its base type (or the single component repeated,
+     * for a scalar value), as the generated code would do on assignment.
+     */
+    private static Object convert(Object value, Type t) {
+        Object res = newValue(t);
+        int len = length(value);
+        for (int i = 0; i < t.getNumFields(); i++) {
+            copy(value, (len == 1) ? 0 : i, res, i);
+        }
+        return res;
+    }
+
+    private static Object valueOf(Object constant) {
+        if (constant instanceof Float) {
+            return new float[] { (Float)constant };
+        } else if (constant instanceof Integer) {
+            return new int[] { (Integer)constant };
+        } else if (constant instanceof Boolean) {
+            return new boolean[] { (Boolean)constant };
+        }
+        throw new InternalError("Unexpected constant: " + constant);
+    }
+
+    private static Object newValue(Type t) {
+        switch (t.getBaseType()) {
+            case FLOAT:
+                return new float[t.getNumFields()];
+            case INT:
+                return new int[t.getNumFields()];
+            case BOOL:
+                return new boolean[t.getNumFields()];
+            default:
+                throw new RuntimeException("Values of type " + t + " not supported");
+        }
+    }
+
+    private static Object copyOf(Object value) {
+        if (value instanceof float[]) {
+            return ((float[])value).clone();
+        } else if (value instanceof int[]) {
+            return ((int[])value).clone();
+        } else {
+            return ((boolean[])value).clone();
+        }
+    }
+
+    private static void copy(Object src, int srcIndex, Object dst, int dstIndex) {
+        if (dst instanceof float[]) {
+            ((float[])dst)[dstIndex] = getFloat(src, srcIndex);
+        } else if (dst instanceof int[]) {
+            ((int[])dst)[dstIndex] = getInt(src, srcIndex);
+        } else {
+            ((boolean[])dst)[dstIndex] = ((boolean[])src)[srcIndex];
+        }
+    }
+
+    private static int length(Object value) {
+        if (value instanceof float[]) {
+            return ((float[])value).length;
+        } else if (value instanceof int[]) {
+            return ((int[])value).length;
+        } else {
+            return ((boolean[])value).length;
+        }
+    }
+
+    /**
+     * Returns the i'th component of the value as a float (the only
+     * component in the case of a scalar).
+     */
+    private static float getFloat(Object value, int i) {
+        if (value instanceof float[]) {
+            float[] a = (float[])value;
+            return a[(a.length == 1) ? 0 : i];
+        } else {
+            int[] a = (int[])value;
+            return a[(a.length == 1) ? 0 : i];
+        }
+    }
+
+    private static int getInt(Object value, int i) {
+        if (value instanceof int[]) {
+            int[] a = (int[])value;
+            return a[(a.length == 1) ? 0 : i];
+        } else {
+            float[] a = (float[])value;
+            return (int)a[(a.length == 1) ? 0 : i];
+        }
+    }
+
+    private static int toInt(Object value) {
+        return getInt(value, 0);
+    }
+
+    private static boolean isTrue(Object value) {
+        return ((boolean[])value)[0];
+    }
+
+    private static int getFieldIndex(char field) {
+        switch (field) {
+        case 'r':
+        case 'x':
+            return 0;
+        case 'g':
+        case 'y':
+            return 1;
+        case 'b':
+        case 'z':
+            return 2;
+        case 'a':
+        case 'w':
+            return 3;
+        default:
+            throw new InternalError("Invalid field: " + field);
+        }
+    }
+}
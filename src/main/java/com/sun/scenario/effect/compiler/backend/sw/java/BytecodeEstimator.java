@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+/**
+ * Estimates the size of the bytecode that javac produces for a piece of
+ * the Java code generated by this backend, from its tokens.
+ *
+ * The estimate only needs to be good enough to tell whether a method
+ * stays under HotSpot's limit of 8000 bytes (see JSWBackend), so it
+ * assumes the code is made up of the simple statements that the backend
+ * generates: declarations, assignments, arithmetic, comparisons, array
+ * accesses, casts and calls of static methods.  Each local variable load
+ * or store counts as 2 bytes, since the methods in question have more
+ * than 4 locals.
+ */
+final class BytecodeEstimator {
+
+    private BytecodeEstimator() {
+    }
+
+    private static boolean isTypeKeyword(String s) {
+        switch (s) {
+        case "float":
+        case "int":
+        case "boolean":
+        case "void":
+        case "final":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static int literalSize(String s) {
+        String lower = s.toLowerCase();
+        boolean isFloat = !lower.startsWith("0x") &&
+            (lower.indexOf('.') >= 0 || lower.indexOf('e') >= 0 || lower.endsWith("f"));
+        try {
+            if (isFloat) {
+                float f = Float.parseFloat(s);
+                // fconst_0/1/2, or ldc
+                return (f == 0f || f == 1f || f == 2f) ? 1 : 2;
+            }
+            long v = lower.startsWith("0x") ?
+                Long.parseLong(lower.substring(2), 16) : Long.parseLong(lower);
+            if (v >= -1 && v <= 5) {
+                return 1;   // iconst_<n>
+            } else if (v >= -128 && v <= 127) {
+                return 2;   // bipush
+            } else if (v >= -32768 && v <= 32767) {
+                return 3;   // sipush
+            }
+            return 2;       // ldc
+        } catch (NumberFormatException e) {
+            return 2;
+        }
+    }
+
+    private static int operatorSize(String op) {
+        switch (op) {
+        case "<":
+        case ">":
+        case "<=":
+        case ">=":
+        case "==":
+        case "!=":
+            // fcmpl/fcmpg followed by a branch
+            return 4;
+        case "&&":
+        case "||":
+        case "?":
+            // the comparisons branch straight to the right place
+            return 0;
+        case ":":
+            return 3;   // goto
+        case "!":
+            return 4;
+        case "+=":
+        case "-=":
+        case "*=":
+        case "/=":
+        case "%=":
+        case "&=":
+        case "|=":
+        case "^=":
+        case "<<=":
+        case ">>=":
+        case ">>>=":
+            // reload the variable, then apply the operator and store
+            return 3;
+        case "++":
+        case "--":
+            // iinc, less the load counted for the variable
+            return 1;
+        case "+":
+        case "-":
+        case "*":
+        case "/":
+        case "%":
+        case "&":
+        case "|":
+        case "^":
+        case "~":
+        case "<<":
+        case ">>":
+        case ">>>":
+            return 1;
+        case "[":
+            // the array load or store
+            return 1;
+        default:
+            return 0;
+        }
+    }
+
+    private static final String[] OPERATORS = {
+        ">>>=", "<<=", ">>=", ">>>", "<<", ">>", "<=", ">=", "==", "!=",
+        "&&", "||", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=",
+    };
+
+    /**
+     * Returns the estimated number of bytes of bytecode for the given
+     * code.
+     */
+    static int estimate(CharSequence code) {
+        int size = 0;
+        int len = code.length();
+        String prev = "";
+        String prev2 = "";
+        int i = 0;
+        while (i < len) {
+            char c = code.charAt(i);
+            String tok;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if (c == '/' && i + 1 < len && code.charAt(i + 1) == '/') {
+                while (i < len && code.charAt(i) != '\n') {
+                    i++;
+                }
+                continue;
+            } else if (c == '/' && i + 1 < len && code.charAt(i + 1) == '*') {
+                int end = code.toString().indexOf("*/", i + 2);
+                i = (end < 0) ? len : end + 2;
+                continue;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < len && Character.isJavaIdentifierPart(code.charAt(i))) {
+                    i++;
+                }
+                tok = code.subSequence(start, i).toString();
+                int j = i;
+                while (j < len && Character.isWhitespace(code.charAt(j))) {
+                    j++;
+                }
+                char next = (j < len) ? code.charAt(j) : ';';
+                if (isTypeKeyword(tok) || tok.equals("if") || tok.equals("new")) {
+                    // counted with the declaration, condition or size
+                } else if (tok.equals("else") || tok.equals("for") || tok.equals("while") ||
+                           tok.equals("break") || tok.equals("continue"))
+                {
+                    size += 3;  // goto
+                } else if (tok.equals("return") || tok.equals("true") ||
+                           tok.equals("false") || tok.equals("null"))
+                {
+                    size += 1;
+                } else if (next == '(') {
+                    size += 3;  // invokestatic
+                } else if (next == '.') {
+                    // the class of a static method (e.g. Math)
+                } else if (prev.equals(".")) {
+                    size += 3;  // getfield
+                } else if (isTypeKeyword(prev) && (next == ';' || next == ',')) {
+                    // a declaration without an initializer
+                } else {
+                    size += 2;  // load or store
+                }
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < len && Character.isDigit(code.charAt(i + 1)))) {
+                int start = i;
+                while (i < len && (Character.isLetterOrDigit(code.charAt(i)) || code.charAt(i) == '.')) {
+                    i++;
+                }
+                tok = code.subSequence(start, i).toString();
+                size += literalSize(tok);
+            } else {
+                tok = String.valueOf(c);
+                for (String op : OPERATORS) {
+                    if (code.length() - i >= op.length() &&
+                        code.subSequence(i, i + op.length()).toString().equals(op))
+                    {
+                        tok = op;
+                        break;
+                    }
+                }
+                i += tok.length();
+                if (tok.equals(")") && isTypeKeyword(prev) && prev2.equals("(")) {
+                    size += 1;  // a cast, e.g. (int) or (float)
+                } else {
+                    size += operatorSize(tok);
+                }
+            }
+            prev2 = prev;
+            prev = tok;
+        }
+        return size;
+    }
+}
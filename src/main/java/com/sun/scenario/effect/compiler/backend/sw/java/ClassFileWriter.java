@@ -0,0 +1,624 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a class file, with just the parts that JSWBytecodeBackend needs:
+ * the constant pool, fields, and methods with a Code attribute.
+ *
+ * The classes are written with version 49.0 (Java 5), the last version
+ * that HotSpot verifies by type inference, so that no StackMapTable
+ * frames need to be computed for the generated methods.  The maximum
+ * depth of the operand stack of each method is tracked as the code is
+ * emitted, which relies on the stack depth at each label being the same
+ * on every path that reaches it (as it is in code compiled from Java).
+ */
+class ClassFileWriter {
+
+    static final int ACC_PUBLIC    = 0x0001;
+    static final int ACC_PRIVATE   = 0x0002;
+    static final int ACC_STATIC    = 0x0008;
+    static final int ACC_FINAL     = 0x0010;
+    static final int ACC_SUPER     = 0x0020;
+    static final int ACC_VARARGS   = 0x0080;
+
+    static final int ACONST_NULL   = 0x01;
+    static final int ICONST_0      = 0x03;
+    static final int FCONST_0      = 0x0b;
+    static final int BIPUSH        = 0x10;
+    static final int SIPUSH        = 0x11;
+    static final int LDC           = 0x12;
+    static final int LDC_W         = 0x13;
+    static final int ILOAD         = 0x15;
+    static final int FLOAD         = 0x17;
+    static final int ALOAD         = 0x19;
+    static final int IALOAD        = 0x2e;
+    static final int FALOAD        = 0x30;
+    static final int AALOAD        = 0x32;
+    static final int ISTORE        = 0x36;
+    static final int FSTORE        = 0x38;
+    static final int ASTORE        = 0x3a;
+    static final int IASTORE       = 0x4f;
+    static final int FASTORE       = 0x51;
+    static final int POP           = 0x57;
+    static final int DUP           = 0x59;
+    static final int SWAP          = 0x5f;
+    static final int IADD          = 0x60;
+    static final int FADD          = 0x62;
+    static final int ISUB          = 0x64;
+    static final int FSUB          = 0x66;
+    static final int IMUL          = 0x68;
+    static final int FMUL          = 0x6a;
+    static final int IDIV          = 0x6c;
+    static final int FDIV          = 0x6e;
+    static final int IREM          = 0x70;
+    static final int FREM          = 0x72;
+    static final int INEG          = 0x74;
+    static final int FNEG          = 0x76;
+    static final int ISHL          = 0x78;
+    static final int ISHR          = 0x7a;
+    static final int IUSHR         = 0x7c;
+    static final int IAND          = 0x7e;
+    static final int IOR           = 0x80;
+    static final int IXOR          = 0x82;
+    static final int IINC          = 0x84;
+    static final int I2F           = 0x86;
+    static final int F2I           = 0x8b;
+    static final int F2D           = 0x8d;
+    static final int D2F           = 0x90;
+    static final int FCMPL         = 0x95;
+    static final int FCMPG         = 0x96;
+    static final int IFEQ          = 0x99;
+    static final int IFNE          = 0x9a;
+    static final int IFLT          = 0x9b;
+    static final int IFGE          = 0x9c;
+    static final int IFGT          = 0x9d;
+    static final int IFLE          = 0x9e;
+    static final int IF_ICMPEQ     = 0x9f;
+    static final int IF_ICMPNE     = 0xa0;
+    static final int IF_ICMPLT     = 0xa1;
+    static final int IF_ICMPGE     = 0xa2;
+    static final int IF_ICMPGT     = 0xa3;
+    static final int IF_ICMPLE     = 0xa4;
+    static final int GOTO          = 0xa7;
+    static final int IRETURN       = 0xac;
+    static final int ARETURN       = 0xb0;
+    static final int RETURN        = 0xb1;
+    static final int GETSTATIC     = 0xb2;
+    static final int PUTSTATIC     = 0xb3;
+    static final int GETFIELD      = 0xb4;
+    static final int PUTFIELD      = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC  = 0xb8;
+    static final int NEW           = 0xbb;
+    static final int NEWARRAY      = 0xbc;
+    static final int ARRAYLENGTH   = 0xbe;
+    static final int CHECKCAST     = 0xc0;
+    static final int IFNULL        = 0xc6;
+    static final int IFNONNULL     = 0xc7;
+
+    // the element types for NEWARRAY
+    static final int T_FLOAT = 6;
+    static final int T_INT   = 10;
+
+    private static final int CONSTANT_Utf8        = 1;
+    private static final int CONSTANT_Integer     = 3;
+    private static final int CONSTANT_Float       = 4;
+    private static final int CONSTANT_Class       = 7;
+    private static final int CONSTANT_Fieldref    = 9;
+    private static final int CONSTANT_Methodref   = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<byte[]>();
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * Creates a writer for a public class, given the internal names
+     * (e.g. "java/lang/Object") of the class and of its superclass.
+     */
+    ClassFileWriter(String name, String superName) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+    }
+
+    /**
+     * Returns the index of an entry in the constant pool, adding it if
+     * there is none with the given key yet.
+     */
+    private int constant(String key, int tag, Object... values) {
+        Integer index = constants.get(key);
+        if (index == null) {
+            try {
+                pool.writeByte(tag);
+                for (Object v : values) {
+                    if (v instanceof String) {
+                        pool.writeUTF((String)v);
+                    } else if (v instanceof Float) {
+                        pool.writeFloat((Float)v);
+                    } else if (tag == CONSTANT_Integer) {
+                        pool.writeInt((Integer)v);
+                    } else {
+                        pool.writeShort((Integer)v);
+                    }
+                }
+            } catch (IOException e) {
+                throw new InternalError(e);
+            }
+            index = poolSize++;
+            constants.put(key, index);
+        }
+        return index;
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, CONSTANT_Utf8, s);
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, CONSTANT_Class, utf8(name));
+    }
+
+    int intConst(int value) {
+        return constant("I" + value, CONSTANT_Integer, value);
+    }
+
+    int floatConst(float value) {
+        // (keyed by the bits, so that 0.0f and -0.0f are kept apart)
+        return constant("F" + Float.floatToRawIntBits(value), CONSTANT_Float, value);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return constant("N" + name + " " + desc, CONSTANT_NameAndType,
+                        utf8(name), utf8(desc));
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return constant("R" + owner + "." + name + " " + desc, CONSTANT_Fieldref,
+                        classRef(owner), nameAndType(name, desc));
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return constant("M" + owner + "." + name + desc, CONSTANT_Methodref,
+                        classRef(owner), nameAndType(name, desc));
+    }
+
+    void addField(int access, String name, String desc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the code of a new method, which is added to the class once
+     * {@link Code#end()} has been called.
+     */
+    Code addMethod(int access, String name, String desc) {
+        return new Code(access, name, desc);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] f : fields) {
+                out.write(f);
+            }
+            out.writeShort(methods.size());
+            for (byte[] m : methods) {
+                out.write(m);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new InternalError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the number of local variable slots (or of words on the
+     * operand stack) taken by a value with the given descriptor.
+     */
+    static int getSize(String desc) {
+        char c = desc.charAt(0);
+        return (c == 'V') ? 0 : (c == 'J' || c == 'D') ? 2 : 1;
+    }
+
+    /**
+     * Returns the total size of the arguments of the method with the
+     * given descriptor.
+     */
+    static int getArgsSize(String desc) {
+        int size = 0;
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            int start = i;
+            while (desc.charAt(i) == '[') {
+                i++;
+            }
+            if (desc.charAt(i) == 'L') {
+                i = desc.indexOf(';', i);
+            }
+            i++;
+            size += (start < i - 1) ? 1 : getSize(desc.substring(start));
+        }
+        return size;
+    }
+
+    /**
+     * A position in the code of a method that can be the target of
+     * jumps, including ones emitted before the position is known.
+     */
+    static final class Label {
+        private int pos = -1;
+        private int depth = -1;
+        private final List<Integer> refs = new ArrayList<Integer>();
+    }
+
+    /**
+     * The code of a method.
+     */
+    final class Code {
+        private final int access;
+        private final String name;
+        private final String desc;
+        private byte[] buf = new byte[256];
+        private int len;
+        private int depth;
+        private int maxDepth;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        private Code(int access, String name, String desc) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.maxLocals = getArgsSize(desc) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        /**
+         * Returns the index of a new local variable slot.
+         */
+        int newLocal() {
+            return maxLocals++;
+        }
+
+        int getSize() {
+            return len;
+        }
+
+        ClassFileWriter getClassFile() {
+            return ClassFileWriter.this;
+        }
+
+        private void put(int b) {
+            if (len == buf.length) {
+                byte[] newbuf = new byte[len * 2];
+                System.arraycopy(buf, 0, newbuf, 0, len);
+                buf = newbuf;
+            }
+            buf[len++] = (byte)b;
+        }
+
+        private void put2(int s) {
+            put(s >> 8);
+            put(s);
+        }
+
+        private void adjust(int delta) {
+            depth += delta;
+            if (depth < 0) {
+                throw new InternalError("Operand stack underflow in " + name);
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        /**
+         * Emits an instruction without operands.
+         */
+        void insn(int opcode) {
+            put(opcode);
+            adjust(getStackDelta(opcode));
+            if (opcode == RETURN || opcode == IRETURN || opcode == ARETURN) {
+                reachable = false;
+            }
+        }
+
+        void intInsn(int value) {
+            if (value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put2(value);
+            } else {
+                ldc(intConst(value));
+                return;
+            }
+            adjust(1);
+        }
+
+        void floatInsn(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            if (bits == 0 || value == 1f || value == 2f) {
+                put(FCONST_0 + (int)value);
+                adjust(1);
+            } else {
+                ldc(floatConst(value));
+            }
+        }
+
+        private void ldc(int index) {
+            if (index < 256) {
+                put(LDC);
+                put(index);
+            } else {
+                put(LDC_W);
+                put2(index);
+            }
+            adjust(1);
+        }
+
+        /**
+         * Emits a load or store of a local variable, given the opcode of
+         * its general form (e.g. ILOAD).
+         */
+        void varInsn(int opcode, int slot) {
+            if (slot < 4) {
+                int base = (opcode < ISTORE) ? 0x1a : 0x3b;
+                int type = (opcode < ISTORE) ? opcode - ILOAD : opcode - ISTORE;
+                put(base + type * 4 + slot);
+            } else if (slot < 256) {
+                put(opcode);
+                put(slot);
+            } else {
+                put(0xc4);
+                put(opcode);
+                put2(slot);
+            }
+            adjust((opcode < ISTORE) ? 1 : -1);
+        }
+
+        void iinc(int slot, int amount) {
+            if (slot < 256 && amount >= Byte.MIN_VALUE && amount <= Byte.MAX_VALUE) {
+                put(IINC);
+                put(slot);
+                put(amount);
+            } else {
+                put(0xc4);
+                put(IINC);
+                put2(slot);
+                put2(amount);
+            }
+        }
+
+        void typeInsn(int opcode, String type) {
+            put(opcode);
+            put2(classRef(type));
+            adjust((opcode == NEW) ? 1 : 0);
+        }
+
+        void newArray(int type) {
+            put(NEWARRAY);
+            put(type);
+        }
+
+        void fieldInsn(int opcode, String owner, String name, String desc) {
+            put(opcode);
+            put2(fieldRef(owner, name, desc));
+            int size = ClassFileWriter.getSize(desc);
+            switch (opcode) {
+                case GETSTATIC: adjust(size); break;
+                case PUTSTATIC: adjust(-size); break;
+                case GETFIELD:  adjust(size - 1); break;
+                default:        adjust(-size - 1); break;
+            }
+        }
+
+        void methodInsn(int opcode, String owner, String name, String desc) {
+            put(opcode);
+            put2(methodRef(owner, name, desc));
+            int args = getArgsSize(desc) + ((opcode == INVOKESTATIC) ? 0 : 1);
+            adjust(ClassFileWriter.getSize(desc.substring(desc.indexOf(')') + 1)) - args);
+        }
+
+        /**
+         * Emits a jump to the given label, which may not have been
+         * marked yet.
+         */
+        void jump(int opcode, Label label) {
+            if (opcode == GOTO) {
+                // (nothing to pop)
+            } else if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+                adjust(-2);
+            } else {
+                adjust(-1);
+            }
+            if (reachable) {
+                // (jumps in dead code don't tell anything about the label)
+                setDepth(label);
+            }
+            if (label.pos >= 0) {
+                int offset = label.pos - len;
+                if (offset < Short.MIN_VALUE) {
+                    throw new RuntimeException("Code of method " + name + " is too large");
+                }
+                put(opcode);
+                put2(offset);
+            } else {
+                label.refs.add(len);
+                put(opcode);
+                put2(0);
+            }
+            if (opcode == GOTO) {
+                reachable = false;
+            }
+        }
+
+        private void setDepth(Label label) {
+            if (label.depth < 0) {
+                label.depth = depth;
+            } else if (label.depth != depth) {
+                throw new InternalError("Inconsistent stack depth at label in " + name);
+            }
+        }
+
+        /**
+         * Marks the current position as the one of the given label.
+         */
+        void mark(Label label) {
+            if (reachable) {
+                setDepth(label);
+            } else {
+                // only reached by jumps (if at all)
+                depth = Math.max(label.depth, 0);
+                reachable = true;
+            }
+            label.pos = len;
+            for (int ref : label.refs) {
+                int offset = len - ref;
+                if (offset > Short.MAX_VALUE) {
+                    throw new RuntimeException("Code of method " + name + " is too large");
+                }
+                buf[ref + 1] = (byte)(offset >> 8);
+                buf[ref + 2] = (byte)offset;
+            }
+            label.refs.clear();
+        }
+
+        /**
+         * Adds the method to the class.
+         */
+        void end() {
+            if (len > 65535) {
+                throw new RuntimeException("Code of method " + name + " is too large");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(desc));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + len);
+                out.writeShort(maxDepth);
+                out.writeShort(maxLocals);
+                out.writeInt(len);
+                out.write(buf, 0, len);
+                // no exception table or attributes
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new InternalError(e);
+            }
+            methods.add(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Returns the change in the depth of the operand stack caused by one
+     * of the instructions without operands.
+     */
+    private static int getStackDelta(int opcode) {
+        switch (opcode) {
+            case ACONST_NULL:
+            case DUP:
+                return 1;
+            case RETURN:
+            case SWAP:
+            case INEG:
+            case FNEG:
+            case I2F:
+            case F2I:
+            case ARRAYLENGTH:
+                return 0;
+            case F2D:
+                return 1;
+            case D2F:
+                return -1;
+            case POP:
+            case IALOAD:
+            case FALOAD:
+            case AALOAD:
+            case IADD: case FADD:
+            case ISUB: case FSUB:
+            case IMUL: case FMUL:
+            case IDIV: case FDIV:
+            case IREM: case FREM:
+            case ISHL: case ISHR: case IUSHR:
+            case IAND: case IOR: case IXOR:
+            case FCMPL: case FCMPG:
+            case IRETURN:
+            case ARETURN:
+                return -1;
+            case IASTORE:
+            case FASTORE:
+                return -3;
+            default:
+                if (opcode > ICONST_0 - 2 && opcode < FCONST_0 + 3) {
+                    // iconst_m1 to iconst_5 and fconst_0 to fconst_2
+                    return 1;
+                }
+                throw new InternalError("Unexpected opcode: " + opcode);
+        }
+    }
+}
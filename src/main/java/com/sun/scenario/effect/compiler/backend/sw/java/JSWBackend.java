@@ -25,49 +25,148 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.java;
 
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.GlueTemplates;
 import com.sun.scenario.effect.compiler.model.*;
 import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.InteriorSampleFinder;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
 import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.RangeAnalyzer;
+import com.sun.scenario.effect.compiler.tree.StrengthReducer;
+import com.sun.scenario.effect.compiler.tree.Stmt;
 import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
 import org.antlr.stringtemplate.StringTemplate;
-import org.antlr.stringtemplate.StringTemplateGroup;
-import org.antlr.stringtemplate.language.DefaultTemplateLexer;
 
 /**
  */
 public class JSWBackend extends TreeScanner {
 
+    /**
+     * HotSpot doesn't JIT compile methods with more bytecode than this
+     * (see -XX:-DontCompileHugeMethods), so a peer whose filter() method
+     * is bigger runs in the interpreter.
+     */
+    static final int HUGE_METHOD_LIMIT = 8000;
+
+    /**
+     * The estimated size of filter() above which the per-pixel loop body
+     * is moved into helper methods (see JSWOutliner), leaving some room
+     * for the error of the estimate.
+     */
+    static final int OUTLINE_THRESHOLD = 7000;
+
     private final JSLParser parser;
+    private final Stmt mainStmt;
+    private final List<VarDecl> globalDecls = new ArrayList<VarDecl>();
     private final String body;
+    private final String invariantDecls;
+    private final List<InteriorSampleFinder.Sample> interiorSamples;
+    private final RangeAnalyzer.Range colorRange;
+    private final String interiorBody;
 
     public JSWBackend(JSLParser parser, ProgramUnit program) {
-        // TODO: will be removed once we clean up static usage
-        resetStatics();
-
         this.parser = parser;
 
-        JSWTreeScanner scanner = new JSWTreeScanner();
+        // e.g. pow(x, 2.0) is turned into x * x
+        program = new StrengthReducer().reduce(program);
+
+        // the clamps of the color before it is stored are left out when
+        // they can't change it
+        Variable color = parser.getSymbolTable().getCoreVariable("color");
+        this.colorRange = new RangeAnalyzer().analyze(program).getRange(color);
+
+        program = new CallLifter(parser.getSymbolTable()).lift(program);
+        InvariantHoister hoister = new InvariantHoister(parser.getSymbolTable());
+        program = hoister.hoist(program);
+        program = new CommonSubexprEliminator(parser.getSymbolTable()).eliminate(program);
+
+        JSWTreeScanner scanner = new JSWTreeScanner(this);
         scanner.scan(program);
         this.body = scanner.getResult();
+        this.mainStmt = getMainStmt(program);
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof VarDecl && ((VarDecl)d).getVariable().getQualifier() == null) {
+                globalDecls.add((VarDecl)d);
+            }
+        }
+
+        // the hoisted values are computed once, before the per-pixel loop
+        JSWTreeScanner invScanner = new JSWTreeScanner(this);
+        for (VarDecl d : hoister.getInvariants()) {
+            invScanner.scan(d);
+        }
+        this.invariantDecls = invScanner.getResult();
+
+        // the sample() calls at a fixed offset from posN don't need bounds
+        // checks in the interior of the rows, which gets its own copy of
+        // the loop body
+        sampleFinder = new InteriorSampleFinder(hoister);
+        this.interiorSamples = sampleFinder.find(program);
+        if (interiorSamples.isEmpty()) {
+            this.interiorBody = null;
+        } else {
+            uncheckedSamples = true;
+            JSWTreeScanner interiorScanner = new JSWTreeScanner(this);
+            // the globals are declared in each copy of the body
+            for (VarDecl d : globalDecls) {
+                interiorScanner.scan(d);
+            }
+            interiorScanner.scan(mainStmt);
+            uncheckedSamples = false;
+            this.interiorBody = interiorScanner.getResult();
+        }
+    }
+
+    private static Stmt getMainStmt(ProgramUnit program) {
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof FuncDef &&
+                ((FuncDef)d).getFunction().getName().equals("main"))
+            {
+                return ((FuncDef)d).getStmt();
+            }
+        }
+        return null;
     }
 
     public final String getGenCode(String effectName,
                                    String peerName,
                                    String genericsName,
                                    String interfaceName)
+    {
+        return getGenCode(effectName, peerName, genericsName, interfaceName, false);
+    }
+
+    /**
+     * Returns the source code for the peer class.  If {@code parallel} is
+     * true, the generated {@code filter()} method splits the destination
+     * rows into bands that are processed concurrently on a ForkJoinPool;
+     * the pixels produced are identical to those of the serial version.
+     */
+    public final String getGenCode(String effectName,
+                                   String peerName,
+                                   String genericsName,
+                                   String interfaceName,
+                                   boolean parallel)
     {
         Map<String, Variable> vars = parser.getSymbolTable().getGlobalVariables();
         StringBuilder genericsDecl = new StringBuilder();
         StringBuilder interfaceDecl = new StringBuilder();
         StringBuilder constants = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
         StringBuilder samplers = new StringBuilder();
+        StringBuilder scratch = new StringBuilder();
         StringBuilder cleanup = new StringBuilder();
         StringBuilder srcRects = new StringBuilder();
         StringBuilder posDecls = new StringBuilder();
@@ -78,11 +177,12 @@ public class JSWBackend extends TreeScanner {
         StringBuilder posIncrX = new StringBuilder();
         StringBuilder posInitX = new StringBuilder();
 
-        // TODO: only need to declare these if pixcoord is referenced
-        // somewhere in the program...
-        pixInitY.append("float pixcoord_y = (float)dy;\n");
-        pixInitX.append("float pixcoord_x = (float)dx;\n");
+        if (parser.getSymbolTable().isCoreVariableReferenced("pixcoord")) {
+            pixInitY.append("float pixcoord_y = (float)dy;\n");
+            pixInitX.append("float pixcoord_x = (float)dx;\n");
+        }
 
+        boolean unpack = false;
         for (Variable v : vars.values()) {
             if (v.getQualifier() == Qualifier.CONST && v.getConstValue() == null) {
                 // this must be a special built-in variable (e.g. pos0);
@@ -92,25 +192,36 @@ public class JSWBackend extends TreeScanner {
 
             Type t = v.getType();
             BaseType bt = t.getBaseType();
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER && !v.isReferenced()) {
+                // the program never reads this value (see DeadCodeEliminator)
+                continue;
+            }
             if (v.getQualifier() != null && bt != BaseType.SAMPLER) {
                 String vtype = bt.toString();
                 String vname = v.getName();
                 String accName = v.getAccessorName();
                 if (v.isArray()) {
-                    // TODO: we currently assume that param arrays will be
-                    // stored in NIO Int/FloatBuffers, but the inner loop
-                    // expects to access them as Java arrays, so we convert
-                    // here; this is obviously bad for performance, so we need
-                    // to come up with a better system soon...
+                    // param arrays are stored in NIO Int/FloatBuffers, but the
+                    // inner loop accesses them as Java arrays; heap buffers are
+                    // read through their backing array, and anything else is
+                    // copied into an array that the peer keeps between calls
                     String bufType = (bt == BaseType.FLOAT) ?
                         "FloatBuffer" : "IntBuffer";
                     String bufName = vname + "_buf";
                     String arrayName = vname + "_arr";
+                    String cacheName = vname + "_cache";
+                    fields.append("private " + vtype + "[] " + cacheName + ";\n");
                     constants.append(bufType + " " + bufName + " = " + accName + "();\n");
-                    constants.append(vtype + "[] " + arrayName);
-                    constants.append(" = new " + vtype + "[");
-                    constants.append(bufName + ".capacity()];\n");
-                    constants.append(bufName + ".get(" + arrayName + ");\n");
+                    constants.append(vtype + "[] " + arrayName + ";\n");
+                    constants.append("if (" + bufName + ".hasArray() && " + bufName + ".arrayOffset() == 0) {\n");
+                    constants.append("    " + arrayName + " = " + bufName + ".array();\n");
+                    constants.append("} else {\n");
+                    constants.append("    if (" + cacheName + " == null || " + cacheName + ".length != " + bufName + ".capacity()) {\n");
+                    constants.append("        " + cacheName + " = new " + vtype + "[" + bufName + ".capacity()];\n");
+                    constants.append("    }\n");
+                    constants.append("    " + arrayName + " = " + cacheName + ";\n");
+                    constants.append("    " + bufName + ".get(" + arrayName + ");\n");
+                    constants.append("}\n");
                 } else {
                     if (t.isVector()) {
                         String arrayName = vname + "_arr";
@@ -127,6 +238,9 @@ public class JSWBackend extends TreeScanner {
                         constants.append(vtype + " " + vname);
                         if (v.getQualifier() == Qualifier.CONST) {
                             constants.append(" = " + v.getConstValue());
+                            if (v.getConstValue() instanceof Float) {
+                                constants.append("f");
+                            }
                         } else {
                             constants.append(" = " + accName + "()");
                         }
@@ -143,10 +257,10 @@ public class JSWBackend extends TreeScanner {
                     samplers.append("int src" + i + "h = src" + i + ".getHeight();\n");
                     samplers.append("int src" + i + "scan = src" + i + ".getWidth();\n");
                     samplers.append("float[] " + v.getName() + " = src" + i + ".getData();\n");
-                    samplers.append("float " + v.getName() + "_vals[] = new float[4];\n");
+                    appendScratch(fields, scratch, v.getName() + "_vals", parallel);
 
                     // TODO: for now, assume [0,0,1,1]
-                    srcRects.append("float[] src" + i + "Rect = new float[] {0,0,1,1};\n");
+                    fields.append("private final float[] src" + i + "Rect = {0,0,1,1};\n");
                 } else {
                     if (t == Types.LSAMPLER) {
                         samplers.append("HeapImage src" + i + " = (HeapImage)inputs[" + i + "].getUntransformedImage();\n");
@@ -161,8 +275,18 @@ public class JSWBackend extends TreeScanner {
                     samplers.append("int src" + i + "scan = src" + i + ".getScanlineStride();\n");
                     samplers.append("int[] " + v.getName() + " =\n");
                     samplers.append("    src" + i + ".getPixelArray();\n");
+                    if (t == Types.SAMPLER && !unpack) {
+                        // sample() looks up the value of each channel
+                        // instead of dividing it by 255f
+                        fields.append("private static final float[] UNPACK = new float[256];\n");
+                        fields.append("static {\n");
+                        fields.append("    for (int i = 0; i < 256; i++) UNPACK[i] = i / 255f;\n");
+                        fields.append("}\n");
+                        unpack = true;
+                    }
 
-                    samplers.append("Rectangle src" + i + "Bounds = new Rectangle(");
+                    fields.append("private final Rectangle src" + i + "Bounds = new Rectangle();\n");
+                    samplers.append("src" + i + "Bounds.setBounds(");
                     samplers.append("src" + i + "x, ");
                     samplers.append("src" + i + "y, ");
                     samplers.append("src" + i + "w, ");
@@ -178,14 +302,14 @@ public class JSWBackend extends TreeScanner {
                     samplers.append("setInputNativeBounds(" + i + ", src" + i + "Bounds);\n");
 
                     if (t == Types.LSAMPLER) {
-                        samplers.append("float " + v.getName() + "_vals[] = new float[4];\n");
+                        appendScratch(fields, scratch, v.getName() + "_vals", parallel);
                     }
 
                     // the source rect decls need to come after all calls to
                     // setInput[Native]Bounds() for all inputs (since the
                     // getSourceRegion() impl may need to query the bounds of
                     // other inputs, as is the case in PhongLighting)...
-                    srcRects.append("float[] src" + i + "Rect = new float[4];\n");
+                    fields.append("private final float[] src" + i + "Rect = new float[4];\n");
                     // Note that we only allocate 4 floats here because none
                     // of the loops can deal with fully mapped inputs.  Only
                     // shaders that declare LSAMPLERs would require mapped
@@ -198,16 +322,20 @@ public class JSWBackend extends TreeScanner {
                     srcRects.append("                      dstBounds, src" + i + "Transform);\n");
                 }
 
-                posDecls.append("float inc" + i + "_x = (src" + i + "Rect[2] - src" + i + "Rect[0]) / dstw;\n");
-                posDecls.append("float inc" + i + "_y = (src" + i + "Rect[3] - src" + i + "Rect[1]) / dsth;\n");
+                if (parser.getSymbolTable().isCoreVariableReferenced("pos" + i)) {
+                    posDecls.append("float inc" + i + "_x = (src" + i + "Rect[2] - src" + i + "Rect[0]) / dstw;\n");
+                    posDecls.append("float inc" + i + "_y = (src" + i + "Rect[3] - src" + i + "Rect[1]) / dsth;\n");
 
-                posInitY.append("float pos" + i + "_y = src" + i + "Rect[1] + inc" + i + "_y*0.5f;\n");
-                posInitX.append("float pos" + i + "_x = src" + i + "Rect[0] + inc" + i + "_x*0.5f;\n");
-                posIncrX.append("pos" + i + "_x += inc" + i + "_x;\n");
-                posIncrY.append("pos" + i + "_y += inc" + i + "_y;\n");
+                    posInitY.append("float pos" + i + "_y = src" + i + "Rect[1] + inc" + i + "_y*0.5f;\n");
+                    posInitX.append("float pos" + i + "_x = src" + i + "Rect[0] + inc" + i + "_x*0.5f;\n");
+                    posIncrX.append("pos" + i + "_x += inc" + i + "_x;\n");
+                    posIncrY.append("pos" + i + "_y += inc" + i + "_y;\n");
+                }
             }
         }
 
+        constants.append(invariantDecls);
+
         if (genericsName != null) {
             genericsDecl.append("<"+genericsName+">");
         }
@@ -216,15 +344,17 @@ public class JSWBackend extends TreeScanner {
             interfaceDecl.append("implements "+interfaceName);
         }
 
-        Reader template = new InputStreamReader(getClass().getResourceAsStream("JSWGlue.stg"));
-        StringTemplateGroup group = new StringTemplateGroup(template, DefaultTemplateLexer.class);
-        StringTemplate glue = group.getInstanceOf("glue");
+        StringTemplate glue = GlueTemplates.getGlue(getClass(), "JSWGlue.stg");
         glue.setAttribute("effectName", effectName);
         glue.setAttribute("peerName", peerName);
         glue.setAttribute("genericsDecl", genericsDecl.toString());
         glue.setAttribute("interfaceDecl", interfaceDecl.toString());
+        if (fields.length() > 0) {
+            glue.setAttribute("fields", fields.toString());
+        }
         glue.setAttribute("usercode", usercode.toString());
         glue.setAttribute("samplers", samplers.toString());
+        glue.setAttribute("scratch", scratch.toString());
         glue.setAttribute("cleanup", cleanup.toString());
         glue.setAttribute("srcRects", srcRects.toString());
         glue.setAttribute("constants", constants.toString());
@@ -236,7 +366,136 @@ public class JSWBackend extends TreeScanner {
         glue.setAttribute("posIncrX", posIncrX.toString());
         glue.setAttribute("posInitX", posInitX.toString());
         glue.setAttribute("body", body);
-        return glue.toString();
+        if (interiorBody != null) {
+            glue.setAttribute("interiorBody", interiorBody);
+            glue.setAttribute("interiorX", getInteriorTest(0));
+            glue.setAttribute("interiorY", getInteriorTest(1));
+        }
+        if (colorRange != null) {
+            glue.setAttribute("alphaInRange", colorRange.isAlphaInRange());
+            glue.setAttribute("colorNonNegative", colorRange.isColorNonNegative());
+            glue.setAttribute("colorBelowAlpha", colorRange.isColorBelowAlpha());
+        }
+        glue.setAttribute("parallel", parallel);
+        String code = glue.toString();
+
+        String className = "JSW" + peerName + "Peer";
+        if (estimateFilterSize(code) > OUTLINE_THRESHOLD && mainStmt != null) {
+            JSWOutliner outliner = new JSWOutliner(this, "filterPart");
+            outliner.outline(globalDecls, mainStmt);
+            JSWOutliner interiorOutliner = null;
+            if (interiorBody != null) {
+                uncheckedSamples = true;
+                interiorOutliner = new JSWOutliner(this, "filterInteriorPart");
+                interiorOutliner.outline(globalDecls, mainStmt);
+                uncheckedSamples = false;
+            }
+            for (BaseType bt : new BaseType[] {BaseType.FLOAT, BaseType.INT, BaseType.BOOL}) {
+                int size = outliner.getFrameSize(bt);
+                if (interiorOutliner != null) {
+                    size = Math.max(size, interiorOutliner.getFrameSize(bt));
+                }
+                if (size > 0) {
+                    String type = (bt == BaseType.BOOL) ? "boolean" : bt.toString();
+                    appendScratch(fields, scratch, type, JSWOutliner.getFrameName(bt),
+                                  size, parallel);
+                }
+            }
+            StringBuilder helpers = new StringBuilder(outliner.getHelpers());
+            glue.removeAttribute("body");
+            glue.setAttribute("body", outliner.getCaller());
+            if (interiorOutliner != null) {
+                helpers.append(interiorOutliner.getHelpers());
+                glue.removeAttribute("interiorBody");
+                glue.setAttribute("interiorBody", interiorOutliner.getCaller());
+            }
+            glue.removeAttribute("fields");
+            glue.setAttribute("fields", fields.toString());
+            glue.removeAttribute("scratch");
+            glue.setAttribute("scratch", scratch.toString());
+            glue.setAttribute("helpers", helpers.toString());
+            code = glue.toString();
+
+            checkMethodSize(outliner, className);
+            if (interiorOutliner != null) {
+                checkMethodSize(interiorOutliner, className);
+            }
+        }
+        checkMethodSize(className + ".filter()", estimateFilterSize(code));
+        return code;
+    }
+
+    /**
+     * Returns the estimated size of the bytecode of the filter() method
+     * in the given peer source, which is the last method of the class.
+     */
+    static int estimateFilterSize(String code) {
+        int start = code.indexOf("public ImageData filter(");
+        return BytecodeEstimator.estimate(code.substring(Math.max(start, 0)));
+    }
+
+    private static void checkMethodSize(JSWOutliner outliner, String className) {
+        List<String> names = outliner.getHelperNames();
+        List<String> texts = outliner.getHelperTexts();
+        for (int i = 0; i < names.size(); i++) {
+            checkMethodSize(className + "." + names.get(i) + "()",
+                            BytecodeEstimator.estimate(texts.get(i)));
+        }
+    }
+
+    static void checkMethodSize(String method, int size) {
+        if (size > HUGE_METHOD_LIMIT) {
+            System.err.println("Warning: " + method + " has about " + size +
+                               " bytes of bytecode, more than the " +
+                               HUGE_METHOD_LIMIT + " that HotSpot compiles; " +
+                               "it will only run in the interpreter");
+        }
+    }
+
+    /**
+     * Declares a 4-float scratch array that lsample()/fsample() write for
+     * each pixel.  It is kept by the peer so that filter() doesn't allocate
+     * it every time, except that in parallel mode each thread needs its own.
+     */
+    private static void appendScratch(StringBuilder fields, StringBuilder scratch,
+                                      String name, boolean parallel)
+    {
+        appendScratch(fields, scratch, "float", name, 4, parallel);
+    }
+
+    /**
+     * Declares a scratch array of the given type and size in the same way,
+     * e.g. for the frame of the outlined loop body (see JSWOutliner).
+     */
+    private static void appendScratch(StringBuilder fields, StringBuilder scratch,
+                                      String type, String name, int size,
+                                      boolean parallel)
+    {
+        String alloc = "new " + type + "[" + size + "]";
+        if (parallel) {
+            fields.append("private final ThreadLocal<" + type + "[]> " + name + "_local =\n");
+            fields.append("    ThreadLocal.withInitial(() -> " + alloc + ");\n");
+            scratch.append(type + "[] " + name + " = " + name + "_local.get();\n");
+        } else {
+            fields.append("private final " + type + "[] " + name + " = " + alloc + ";\n");
+        }
+    }
+
+    /**
+     * Returns the condition under which all of the interior sample() calls
+     * read from inside their source image, along the given axis.
+     */
+    private String getInteriorTest(int axis) {
+        StringBuilder test = new StringBuilder();
+        for (InteriorSampleFinder.Sample sample : interiorSamples) {
+            String loc = "(" + sample.getCoord(getSuffix(axis)) + ")";
+            String size = "src" + sample.getSampler().getReg() + (axis == 0 ? "w" : "h");
+            if (test.length() > 0) {
+                test.append(" && ");
+            }
+            test.append(loc + " >= 0 && (int)(" + loc + "*" + size + ") < " + size);
+        }
+        return test.toString();
     }
 
     // TODO: need better mechanism for querying fields
@@ -264,31 +523,44 @@ public class JSWBackend extends TreeScanner {
         }
     }
 
-    // TODO: these shouldn't be implemented as a static method
-    private static Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
-    static void putFuncDef(FuncDef def) {
+    private final Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
+    void putFuncDef(FuncDef def) {
         funcDefs.put(def.getFunction().getName(), def);
     }
-    static FuncDef getFuncDef(String name) {
+    FuncDef getFuncDef(String name) {
         return funcDefs.get(name);
     }
 
-    private static Set<String> resultVars = new HashSet<String>();
-    static boolean isResultVarDeclared(String vname) {
+    private Set<String> resultVars = new HashSet<String>();
+    boolean isResultVarDeclared(String vname) {
         return resultVars.contains(vname);
     }
-    static void declareResultVar(String vname) {
+    void declareResultVar(String vname) {
         resultVars.add(vname);
     }
+    Set<String> saveResultVars() {
+        return new HashSet<String>(resultVars);
+    }
+    void restoreResultVars(Set<String> vars) {
+        resultVars = vars;
+    }
 
-    private static StringBuilder usercode = new StringBuilder();
-    static void addGlueBlock(String block) {
-        usercode.append(block);
+    private Map<Variable, Integer> frameSlots;
+    void setFrameSlots(Map<Variable, Integer> slots) {
+        frameSlots = slots;
+    }
+    String getFrameRef(Variable var, int field) {
+        return JSWOutliner.getFrameRef(frameSlots, var, field);
+    }
+
+    private InteriorSampleFinder sampleFinder;
+    private boolean uncheckedSamples;
+    boolean isUncheckedSample(List<Expr> params) {
+        return uncheckedSamples && sampleFinder.match(params) != null;
     }
 
-    private static void resetStatics() {
-        funcDefs.clear();
-        resultVars.clear();
-        usercode = new StringBuilder();
+    private final StringBuilder usercode = new StringBuilder();
+    void addGlueBlock(String block) {
+        usercode.append(block);
     }
 }
@@ -0,0 +1,1222 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.Code;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBytecodeEmitter.Local;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBytecodeEmitter.Sampler;
+import com.sun.scenario.effect.compiler.model.*;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.InteriorSampleFinder;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.RangeAnalyzer;
+import com.sun.scenario.effect.compiler.tree.Stmt;
+import com.sun.scenario.effect.compiler.tree.StrengthReducer;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+
+import static com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.*;
+
+/**
+ * Generates the class file of a JSW peer directly, for use at runtime
+ * without a Java compiler.  The program goes through the same passes as
+ * in {@link JSWBackend}, and the filter() method does what the one in
+ * JSWGlue.stg does (see {@link JSWBytecodeEmitter} for the loop body), so
+ * the peer produces the same pixels as one compiled from the source that
+ * JSWBackend generates.
+ *
+ * The glue blocks of the program are Java source, which can't be used
+ * here, so the peer extends a given class that provides whatever they
+ * would have: in particular, the accessor of each param (e.g. a
+ * {@code float getScale()} method for {@code param float scale}), which
+ * must be public or protected.  The generated filter() method is always
+ * serial, and a loop body that would make it too big for HotSpot to
+ * compile is moved into helper methods (see JSWBytecodeOutliner); the
+ * classes used by the peer (ImageData, HeapImage, etc.) are the ones seen
+ * by the class loader of the superclass.
+ */
+public class JSWBytecodeBackend {
+
+    private static final String PEER_PACKAGE = "com/sun/scenario/effect/impl/sw/java/";
+
+    private final JSLParser parser;
+    private final Stmt mainStmt;
+    private final List<VarDecl> globalDecls = new ArrayList<VarDecl>();
+    private final Map<Function, FuncDef> funcDefs = new HashMap<Function, FuncDef>();
+    private final List<VarDecl> invariants;
+    private final InteriorSampleFinder sampleFinder;
+    private final List<InteriorSampleFinder.Sample> interiorSamples;
+    private final RangeAnalyzer.Range colorRange;
+
+    // the state of the class being generated
+    private ClassLoader loader;
+    private Class<?> superclass;
+    private String className;
+    private ClassFileWriter cw;
+    private Code code;
+    private JSWBytecodeEmitter emitter;
+    private final Map<Integer, Sampler> samplerLocals = new HashMap<Integer, Sampler>();
+    private List<Integer> posRegs;
+    private Map<Integer, Local> incs;
+    private Local color;
+    private Local pixcoord;
+    private int dx;
+    private int dyi;
+    private int dstPixels;
+    private JSWBytecodeOutliner outliner;
+    private JSWBytecodeOutliner interiorOutliner;
+    private int[] frameArrays;
+    private int filterSize;
+
+    public JSWBytecodeBackend(JSLParser parser, ProgramUnit program) {
+        this.parser = parser;
+
+        // (the same passes as in JSWBackend)
+        program = new StrengthReducer().reduce(program);
+        Variable color = parser.getSymbolTable().getCoreVariable("color");
+        this.colorRange = new RangeAnalyzer().analyze(program).getRange(color);
+        program = new CallLifter(parser.getSymbolTable()).lift(program);
+        InvariantHoister hoister = new InvariantHoister(parser.getSymbolTable());
+        program = hoister.hoist(program);
+        program = new CommonSubexprEliminator(parser.getSymbolTable()).eliminate(program);
+
+        Stmt main = null;
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof FuncDef) {
+                FuncDef def = (FuncDef)d;
+                if (def.getFunction().getName().equals("main")) {
+                    main = def.getStmt();
+                } else {
+                    funcDefs.put(def.getFunction(), def);
+                }
+            } else if (d instanceof VarDecl && ((VarDecl)d).getVariable().getQualifier() == null) {
+                globalDecls.add((VarDecl)d);
+            }
+        }
+        this.mainStmt = main;
+        this.invariants = hoister.getInvariants();
+        this.sampleFinder = new InteriorSampleFinder(hoister);
+        this.interiorSamples = sampleFinder.find(program);
+    }
+
+    /**
+     * Returns the class file of the peer class
+     * {@code com.sun.scenario.effect.impl.sw.java.JSW<peerName>Peer},
+     * which extends the given class (a subclass of JSWEffectPeer).
+     */
+    public byte[] getClassFile(String peerName, Class<?> superclass) {
+        this.superclass = superclass;
+        this.loader = superclass.getClassLoader();
+        this.className = PEER_PACKAGE + "JSW" + peerName + "Peer";
+        try {
+            Map<Integer, Variable> samplers = new TreeMap<Integer, Variable>();
+            for (Variable v : parser.getSymbolTable().getGlobalVariables().values()) {
+                if (v.getQualifier() == Qualifier.PARAM &&
+                    v.getType().getBaseType() == BaseType.SAMPLER)
+                {
+                    samplers.put(v.getReg(), v);
+                }
+            }
+
+            // as in JSWBackend, the loop body is moved into helper methods
+            // if filter() would be too big otherwise (but without trying
+            // to generate it if the body alone is)
+            JSWBytecodeEmitter scratch = null;
+            boolean outline = false;
+            if (mainStmt != null) {
+                scratch = getScratchEmitter(samplers);
+                int size = JSWBytecodeOutliner.measure(mainStmt, scratch, false);
+                if (!interiorSamples.isEmpty()) {
+                    size += JSWBytecodeOutliner.measure(mainStmt, scratch, true);
+                }
+                outline = (size > JSWBackend.OUTLINE_THRESHOLD);
+            }
+            byte[] classFile = getClassFile(samplers, outline ? scratch : null);
+            if (!outline && filterSize > JSWBackend.OUTLINE_THRESHOLD && mainStmt != null) {
+                classFile = getClassFile(samplers, scratch);
+            }
+
+            String peer = "JSW" + peerName + "Peer.";
+            JSWBackend.checkMethodSize(peer + "filter()", filterSize);
+            for (JSWBytecodeOutliner o : new JSWBytecodeOutliner[] { outliner, interiorOutliner }) {
+                if (o != null) {
+                    List<String> names = o.getHelperNames();
+                    for (int i = 0; i < names.size(); i++) {
+                        JSWBackend.checkMethodSize(peer + names.get(i) + "()",
+                                                   o.getHelperSizes().get(i));
+                    }
+                }
+            }
+            return classFile;
+        } finally {
+            this.superclass = null;
+            this.loader = null;
+            this.cw = null;
+            this.code = null;
+            this.emitter = null;
+            this.samplerLocals.clear();
+            this.outliner = null;
+            this.interiorOutliner = null;
+        }
+    }
+
+    /**
+     * Generates the class, with the loop body moved into helper methods
+     * if the given emitter (see getScratchEmitter()) isn't null.
+     */
+    private byte[] getClassFile(Map<Integer, Variable> samplers, JSWBytecodeEmitter scratch) {
+        cw = new ClassFileWriter(className, getInternalName(superclass));
+        samplerLocals.clear();
+        outliner = null;
+        interiorOutliner = null;
+        if (scratch != null) {
+            Set<Variable> invariantVars = new HashSet<Variable>();
+            for (VarDecl d : invariants) {
+                invariantVars.add(d.getVariable());
+            }
+            Variable colorVar = parser.getSymbolTable().getCoreVariable("color");
+            outliner = new JSWBytecodeOutliner(funcDefs, sampleFinder, colorVar,
+                                               "filterPart", false);
+            outliner.outline(globalDecls, invariantVars, mainStmt, scratch);
+            if (!interiorSamples.isEmpty()) {
+                interiorOutliner = new JSWBytecodeOutliner(funcDefs, sampleFinder, colorVar,
+                                                           "filterInteriorPart", true);
+                interiorOutliner.outline(globalDecls, invariantVars, mainStmt, scratch);
+            }
+        }
+        addConstructor(samplers);
+        if (samplers.values().stream().anyMatch(v -> v.getType() == Types.SAMPLER)) {
+            addUnpack();
+        }
+        addFilter(samplers);
+        return cw.toByteArray();
+    }
+
+    /**
+     * Returns an emitter for a method that is never added to any class,
+     * which knows all of the samplers, params, invariants and positions of
+     * the program, for measuring the code of the statements of main().
+     */
+    private JSWBytecodeEmitter getScratchEmitter(Map<Integer, Variable> samplers) {
+        Code scratch = new ClassFileWriter(className, getInternalName(superclass))
+            .addMethod(ACC_PRIVATE | ACC_STATIC, "scratch", "()V");
+        JSWBytecodeEmitter e = new JSWBytecodeEmitter(scratch, className, funcDefs, sampleFinder);
+        for (Variable v : samplers.values()) {
+            int vals = (v.getType() == Types.SAMPLER) ? -1 : scratch.newLocal();
+            e.setSampler(v.getReg(), new Sampler(v.getType(), scratch.newLocal(), scratch.newLocal(),
+                                                 scratch.newLocal(), scratch.newLocal(), vals));
+        }
+        e.setUnpack(scratch.newLocal());
+        SymbolTable symbols = parser.getSymbolTable();
+        for (Variable v : symbols.getGlobalVariables().values()) {
+            Type t = v.getType();
+            if (v.getQualifier() != Qualifier.PARAM || t.getBaseType() == BaseType.SAMPLER) {
+                continue;
+            } else if (v.isArray()) {
+                e.setArray(v, scratch.newLocal());
+            } else {
+                e.setLocal(v, e.newLocal(t.getBaseType(), t.getNumFields()));
+            }
+        }
+        for (String name : new String[] { "pos0", "pos1", "pixcoord", "color" }) {
+            Variable v = symbols.getCoreVariable(name);
+            e.setLocal(v, e.newLocal(v.getType().getBaseType(), v.getType().getNumFields()));
+        }
+        for (VarDecl d : invariants) {
+            e.declare(d);
+        }
+        for (VarDecl d : globalDecls) {
+            e.declare(d);
+        }
+        return e;
+    }
+
+    /**
+     * Adds the constructor, which takes the same arguments as the one of
+     * the superclass (FilterContext, Renderer, String), and creates the
+     * arrays and rectangles that the peer keeps between calls.
+     */
+    private void addConstructor(Map<Integer, Variable> samplers) {
+        Constructor<?> ctor = null;
+        for (Constructor<?> c : superclass.getDeclaredConstructors()) {
+            if (c.getParameterCount() == 3 && !Modifier.isPrivate(c.getModifiers())) {
+                ctor = c;
+            }
+        }
+        if (ctor == null) {
+            throw new RuntimeException(superclass.getName() + " has no constructor " +
+                                       "(FilterContext, Renderer, String)");
+        }
+        String desc = getDescriptor(ctor.getParameterTypes(), void.class);
+        code = cw.addMethod(ACC_PUBLIC, "<init>", desc);
+        code.varInsn(ALOAD, 0);
+        code.varInsn(ALOAD, 1);
+        code.varInsn(ALOAD, 2);
+        code.varInsn(ALOAD, 3);
+        code.methodInsn(INVOKESPECIAL, getInternalName(superclass), "<init>", desc);
+
+        String rectangle = getDescriptor(getClass("com.sun.javafx.geom.Rectangle"));
+        for (Variable v : samplers.values()) {
+            int i = v.getReg();
+            if (v.getType() != Types.SAMPLER) {
+                addFloatArray(v.getName() + "_vals", 4);
+            }
+            if (v.getType() == Types.FSAMPLER) {
+                // TODO: for now, assume [0,0,1,1] (as JSWBackend does)
+                addFloatArray("src" + i + "Rect", 4);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, "src" + i + "Rect", "[F");
+                code.intInsn(2);
+                code.floatInsn(1f);
+                code.insn(FASTORE);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, "src" + i + "Rect", "[F");
+                code.intInsn(3);
+                code.floatInsn(1f);
+                code.insn(FASTORE);
+            } else {
+                String type = rectangle.substring(1, rectangle.length() - 1);
+                cw.addField(ACC_PRIVATE | ACC_FINAL, "src" + i + "Bounds", rectangle);
+                code.varInsn(ALOAD, 0);
+                code.typeInsn(NEW, type);
+                code.insn(DUP);
+                code.methodInsn(INVOKESPECIAL, type, "<init>", "()V");
+                code.fieldInsn(PUTFIELD, className, "src" + i + "Bounds", rectangle);
+                addFloatArray("src" + i + "Rect", 4);
+            }
+        }
+        // the frame of the outlined loop body (see JSWBytecodeOutliner)
+        if (outliner != null) {
+            for (BaseType bt : new BaseType[] { BaseType.FLOAT, BaseType.INT }) {
+                int size = outliner.getFrameSize(bt);
+                if (interiorOutliner != null) {
+                    size = Math.max(size, interiorOutliner.getFrameSize(bt));
+                }
+                if (size > 0) {
+                    String name = JSWBytecodeOutliner.getFrameName(bt);
+                    boolean isFloat = (bt == BaseType.FLOAT);
+                    cw.addField(ACC_PRIVATE | ACC_FINAL, name, isFloat ? "[F" : "[I");
+                    code.varInsn(ALOAD, 0);
+                    code.intInsn(size);
+                    code.newArray(isFloat ? T_FLOAT : T_INT);
+                    code.fieldInsn(PUTFIELD, className, name, isFloat ? "[F" : "[I");
+                }
+            }
+        }
+        code.insn(RETURN);
+        code.end();
+    }
+
+    private void addFloatArray(String name, int size) {
+        cw.addField(ACC_PRIVATE | ACC_FINAL, name, "[F");
+        code.varInsn(ALOAD, 0);
+        code.intInsn(size);
+        code.newArray(T_FLOAT);
+        code.fieldInsn(PUTFIELD, className, name, "[F");
+    }
+
+    /**
+     * Adds the UNPACK table, which holds the value of each channel divided
+     * by 255f.
+     */
+    private void addUnpack() {
+        cw.addField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "UNPACK", "[F");
+        Code clinit = cw.addMethod(ACC_STATIC, "<clinit>", "()V");
+        clinit.intInsn(256);
+        clinit.newArray(T_FLOAT);
+        clinit.fieldInsn(PUTSTATIC, className, "UNPACK", "[F");
+        int i = clinit.newLocal();
+        Label loop = new Label();
+        Label end = new Label();
+        clinit.intInsn(0);
+        clinit.varInsn(ISTORE, i);
+        clinit.mark(loop);
+        clinit.varInsn(ILOAD, i);
+        clinit.intInsn(256);
+        clinit.jump(IF_ICMPGE, end);
+        clinit.fieldInsn(GETSTATIC, className, "UNPACK", "[F");
+        clinit.varInsn(ILOAD, i);
+        clinit.varInsn(ILOAD, i);
+        clinit.insn(I2F);
+        clinit.floatInsn(255f);
+        clinit.insn(FDIV);
+        clinit.insn(FASTORE);
+        clinit.iinc(i, 1);
+        clinit.jump(GOTO, loop);
+        clinit.mark(end);
+        clinit.insn(RETURN);
+        clinit.end();
+    }
+
+    /**
+     * Adds the filter() method (see JSWGlue.stg for the Java version).
+     */
+    private void addFilter(Map<Integer, Variable> samplers) {
+        Method filter = findFilter();
+        Class<?>[] ptypes = filter.getParameterTypes();
+        Class<?> transformClass = ptypes[2];
+        Class<?> rectClass = ptypes[3];
+        Class<?> imageDataClass = ptypes[4].getComponentType();
+        Class<?> heapImageClass = getClass("com.sun.scenario.effect.impl.HeapImage");
+        Class<?> floatMapClass = getClass("com.sun.scenario.effect.FloatMap");
+        String rect = getInternalName(rectClass);
+
+        code = cw.addMethod(ACC_PUBLIC | ACC_VARARGS, "filter",
+                            getDescriptor(ptypes, filter.getReturnType()));
+        emitter = new JSWBytecodeEmitter(code, className, funcDefs, sampleFinder);
+        final int effect = 1, transform = 3, outputClip = 4, inputs = 5;
+
+        // setEffect(effect);
+        // Rectangle dstBounds = getResultBounds(transform, outputClip, inputs);
+        // setDestBounds(dstBounds);
+        code.varInsn(ALOAD, 0);
+        code.varInsn(ALOAD, effect);
+        invoke(null, "setEffect", 1);
+        code.varInsn(ALOAD, 0);
+        code.varInsn(ALOAD, transform);
+        code.varInsn(ALOAD, outputClip);
+        code.varInsn(ALOAD, inputs);
+        cast(invoke(null, "getResultBounds", 3), rectClass);
+        int dstBounds = code.newLocal();
+        code.varInsn(ASTORE, dstBounds);
+        code.varInsn(ALOAD, 0);
+        code.varInsn(ALOAD, dstBounds);
+        invoke(null, "setDestBounds", 1);
+
+        // the locals of each sampler (see JSWBackend.getGenCode())
+        Map<Integer, int[]> inputInfo = new HashMap<Integer, int[]>();
+        Map<Integer, Integer> sources = new HashMap<Integer, Integer>();
+        List<Integer> transformed = new ArrayList<Integer>();
+        for (Variable v : samplers.values()) {
+            int i = v.getReg();
+            Type t = v.getType();
+            int src = code.newLocal();
+            sources.put(i, src);
+            int w = code.newLocal();
+            int h = code.newLocal();
+            int scan = code.newLocal();
+            int pixels = code.newLocal();
+            int vals = -1;
+            if (t == Types.FSAMPLER) {
+                code.varInsn(ALOAD, 0);
+                code.intInsn(i);
+                cast(invoke(null, "getSamplerData", 1), floatMapClass);
+                code.varInsn(ASTORE, src);
+                getInt(floatMapClass, src, "getWidth", w);
+                getInt(floatMapClass, src, "getHeight", h);
+                getInt(floatMapClass, src, "getWidth", scan);
+                code.varInsn(ALOAD, src);
+                invoke(floatMapClass, "getData", 0);
+                code.varInsn(ASTORE, pixels);
+            } else {
+                loadInput(inputs, i);
+                if (t == Types.LSAMPLER) {
+                    cast(invoke(imageDataClass, "getUntransformedImage", 0), heapImageClass);
+                } else {
+                    code.varInsn(ALOAD, dstBounds);
+                    cast(invoke(imageDataClass, "getTransformedImage", 1), heapImageClass);
+                    transformed.add(i);
+                }
+                code.varInsn(ASTORE, src);
+                getInt(heapImageClass, src, "getPhysicalWidth", w);
+                getInt(heapImageClass, src, "getPhysicalHeight", h);
+                getInt(heapImageClass, src, "getScanlineStride", scan);
+                code.varInsn(ALOAD, src);
+                invoke(heapImageClass, "getPixelArray", 0);
+                code.varInsn(ASTORE, pixels);
+
+                // src<i>Bounds.setBounds(0, 0, src<i>w, src<i>h);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, "src" + i + "Bounds", getDescriptor(rectClass));
+                code.intInsn(0);
+                code.intInsn(0);
+                code.varInsn(ILOAD, w);
+                code.varInsn(ILOAD, h);
+                invoke(rectClass, "setBounds", 4);
+
+                int inputBounds = code.newLocal();
+                int inputTransform = code.newLocal();
+                loadInput(inputs, i);
+                if (t == Types.LSAMPLER) {
+                    cast(invoke(imageDataClass, "getUntransformedBounds", 0), rectClass);
+                    code.varInsn(ASTORE, inputBounds);
+                    loadInput(inputs, i);
+                    cast(invoke(imageDataClass, "getTransform", 0), transformClass);
+                } else {
+                    code.varInsn(ALOAD, dstBounds);
+                    cast(invoke(imageDataClass, "getTransformedBounds", 1), rectClass);
+                    code.varInsn(ASTORE, inputBounds);
+                    code.fieldInsn(GETSTATIC, getInternalName(transformClass),
+                                   "IDENTITY_TRANSFORM", getDescriptor(transformClass));
+                }
+                code.varInsn(ASTORE, inputTransform);
+                code.varInsn(ALOAD, 0);
+                code.intInsn(i);
+                code.varInsn(ALOAD, inputBounds);
+                invoke(null, "setInputBounds", 2);
+                code.varInsn(ALOAD, 0);
+                code.intInsn(i);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, "src" + i + "Bounds", getDescriptor(rectClass));
+                invoke(null, "setInputNativeBounds", 2);
+                inputInfo.put(i, new int[] { inputBounds, inputTransform, w, h });
+            }
+            if (t != Types.SAMPLER) {
+                vals = code.newLocal();
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, v.getName() + "_vals", "[F");
+                code.varInsn(ASTORE, vals);
+            }
+            Sampler sampler = new Sampler(t, pixels, w, h, scan, vals);
+            emitter.setSampler(i, sampler);
+            samplerLocals.put(i, sampler);
+        }
+
+        // the source rects come after all calls to setInput[Native]Bounds()
+        for (Map.Entry<Integer, int[]> e : new TreeMap<Integer, int[]>(inputInfo).entrySet()) {
+            int i = e.getKey();
+            int[] info = e.getValue();
+            Method m = findMethod(superclass, "getTextureCoordinates", 8);
+            Class<?>[] types = m.getParameterTypes();
+            code.varInsn(ALOAD, 0);
+            code.intInsn(i);
+            code.varInsn(ALOAD, 0);
+            code.fieldInsn(GETFIELD, className, "src" + i + "Rect", "[F");
+            code.varInsn(ALOAD, info[0]);
+            code.fieldInsn(GETFIELD, rect, "x", "I");
+            widen(types[2]);
+            code.varInsn(ALOAD, info[0]);
+            code.fieldInsn(GETFIELD, rect, "y", "I");
+            widen(types[3]);
+            code.varInsn(ILOAD, info[2]);
+            widen(types[4]);
+            code.varInsn(ILOAD, info[3]);
+            widen(types[5]);
+            code.varInsn(ALOAD, dstBounds);
+            code.varInsn(ALOAD, info[1]);
+            call(INVOKEVIRTUAL, className, m);
+        }
+
+        // int dstw = dstBounds.width, dsth = dstBounds.height;
+        int dstw = code.newLocal();
+        int dsth = code.newLocal();
+        code.varInsn(ALOAD, dstBounds);
+        code.fieldInsn(GETFIELD, rect, "width", "I");
+        code.varInsn(ISTORE, dstw);
+        code.varInsn(ALOAD, dstBounds);
+        code.fieldInsn(GETFIELD, rect, "height", "I");
+        code.varInsn(ISTORE, dsth);
+
+        // HeapImage dst = (HeapImage)getRenderer().getCompatibleImage(dstw, dsth);
+        int dst = code.newLocal();
+        code.varInsn(ALOAD, 0);
+        Class<?> rendererClass = invoke(null, "getRenderer", 0);
+        code.varInsn(ILOAD, dstw);
+        code.varInsn(ILOAD, dsth);
+        cast(invoke(rendererClass, "getCompatibleImage", 2), heapImageClass);
+        code.varInsn(ASTORE, dst);
+        code.varInsn(ALOAD, 0);
+        code.varInsn(ALOAD, dst);
+        invoke(heapImageClass, "getPhysicalWidth", 0);
+        code.varInsn(ALOAD, dst);
+        invoke(heapImageClass, "getPhysicalHeight", 0);
+        invoke(null, "setDestNativeBounds", 2);
+        int dstscan = code.newLocal();
+        getInt(heapImageClass, dst, "getScanlineStride", dstscan);
+        dstPixels = code.newLocal();
+        code.varInsn(ALOAD, dst);
+        invoke(heapImageClass, "getPixelArray", 0);
+        code.varInsn(ASTORE, dstPixels);
+
+        if (samplers.values().stream().anyMatch(v -> v.getType() == Types.SAMPLER)) {
+            int unpack = code.newLocal();
+            code.fieldInsn(GETSTATIC, className, "UNPACK", "[F");
+            code.varInsn(ASTORE, unpack);
+            emitter.setUnpack(unpack);
+        }
+
+        addParams();
+        for (VarDecl d : invariants) {
+            emitter.declare(d);
+        }
+        if (outliner != null) {
+            frameArrays = new int[2];
+            for (BaseType bt : new BaseType[] { BaseType.FLOAT, BaseType.INT }) {
+                String name = JSWBytecodeOutliner.getFrameName(bt);
+                String desc = (bt == BaseType.FLOAT) ? "[F" : "[I";
+                if (outliner.getFrameSize(bt) > 0 ||
+                    (interiorOutliner != null && interiorOutliner.getFrameSize(bt) > 0))
+                {
+                    int i = (bt == BaseType.FLOAT) ? 0 : 1;
+                    frameArrays[i] = code.newLocal();
+                    code.varInsn(ALOAD, 0);
+                    code.fieldInsn(GETFIELD, className, name, desc);
+                    code.varInsn(ASTORE, frameArrays[i]);
+                }
+            }
+        }
+
+        // float inc<i>_x = (src<i>Rect[2] - src<i>Rect[0]) / dstw; ...
+        SymbolTable symbols = parser.getSymbolTable();
+        posRegs = new ArrayList<Integer>();
+        incs = new HashMap<Integer, Local>();
+        for (int i : samplers.keySet()) {
+            if (!symbols.isCoreVariableReferenced("pos" + i)) {
+                continue;
+            }
+            posRegs.add(i);
+            Local inc = emitter.newLocal(BaseType.FLOAT, 2);
+            for (int axis = 0; axis < 2; axis++) {
+                loadRect(i, axis + 2);
+                loadRect(i, axis);
+                code.insn(FSUB);
+                code.varInsn(ILOAD, (axis == 0) ? dstw : dsth);
+                code.insn(I2F);
+                code.insn(FDIV);
+                emitter.store(inc, axis);
+            }
+            incs.put(i, inc);
+            emitter.setLocal(symbols.getCoreVariable("pos" + i),
+                             emitter.newLocal(BaseType.FLOAT, 2));
+        }
+        color = emitter.newLocal(BaseType.FLOAT, 4);
+        emitter.setLocal(symbols.getCoreVariable("color"), color);
+        pixcoord = null;
+        if (symbols.isCoreVariableReferenced("pixcoord")) {
+            pixcoord = emitter.newLocal(BaseType.FLOAT, 2);
+            emitter.setLocal(symbols.getCoreVariable("pixcoord"), pixcoord);
+        }
+
+        // the range of dx (the same for every row) in which the sample()
+        // calls at a fixed offset from pos*_x read from inside their
+        // source images
+        Local interior = null;
+        dx = code.newLocal();
+        if (!interiorSamples.isEmpty()) {
+            interior = emitter.newLocal(BaseType.INT, 2);
+            code.intInsn(0);
+            emitter.store(interior, 0);
+            code.intInsn(0);
+            emitter.store(interior, 1);
+            initPos(0);
+            Label loop = new Label();
+            Label next = new Label();
+            Label outside = new Label();
+            Label end = new Label();
+            code.intInsn(0);
+            code.varInsn(ISTORE, dx);
+            code.mark(loop);
+            code.varInsn(ILOAD, dx);
+            code.varInsn(ILOAD, dstw);
+            code.jump(IF_ICMPGE, end);
+            interiorTest(0, outside);
+            // if (interiorEnd == interiorStart) interiorStart = dx;
+            Label started = new Label();
+            emitter.load(interior, 1);
+            emitter.load(interior, 0);
+            code.jump(IF_ICMPNE, started);
+            code.varInsn(ILOAD, dx);
+            emitter.store(interior, 0);
+            code.mark(started);
+            // interiorEnd = dx+1;
+            code.varInsn(ILOAD, dx);
+            code.intInsn(1);
+            code.insn(IADD);
+            emitter.store(interior, 1);
+            code.jump(GOTO, next);
+            // } else if (interiorEnd > interiorStart) break;
+            code.mark(outside);
+            emitter.load(interior, 1);
+            emitter.load(interior, 0);
+            code.jump(IF_ICMPGT, end);
+            code.mark(next);
+            incrPos(0);
+            code.iinc(dx, 1);
+            code.jump(GOTO, loop);
+            code.mark(end);
+        }
+
+        // the rows
+        initPos(1);
+        int dy = code.newLocal();
+        dyi = code.newLocal();
+        Label rows = new Label();
+        Label rowsEnd = new Label();
+        code.intInsn(0);
+        code.varInsn(ISTORE, dy);
+        code.mark(rows);
+        code.varInsn(ILOAD, dy);
+        code.varInsn(ILOAD, dsth);
+        code.jump(IF_ICMPGE, rowsEnd);
+        if (pixcoord != null) {
+            code.varInsn(ILOAD, dy);
+            code.insn(I2F);
+            emitter.store(pixcoord, 1);
+        }
+        code.varInsn(ILOAD, dy);
+        code.varInsn(ILOAD, dstscan);
+        code.insn(IMUL);
+        code.varInsn(ISTORE, dyi);
+        initPos(0);
+        code.intInsn(0);
+        code.varInsn(ISTORE, dx);
+        if (interior != null) {
+            // int dxi0 = dstx, dxi1 = dstx;
+            // if (<interiorY>) { dxi0 = interiorx0; dxi1 = interiorx1; }
+            Local dxi = emitter.newLocal(BaseType.INT, 2);
+            Label outside = new Label();
+            code.intInsn(0);
+            emitter.store(dxi, 0);
+            code.intInsn(0);
+            emitter.store(dxi, 1);
+            interiorTest(1, outside);
+            emitter.load(interior, 0);
+            emitter.store(dxi, 0);
+            emitter.load(interior, 1);
+            emitter.store(dxi, 1);
+            code.mark(outside);
+
+            // for (int dx = dstx; dx < dstx+dstw; ) {
+            Label loop = new Label();
+            Label edge = new Label();
+            Label end = new Label();
+            code.mark(loop);
+            code.varInsn(ILOAD, dx);
+            code.varInsn(ILOAD, dstw);
+            code.jump(IF_ICMPGE, end);
+            // if (dx >= dxi0 && dx < dxi1) { for (; dx < dxi1; dx++) ... }
+            code.varInsn(ILOAD, dx);
+            emitter.load(dxi, 0);
+            code.jump(IF_ICMPLT, edge);
+            code.varInsn(ILOAD, dx);
+            emitter.load(dxi, 1);
+            code.jump(IF_ICMPGE, edge);
+            pixels(dxi, 1, true);
+            code.jump(GOTO, loop);
+            // else { int dxEnd = (dx < dxi0) ? dxi0 : dstx+dstw; ... }
+            code.mark(edge);
+            Local dxEnd = emitter.newLocal(BaseType.INT, 1);
+            Label right = new Label();
+            Label set = new Label();
+            code.varInsn(ILOAD, dx);
+            emitter.load(dxi, 0);
+            code.jump(IF_ICMPGE, right);
+            emitter.load(dxi, 0);
+            code.jump(GOTO, set);
+            code.mark(right);
+            code.varInsn(ILOAD, dstw);
+            code.mark(set);
+            emitter.store(dxEnd, 0);
+            pixels(dxEnd, 0, false);
+            code.jump(GOTO, loop);
+            code.mark(end);
+        } else {
+            Local end = emitter.newLocal(BaseType.INT, 1);
+            code.varInsn(ILOAD, dstw);
+            emitter.store(end, 0);
+            pixels(end, 0, false);
+        }
+        incrPos(1);
+        code.iinc(dy, 1);
+        code.jump(GOTO, rows);
+        code.mark(rowsEnd);
+
+        // inputs[i].releaseTransformedImage(src<i>);
+        for (int i : transformed) {
+            loadInput(inputs, i);
+            code.varInsn(ALOAD, sources.get(i));
+            invoke(imageDataClass, "releaseTransformedImage", 1);
+        }
+
+        // return new ImageData(getFilterContext(), dst, dstBounds);
+        Constructor<?> ctor = null;
+        for (Constructor<?> c : imageDataClass.getConstructors()) {
+            if (c.getParameterCount() == 3) {
+                ctor = c;
+            }
+        }
+        if (ctor == null) {
+            throw new RuntimeException(imageDataClass.getName() + " has no constructor " +
+                                       "(FilterContext, HeapImage, Rectangle)");
+        }
+        String imageData = getInternalName(imageDataClass);
+        code.typeInsn(NEW, imageData);
+        code.insn(DUP);
+        code.varInsn(ALOAD, 0);
+        invoke(null, "getFilterContext", 0);
+        code.varInsn(ALOAD, dst);
+        code.varInsn(ALOAD, dstBounds);
+        code.methodInsn(INVOKESPECIAL, imageData, "<init>",
+                        getDescriptor(ctor.getParameterTypes(), void.class));
+        code.insn(ARETURN);
+        filterSize = code.getSize();
+        code.end();
+    }
+
+    /**
+     * Reads the params through their accessors, in the same way as the
+     * constants of the Java version.
+     */
+    private void addParams() {
+        for (Variable v : parser.getSymbolTable().getGlobalVariables().values()) {
+            Type t = v.getType();
+            BaseType bt = t.getBaseType();
+            if (v.getQualifier() != Qualifier.PARAM || bt == BaseType.SAMPLER || !v.isReferenced()) {
+                // (consts are inlined by JSWBytecodeEmitter)
+                continue;
+            }
+            boolean isFloat = (bt == BaseType.FLOAT);
+            if (v.isArray()) {
+                if (bt != BaseType.FLOAT && bt != BaseType.INT) {
+                    throw new RuntimeException("Arrays of " + t + " are not supported " +
+                                               "by the bytecode backend ('" + v.getName() + "')");
+                }
+                // heap buffers are read through their backing array, and
+                // anything else is copied into an array that the peer keeps
+                // between calls
+                String bufType = isFloat ? "java/nio/FloatBuffer" : "java/nio/IntBuffer";
+                String arrayDesc = isFloat ? "[F" : "[I";
+                String cache = v.getName() + "_cache";
+                cw.addField(ACC_PRIVATE, cache, arrayDesc);
+                int buf = code.newLocal();
+                int array = code.newLocal();
+                code.varInsn(ALOAD, 0);
+                callAccessor(v, isFloat ? FloatBuffer.class : IntBuffer.class);
+                code.varInsn(ASTORE, buf);
+
+                Label copy = new Label();
+                Label alloc = new Label();
+                Label cached = new Label();
+                Label done = new Label();
+                code.varInsn(ALOAD, buf);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "hasArray", "()Z");
+                code.jump(IFEQ, copy);
+                code.varInsn(ALOAD, buf);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "arrayOffset", "()I");
+                code.jump(IFNE, copy);
+                code.varInsn(ALOAD, buf);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "array", "()" + arrayDesc);
+                code.varInsn(ASTORE, array);
+                code.jump(GOTO, done);
+
+                code.mark(copy);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, cache, arrayDesc);
+                code.jump(IFNULL, alloc);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, cache, arrayDesc);
+                code.insn(ARRAYLENGTH);
+                code.varInsn(ALOAD, buf);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "capacity", "()I");
+                code.jump(IF_ICMPEQ, cached);
+                code.mark(alloc);
+                code.varInsn(ALOAD, 0);
+                code.varInsn(ALOAD, buf);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "capacity", "()I");
+                code.newArray(isFloat ? T_FLOAT : T_INT);
+                code.fieldInsn(PUTFIELD, className, cache, arrayDesc);
+                code.mark(cached);
+                code.varInsn(ALOAD, 0);
+                code.fieldInsn(GETFIELD, className, cache, arrayDesc);
+                code.varInsn(ASTORE, array);
+                code.varInsn(ALOAD, buf);
+                code.varInsn(ALOAD, array);
+                code.methodInsn(INVOKEVIRTUAL, bufType, "get", "(" + arrayDesc + ")L" + bufType + ";");
+                code.insn(POP);
+                code.mark(done);
+                emitter.setArray(v, array);
+            } else if (t.isVector()) {
+                if (bt != BaseType.FLOAT && bt != BaseType.INT) {
+                    throw new RuntimeException("Params of type " + t + " are not supported " +
+                                               "by the bytecode backend ('" + v.getName() + "')");
+                }
+                int array = code.newLocal();
+                code.varInsn(ALOAD, 0);
+                callAccessor(v, isFloat ? float[].class : int[].class);
+                code.varInsn(ASTORE, array);
+                Local local = emitter.newLocal(bt, t.getNumFields());
+                for (int i = 0; i < t.getNumFields(); i++) {
+                    code.varInsn(ALOAD, array);
+                    code.intInsn(i);
+                    code.insn(isFloat ? FALOAD : IALOAD);
+                    emitter.store(local, i);
+                }
+                emitter.setLocal(v, local);
+            } else {
+                Local local = emitter.newLocal(bt, 1);
+                code.varInsn(ALOAD, 0);
+                callAccessor(v, isFloat ? float.class :
+                                (bt == BaseType.INT) ? int.class : boolean.class);
+                emitter.store(local, 0);
+                emitter.setLocal(v, local);
+            }
+        }
+    }
+
+    /**
+     * Calls the accessor of a param, which the superclass must provide.
+     */
+    private void callAccessor(Variable v, Class<?> type) {
+        Method m = findMethod(superclass, v.getAccessorName(), 0);
+        if (m == null || m.getReturnType() != type || Modifier.isStatic(m.getModifiers())) {
+            throw new RuntimeException(superclass.getName() + " must declare a public or " +
+                                       "protected method " + type.getSimpleName() + " " +
+                                       v.getAccessorName() + "() for param '" + v.getName() + "'");
+        }
+        call(INVOKEVIRTUAL, className, m);
+    }
+
+    /**
+     * Emits the pixels of one part of the row, up to the value of the
+     * given local variable (see pixel() in JSWGlue.stg).
+     */
+    private void pixels(Local end, int endIndex, boolean interior) {
+        Label loop = new Label();
+        Label done = new Label();
+        code.mark(loop);
+        code.varInsn(ILOAD, dx);
+        emitter.load(end, endIndex);
+        code.jump(IF_ICMPGE, done);
+
+        if (pixcoord != null) {
+            code.varInsn(ILOAD, dx);
+            code.insn(I2F);
+            emitter.store(pixcoord, 0);
+        }
+        Label discard = new Label();
+        JSWBytecodeOutliner o = interior ? interiorOutliner : outliner;
+        if (o != null) {
+            o.emit(cw, className, code, emitter, frameArrays, color, globalDecls, discard);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                code.floatInsn(0f);
+                emitter.store(color, i);
+            }
+            // the globals are declared in each copy of the body
+            for (VarDecl d : globalDecls) {
+                emitter.declare(d);
+            }
+            if (mainStmt != null) {
+                emitter.emitMain(mainStmt, discard, interior);
+            }
+        }
+
+        boolean alphaInRange = (colorRange != null) && colorRange.isAlphaInRange();
+        boolean colorNonNegative = (colorRange != null) && colorRange.isColorNonNegative();
+        boolean colorBelowAlpha = (colorRange != null) && colorRange.isColorBelowAlpha();
+        if (!alphaInRange) {
+            // if (color_w < 0f) color_w = 0f; else if (color_w > 1f) color_w = 1f;
+            clamp(3, true, true);
+        }
+        for (int i = 0; i < 3; i++) {
+            clamp(i, !colorNonNegative, !colorBelowAlpha);
+        }
+
+        // dstPixels[dyi+dx] = ((int)(color_x * 0xff) << 16) | ...
+        code.varInsn(ALOAD, dstPixels);
+        code.varInsn(ILOAD, dyi);
+        code.varInsn(ILOAD, dx);
+        code.insn(IADD);
+        int[] shifts = { 16, 8, 0, 24 };
+        for (int i = 0; i < 4; i++) {
+            emitter.load(color, i);
+            code.floatInsn(255f);
+            code.insn(FMUL);
+            code.insn(F2I);
+            if (shifts[i] != 0) {
+                code.intInsn(shifts[i]);
+                code.insn(ISHL);
+            }
+            if (i > 0) {
+                code.insn(IOR);
+            }
+        }
+        code.insn(IASTORE);
+        code.mark(discard);
+
+        incrPos(0);
+        code.iinc(dx, 1);
+        code.jump(GOTO, loop);
+        code.mark(done);
+    }
+
+    /**
+     * Clamps one component of the color to [0, color_w] (or to [0, 1]
+     * for color_w itself), leaving out the test on either side if it
+     * isn't wanted.
+     */
+    private void clamp(int i, boolean below, boolean above) {
+        Label end = new Label();
+        if (below) {
+            Label notBelow = new Label();
+            emitter.load(color, i);
+            code.floatInsn(0f);
+            emitter.floatJump(BinaryOpType.LT, false, notBelow);
+            code.floatInsn(0f);
+            emitter.store(color, i);
+            code.jump(GOTO, end);
+            code.mark(notBelow);
+        }
+        if (above) {
+            emitter.load(color, i);
+            pushMax(i);
+            emitter.floatJump(BinaryOpType.GT, false, end);
+            pushMax(i);
+            emitter.store(color, i);
+        }
+        code.mark(end);
+    }
+
+    private void pushMax(int i) {
+        if (i == 3) {
+            code.floatInsn(1f);
+        } else {
+            emitter.load(color, 3);
+        }
+    }
+
+    /**
+     * Sets one coordinate of each of the posN variables to the center of
+     * the first pixel.
+     */
+    private void initPos(int axis) {
+        for (int i : posRegs) {
+            Local pos = emitter.getLocal(parser.getSymbolTable().getCoreVariable("pos" + i));
+            loadRect(i, axis);
+            emitter.load(incs.get(i), axis);
+            code.floatInsn(0.5f);
+            code.insn(FMUL);
+            code.insn(FADD);
+            emitter.store(pos, axis);
+        }
+    }
+
+    private void incrPos(int axis) {
+        for (int i : posRegs) {
+            Local pos = emitter.getLocal(parser.getSymbolTable().getCoreVariable("pos" + i));
+            emitter.load(pos, axis);
+            emitter.load(incs.get(i), axis);
+            code.insn(FADD);
+            emitter.store(pos, axis);
+        }
+    }
+
+    /**
+     * Jumps to the given label unless all of the interior sample() calls
+     * read from inside their source image, along the given axis.
+     */
+    private void interiorTest(int axis, Label outside) {
+        for (InteriorSampleFinder.Sample sample : interiorSamples) {
+            Sampler sampler = samplerLocals.get(sample.getSampler().getReg());
+            int size = (axis == 0) ? sampler.w : sampler.h;
+            // (loc) >= 0 && (int)((loc)*size) < size
+            interiorCoord(sample, axis);
+            code.floatInsn(0f);
+            emitter.floatJump(BinaryOpType.GTEQ, false, outside);
+            interiorCoord(sample, axis);
+            code.varInsn(ILOAD, size);
+            code.insn(I2F);
+            code.insn(FMUL);
+            code.insn(F2I);
+            code.varInsn(ILOAD, size);
+            code.jump(IF_ICMPGE, outside);
+        }
+    }
+
+    private void interiorCoord(InteriorSampleFinder.Sample sample, int axis) {
+        emitter.emitVariable(sample.getPos(), axis);
+        if (sample.getOffset() != null) {
+            if (emitter.emitVariable(sample.getOffset(), axis) != BaseType.FLOAT) {
+                code.insn(I2F);
+            }
+            code.insn((sample.getOp() == BinaryOpType.ADD) ? FADD : FSUB);
+        }
+    }
+
+    private void loadRect(int reg, int index) {
+        code.varInsn(ALOAD, 0);
+        code.fieldInsn(GETFIELD, className, "src" + reg + "Rect", "[F");
+        code.intInsn(index);
+        code.insn(FALOAD);
+    }
+
+    private void loadInput(int inputs, int i) {
+        code.varInsn(ALOAD, inputs);
+        code.intInsn(i);
+        code.insn(AALOAD);
+    }
+
+    private void getInt(Class<?> owner, int object, String name, int dest) {
+        code.varInsn(ALOAD, object);
+        invoke(owner, name, 0);
+        code.varInsn(ISTORE, dest);
+    }
+
+    // reflection
+
+    private Class<?> getClass(String name) {
+        try {
+            return Class.forName(name, false, loader);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Class " + name + " not found by the class loader of " +
+                                       superclass.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the abstract (or inherited) filter() method that the peer
+     * implements.
+     */
+    private Method findFilter() {
+        Method m = findMethod(superclass, "filter", 5);
+        if (m == null || !Modifier.isPublic(m.getModifiers()) ||
+            !m.getParameterTypes()[4].isArray())
+        {
+            throw new RuntimeException(superclass.getName() + " has no method " +
+                                       "filter(Effect, RenderState, BaseTransform, Rectangle, ImageData...)");
+        }
+        return m;
+    }
+
+    /**
+     * Returns the public or protected method with the given name and
+     * number of params of the given class or of its superclasses, or
+     * null if there is none.
+     */
+    private static Method findMethod(Class<?> c, String name, int numParams) {
+        for (; c != null; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                int mod = m.getModifiers();
+                if (m.getName().equals(name) && m.getParameterCount() == numParams &&
+                    (Modifier.isPublic(mod) || Modifier.isProtected(mod)) &&
+                    !m.isBridge())
+                {
+                    return m;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls a method, given the number of arguments already pushed, on
+     * {@code this} if the owner is null, and returns its return type.
+     */
+    private Class<?> invoke(Class<?> owner, String name, int numArgs) {
+        Method m = findMethod((owner != null) ? owner : superclass, name, numArgs);
+        if (m == null) {
+            throw new RuntimeException("Method " + name + " not found in " +
+                                       ((owner != null) ? owner : superclass).getName());
+        }
+        if (owner != null && owner.isInterface()) {
+            throw new RuntimeException("Calls on interfaces are not supported " +
+                                       "by the bytecode backend (" + m + ")");
+        }
+        call(INVOKEVIRTUAL, (owner != null) ? getInternalName(owner) : className, m);
+        return m.getReturnType();
+    }
+
+    private void call(int opcode, String owner, Method m) {
+        if (Modifier.isStatic(m.getModifiers())) {
+            opcode = INVOKESTATIC;
+        }
+        code.methodInsn(opcode, owner, m.getName(),
+                        getDescriptor(m.getParameterTypes(), m.getReturnType()));
+    }
+
+    /**
+     * Casts the value on the stack (e.g. a Filterable returned by
+     * getTransformedImage()) if its type isn't assignable to the one
+     * needed.
+     */
+    private void cast(Class<?> from, Class<?> to) {
+        if (!to.isAssignableFrom(from)) {
+            code.typeInsn(CHECKCAST, getInternalName(to));
+        }
+    }
+
+    /**
+     * Widens the int on the stack if it is passed as a float.
+     */
+    private void widen(Class<?> to) {
+        if (to == float.class) {
+            code.insn(I2F);
+        }
+    }
+
+    private static String getInternalName(Class<?> c) {
+        return c.getName().replace('.', '/');
+    }
+
+    private static String getDescriptor(Class<?> c) {
+        if (c.isArray()) {
+            return "[" + getDescriptor(c.getComponentType());
+        } else if (!c.isPrimitive()) {
+            return "L" + getInternalName(c) + ";";
+        } else if (c == float.class) {
+            return "F";
+        } else if (c == int.class) {
+            return "I";
+        } else if (c == boolean.class) {
+            return "Z";
+        } else if (c == void.class) {
+            return "V";
+        } else if (c == long.class) {
+            return "J";
+        } else if (c == double.class) {
+            return "D";
+        } else if (c == byte.class) {
+            return "B";
+        } else if (c == short.class) {
+            return "S";
+        }
+        return "C";
+    }
+
+    private static String getDescriptor(Class<?>[] params, Class<?> ret) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> c : params) {
+            sb.append(getDescriptor(c));
+        }
+        return sb.append(')').append(getDescriptor(ret)).toString();
+    }
+}
@@ -0,0 +1,1270 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.Code;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Param;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.*;
+
+import static com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.*;
+import static com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend.getFieldIndex;
+
+/**
+ * Emits the bytecode for the statements and expressions of a program, for
+ * {@link JSWBytecodeBackend}.  The code does what the Java source written
+ * by JSWTreeScanner and JSWCallScanner does, operation for operation, so
+ * that the pixels are the same as those of a JSW peer compiled by javac:
+ * vectors are kept as one local variable per component, each statement on
+ * a vector is evaluated one component at a time, and the function calls of
+ * a statement are inlined before it (see {@link #prepare(Expr)}).
+ */
+class JSWBytecodeEmitter {
+
+    /**
+     * The local variables that hold a value, one per component (booleans
+     * are kept as ints, as the JVM does), or the elements of a frame array
+     * that hold it instead (see JSWBytecodeOutliner).
+     */
+    static final class Local {
+        final BaseType type;
+        final int slot;
+        final int size;
+        final int frame;
+
+        Local(BaseType type, int slot, int size) {
+            this(type, -1, slot, size);
+        }
+
+        /**
+         * A value that starts at the given index of the frame array held
+         * by the given local variable.
+         */
+        Local(BaseType type, int frame, int index, int size) {
+            this.type = type;
+            this.slot = index;
+            this.size = size;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * The local variables of a sampler: its pixels (or floats, for an
+     * fsampler), its size, and the scratch array that lsample() and
+     * fsample() write (or -1 for a plain sampler).
+     */
+    static final class Sampler {
+        final Type type;
+        final int pixels;
+        final int w;
+        final int h;
+        final int scan;
+        final int vals;
+
+        Sampler(Type type, int pixels, int w, int h, int scan, int vals) {
+            this.type = type;
+            this.pixels = pixels;
+            this.w = w;
+            this.h = h;
+            this.scan = scan;
+            this.vals = vals;
+        }
+    }
+
+    /**
+     * The state of main() or of a user function that is being inlined.
+     */
+    private static final class Frame {
+        private final Map<String, Local> params = new HashMap<String, Local>();
+        private final Map<String, Variable> samplers = new HashMap<String, Variable>();
+        private final Deque<Label> breaks = new ArrayDeque<Label>();
+        private final Deque<Label> continues = new ArrayDeque<Label>();
+        private Local result;
+        private Label end;
+        private Label discard;
+    }
+
+    private final Code code;
+    private final String className;
+    private final Map<Function, FuncDef> funcDefs;
+    private final Map<Variable, Local> locals = new IdentityHashMap<Variable, Local>();
+    private final Map<Variable, Integer> arrays = new IdentityHashMap<Variable, Integer>();
+    private final Map<Integer, Sampler> samplers = new HashMap<Integer, Sampler>();
+    private final InteriorSampleFinder sampleFinder;
+    private int unpack = -1;
+    private boolean uncheckedSamples;
+
+    // the results of the calls made by the current statement
+    private final Map<CallExpr, Local> results = new IdentityHashMap<CallExpr, Local>();
+    private Frame frame;
+
+    JSWBytecodeEmitter(Code code, String className, Map<Function, FuncDef> funcDefs,
+                       InteriorSampleFinder sampleFinder)
+    {
+        this.code = code;
+        this.className = className;
+        this.funcDefs = funcDefs;
+        this.sampleFinder = sampleFinder;
+    }
+
+    Local newLocal(BaseType type, int size) {
+        int slot = code.newLocal();
+        for (int i = 1; i < size; i++) {
+            code.newLocal();
+        }
+        return new Local((type == BaseType.FLOAT) ? BaseType.FLOAT : BaseType.INT, slot, size);
+    }
+
+    void setLocal(Variable var, Local local) {
+        locals.put(var, local);
+    }
+
+    /**
+     * Sets the local variable that holds the elements of a param array.
+     */
+    void setArray(Variable var, int slot) {
+        arrays.put(var, slot);
+    }
+
+    int getArray(Variable var) {
+        Integer slot = arrays.get(var);
+        if (slot == null) {
+            throw new InternalError("Unknown param array: " + var.getName());
+        }
+        return slot;
+    }
+
+    void setSampler(int reg, Sampler sampler) {
+        samplers.put(reg, sampler);
+    }
+
+    Sampler getSampler(int reg) {
+        Sampler sampler = samplers.get(reg);
+        if (sampler == null) {
+            throw new InternalError("Unknown sampler: " + reg);
+        }
+        return sampler;
+    }
+
+    /**
+     * Sets the local variable that holds the UNPACK table.
+     */
+    void setUnpack(int slot) {
+        unpack = slot;
+    }
+
+    int getUnpack() {
+        return unpack;
+    }
+
+    void load(Local local, int i) {
+        int index = local.slot + ((local.size > 1) ? i : 0);
+        if (local.frame >= 0) {
+            code.varInsn(ALOAD, local.frame);
+            code.intInsn(index);
+            code.insn((local.type == BaseType.FLOAT) ? FALOAD : IALOAD);
+        } else {
+            code.varInsn((local.type == BaseType.FLOAT) ? FLOAD : ILOAD, index);
+        }
+    }
+
+    void store(Local local, int i) {
+        int index = local.slot + ((local.size > 1) ? i : 0);
+        if (local.frame >= 0) {
+            // (the value is already on the stack, below the array and
+            // the index)
+            code.varInsn(ALOAD, local.frame);
+            code.insn(SWAP);
+            code.intInsn(index);
+            code.insn(SWAP);
+            code.insn((local.type == BaseType.FLOAT) ? FASTORE : IASTORE);
+        } else {
+            code.varInsn((local.type == BaseType.FLOAT) ? FSTORE : ISTORE, index);
+        }
+    }
+
+    private void pushZero(BaseType type) {
+        if (type == BaseType.FLOAT) {
+            code.floatInsn(0f);
+        } else {
+            code.intInsn(0);
+        }
+    }
+
+    /**
+     * Emits the body of main() for one pixel, given the label to jump to
+     * on a discard statement; the sample() calls that InteriorSampleFinder
+     * knows to be inside their image skip the bounds checks if
+     * {@code interior} is true.
+     */
+    void emitMain(Stmt stmt, Label discard, boolean interior) {
+        Label end = new Label();
+        emitPart(Collections.singletonList(stmt), end, discard, interior);
+        code.mark(end);
+    }
+
+    /**
+     * Emits some of the statements of the body of main(), in the same way
+     * as emitMain(), given the label to jump to on a return statement.
+     */
+    void emitPart(List<Stmt> stmts, Label end, Label discard, boolean interior) {
+        frame = new Frame();
+        frame.end = end;
+        frame.discard = discard;
+        uncheckedSamples = interior;
+        for (Stmt s : stmts) {
+            stmt(s);
+        }
+        uncheckedSamples = false;
+        frame = null;
+    }
+
+    /**
+     * Returns the size of the bytecode of one of the statements of main(),
+     * which is emitted after the code so far (see JSWBytecodeOutliner).
+     */
+    int measure(Stmt stmt, boolean interior) {
+        int start = code.getSize();
+        emitMain(stmt, new Label(), interior);
+        return code.getSize() - start;
+    }
+
+    /**
+     * Emits the declaration of a variable, which is set to zero if it has
+     * no initializer.
+     */
+    void declare(VarDecl d) {
+        Variable var = d.getVariable();
+        if (var.isArray()) {
+            throw new RuntimeException("Arrays other than params are not supported " +
+                                       "by the bytecode backend ('" + var.getName() + "')");
+        }
+        Type t = var.getType();
+        Local local = locals.get(var);
+        if (local == null) {
+            local = newLocal(t.getBaseType(), t.getNumFields());
+            locals.put(var, local);
+        }
+        Expr init = d.getInit();
+        if (init != null) {
+            prepare(init);
+        }
+        for (int i = 0; i < t.getNumFields(); i++) {
+            if (init != null) {
+                emit(init, i, local.type);
+            } else {
+                pushZero(local.type);
+            }
+            store(local, i);
+        }
+    }
+
+    // statements
+
+    private void stmt(Stmt s) {
+        if (s == null) {
+            return;
+        } else if (s instanceof CompoundStmt) {
+            for (Stmt stmt : ((CompoundStmt)s).getStmts()) {
+                stmt(stmt);
+            }
+        } else if (s instanceof ExprStmt) {
+            exprStmt(((ExprStmt)s).getExpr());
+        } else if (s instanceof DeclStmt) {
+            for (VarDecl d : ((DeclStmt)s).getDecls()) {
+                declare(d);
+            }
+        } else if (s instanceof SelectStmt) {
+            SelectStmt ss = (SelectStmt)s;
+            Label otherwise = new Label();
+            prepare(ss.getIfExpr());
+            branch(ss.getIfExpr(), false, otherwise);
+            stmt(ss.getThenStmt());
+            if (ss.getElseStmt() != null) {
+                Label end = new Label();
+                code.jump(GOTO, end);
+                code.mark(otherwise);
+                stmt(ss.getElseStmt());
+                code.mark(end);
+            } else {
+                code.mark(otherwise);
+            }
+        } else if (s instanceof ForStmt) {
+            ForStmt fs = (ForStmt)s;
+            Label cond = new Label();
+            Label next = new Label();
+            Label end = new Label();
+            stmt(fs.getInit());
+            code.mark(cond);
+            if (fs.getCondition() != null) {
+                prepare(fs.getCondition());
+                branch(fs.getCondition(), false, end);
+            }
+            loopBody(fs.getStmt(), end, next);
+            code.mark(next);
+            if (fs.getExpr() != null) {
+                exprStmt(fs.getExpr());
+            }
+            code.jump(GOTO, cond);
+            code.mark(end);
+        } else if (s instanceof WhileStmt) {
+            WhileStmt ws = (WhileStmt)s;
+            Label cond = new Label();
+            Label end = new Label();
+            code.mark(cond);
+            prepare(ws.getCondition());
+            branch(ws.getCondition(), false, end);
+            loopBody(ws.getStmt(), end, cond);
+            code.jump(GOTO, cond);
+            code.mark(end);
+        } else if (s instanceof DoWhileStmt) {
+            DoWhileStmt ds = (DoWhileStmt)s;
+            Label body = new Label();
+            Label cond = new Label();
+            Label end = new Label();
+            code.mark(body);
+            loopBody(ds.getStmt(), end, cond);
+            code.mark(cond);
+            prepare(ds.getExpr());
+            branch(ds.getExpr(), true, body);
+            code.mark(end);
+        } else if (s instanceof ReturnStmt) {
+            Expr expr = ((ReturnStmt)s).getExpr();
+            if (expr != null) {
+                if (frame.result == null) {
+                    throw new RuntimeException("Return statement not expected");
+                }
+                prepare(expr);
+                for (int i = 0; i < frame.result.size; i++) {
+                    emit(expr, i, frame.result.type);
+                    store(frame.result, i);
+                }
+            }
+            code.jump(GOTO, frame.end);
+        } else if (s instanceof BreakStmt) {
+            code.jump(GOTO, frame.breaks.peek());
+        } else if (s instanceof ContinueStmt) {
+            code.jump(GOTO, frame.continues.peek());
+        } else if (s instanceof DiscardStmt) {
+            if (frame.discard == null) {
+                throw new RuntimeException("Discard statement not expected");
+            }
+            code.jump(GOTO, frame.discard);
+        } else {
+            throw new InternalError("Unexpected statement: " + s.getClass().getSimpleName());
+        }
+    }
+
+    private void loopBody(Stmt s, Label breakLabel, Label continueLabel) {
+        frame.breaks.push(breakLabel);
+        frame.continues.push(continueLabel);
+        stmt(s);
+        frame.breaks.pop();
+        frame.continues.pop();
+    }
+
+    private void exprStmt(Expr e) {
+        prepare(e);
+        Type t = e.getResultType();
+        if (t.getBaseType() == BaseType.VOID) {
+            // the call was made by prepare()
+            return;
+        }
+        for (int i = 0; i < t.getNumFields(); i++) {
+            Expr expr = strip(e);
+            if (isAssignment(expr)) {
+                assign(expr, i, false);
+            } else {
+                emitValue(expr, i);
+                code.insn(POP);
+            }
+        }
+    }
+
+    private static Expr strip(Expr e) {
+        while (e instanceof ParenExpr) {
+            e = ((ParenExpr)e).getExpr();
+        }
+        return e;
+    }
+
+    private static boolean isAssignment(Expr e) {
+        if (e instanceof BinaryExpr) {
+            return ((BinaryExpr)e).getOp().isAssignment() || isCompoundBitOp(((BinaryExpr)e).getOp());
+        } else if (e instanceof UnaryExpr) {
+            UnaryOpType op = ((UnaryExpr)e).getOp();
+            return op == UnaryOpType.INC || op == UnaryOpType.DEC;
+        }
+        return false;
+    }
+
+    private static boolean isCompoundBitOp(BinaryOpType op) {
+        return op == BinaryOpType.LSEQ || op == BinaryOpType.RSEQ ||
+               op == BinaryOpType.ANDEQ || op == BinaryOpType.OREQ ||
+               op == BinaryOpType.XOREQ;
+    }
+
+    // expressions
+
+    /**
+     * Pushes one component of the value of an expression, converted to
+     * the given type.
+     */
+    private void emit(Expr e, int i, BaseType type) {
+        convert(emitValue(e, i), type);
+    }
+
+    private void convert(BaseType from, BaseType to) {
+        if (from == BaseType.INT && to == BaseType.FLOAT) {
+            code.insn(I2F);
+        } else if (from == BaseType.FLOAT && to != BaseType.FLOAT) {
+            code.insn(F2I);
+        }
+    }
+
+    /**
+     * Pushes one component of the value of an expression (the only one,
+     * for a scalar), and returns its type.
+     */
+    private BaseType emitValue(Expr e, int i) {
+        Type t = e.getResultType();
+        if (!t.isVector()) {
+            i = 0;
+        }
+        if (e instanceof LiteralExpr) {
+            return literal(((LiteralExpr)e).getValue());
+        } else if (e instanceof VariableExpr) {
+            return emitVariable(((VariableExpr)e).getVariable(), i);
+        } else if (e instanceof ParenExpr) {
+            return emitValue(((ParenExpr)e).getExpr(), i);
+        } else if (e instanceof FieldSelectExpr) {
+            FieldSelectExpr fe = (FieldSelectExpr)e;
+            return emitValue(fe.getExpr(), getField(fe, i));
+        } else if (e instanceof ArrayAccessExpr) {
+            return arrayAccess((ArrayAccessExpr)e, i);
+        } else if (e instanceof VectorCtorExpr) {
+            List<Expr> params = ((VectorCtorExpr)e).getParams();
+            if (params.size() == 1 && !params.get(0).getResultType().isVector()) {
+                // a single scalar fills all of the components
+                return emitValue(params.get(0), 0);
+            }
+            int start = 0;
+            for (Expr param : params) {
+                int n = param.getResultType().getNumFields();
+                if (i < start + n) {
+                    return emitValue(param, i - start);
+                }
+                start += n;
+            }
+            throw new RuntimeException("Not enough values for " + t);
+        } else if (e instanceof UnaryExpr) {
+            UnaryExpr ue = (UnaryExpr)e;
+            switch (ue.getOp()) {
+                case PLUS:
+                    return emitValue(ue.getExpr(), i);
+                case MINUS: {
+                    BaseType type = emitValue(ue.getExpr(), i);
+                    code.insn((type == BaseType.FLOAT) ? FNEG : INEG);
+                    return type;
+                }
+                case NOT:
+                    return bool(e);
+                default:
+                    return assign(e, i, true);
+            }
+        } else if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            BinaryOpType op = be.getOp();
+            if (isAssignment(be)) {
+                return assign(e, i, true);
+            } else if (op.isRelational()) {
+                return bool(e);
+            }
+            BaseType type = t.getBaseType();
+            emit(be.getLeft(), i, type);
+            emit(be.getRight(), i, type);
+            code.insn(getOpcode(op, type));
+            return type;
+        } else if (e instanceof CallExpr) {
+            Local res = results.get(e);
+            if (res == null) {
+                throw new InternalError("Call not prepared: " + e);
+            }
+            load(res, i);
+            return res.type;
+        }
+        throw new InternalError("Unexpected expression: " + e.getClass().getSimpleName());
+    }
+
+    /**
+     * Pushes one component of the value of a variable (the only one, for
+     * a scalar), and returns its type.
+     */
+    BaseType emitVariable(Variable var, int i) {
+        if (var.getQualifier() == Qualifier.CONST && var.getConstValue() != null) {
+            BaseType type = literal(var.getConstValue());
+            if (var.getType().getBaseType() == BaseType.FLOAT) {
+                convert(type, BaseType.FLOAT);
+                return BaseType.FLOAT;
+            }
+            return type;
+        }
+        Local local = getLocal(var);
+        load(local, var.getType().isVector() ? i : 0);
+        return local.type;
+    }
+
+    private BaseType literal(Object value) {
+        if (value instanceof Float) {
+            code.floatInsn((Float)value);
+            return BaseType.FLOAT;
+        } else if (value instanceof Integer) {
+            code.intInsn((Integer)value);
+            return BaseType.INT;
+        } else if (value instanceof Boolean) {
+            code.intInsn(((Boolean)value) ? 1 : 0);
+            return BaseType.BOOL;
+        }
+        throw new InternalError("Unexpected constant: " + value);
+    }
+
+    private static int getField(FieldSelectExpr fe, int i) {
+        String fields = fe.getFields();
+        return getFieldIndex(fields.charAt((fields.length() == 1) ? 0 : i));
+    }
+
+    private BaseType arrayAccess(ArrayAccessExpr e, int i) {
+        Expr array = strip(e.getExpr());
+        Integer slot = (array instanceof VariableExpr) ?
+            arrays.get(((VariableExpr)array).getVariable()) : null;
+        if (slot == null) {
+            throw new RuntimeException("Array access is only supported for param arrays: " + e);
+        }
+        Type t = array.getResultType();
+        int numFields = t.getNumFields();
+        int field = t.isVector() ? i : 0;
+        code.varInsn(ALOAD, slot);
+        Expr index = strip(e.getIndex());
+        if (index instanceof LiteralExpr) {
+            // a constant index, e.g. in an unrolled loop
+            code.intInsn((Integer)((LiteralExpr)index).getValue() * numFields + field);
+        } else {
+            emit(index, 0, BaseType.INT);
+            if (numFields > 1) {
+                code.intInsn(numFields);
+                code.insn(IMUL);
+            }
+            if (field > 0) {
+                code.intInsn(field);
+                code.insn(IADD);
+            }
+        }
+        if (t.getBaseType() == BaseType.FLOAT) {
+            code.insn(FALOAD);
+            return BaseType.FLOAT;
+        } else if (t.getBaseType() == BaseType.INT) {
+            code.insn(IALOAD);
+            return BaseType.INT;
+        }
+        throw new RuntimeException("Arrays of " + t + " are not supported");
+    }
+
+    private static int getOpcode(BinaryOpType op, BaseType type) {
+        boolean f = (type == BaseType.FLOAT);
+        switch (op) {
+            case ADD: case ADDEQ: return f ? FADD : IADD;
+            case SUB: case SUBEQ: return f ? FSUB : ISUB;
+            case MUL: case MULEQ: return f ? FMUL : IMUL;
+            case DIV: case DIVEQ: return f ? FDIV : IDIV;
+            case MOD: case MODEQ: return f ? FREM : IREM;
+            default:
+                break;
+        }
+        if (!f) {
+            switch (op) {
+                case LSHFT: case LSEQ:  return ISHL;
+                case RSHFT: case RSEQ:  return ISHR;
+                case LAND:  case ANDEQ: return IAND;
+                case LOR:   case OREQ:  return IOR;
+                case LXOR:  case XOREQ: return IXOR;
+                default:
+                    break;
+            }
+        }
+        throw new RuntimeException("Operator " + op + " not supported for " + type + " values");
+    }
+
+    /**
+     * Emits an assignment (including the compound ones, ++ and --) to
+     * one component of a variable, and pushes the new value if
+     * {@code keep} is true.
+     */
+    private BaseType assign(Expr e, int i, boolean keep) {
+        Expr target;
+        if (e instanceof UnaryExpr) {
+            target = ((UnaryExpr)e).getExpr();
+        } else {
+            target = ((BinaryExpr)e).getLeft();
+        }
+        target = strip(target);
+        Local local;
+        int field;
+        if (target instanceof VariableExpr) {
+            local = getLocal(((VariableExpr)target).getVariable());
+            field = i;
+        } else if (target instanceof FieldSelectExpr &&
+                   strip(((FieldSelectExpr)target).getExpr()) instanceof VariableExpr)
+        {
+            FieldSelectExpr fe = (FieldSelectExpr)target;
+            local = getLocal(((VariableExpr)strip(fe.getExpr())).getVariable());
+            field = getField(fe, i);
+        } else {
+            throw new RuntimeException("Invalid assignment target: " + target);
+        }
+
+        if (e instanceof UnaryExpr) {
+            int op = (((UnaryExpr)e).getOp() == UnaryOpType.INC) ? 1 : -1;
+            if (local.type == BaseType.INT && !keep && local.frame < 0) {
+                code.iinc(local.slot + ((local.size > 1) ? field : 0), op);
+                return BaseType.INT;
+            }
+            load(local, field);
+            if (local.type == BaseType.FLOAT) {
+                code.floatInsn(1f);
+                code.insn((op > 0) ? FADD : FSUB);
+            } else {
+                code.intInsn(1);
+                code.insn((op > 0) ? IADD : ISUB);
+            }
+        } else {
+            BinaryExpr be = (BinaryExpr)e;
+            if (be.getOp() == BinaryOpType.EQ) {
+                emit(be.getRight(), i, local.type);
+            } else {
+                // as in Java, x op= y is computed in the wider of the types
+                BaseType type = (local.type == BaseType.FLOAT ||
+                                 be.getRight().getResultType().getBaseType() == BaseType.FLOAT) ?
+                    BaseType.FLOAT : BaseType.INT;
+                load(local, field);
+                convert(local.type, type);
+                emit(be.getRight(), i, type);
+                code.insn(getOpcode(be.getOp(), type));
+                convert(type, local.type);
+            }
+        }
+        if (keep) {
+            code.insn(DUP);
+        }
+        store(local, field);
+        return local.type;
+    }
+
+    /**
+     * Pushes the value of a boolean expression (as an int).
+     */
+    private BaseType bool(Expr e) {
+        Label no = new Label();
+        Label end = new Label();
+        branch(e, false, no);
+        code.intInsn(1);
+        code.jump(GOTO, end);
+        code.mark(no);
+        code.intInsn(0);
+        code.mark(end);
+        return BaseType.BOOL;
+    }
+
+    /**
+     * Jumps to the given label if the boolean expression has the value
+     * {@code when}.
+     */
+    private void branch(Expr e, boolean when, Label target) {
+        e = strip(e);
+        if (e instanceof LiteralExpr && ((LiteralExpr)e).getValue() instanceof Boolean) {
+            if ((Boolean)((LiteralExpr)e).getValue() == when) {
+                code.jump(GOTO, target);
+            }
+            return;
+        } else if (e instanceof UnaryExpr && ((UnaryExpr)e).getOp() == UnaryOpType.NOT) {
+            branch(((UnaryExpr)e).getExpr(), !when, target);
+            return;
+        } else if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            Expr left = be.getLeft();
+            Expr right = be.getRight();
+            BinaryOpType op = be.getOp();
+            if (op == BinaryOpType.AND || op == BinaryOpType.OR) {
+                // like && and || in Java, the right side is only evaluated
+                // when needed
+                if (when == (op == BinaryOpType.OR)) {
+                    branch(left, when, target);
+                    branch(right, when, target);
+                } else {
+                    Label skip = new Label();
+                    branch(left, !when, skip);
+                    branch(right, when, target);
+                    code.mark(skip);
+                }
+                return;
+            } else if (op == BinaryOpType.XOR) {
+                emit(left, 0, BaseType.BOOL);
+                emit(right, 0, BaseType.BOOL);
+                code.insn(IXOR);
+                code.jump(when ? IFNE : IFEQ, target);
+                return;
+            } else if (op.isRelational()) {
+                BaseType ltype = left.getResultType().getBaseType();
+                BaseType rtype = right.getResultType().getBaseType();
+                if (ltype != BaseType.BOOL && rtype != BaseType.BOOL &&
+                    (ltype == BaseType.FLOAT || rtype == BaseType.FLOAT))
+                {
+                    emit(left, 0, BaseType.FLOAT);
+                    emit(right, 0, BaseType.FLOAT);
+                    floatJump(op, when, target);
+                } else {
+                    emit(left, 0, BaseType.INT);
+                    emit(right, 0, BaseType.INT);
+                    intJump(op, when, target);
+                }
+                return;
+            }
+        }
+        emit(e, 0, BaseType.BOOL);
+        code.jump(when ? IFNE : IFEQ, target);
+    }
+
+    /**
+     * Compares the two floats on the stack and jumps to the given label if
+     * the result of the comparison is {@code when}, treating NaN in the
+     * same way as javac (where every comparison but != is false).
+     */
+    void floatJump(BinaryOpType op, boolean when, Label target) {
+        int jump;
+        switch (op) {
+            case LT:   jump = when ? IFLT : IFGE; break;
+            case LTEQ: jump = when ? IFLE : IFGT; break;
+            case GT:   jump = when ? IFGT : IFLE; break;
+            case GTEQ: jump = when ? IFGE : IFLT; break;
+            case EQEQ: jump = when ? IFEQ : IFNE; break;
+            case NEQ:  jump = when ? IFNE : IFEQ; break;
+            default:
+                throw new RuntimeException("Operator " + op + " not supported for float values");
+        }
+        code.insn((op == BinaryOpType.LT || op == BinaryOpType.LTEQ) ? FCMPG : FCMPL);
+        code.jump(jump, target);
+    }
+
+    void intJump(BinaryOpType op, boolean when, Label target) {
+        int jump;
+        switch (op) {
+            case LT:   jump = when ? IF_ICMPLT : IF_ICMPGE; break;
+            case LTEQ: jump = when ? IF_ICMPLE : IF_ICMPGT; break;
+            case GT:   jump = when ? IF_ICMPGT : IF_ICMPLE; break;
+            case GTEQ: jump = when ? IF_ICMPGE : IF_ICMPLT; break;
+            case EQEQ: jump = when ? IF_ICMPEQ : IF_ICMPNE; break;
+            case NEQ:  jump = when ? IF_ICMPNE : IF_ICMPEQ; break;
+            default:
+                throw new RuntimeException("Operator " + op + " not supported for int values");
+        }
+        code.jump(jump, target);
+    }
+
+    // variables
+
+    Local getLocal(Variable var) {
+        Local local;
+        if (var.isParam()) {
+            local = (frame != null) ? frame.params.get(var.getName()) : null;
+            if (local == null) {
+                throw new InternalError("Unknown function param: " + var.getName());
+            }
+            return local;
+        }
+        local = locals.get(var);
+        if (local == null) {
+            if (var.getQualifier() != null) {
+                throw new RuntimeException("Variable '" + var.getName() +
+                                           "' is not supported by the bytecode backend");
+            }
+            // a variable that was introduced without a declaration (which
+            // could only have been done by one of the optimization passes)
+            Type t = var.getType();
+            local = newLocal(t.getBaseType(), t.getNumFields());
+            locals.put(var, local);
+        }
+        return local;
+    }
+
+    private Sampler getSampler(Expr e) {
+        e = strip(e);
+        Variable var = ((VariableExpr)e).getVariable();
+        if (var.isParam()) {
+            var = frame.samplers.get(var.getName());
+        }
+        Sampler sampler = samplers.get(var.getReg());
+        if (sampler == null) {
+            throw new InternalError("Unknown sampler: " + var.getName());
+        }
+        return sampler;
+    }
+
+    // function calls
+
+    /**
+     * Makes the function calls of an expression, which are then read by
+     * emitValue() from the local variables that hold their results.  As
+     * in the Java code written by JSWCallScanner, this happens before the
+     * rest of the expression is evaluated.
+     */
+    private void prepare(Expr e) {
+        final List<CallExpr> calls = new ArrayList<CallExpr>();
+        new TreeScanner() {
+            @Override
+            public void visitCallExpr(CallExpr ce) {
+                // (the arguments are evaluated first, should any of them
+                // be a call that CallLifter didn't move out)
+                super.visitCallExpr(ce);
+                calls.add(ce);
+            }
+        }.scan(e);
+        for (CallExpr call : calls) {
+            Function func = call.getFunction();
+            results.put(call, func.isUserFunc() ? inline(call) : builtin(call));
+        }
+    }
+
+    private Local inline(CallExpr e) {
+        Function func = e.getFunction();
+        FuncDef def = funcDefs.get(func);
+        if (def == null) {
+            throw new RuntimeException("Function '" + func.getName() + "' is not defined");
+        }
+        Frame callee = new Frame();
+        List<Param> params = func.getParams();
+        List<Expr> args = e.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            Param param = params.get(i);
+            Type t = param.getType();
+            if (t.getBaseType() == BaseType.SAMPLER) {
+                Variable var = ((VariableExpr)strip(args.get(i))).getVariable();
+                if (var.isParam()) {
+                    var = frame.samplers.get(var.getName());
+                }
+                callee.samplers.put(param.getName(), var);
+            } else {
+                Local local = newLocal(t.getBaseType(), t.getNumFields());
+                for (int j = 0; j < t.getNumFields(); j++) {
+                    emit(args.get(i), j, local.type);
+                    store(local, j);
+                }
+                callee.params.put(param.getName(), local);
+            }
+        }
+        Type rtype = func.getReturnType();
+        if (rtype.getBaseType() != BaseType.VOID) {
+            callee.result = newLocal(rtype.getBaseType(), rtype.getNumFields());
+            for (int i = 0; i < rtype.getNumFields(); i++) {
+                pushZero(callee.result.type);
+                store(callee.result, i);
+            }
+        }
+        callee.end = new Label();
+        callee.discard = (frame != null) ? frame.discard : null;
+        Frame caller = frame;
+        frame = callee;
+        stmt(def.getStmt());
+        code.mark(callee.end);
+        frame = caller;
+        return callee.result;
+    }
+
+    private Local builtin(CallExpr e) {
+        Function func = e.getFunction();
+        String name = func.getName();
+        if (name.equals("sample")) {
+            return sample(e);
+        } else if (name.equals("ddx") || name.equals("ddy")) {
+            throw new RuntimeException(name + "() not implemented for sw backends");
+        }
+
+        // the arguments are evaluated into temporaries first, as in the
+        // x_tmp, y_tmp, ... variables of the Java code
+        List<Param> params = func.getParams();
+        List<Expr> args = e.getParams();
+        Local[] a = new Local[params.size()];
+        for (int i = 0; i < a.length; i++) {
+            Type t = params.get(i).getType();
+            a[i] = newLocal(t.getBaseType(), t.getNumFields());
+            for (int j = 0; j < t.getNumFields(); j++) {
+                emit(args.get(i), j, a[i].type);
+                store(a[i], j);
+            }
+        }
+        Type rtype = func.getReturnType();
+        Local res = newLocal(rtype.getBaseType(), rtype.getNumFields());
+        int n = params.get(0).getType().getNumFields();
+
+        switch (name) {
+            case "intcast":
+                load(a[0], 0);
+                code.insn(F2I);
+                store(res, 0);
+                return res;
+            case "any":
+                load(a[0], 0);
+                for (int i = 1; i < n; i++) {
+                    load(a[0], i);
+                    code.insn(IOR);
+                }
+                store(res, 0);
+                return res;
+            case "dot":
+                for (int i = 0; i < n; i++) {
+                    load(a[0], i);
+                    load(a[1], i);
+                    code.insn(FMUL);
+                    if (i > 0) {
+                        code.insn(FADD);
+                    }
+                }
+                store(res, 0);
+                return res;
+            case "distance":
+                for (int i = 0; i < n; i++) {
+                    load(a[0], i);
+                    load(a[1], i);
+                    code.insn(FSUB);
+                    load(a[0], i);
+                    load(a[1], i);
+                    code.insn(FSUB);
+                    code.insn(FMUL);
+                    if (i > 0) {
+                        code.insn(FADD);
+                    }
+                }
+                math("sqrt", 1);
+                store(res, 0);
+                return res;
+            case "length":
+                sumOfSquares(a[0], n);
+                math("sqrt", 1);
+                store(res, 0);
+                return res;
+            case "normalize": {
+                Local denom = newLocal(BaseType.FLOAT, 1);
+                if (n == 1) {
+                    load(a[0], 0);
+                } else {
+                    sumOfSquares(a[0], n);
+                    math("sqrt", 1);
+                }
+                store(denom, 0);
+                for (int i = 0; i < n; i++) {
+                    load(a[0], i);
+                    load(denom, 0);
+                    code.insn(FDIV);
+                    store(res, i);
+                }
+                return res;
+            }
+            default:
+                break;
+        }
+
+        for (int i = 0; i < rtype.getNumFields(); i++) {
+            Local x = a[0];
+            Local y = (a.length > 1) ? a[1] : null;
+            Local z = (a.length > 2) ? a[2] : null;
+            switch (name) {
+                case "min":
+                    select(x, i, BinaryOpType.LT, y, x, y);
+                    break;
+                case "max":
+                    select(x, i, BinaryOpType.GT, y, x, y);
+                    break;
+                case "mod":
+                    load(x, i);
+                    load(y, i);
+                    code.insn(FREM);
+                    break;
+                case "clamp": {
+                    // (val < min) ? min : (val > max) ? max : val
+                    Label notBelow = new Label();
+                    Label end = new Label();
+                    load(x, i);
+                    load(y, i);
+                    floatJump(BinaryOpType.LT, false, notBelow);
+                    load(y, i);
+                    code.jump(GOTO, end);
+                    code.mark(notBelow);
+                    select(x, i, BinaryOpType.GT, z, z, x);
+                    code.mark(end);
+                    break;
+                }
+                case "smoothstep": {
+                    // (val < min) ? 0 : (val > max) ? 1 : val / (max - min)
+                    Label notBelow = new Label();
+                    Label notAbove = new Label();
+                    Label end = new Label();
+                    load(z, i);
+                    load(x, i);
+                    floatJump(BinaryOpType.LT, false, notBelow);
+                    code.floatInsn(0f);
+                    code.jump(GOTO, end);
+                    code.mark(notBelow);
+                    load(z, i);
+                    load(y, i);
+                    floatJump(BinaryOpType.GT, false, notAbove);
+                    code.floatInsn(1f);
+                    code.jump(GOTO, end);
+                    code.mark(notAbove);
+                    load(z, i);
+                    load(y, i);
+                    load(x, i);
+                    code.insn(FSUB);
+                    code.insn(FDIV);
+                    code.mark(end);
+                    break;
+                }
+                case "mix":
+                    // x * (1 - a) + y * a
+                    load(x, i);
+                    code.floatInsn(1f);
+                    load(z, i);
+                    code.insn(FSUB);
+                    code.insn(FMUL);
+                    load(y, i);
+                    load(z, i);
+                    code.insn(FMUL);
+                    code.insn(FADD);
+                    break;
+                case "abs":
+                    load(x, i);
+                    code.methodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(F)F");
+                    break;
+                case "sign":
+                    load(x, i);
+                    code.methodInsn(INVOKESTATIC, "java/lang/Math", "signum", "(F)F");
+                    break;
+                case "fract":
+                    load(x, i);
+                    load(x, i);
+                    math("floor", 1);
+                    code.insn(FSUB);
+                    break;
+                case "floor":
+                case "ceil":
+                case "sqrt":
+                case "sin":
+                case "cos":
+                case "tan":
+                    load(x, i);
+                    math(name, 1);
+                    break;
+                case "pow":
+                    load(x, i);
+                    code.insn(F2D);
+                    load(y, i);
+                    math("pow", 2);
+                    break;
+                case "fma":
+                    load(x, i);
+                    load(y, i);
+                    load(z, i);
+                    code.methodInsn(INVOKESTATIC, "java/lang/Math", "fma", "(FFF)F");
+                    break;
+                default:
+                    throw new InternalError("Core function not found: " + name);
+            }
+            store(res, i);
+        }
+        return res;
+    }
+
+    /**
+     * Pushes {@code (a OP b) ? yes : no}, for one component of each.
+     */
+    private void select(Local a, int i, BinaryOpType op, Local b, Local yes, Local no) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        load(a, i);
+        load(b, i);
+        floatJump(op, false, otherwise);
+        load(yes, i);
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        load(no, i);
+        code.mark(end);
+    }
+
+    private void sumOfSquares(Local x, int n) {
+        for (int i = 0; i < n; i++) {
+            load(x, i);
+            load(x, i);
+            code.insn(FMUL);
+            if (i > 0) {
+                code.insn(FADD);
+            }
+        }
+    }
+
+    /**
+     * Calls one of the double methods of Math on the float(s) on the
+     * stack (only the last of which is yet to be widened), as in
+     * {@code (float)Math.sqrt(x)}.
+     */
+    private void math(String name, int numArgs) {
+        code.insn(F2D);
+        code.methodInsn(INVOKESTATIC, "java/lang/Math", name,
+                        (numArgs == 1) ? "(D)D" : "(DD)D");
+        code.insn(D2F);
+    }
+
+    private Local sample(CallExpr e) {
+        List<Expr> args = e.getParams();
+        Sampler s = getSampler(args.get(0));
+        Local loc = newLocal(BaseType.FLOAT, 2);
+        for (int i = 0; i < 2; i++) {
+            emit(args.get(1), i, BaseType.FLOAT);
+            store(loc, i);
+        }
+        Local res = newLocal(BaseType.FLOAT, 4);
+
+        if (s.type != Types.SAMPLER) {
+            code.varInsn(ALOAD, s.pixels);
+            load(loc, 0);
+            load(loc, 1);
+            code.varInsn(ILOAD, s.w);
+            code.varInsn(ILOAD, s.h);
+            code.varInsn(ILOAD, s.scan);
+            code.varInsn(ALOAD, s.vals);
+            if (s.type == Types.LSAMPLER) {
+                code.methodInsn(INVOKESTATIC, className, "lsample", "([IFFIII[F)V");
+            } else {
+                code.methodInsn(INVOKESTATIC, className, "fsample", "([FFFIII[F)V");
+            }
+            for (int i = 0; i < 4; i++) {
+                code.varInsn(ALOAD, s.vals);
+                code.intInsn(i);
+                code.insn(FALOAD);
+                store(res, i);
+            }
+            return res;
+        }
+
+        Local pixel = newLocal(BaseType.INT, 1);
+        if (uncheckedSamples && sampleFinder.match(args) != null) {
+            // the location is known to be inside the image
+            code.varInsn(ALOAD, s.pixels);
+            scale(loc, 1, s.h);
+            code.varInsn(ILOAD, s.scan);
+            code.insn(IMUL);
+            scale(loc, 0, s.w);
+            code.insn(IADD);
+            code.insn(IALOAD);
+            store(pixel, 0);
+        } else {
+            Label out = new Label();
+            Label end = new Label();
+            Local iloc = newLocal(BaseType.INT, 2);
+            load(loc, 0);
+            code.floatInsn(0f);
+            floatJump(BinaryOpType.GTEQ, false, out);
+            load(loc, 1);
+            code.floatInsn(0f);
+            floatJump(BinaryOpType.GTEQ, false, out);
+            scale(loc, 0, s.w);
+            store(iloc, 0);
+            scale(loc, 1, s.h);
+            store(iloc, 1);
+            load(iloc, 0);
+            code.varInsn(ILOAD, s.w);
+            intJump(BinaryOpType.GTEQ, true, out);
+            load(iloc, 1);
+            code.varInsn(ILOAD, s.h);
+            intJump(BinaryOpType.GTEQ, true, out);
+            code.varInsn(ALOAD, s.pixels);
+            load(iloc, 1);
+            code.varInsn(ILOAD, s.scan);
+            code.insn(IMUL);
+            load(iloc, 0);
+            code.insn(IADD);
+            code.insn(IALOAD);
+            store(pixel, 0);
+            code.jump(GOTO, end);
+            code.mark(out);
+            code.intInsn(0);
+            store(pixel, 0);
+            code.mark(end);
+        }
+
+        // the channels are looked up in UNPACK (which holds i / 255f)
+        for (int i = 0; i < 4; i++) {
+            code.varInsn(ALOAD, unpack);
+            load(pixel, 0);
+            if (i < 3) {
+                if (i < 2) {
+                    code.intInsn((i == 0) ? 16 : 8);
+                    code.insn(ISHR);
+                }
+                code.intInsn(0xff);
+                code.insn(IAND);
+            } else {
+                code.intInsn(24);
+                code.insn(IUSHR);
+            }
+            code.insn(FALOAD);
+            store(res, i);
+        }
+        return res;
+    }
+
+    /**
+     * Pushes {@code (int)(loc*size)} for one component of the location.
+     */
+    private void scale(Local loc, int i, int size) {
+        load(loc, i);
+        code.varInsn(ILOAD, size);
+        code.insn(I2F);
+        code.insn(FMUL);
+        code.insn(F2I);
+    }
+}
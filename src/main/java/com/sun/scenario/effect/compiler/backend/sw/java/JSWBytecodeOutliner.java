@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.Code;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBytecodeEmitter.Local;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBytecodeEmitter.Sampler;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.CallExpr;
+import com.sun.scenario.effect.compiler.tree.CompoundStmt;
+import com.sun.scenario.effect.compiler.tree.DiscardStmt;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.InteriorSampleFinder;
+import com.sun.scenario.effect.compiler.tree.ReturnStmt;
+import com.sun.scenario.effect.compiler.tree.Stmt;
+import com.sun.scenario.effect.compiler.tree.Tree;
+import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import com.sun.scenario.effect.compiler.tree.VariableExpr;
+
+import static com.sun.scenario.effect.compiler.backend.sw.java.ClassFileWriter.*;
+
+/**
+ * Moves the body of the per-pixel loop of a peer generated by
+ * JSWBytecodeBackend into private static methods, in the same way as
+ * JSWOutliner does for the source written by JSWBackend.
+ *
+ * The statements of main() are taken in order, and a block that doesn't
+ * fit in the current part is split between parts; the size of each
+ * statement is found by emitting it with a scratch emitter.  The locals of
+ * main() that are used in more than one part, color, and the globals of
+ * the program live in the frame_f and frame_i arrays (booleans are kept as
+ * ints), which the peer allocates once and passes to each part along with
+ * the samplers, params, invariants and positions it reads.  A part that
+ * has a return or discard statement returns whether it ended main(), so
+ * that the caller can skip the parts after it.
+ */
+class JSWBytecodeOutliner {
+
+    private static final int CONTINUE = 0;
+    private static final int RETURNED = 1;
+    private static final int DISCARDED = 2;
+
+    private final Map<Function, FuncDef> funcDefs;
+    private final InteriorSampleFinder sampleFinder;
+    private final Variable color;
+    private final String prefix;
+    private final boolean interior;
+
+    // filled in by outline()
+    private final List<List<Stmt>> parts = new ArrayList<>();
+    private final List<Set<Variable>> partInputs = new ArrayList<>();
+    private final List<Boolean> partStatus = new ArrayList<>();
+    private final Map<Variable, Integer> frameSlots = new LinkedHashMap<>();
+    private final int[] frameSizes = new int[2];
+    private int partSize;
+
+    // filled in by emit()
+    private final List<String> helperNames = new ArrayList<>();
+    private final List<Integer> helperSizes = new ArrayList<>();
+
+    JSWBytecodeOutliner(Map<Function, FuncDef> funcDefs, InteriorSampleFinder sampleFinder,
+                        Variable color, String prefix, boolean interior)
+    {
+        this.funcDefs = funcDefs;
+        this.sampleFinder = sampleFinder;
+        this.color = color;
+        this.prefix = prefix;
+        this.interior = interior;
+    }
+
+    static String getFrameName(BaseType bt) {
+        return (bt == BaseType.FLOAT) ? "frame_f" : "frame_i";
+    }
+
+    private static int getFrameIndex(BaseType bt) {
+        return (bt == BaseType.FLOAT) ? 0 : 1;
+    }
+
+    private static BaseType getLocalType(BaseType bt) {
+        return (bt == BaseType.FLOAT) ? BaseType.FLOAT : BaseType.INT;
+    }
+
+    /**
+     * Splits the given body of main(), measuring its statements with the
+     * given emitter, which must know all of the samplers, params,
+     * invariants and positions of the program.  The given declarations of
+     * the globals of the program are made by the caller, before the first
+     * part.
+     */
+    void outline(List<VarDecl> globals, Set<Variable> invariants, Stmt main,
+                 JSWBytecodeEmitter scratch)
+    {
+        parts.add(new ArrayList<Stmt>());
+        partSize = 0;
+        plan(main, scratch);
+
+        // the locals that are used by more than one part, color, and the
+        // globals go in the frame
+        Set<Variable> locals = new HashSet<>();
+        collectLocals(main, locals);
+        List<Set<Variable>> partVars = new ArrayList<>();
+        Map<Variable, Integer> numParts = new LinkedHashMap<>();
+        for (List<Stmt> part : parts) {
+            Set<Variable> vars = new LinkedHashSet<>();
+            Set<Variable> declared = new HashSet<>();
+            Set<String> funcs = new HashSet<>();
+            for (Stmt s : part) {
+                collectVars(s, vars, declared, funcs);
+            }
+            vars.removeAll(declared);
+            for (Variable v : locals) {
+                if (declared.contains(v)) {
+                    // a local of main() is declared by the part itself
+                    vars.add(v);
+                }
+            }
+            for (Variable v : vars) {
+                Integer n = numParts.get(v);
+                numParts.put(v, (n == null) ? 1 : n + 1);
+            }
+            partVars.add(vars);
+            partStatus.add(endsMain(part));
+        }
+        Set<Variable> globalVars = new HashSet<>();
+        for (VarDecl d : globals) {
+            globalVars.add(d.getVariable());
+        }
+        addFrameSlot(color);
+        for (Map.Entry<Variable, Integer> e : numParts.entrySet()) {
+            Variable v = e.getKey();
+            if (globalVars.contains(v) ||
+                (!isInput(v, invariants) && e.getValue() > 1))
+            {
+                addFrameSlot(v);
+            }
+        }
+        for (Set<Variable> vars : partVars) {
+            Set<Variable> inputs = new LinkedHashSet<>();
+            for (Variable v : vars) {
+                if (isInput(v, invariants) && !frameSlots.containsKey(v)) {
+                    inputs.add(v);
+                }
+            }
+            partInputs.add(inputs);
+        }
+    }
+
+    private void addFrameSlot(Variable v) {
+        if (!frameSlots.containsKey(v)) {
+            int i = getFrameIndex(v.getType().getBaseType());
+            frameSlots.put(v, frameSizes[i]);
+            frameSizes[i] += v.getType().getNumFields();
+        }
+    }
+
+    /**
+     * Returns true if the variable is held by filter() for the whole loop
+     * (a param, position or invariant), so that a part only reads it.
+     */
+    private static boolean isInput(Variable v, Set<Variable> invariants) {
+        return (v.getQualifier() != null && v.getConstValue() == null) ||
+            invariants.contains(v);
+    }
+
+    /**
+     * Returns the number of elements of the frame array for the given
+     * base type (see getFrameName()).
+     */
+    int getFrameSize(BaseType bt) {
+        return frameSizes[getFrameIndex(bt)];
+    }
+
+    List<String> getHelperNames() {
+        return helperNames;
+    }
+
+    List<Integer> getHelperSizes() {
+        return helperSizes;
+    }
+
+    /**
+     * Returns the size of the bytecode of a statement of main(), measured
+     * with the given emitter.  The code of a block is just the code of its
+     * statements, so they are measured one by one (which also keeps the
+     * jumps in the scratch code short).
+     */
+    static int measure(Stmt s, JSWBytecodeEmitter scratch, boolean interior) {
+        if (s instanceof CompoundStmt) {
+            int size = 0;
+            for (Stmt child : ((CompoundStmt)s).getStmts()) {
+                size += measure(child, scratch, interior);
+            }
+            return size;
+        }
+        return scratch.measure(s, interior);
+    }
+
+    private void plan(Stmt s, JSWBytecodeEmitter scratch) {
+        int size = measure(s, scratch, interior);
+        if (partSize + size <= JSWOutliner.PART_BUDGET) {
+            parts.get(parts.size() - 1).add(s);
+            partSize += size;
+        } else if (s instanceof CompoundStmt) {
+            for (Stmt child : ((CompoundStmt)s).getStmts()) {
+                plan(child, scratch);
+            }
+        } else {
+            // a single statement that doesn't fit on its own still gets a
+            // part of its own (JSWBytecodeBackend warns if it is too big)
+            if (partSize > 0) {
+                parts.add(new ArrayList<Stmt>());
+            }
+            parts.get(parts.size() - 1).add(s);
+            partSize = size;
+        }
+    }
+
+    /**
+     * Adds the parts to the class, and emits the code of filter() that
+     * calls them for one pixel, in place of the body of main(): the color
+     * and the globals are set in the frame first, and the color is copied
+     * out of it at the end, unless the pixel is discarded.  The frame
+     * arrays are held by the given local variables of filter().
+     */
+    void emit(ClassFileWriter cw, String className, Code code, JSWBytecodeEmitter emitter,
+              int[] frameArrays, Local colorLocal, List<VarDecl> globals, Label discard)
+    {
+        for (Map.Entry<Variable, Integer> e : frameSlots.entrySet()) {
+            emitter.setLocal(e.getKey(), getFrameLocal(e.getKey(), e.getValue(), frameArrays));
+        }
+        Local frameColor = emitter.getLocal(color);
+        for (int i = 0; i < 4; i++) {
+            code.floatInsn(0f);
+            emitter.store(frameColor, i);
+        }
+        for (VarDecl d : globals) {
+            emitter.declare(d);
+        }
+
+        Label end = new Label();
+        Local status = null;
+        for (int i = 0; i < parts.size(); i++) {
+            String name = prefix + i;
+            String desc = addPart(cw, className, name, i);
+            Set<Variable> inputs = partInputs.get(i);
+            for (Variable v : inputs) {
+                Type t = v.getType();
+                if (t.getBaseType() == BaseType.SAMPLER) {
+                    Sampler s = emitter.getSampler(v.getReg());
+                    code.varInsn(ALOAD, s.pixels);
+                    code.varInsn(ILOAD, s.w);
+                    code.varInsn(ILOAD, s.h);
+                    code.varInsn(ILOAD, s.scan);
+                    if (s.vals >= 0) {
+                        code.varInsn(ALOAD, s.vals);
+                    }
+                } else if (v.isArray()) {
+                    code.varInsn(ALOAD, emitter.getArray(v));
+                } else {
+                    Local local = emitter.getLocal(v);
+                    for (int j = 0; j < t.getNumFields(); j++) {
+                        emitter.load(local, j);
+                    }
+                }
+            }
+            if (usesUnpack(inputs)) {
+                code.varInsn(ALOAD, emitter.getUnpack());
+            }
+            for (int f = 0; f < frameSizes.length; f++) {
+                if (frameSizes[f] > 0) {
+                    code.varInsn(ALOAD, frameArrays[f]);
+                }
+            }
+            code.methodInsn(INVOKESTATIC, className, name, desc);
+            if (partStatus.get(i)) {
+                // if (status != CONTINUE) { skip the rest of main(), or
+                // the whole pixel }
+                if (status == null) {
+                    status = emitter.newLocal(BaseType.INT, 1);
+                }
+                Label next = new Label();
+                emitter.store(status, 0);
+                emitter.load(status, 0);
+                code.jump(IFEQ, next);
+                emitter.load(status, 0);
+                code.intInsn(RETURNED);
+                code.jump(IF_ICMPEQ, end);
+                code.jump(GOTO, discard);
+                code.mark(next);
+            }
+        }
+        code.mark(end);
+        for (int i = 0; i < 4; i++) {
+            emitter.load(frameColor, i);
+            emitter.store(colorLocal, i);
+        }
+    }
+
+    private Local getFrameLocal(Variable v, int index, int[] frameArrays) {
+        BaseType bt = v.getType().getBaseType();
+        return new Local(getLocalType(bt), frameArrays[getFrameIndex(bt)],
+                         index, v.getType().getNumFields());
+    }
+
+    /**
+     * Adds one part to the class, and returns its descriptor.
+     */
+    private String addPart(ClassFileWriter cw, String className, String name, int index) {
+        Set<Variable> inputs = partInputs.get(index);
+        StringBuilder args = new StringBuilder();
+        for (Variable v : inputs) {
+            args.append(getDescriptor(v));
+        }
+        if (usesUnpack(inputs)) {
+            args.append("[F");
+        }
+        for (int f = 0; f < frameSizes.length; f++) {
+            if (frameSizes[f] > 0) {
+                args.append((f == 0) ? "[F" : "[I");
+            }
+        }
+        boolean status = partStatus.get(index);
+        String desc = "(" + args + ")" + (status ? "I" : "V");
+        Code code = cw.addMethod(ACC_PRIVATE | ACC_STATIC, name, desc);
+        JSWBytecodeEmitter emitter = new JSWBytecodeEmitter(code, className, funcDefs, sampleFinder);
+
+        // the args take the first slots, in order
+        int slot = 0;
+        for (Variable v : inputs) {
+            Type t = v.getType();
+            if (t.getBaseType() == BaseType.SAMPLER) {
+                int vals = (t == Types.SAMPLER) ? -1 : slot + 4;
+                emitter.setSampler(v.getReg(),
+                                   new Sampler(t, slot, slot + 1, slot + 2, slot + 3, vals));
+            } else if (v.isArray()) {
+                emitter.setArray(v, slot);
+            } else {
+                emitter.setLocal(v, new Local(getLocalType(t.getBaseType()), slot,
+                                              t.getNumFields()));
+            }
+            slot += getArgsSize("(" + getDescriptor(v) + ")V");
+        }
+        if (usesUnpack(inputs)) {
+            emitter.setUnpack(slot++);
+        }
+        int[] frameArrays = new int[frameSizes.length];
+        for (int f = 0; f < frameSizes.length; f++) {
+            if (frameSizes[f] > 0) {
+                frameArrays[f] = slot++;
+            }
+        }
+        for (Map.Entry<Variable, Integer> e : frameSlots.entrySet()) {
+            emitter.setLocal(e.getKey(), getFrameLocal(e.getKey(), e.getValue(), frameArrays));
+        }
+
+        Label end = new Label();
+        Label discard = new Label();
+        emitter.emitPart(parts.get(index), end, discard, interior);
+        if (status) {
+            code.intInsn(CONTINUE);
+            code.insn(IRETURN);
+            code.mark(end);
+            code.intInsn(RETURNED);
+            code.insn(IRETURN);
+            code.mark(discard);
+            code.intInsn(DISCARDED);
+            code.insn(IRETURN);
+        } else {
+            code.mark(end);
+            code.insn(RETURN);
+        }
+        helperNames.add(name);
+        helperSizes.add(code.getSize());
+        code.end();
+        return desc;
+    }
+
+    private static boolean usesUnpack(Set<Variable> inputs) {
+        for (Variable v : inputs) {
+            if (v.getType() == Types.SAMPLER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the descriptors of the values that are passed to a part for
+     * the given variable, as they are held by filter().
+     */
+    private static String getDescriptor(Variable v) {
+        Type t = v.getType();
+        BaseType bt = t.getBaseType();
+        if (bt == BaseType.SAMPLER) {
+            String desc = ((t == Types.FSAMPLER) ? "[F" : "[I") + "III";
+            return (t == Types.SAMPLER) ? desc : desc + "[F";
+        } else if (v.isArray()) {
+            return (bt == BaseType.FLOAT) ? "[F" : "[I";
+        }
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < t.getNumFields(); i++) {
+            desc.append((bt == BaseType.FLOAT) ? 'F' : 'I');
+        }
+        return desc.toString();
+    }
+
+    /**
+     * Returns true if the given statements may end main() before its end,
+     * with a return statement of main() or a discard statement.
+     */
+    private boolean endsMain(List<Stmt> stmts) {
+        final boolean[] ends = new boolean[1];
+        final Set<String> funcs = new HashSet<>();
+        TreeScanner scanner = new TreeScanner() {
+            private int depth;
+            @Override
+            public void visitReturnStmt(ReturnStmt s) {
+                if (depth == 0) {
+                    ends[0] = true;
+                }
+            }
+            @Override
+            public void visitDiscardStmt(DiscardStmt s) {
+                ends[0] = true;
+            }
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                super.visitCallExpr(e);
+                FuncDef def = funcDefs.get(e.getFunction());
+                if (def != null && funcs.add(e.getFunction().getName())) {
+                    depth++;
+                    scan(def.getStmt());
+                    depth--;
+                }
+            }
+        };
+        for (Stmt s : stmts) {
+            scanner.scan(s);
+        }
+        return ends[0];
+    }
+
+    private static void collectLocals(Tree tree, final Set<Variable> locals) {
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                locals.add(d.getVariable());
+                super.visitVarDecl(d);
+            }
+        }.scan(tree);
+    }
+
+    /**
+     * Collects the variables referenced by the given tree, and by the
+     * bodies of the functions that it calls (which are inlined), along with
+     * the ones that are declared there.
+     */
+    private void collectVars(Tree tree, final Set<Variable> vars,
+                             final Set<Variable> declared, final Set<String> funcs)
+    {
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                declared.add(d.getVariable());
+                super.visitVarDecl(d);
+            }
+            @Override
+            public void visitVariableExpr(VariableExpr e) {
+                Variable v = e.getVariable();
+                if (!v.isParam()) {
+                    vars.add(v);
+                }
+            }
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                super.visitCallExpr(e);
+                FuncDef def = funcDefs.get(e.getFunction());
+                if (def != null && funcs.add(e.getFunction().getName())) {
+                    collectVars(def.getStmt(), vars, declared, funcs);
+                }
+            }
+        }.scan(tree);
+    }
+}
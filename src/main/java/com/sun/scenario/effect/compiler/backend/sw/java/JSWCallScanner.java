@@ -25,6 +25,7 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.java;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -101,9 +102,9 @@ import static com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend.*;
  *         float pos_y_tmp = pos_y + off_y;
  *         int baseImg_tmp =
  *             baseImg[(int)(pos_y_tmp*srch*srcscan) + (int)(pos_x_tmp*srcw)];
- *         sample_res_r = (((baseImg_tmp >>  16) & 0xff) / 255f);
- *         sample_res_g = (((baseImg_tmp >>   8) & 0xff) / 255f);
- *         sample_res_b = (((baseImg_tmp       ) & 0xff) / 255f);
+ *         sample_res_r = UNPACK[(baseImg_tmp >>  16) & 0xff];
+ *         sample_res_g = UNPACK[(baseImg_tmp >>   8) & 0xff];
+ *         sample_res_b = UNPACK[(baseImg_tmp       ) & 0xff];
  *     }
  *     float val_r = scale * sample_res_r;
  *     float val_g = scale * sample_res_g;
@@ -124,6 +125,7 @@ import static com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend.*;
  *     float val = scale * clamp_res;
  */
 class JSWCallScanner extends TreeScanner {
+    private final JSWBackend backend;
     private StringBuilder sb;
     private boolean inCallExpr = false;
     private Set<Integer> selectedFields = null;
@@ -132,6 +134,10 @@ class JSWCallScanner extends TreeScanner {
     private boolean inVectorOp = false;
     private int vectorIndex = 0;
 
+    JSWCallScanner(JSWBackend backend) {
+        this.backend = backend;
+    }
+
     private void output(String s) {
         if (sb == null) {
             sb = new StringBuilder();
@@ -146,7 +152,8 @@ class JSWCallScanner extends TreeScanner {
     @Override
     public void visitCallExpr(CallExpr e) {
         if (inCallExpr) {
-            throw new InternalError("Nested function calls not yet supported");
+            // these are moved out of the statement by CallLifter
+            throw new InternalError("Nested function calls not supported");
         }
 
         Function func = e.getFunction();
@@ -162,29 +169,30 @@ class JSWCallScanner extends TreeScanner {
                 }
             }
         }
-        if (!JSWBackend.isResultVarDeclared(vname)) {
-            // only declare result variables if they haven't been already
-            // TODO: there's a bug here; suppose a function like
-            // min(float,float) is inlined, then later we inline
-            // min(float3,float3), the second time we'll think we already have
-            // declared the result variables, but min_res_y/z won't be there...
-            JSWBackend.declareResultVar(vname);
-            if (t.isVector()) {
-                output(vtype + " ");
-                boolean first = true;
-                for (Integer f : fields) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        output(", ");
-                    }
-                    output(vname + "_res" + getSuffix(f));
-                }
-                output(";\n");
-            } else {
-                output(vtype + " " + vname + "_res;\n");
+        // only declare the result variables that haven't been already (the
+        // same function may be called with a different number of components,
+        // e.g. min(float,float) and min(float3,float3), or with a different
+        // field selection)
+        List<String> rnames = new ArrayList<String>();
+        if (t.isVector()) {
+            for (Integer f : fields) {
+                rnames.add(vname + "_res" + getSuffix(f));
+            }
+        } else {
+            rnames.add(vname + "_res");
+        }
+        boolean first = true;
+        for (String rname : rnames) {
+            if (!backend.isResultVarDeclared(rname)) {
+                backend.declareResultVar(rname);
+                output(first ? vtype + " " : ", ");
+                output(rname);
+                first = false;
             }
         }
+        if (!first) {
+            output(";\n");
+        }
 
         inCallExpr = true;
         output("{\n");
@@ -220,6 +228,9 @@ class JSWCallScanner extends TreeScanner {
         }
 
         FuncImpl impl = JSWFuncImpls.get(func);
+        if (backend.isUncheckedSample(argExprs)) {
+            impl = JSWFuncImpls.getUnchecked(func);
+        }
         if (impl != null) {
             // core (built-in) function
             String preamble = impl.getPreamble(argExprs);
@@ -240,8 +251,8 @@ class JSWCallScanner extends TreeScanner {
             }
         } else {
             // user-defined function
-            JSWTreeScanner scanner = new JSWTreeScanner(func.getName());
-            scanner.scan(JSWBackend.getFuncDef(func.getName()).getStmt());
+            JSWTreeScanner scanner = new JSWTreeScanner(backend, func.getName());
+            scanner.scan(backend.getFuncDef(func.getName()).getStmt());
             output(scanner.getResult());
         }
 
@@ -253,14 +264,22 @@ class JSWCallScanner extends TreeScanner {
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         if (inCallExpr) {
             if (e.getExpr() instanceof VariableExpr &&
-                e.getIndex() instanceof VariableExpr)
+                (e.getIndex() instanceof VariableExpr ||
+                 e.getIndex() instanceof LiteralExpr))
             {
                 VariableExpr ve = (VariableExpr)e.getExpr();
-                VariableExpr ie = (VariableExpr)e.getIndex();
+                int numFields = ve.getVariable().getType().getNumFields();
+                int field = getFieldIndex(selectedField);
                 output(ve.getVariable().getName());
-                output("_arr[" + ie.getVariable().getName());
-                output(" * " + ve.getVariable().getType().getNumFields());
-                output(" + " + getFieldIndex(selectedField) + "]");
+                if (e.getIndex() instanceof LiteralExpr) {
+                    // a constant index, e.g. in an unrolled loop
+                    int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                    output("_arr[" + (index * numFields + field) + "]");
+                } else {
+                    output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                    output(" * " + numFields);
+                    output(" + " + field + "]");
+                }
             } else {
                 throw new InternalError("Array access only supports variable expr/index (for now)");
             }
@@ -344,19 +363,28 @@ class JSWCallScanner extends TreeScanner {
     public void visitVariableExpr(VariableExpr e) {
         if (inCallExpr) {
             Variable var = e.getVariable();
-            output(var.getName());
-            if (var.isParam()) {
-                output("_tmp");
-            }
+            int field = 0;
             if (var.getType().isVector()) {
                 if (inFieldSelect) {
-                    output(getSuffix(getFieldIndex(selectedField)));
+                    field = getFieldIndex(selectedField);
                 } else if (inVectorOp) {
-                    output(getSuffix(vectorIndex));
+                    field = vectorIndex;
                 } else {
                     throw new InternalError("TBD");
                 }
             }
+            String ref = backend.getFrameRef(var, field);
+            if (ref != null) {
+                output(ref);
+                return;
+            }
+            output(var.getName());
+            if (var.isParam()) {
+                output("_tmp");
+            }
+            if (var.getType().isVector()) {
+                output(getSuffix(field));
+            }
         } else {
             super.visitVariableExpr(e);
         }
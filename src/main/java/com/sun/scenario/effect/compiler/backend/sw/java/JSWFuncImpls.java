@@ -44,20 +44,31 @@ import static com.sun.scenario.effect.compiler.model.Types.*;
 class JSWFuncImpls {
 
     private static Map<Function, FuncImpl> funcs = new HashMap<Function, FuncImpl>();
+    private static Map<Function, FuncImpl> uncheckedFuncs = new HashMap<Function, FuncImpl>();
 
     static FuncImpl get(Function func) {
         return funcs.get(func);
     }
 
+    /**
+     * Returns the implementation to use where the location passed to
+     * sample() is known to be inside the image (see
+     * JSWBackend.isUncheckedSample()), or null if the function has none.
+     */
+    static FuncImpl getUnchecked(Function func) {
+        return uncheckedFuncs.get(func);
+    }
+
     static {
         // float4 sample(sampler s, float2 loc)
-        declareFunctionSample(SAMPLER);
+        declareFunctionSample(SAMPLER, false);
+        declareFunctionSample(SAMPLER, true);
 
         // float4 sample(lsampler s, float2 loc)
-        declareFunctionSample(LSAMPLER);
+        declareFunctionSample(LSAMPLER, false);
 
         // float4 sample(fsampler s, float2 loc)
-        declareFunctionSample(FSAMPLER);
+        declareFunctionSample(FSAMPLER, false);
 
         // int intcast(float x)
         declareFunctionIntCast();
@@ -148,12 +159,11 @@ class JSWFuncImpls {
      * Used to declare sample function:
      *   float4 sample([l,f]sampler s, float2 loc)
      */
-    private static void declareFunctionSample(final Type type) {
+    private static void declareFunctionSample(final Type type, final boolean unchecked) {
         FuncImpl fimpl = new FuncImpl() {
             @Override
             public String getPreamble(List<Expr> params) {
                 String s = getSamplerName(params);
-                // TODO: this bounds checking is way too costly...
                 String p = getPosName(params);
                 if (type == LSAMPLER) {
                     return
@@ -165,6 +175,13 @@ class JSWFuncImpls {
                         "fsample(" + s + ", loc_tmp_x, loc_tmp_y,\n" +
                         "        " + p + "w, " + p + "h, " + p + "scan,\n" +
                         "        " + s + "_vals);\n";
+                } else if (unchecked) {
+                    // JSWBackend only uses this in the part of the row
+                    // where the location is known to be inside the image
+                    return
+                        "int " + s + "_tmp =\n" +
+                        "    " + s + "[(int)(loc_tmp_y*" + p + "h)*" + p + "scan +\n" +
+                        "        (int)(loc_tmp_x*" + p + "w)];\n";
                 } else {
                     return
                         "int " + s + "_tmp;\n" +
@@ -186,15 +203,17 @@ class JSWFuncImpls {
                 if (type == LSAMPLER || type == FSAMPLER) {
                     return (i < 0 || i > 3) ? null : s + "_vals[" + i + "]";
                 } else {
+                    // (UNPACK is declared by JSWBackend, and holds the
+                    // same values as the channels divided by 255f)
                     switch (i) {
                     case 0:
-                        return "(((" + s + "_tmp >>  16) & 0xff) / 255f)";
+                        return "UNPACK[(" + s + "_tmp >>  16) & 0xff]";
                     case 1:
-                        return "(((" + s + "_tmp >>   8) & 0xff) / 255f)";
+                        return "UNPACK[(" + s + "_tmp >>   8) & 0xff]";
                     case 2:
-                        return "(((" + s + "_tmp       ) & 0xff) / 255f)";
+                        return "UNPACK[(" + s + "_tmp       ) & 0xff]";
                     case 3:
-                        return "(((" + s + "_tmp >>> 24)       ) / 255f)";
+                        return "UNPACK[(" + s + "_tmp >>> 24)       ]";
                     default:
                         return null;
                     }
@@ -209,7 +228,11 @@ class JSWFuncImpls {
                 return "src" + e.getVariable().getReg();
             }
         };
-        declareFunction(fimpl, "sample", type, FLOAT2);
+        if (unchecked) {
+            uncheckedFuncs.put(CoreSymbols.getFunction("sample", Arrays.asList(type, FLOAT2)), fimpl);
+        } else {
+            declareFunction(fimpl, "sample", type, FLOAT2);
+        }
     }
 
     /**
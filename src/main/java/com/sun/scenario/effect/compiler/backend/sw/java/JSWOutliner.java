@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.CallExpr;
+import com.sun.scenario.effect.compiler.tree.CompoundStmt;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.Stmt;
+import com.sun.scenario.effect.compiler.tree.Tree;
+import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import com.sun.scenario.effect.compiler.tree.VariableExpr;
+
+/**
+ * Moves the body of the per-pixel loop into private static methods of the
+ * peer, in parts that are each well under the size of the largest method
+ * that HotSpot compiles (see JSWBackend).
+ *
+ * The statements of main() are taken in order, and a block that doesn't
+ * fit in the current part is split between parts.  The locals of main()
+ * that are used in more than one part, color, and the globals of the
+ * program live in the frame_f, frame_i and frame_b arrays, which the
+ * caller allocates once and passes to each part along with the samplers,
+ * params and positions it reads.
+ */
+class JSWOutliner {
+
+    /**
+     * The estimated size of the bytecode of each part, before the locals
+     * it shares with other parts are moved into the frame arrays.
+     */
+    static final int PART_BUDGET = 3000;
+
+    private final JSWBackend backend;
+    private final String prefix;
+
+    // filled in by plan()
+    private final Set<Stmt> splits = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Stmt> descended = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<List<Stmt>> parts = new ArrayList<>();
+    private final Deque<Set<String>> blocks = new ArrayDeque<>();
+    private int partSize;
+
+    // filled in by emit()
+    private final List<String> texts = new ArrayList<>();
+    private StringBuilder text;
+    private int depth;
+
+    private final Map<Variable, Integer> frameSlots = new LinkedHashMap<>();
+    private final int[] frameSizes = new int[3];
+    private final StringBuilder caller = new StringBuilder();
+    private final StringBuilder helpers = new StringBuilder();
+    private final List<String> helperNames = new ArrayList<>();
+    private final List<String> helperTexts = new ArrayList<>();
+
+    JSWOutliner(JSWBackend backend, String prefix) {
+        this.backend = backend;
+        this.prefix = prefix;
+    }
+
+    private static final BaseType[] FRAME_TYPES = {
+        BaseType.FLOAT, BaseType.INT, BaseType.BOOL,
+    };
+
+    /**
+     * Returns the element of the frame that holds the given field of the
+     * variable, or null if the variable isn't in the frame.
+     */
+    static String getFrameRef(Map<Variable, Integer> slots, Variable var, int field) {
+        Integer slot = (slots != null) ? slots.get(var) : null;
+        if (slot == null) {
+            return null;
+        }
+        return getFrameName(var.getType().getBaseType()) + "[" + (slot + field) + "]";
+    }
+
+    static String getFrameName(BaseType bt) {
+        switch (bt) {
+        case FLOAT:
+            return "frame_f";
+        case INT:
+            return "frame_i";
+        default:
+            return "frame_b";
+        }
+    }
+
+    private static int getFrameIndex(BaseType bt) {
+        switch (bt) {
+        case FLOAT:
+            return 0;
+        case INT:
+            return 1;
+        default:
+            return 2;
+        }
+    }
+
+    private static String getJavaType(BaseType bt) {
+        return (bt == BaseType.BOOL) ? "boolean" : bt.toString();
+    }
+
+    /**
+     * Splits the given body of main(), which must have been scanned by
+     * the backend already (so that the functions it calls are known).
+     * The given declarations of the globals of the program are made by
+     * the caller, before the first part.
+     */
+    void outline(List<VarDecl> globals, Stmt main) {
+        Set<String> resultVars = backend.saveResultVars();
+        backend.restoreResultVars(new HashSet<String>());
+        parts.add(new ArrayList<Stmt>());
+        partSize = 0;
+        plan(main);
+        backend.restoreResultVars(new HashSet<String>());
+
+        // the locals that are used by more than one part, and color, go
+        // in the frame
+        Set<Variable> locals = new HashSet<>();
+        collectLocals(main, locals);
+        List<Set<Variable>> partVars = new ArrayList<>();
+        Map<Variable, Integer> numParts = new LinkedHashMap<>();
+        for (List<Stmt> part : parts) {
+            Set<Variable> vars = new LinkedHashSet<>();
+            Set<Variable> declared = new HashSet<>();
+            Set<String> funcs = new HashSet<>();
+            for (Stmt s : part) {
+                collectVars(s, vars, declared, funcs);
+            }
+            vars.removeAll(declared);
+            for (Variable v : locals) {
+                if (declared.contains(v)) {
+                    // a local of main() is declared by the part itself
+                    vars.add(v);
+                }
+            }
+            for (Variable v : vars) {
+                Integer n = numParts.get(v);
+                numParts.put(v, (n == null) ? 1 : n + 1);
+            }
+            partVars.add(vars);
+        }
+        Set<Variable> globalVars = new HashSet<>();
+        for (VarDecl d : globals) {
+            globalVars.add(d.getVariable());
+        }
+        for (Map.Entry<Variable, Integer> e : numParts.entrySet()) {
+            Variable v = e.getKey();
+            if (isColor(v, locals) || globalVars.contains(v) ||
+                (locals.contains(v) && e.getValue() > 1))
+            {
+                int i = getFrameIndex(v.getType().getBaseType());
+                frameSlots.put(v, frameSizes[i]);
+                frameSizes[i] += v.getType().getNumFields();
+            }
+        }
+
+        backend.setFrameSlots(frameSlots);
+        for (VarDecl d : globals) {
+            caller.append(scan(d));
+        }
+        text = new StringBuilder();
+        emit(main);
+        texts.add(text.toString());
+        backend.setFrameSlots(null);
+        backend.restoreResultVars(resultVars);
+
+        for (int i = 0; i < texts.size(); i++) {
+            StringBuilder params = new StringBuilder();
+            StringBuilder args = new StringBuilder();
+            for (Variable v : partVars.get(i)) {
+                if (!locals.contains(v) && !frameSlots.containsKey(v)) {
+                    addParams(v, params, args);
+                }
+            }
+            for (BaseType bt : FRAME_TYPES) {
+                if (getFrameSize(bt) > 0) {
+                    addParam(getJavaType(bt) + "[]", getFrameName(bt), params, args);
+                }
+            }
+            String name = prefix + i;
+            String helper =
+                "private static void " + name + "(" + params + ") {\n" +
+                texts.get(i) +
+                "}\n";
+            helperNames.add(name);
+            helperTexts.add(helper);
+            helpers.append(helper).append("\n");
+            caller.append(name + "(" + args + ");\n");
+        }
+        Variable color = null;
+        for (Variable v : frameSlots.keySet()) {
+            if (isColor(v, locals)) {
+                color = v;
+            }
+        }
+        if (color != null) {
+            for (int i = 0; i < color.getType().getNumFields(); i++) {
+                caller.append("color" + JSWBackend.getSuffix(i) + " = " +
+                              getFrameRef(frameSlots, color, i) + ";\n");
+            }
+        }
+    }
+
+    /**
+     * Returns the statements that call the parts, followed by the copy of
+     * the color out of the frame.
+     */
+    String getCaller() {
+        return caller.toString();
+    }
+
+    String getHelpers() {
+        return helpers.toString();
+    }
+
+    List<String> getHelperNames() {
+        return helperNames;
+    }
+
+    List<String> getHelperTexts() {
+        return helperTexts;
+    }
+
+    /**
+     * Returns the number of slots of the frame array for the given base
+     * type (see getFrameName()).
+     */
+    int getFrameSize(BaseType bt) {
+        return frameSizes[getFrameIndex(bt)];
+    }
+
+    private static boolean isColor(Variable v, Set<Variable> locals) {
+        return v.getName().equals("color") && v.getQualifier() == null &&
+            !v.isParam() && !locals.contains(v);
+    }
+
+    private String scan(Tree tree) {
+        JSWTreeScanner scanner = new JSWTreeScanner(backend);
+        scanner.scan(tree);
+        String result = scanner.getResult();
+        return (result != null) ? result : "";
+    }
+
+    private void startPart() {
+        parts.add(new ArrayList<Stmt>());
+        partSize = 0;
+        // the result variables of the inlined calls are locals of the
+        // part that declares them
+        backend.restoreResultVars(new HashSet<String>());
+        for (Set<String> vars : blocks) {
+            vars.clear();
+        }
+    }
+
+    private void plan(Stmt s) {
+        int size = BytecodeEstimator.estimate(scan(s));
+        if (partSize + size <= PART_BUDGET) {
+            parts.get(parts.size() - 1).add(s);
+            partSize += size;
+        } else if (s instanceof CompoundStmt) {
+            descended.add(s);
+            blocks.push(backend.saveResultVars());
+            for (Stmt child : ((CompoundStmt)s).getStmts()) {
+                plan(child);
+            }
+            backend.restoreResultVars(blocks.pop());
+        } else {
+            // a single statement that doesn't fit on its own still gets a
+            // part of its own (JSWBackend warns if it is too big)
+            if (partSize > 0) {
+                splits.add(s);
+                startPart();
+                scan(s);
+            }
+            parts.get(parts.size() - 1).add(s);
+            partSize += size;
+        }
+    }
+
+    private void emit(Stmt s) {
+        if (splits.contains(s)) {
+            for (int i = 0; i < depth; i++) {
+                text.append("}\n");
+            }
+            texts.add(text.toString());
+            text = new StringBuilder();
+            backend.restoreResultVars(new HashSet<String>());
+            for (Set<String> vars : blocks) {
+                vars.clear();
+            }
+            for (int i = 0; i < depth; i++) {
+                text.append("{\n");
+            }
+        }
+        if (descended.contains(s)) {
+            text.append("{\n");
+            depth++;
+            blocks.push(backend.saveResultVars());
+            for (Stmt child : ((CompoundStmt)s).getStmts()) {
+                emit(child);
+            }
+            backend.restoreResultVars(blocks.pop());
+            depth--;
+            text.append("}\n");
+        } else {
+            text.append(scan(s));
+        }
+    }
+
+    private static void collectLocals(Tree tree, final Set<Variable> locals) {
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                locals.add(d.getVariable());
+                super.visitVarDecl(d);
+            }
+        }.scan(tree);
+    }
+
+    /**
+     * Collects the variables referenced by the given tree, and by the
+     * bodies of the functions that it calls (which are inlined), along with
+     * the ones that are declared there.
+     */
+    private void collectVars(Tree tree, final Set<Variable> vars,
+                             final Set<Variable> declared, final Set<String> funcs)
+    {
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                declared.add(d.getVariable());
+                super.visitVarDecl(d);
+            }
+            @Override
+            public void visitVariableExpr(VariableExpr e) {
+                Variable v = e.getVariable();
+                if (!v.isParam()) {
+                    vars.add(v);
+                }
+            }
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                super.visitCallExpr(e);
+                String name = e.getFunction().getName();
+                FuncDef def = backend.getFuncDef(name);
+                if (def != null && funcs.add(name)) {
+                    collectVars(def.getStmt(), vars, declared, funcs);
+                }
+            }
+        }.scan(tree);
+    }
+
+    private static void addParam(String type, String name,
+                                 StringBuilder params, StringBuilder args)
+    {
+        if (params.length() > 0) {
+            params.append(", ");
+            args.append(", ");
+        }
+        params.append(type + " " + name);
+        args.append(name);
+    }
+
+    /**
+     * Adds the values that the generated code reads for the given variable,
+     * as they are declared in filter().
+     */
+    private static void addParams(Variable v, StringBuilder params, StringBuilder args) {
+        Type t = v.getType();
+        BaseType bt = t.getBaseType();
+        String name = v.getName();
+        if (bt == BaseType.SAMPLER) {
+            String src = "src" + v.getReg();
+            addParam((t == Types.FSAMPLER) ? "float[]" : "int[]", name, params, args);
+            addParam("int", src + "w", params, args);
+            addParam("int", src + "h", params, args);
+            addParam("int", src + "scan", params, args);
+            if (t == Types.LSAMPLER || t == Types.FSAMPLER) {
+                addParam("float[]", name + "_vals", params, args);
+            }
+        } else if (v.isArray()) {
+            addParam(getJavaType(bt) + "[]", name + "_arr", params, args);
+        } else if (t.isVector()) {
+            for (int i = 0; i < t.getNumFields(); i++) {
+                addParam(getJavaType(bt), name + JSWBackend.getSuffix(i), params, args);
+            }
+        } else {
+            addParam(getJavaType(bt), name, params, args);
+        }
+    }
+}
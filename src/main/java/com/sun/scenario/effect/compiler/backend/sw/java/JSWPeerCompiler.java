@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the source of a peer class generated by {@link JSWBackend} in
+ * memory and defines the resulting class in a new class loader, so that a
+ * peer for a shader can be created at runtime without writing any files
+ * or running a separate build step.
+ *
+ * This relies on the system Java compiler (the jdk.compiler module), so
+ * it is only available when running on a JDK.
+ */
+public class JSWPeerCompiler {
+
+    private final ClassLoader parent;
+    private final List<String> options;
+
+    /**
+     * Creates a compiler whose classes are loaded by a child of the given
+     * class loader.  The generated code is compiled against the classpath
+     * of the current process unless a {@code -classpath} option is given.
+     */
+    public JSWPeerCompiler(ClassLoader parent, List<String> options) {
+        this.parent = parent;
+        this.options = new ArrayList<String>(options);
+    }
+
+    public JSWPeerCompiler(ClassLoader parent) {
+        this(parent, Collections.<String>emptyList());
+    }
+
+    /**
+     * Compiles the given source, which must declare the public class with
+     * the given fully qualified name, and returns the loaded class.
+     */
+    public Class<?> compile(String className, String source) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new RuntimeException("No system Java compiler available");
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics =
+            new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager stdManager =
+            compiler.getStandardFileManager(diagnostics, null, null);
+        final Map<String, ByteArrayOutputStream> classes =
+            new HashMap<String, ByteArrayOutputStream>();
+        JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(stdManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location,
+                                                       String name,
+                                                       JavaFileObject.Kind kind,
+                                                       FileObject sibling)
+            {
+                // this also catches any nested classes of the peer
+                return new SimpleJavaFileObject(toURI(name, kind), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classes.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+
+        JavaFileObject file =
+            new SimpleJavaFileObject(toURI(className, JavaFileObject.Kind.SOURCE),
+                                     JavaFileObject.Kind.SOURCE)
+        {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        List<String> args = new ArrayList<String>(options);
+        args.add("-nowarn");
+        boolean success;
+        try {
+            success = compiler.getTask(null, manager, diagnostics, args,
+                                       null, Collections.singletonList(file)).call();
+        } finally {
+            manager.close();
+        }
+        if (!success) {
+            StringBuilder sb = new StringBuilder("Compilation of " + className + " failed:");
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    sb.append("\n" + d.getLineNumber() + ": " + d.getMessage(null));
+                }
+            }
+            throw new RuntimeException(sb.toString());
+        }
+
+        Map<String, byte[]> bytes = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ByteArrayOutputStream> e : classes.entrySet()) {
+            bytes.put(e.getKey(), e.getValue().toByteArray());
+        }
+        return new PeerClassLoader(parent, bytes).loadClass(className);
+    }
+
+    /**
+     * Defines a class from the given bytes (e.g. a peer generated by
+     * JSWBytecodeBackend) in a new child of the given class loader, and
+     * returns it.
+     */
+    public static Class<?> defineClass(ClassLoader parent, String className, byte[] bytes)
+        throws ClassNotFoundException
+    {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put(className, bytes);
+        return new PeerClassLoader(parent, classes).loadClass(className);
+    }
+
+    /**
+     * Defines the compiled classes itself rather than delegating to the
+     * parent first, since the parent may already have an older build of a
+     * peer with the same name.
+     */
+    private static class PeerClassLoader extends ClassLoader {
+        private final Map<String, byte[]> bytes;
+
+        PeerClassLoader(ClassLoader parent, Map<String, byte[]> bytes) {
+            super(parent);
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException
+        {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] b = bytes.get(name);
+                    if (b == null) {
+                        return super.loadClass(name, resolve);
+                    }
+                    c = defineClass(name, b, 0, b.length);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+
+    private static URI toURI(String className, JavaFileObject.Kind kind) {
+        return URI.create("string:///" + className.replace('.', '/') + kind.extension);
+    }
+}
@@ -25,6 +25,7 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.java;
 
+import java.util.Set;
 import com.sun.scenario.effect.compiler.model.Function;
 import com.sun.scenario.effect.compiler.model.Type;
 import com.sun.scenario.effect.compiler.model.Variable;
@@ -36,6 +37,7 @@ import static com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend.getSuf
  */
 class JSWTreeScanner extends TreeScanner {
 
+    private final JSWBackend backend;
     private final String funcName;
     private final StringBuilder sb = new StringBuilder();
 
@@ -44,11 +46,12 @@ class JSWTreeScanner extends TreeScanner {
     private boolean inFieldSelect = false;
     private char selectedField = 'x';
 
-    JSWTreeScanner() {
-        this(null);
+    JSWTreeScanner(JSWBackend backend) {
+        this(backend, null);
     }
 
-    JSWTreeScanner(String funcName) {
+    JSWTreeScanner(JSWBackend backend, String funcName) {
+        this.backend = backend;
         this.funcName = funcName;
     }
 
@@ -63,14 +66,27 @@ class JSWTreeScanner extends TreeScanner {
     @Override
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         if (e.getExpr() instanceof VariableExpr &&
-            e.getIndex() instanceof VariableExpr)
+            (e.getIndex() instanceof VariableExpr ||
+             e.getIndex() instanceof LiteralExpr))
         {
             VariableExpr ve = (VariableExpr)e.getExpr();
-            VariableExpr ie = (VariableExpr)e.getIndex();
+            int numFields = ve.getVariable().getType().getNumFields();
+            int field = 0;
+            if (inFieldSelect) {
+                field = getFieldIndex(selectedField);
+            } else if (inVectorOp && numFields > 1) {
+                field = vectorIndex;
+            }
             output(ve.getVariable().getName());
-            output("_arr[" + ie.getVariable().getName());
-            output(" * " + ve.getVariable().getType().getNumFields());
-            output(" + " + getFieldIndex(selectedField) + "]");
+            if (e.getIndex() instanceof LiteralExpr) {
+                // a constant index, e.g. in an unrolled loop
+                int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                output("_arr[" + (index * numFields + field) + "]");
+            } else {
+                output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                output(" * " + numFields);
+                output(" + " + field + "]");
+            }
         } else {
             throw new InternalError("Array access only supports variable expr/index (for now)");
         }
@@ -106,9 +122,13 @@ class JSWTreeScanner extends TreeScanner {
 
     @Override
     public void visitCompoundStmt(CompoundStmt s) {
+        // the result variables declared in this block (as part of an
+        // inlined call) go out of scope at the end of it
+        Set<String> resultVars = backend.saveResultVars();
         output("{\n");
         super.visitCompoundStmt(s);
         output("}\n");
+        backend.restoreResultVars(resultVars);
     }
 
     @Override
@@ -187,13 +207,13 @@ class JSWTreeScanner extends TreeScanner {
         } else {
             // TODO: this is a hacky approach to saving func defs, which
             // will be inlined later at point of use)...
-            JSWBackend.putFuncDef(d);
+            backend.putFuncDef(d);
         }
     }
 
     @Override
     public void visitGlueBlock(GlueBlock b) {
-        JSWBackend.addGlueBlock(b.getText());
+        backend.addGlueBlock(b.getText());
     }
 
     @Override
@@ -226,6 +246,8 @@ class JSWTreeScanner extends TreeScanner {
             throw new RuntimeException("Return statement not expected");
         }
 
+        outputPreambles(expr);
+
         Type t = expr.getResultType();
         if (t.isVector()) {
             inVectorOp = true;
@@ -273,7 +295,21 @@ class JSWTreeScanner extends TreeScanner {
         outputPreambles(d);
 
         Type t = var.getType();
-        if (t.isVector()) {
+        if (backend.getFrameRef(var, 0) != null) {
+            // the variable lives in the frame of the outlined parts of
+            // the loop body (see JSWOutliner), so only the value is set
+            Expr init = d.getInit();
+            if (init != null) {
+                inVectorOp = t.isVector();
+                for (int i = 0; i < t.getNumFields(); i++) {
+                    vectorIndex = i;
+                    output(backend.getFrameRef(var, i) + " = ");
+                    scan(init);
+                    output(";\n");
+                }
+                inVectorOp = false;
+            }
+        } else if (t.isVector()) {
             inVectorOp = true;
             for (int i = 0; i < t.getNumFields(); i++) {
                 output(t.getBaseType().toString() + " ");
@@ -301,19 +337,28 @@ class JSWTreeScanner extends TreeScanner {
     @Override
     public void visitVariableExpr(VariableExpr e) {
         Variable var = e.getVariable();
-        output(var.getName());
-        if (var.isParam()) {
-            output("_tmp");
-        }
+        int field = 0;
         if (var.getType().isVector()) {
             if (inFieldSelect) {
-                output(getSuffix(getFieldIndex(selectedField)));
+                field = getFieldIndex(selectedField);
             } else if (inVectorOp) {
-                output(getSuffix(vectorIndex));
+                field = vectorIndex;
             } else {
                 throw new InternalError("TBD");
             }
         }
+        String ref = backend.getFrameRef(var, field);
+        if (ref != null) {
+            output(ref);
+            return;
+        }
+        output(var.getName());
+        if (var.isParam()) {
+            output("_tmp");
+        }
+        if (var.getType().isVector()) {
+            output(getSuffix(field));
+        }
     }
 
     @Override
@@ -332,7 +377,7 @@ class JSWTreeScanner extends TreeScanner {
     }
 
     private void outputPreambles(Tree tree) {
-        JSWCallScanner scanner = new JSWCallScanner();
+        JSWCallScanner scanner = new JSWCallScanner(backend);
         scanner.scan(tree);
         String res = scanner.getResult();
         if (res != null) {
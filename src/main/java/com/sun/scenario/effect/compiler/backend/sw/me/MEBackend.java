@@ -25,20 +25,27 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.me;
 
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.GlueTemplates;
 import com.sun.scenario.effect.compiler.model.*;
 import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.InteriorSampleFinder;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
 import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.RangeAnalyzer;
+import com.sun.scenario.effect.compiler.tree.StrengthReducer;
 import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
 import org.antlr.stringtemplate.StringTemplate;
-import org.antlr.stringtemplate.StringTemplateGroup;
-import org.antlr.stringtemplate.language.DefaultTemplateLexer;
 
 /**
  */
@@ -46,16 +53,73 @@ public class MEBackend extends TreeScanner {
 
     private final JSLParser parser;
     private final String body;
+    private final String invariantDecls;
+    private final List<InteriorSampleFinder.Sample> interiorSamples;
+    private final RangeAnalyzer.Range colorRange;
+    private final String interiorBody;
+    private final boolean steppedSamples;
 
     public MEBackend(JSLParser parser, ProgramUnit program) {
-        // TODO: will be removed once we clean up static usage
-        resetStatics();
+        this(parser, program, false);
+    }
 
+    /**
+     * Creates a backend that, if steppedSamples is true, steps the indices
+     * of the texels read by the interior sample() calls along the rows
+     * instead of computing them from the coordinates at each pixel (see
+     * getSteppedIndex()).
+     */
+    public MEBackend(JSLParser parser, ProgramUnit program, boolean steppedSamples) {
         this.parser = parser;
+        this.steppedSamples = steppedSamples;
+
+        // e.g. pow(x, 2.0) is turned into x * x
+        program = new StrengthReducer().reduce(program);
+
+        // the clamps of the color before it is stored are left out when
+        // they can't change it
+        Variable color = parser.getSymbolTable().getCoreVariable("color");
+        this.colorRange = new RangeAnalyzer().analyze(program).getRange(color);
+
+        program = new CallLifter(parser.getSymbolTable()).lift(program);
+        InvariantHoister hoister = new InvariantHoister(parser.getSymbolTable());
+        program = hoister.hoist(program);
+        program = new CommonSubexprEliminator(parser.getSymbolTable()).eliminate(program);
 
-        METreeScanner scanner = new METreeScanner();
+        METreeScanner scanner = new METreeScanner(this);
         scanner.scan(program);
         this.body = scanner.getResult();
+
+        // the hoisted values are computed once, before the per-pixel loop
+        METreeScanner invScanner = new METreeScanner(this);
+        for (VarDecl d : hoister.getInvariants()) {
+            invScanner.scan(d);
+        }
+        this.invariantDecls = invScanner.getResult();
+
+        // the sample() calls at a fixed offset from posN don't need bounds
+        // checks in the interior of the rows, which gets its own copy of
+        // the loop body
+        sampleFinder = new InteriorSampleFinder(hoister);
+        this.interiorSamples = sampleFinder.find(program);
+        if (interiorSamples.isEmpty()) {
+            this.interiorBody = null;
+        } else {
+            uncheckedSamples = true;
+            METreeScanner interiorScanner = new METreeScanner(this);
+            for (ExtDecl d : program.getDecls()) {
+                if (d instanceof VarDecl) {
+                    // the globals are declared in each copy of the body
+                    interiorScanner.scan(d);
+                } else if (d instanceof FuncDef &&
+                           ((FuncDef)d).getFunction().getName().equals("main"))
+                {
+                    interiorScanner.scan(((FuncDef)d).getStmt());
+                }
+            }
+            uncheckedSamples = false;
+            this.interiorBody = interiorScanner.getResult();
+        }
     }
 
     public static class GenCode {
@@ -83,6 +147,7 @@ public class MEBackend extends TreeScanner {
         StringBuilder genericsDecl = new StringBuilder();
         StringBuilder interfaceDecl = new StringBuilder();
         StringBuilder constants = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
         StringBuilder samplers = new StringBuilder();
         StringBuilder srcRects = new StringBuilder();
         StringBuilder posDecls = new StringBuilder();
@@ -100,10 +165,10 @@ public class MEBackend extends TreeScanner {
 
         appendGetRelease(arrayGet, arrayRelease, "int", "dst", "dst_arr");
 
-        // TODO: only need to declare these if pixcoord is referenced
-        // somewhere in the program...
-        pixInitY.append("float pixcoord_y = (float)dy;\n");
-        pixInitX.append("float pixcoord_x = (float)dx;\n");
+        if (parser.getSymbolTable().isCoreVariableReferenced("pixcoord")) {
+            pixInitY.append("float pixcoord_y = (float)dy;\n");
+            pixInitX.append("float pixcoord_x = (float)dx;\n");
+        }
 
         for (Variable v : vars.values()) {
             if (v.getQualifier() == Qualifier.CONST && v.getConstValue() == null) {
@@ -116,23 +181,31 @@ public class MEBackend extends TreeScanner {
             BaseType bt = t.getBaseType();
             String vtype = bt.toString();
             String vname = v.getName();
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER && !v.isReferenced()) {
+                // the program never reads this value (see DeadCodeEliminator)
+                continue;
+            }
             if (v.getQualifier() != null && bt != BaseType.SAMPLER) {
                 String accName = v.getAccessorName();
                 if (v.isArray()) {
-                    // TODO: we currently assume that param arrays will be
-                    // stored in NIO Int/FloatBuffers, but the inner loop
-                    // expects to access them as Java arrays, so we convert
-                    // here; this is obviously bad for performance, so we need
-                    // to come up with a better system soon...
+                    // same NIO buffer to array access as in JSWBackend
                     String bufType = (bt == BaseType.FLOAT) ?
                         "FloatBuffer" : "IntBuffer";
                     String bufName = vname + "_buf";
                     String arrayName = vname + "_arr";
+                    String cacheName = vname + "_cache";
+                    fields.append("private " + vtype + "[] " + cacheName + ";\n");
                     constants.append(bufType + " " + bufName + " = " + accName + "();\n");
-                    constants.append(vtype + "[] " + arrayName);
-                    constants.append(" = new " + vtype + "[");
-                    constants.append(bufName + ".capacity()];\n");
-                    constants.append(bufName + ".get(" + arrayName + ");\n");
+                    constants.append(vtype + "[] " + arrayName + ";\n");
+                    constants.append("if (" + bufName + ".hasArray() && " + bufName + ".arrayOffset() == 0) {\n");
+                    constants.append("    " + arrayName + " = " + bufName + ".array();\n");
+                    constants.append("} else {\n");
+                    constants.append("    if (" + cacheName + " == null || " + cacheName + ".length != " + bufName + ".capacity()) {\n");
+                    constants.append("        " + cacheName + " = new " + vtype + "[" + bufName + ".capacity()];\n");
+                    constants.append("    }\n");
+                    constants.append("    " + arrayName + " = " + cacheName + ";\n");
+                    constants.append("    " + bufName + ".get(" + arrayName + ");\n");
+                    constants.append("}\n");
                     jparams.append(",\n");
                     jparams.append(arrayName);
                     jparamDecls.append(",\n");
@@ -162,6 +235,9 @@ public class MEBackend extends TreeScanner {
                         constants.append(vtype + " " + vname);
                         if (v.getQualifier() == Qualifier.CONST) {
                             constants.append(" = " + v.getConstValue());
+                            if (v.getConstValue() instanceof Float) {
+                                constants.append("f");
+                            }
                         } else {
                             constants.append(" = " + accName + "()");
                         }
@@ -186,7 +262,7 @@ public class MEBackend extends TreeScanner {
                     samplers.append("float[] " + vname + " = src" + i + ".getData();\n");
 
                     // TODO: for now, assume [0,0,1,1]
-                    srcRects.append("float[] src" + i + "Rect = new float[] {0,0,1,1};\n");
+                    fields.append("private final float[] src" + i + "Rect = {0,0,1,1};\n");
 
                     jparams.append(",\n");
                     jparams.append(vname);
@@ -208,7 +284,8 @@ public class MEBackend extends TreeScanner {
                     samplers.append("int[] " + vname + " =\n");
                     samplers.append("    ((DataBufferInt)src" + i + ".getRaster().getDataBuffer()).getData();\n");
 
-                    samplers.append("Rectangle src" + i + "Bounds = new Rectangle(");
+                    fields.append("private final Rectangle src" + i + "Bounds = new Rectangle();\n");
+                    samplers.append("src" + i + "Bounds.setBounds(");
                     samplers.append("src" + i + "x, ");
                     samplers.append("src" + i + "y, ");
                     samplers.append("src" + i + "w, ");
@@ -238,13 +315,15 @@ public class MEBackend extends TreeScanner {
                     appendGetRelease(arrayGet, arrayRelease, "int", vname, vname + "_arr");
                 }
 
-                posDecls.append("float inc" + i + "_x = (src" + i + "Rect_x2 - src" + i + "Rect_x1) / dstw;\n");
-                posDecls.append("float inc" + i + "_y = (src" + i + "Rect_y2 - src" + i + "Rect_y1) / dsth;\n");
+                if (parser.getSymbolTable().isCoreVariableReferenced("pos" + i)) {
+                    posDecls.append("float inc" + i + "_x = (src" + i + "Rect_x2 - src" + i + "Rect_x1) / dstw;\n");
+                    posDecls.append("float inc" + i + "_y = (src" + i + "Rect_y2 - src" + i + "Rect_y1) / dsth;\n");
 
-                posInitY.append("float pos" + i + "_y = src" + i + "Rect_y1 + inc" + i + "_y*0.5f;\n");
-                posInitX.append("float pos" + i + "_x = src" + i + "Rect_x1 + inc" + i + "_x*0.5f;\n");
-                posIncrX.append("pos" + i + "_x += inc" + i + "_x;\n");
-                posIncrY.append("pos" + i + "_y += inc" + i + "_y;\n");
+                    posInitY.append("float pos" + i + "_y = src" + i + "Rect_y1 + inc" + i + "_y*0.5f;\n");
+                    posInitX.append("float pos" + i + "_x = src" + i + "Rect_x1 + inc" + i + "_x*0.5f;\n");
+                    posIncrX.append("pos" + i + "_x += inc" + i + "_x;\n");
+                    posIncrY.append("pos" + i + "_y += inc" + i + "_y;\n");
+                }
 
                 jparams.append(",\n");
                 jparams.append("src" + i + "Rect[0], src" + i + "Rect[1],\n");
@@ -271,13 +350,14 @@ public class MEBackend extends TreeScanner {
             interfaceDecl.append("implements "+interfaceName);
         }
 
-        Reader template = new InputStreamReader(getClass().getResourceAsStream("MEJavaGlue.stg"));
-        StringTemplateGroup group = new StringTemplateGroup(template, DefaultTemplateLexer.class);
-        StringTemplate jglue = group.getInstanceOf("glue");
+        StringTemplate jglue = GlueTemplates.getGlue(getClass(), "MEJavaGlue.stg");
         jglue.setAttribute("effectName", effectName);
         jglue.setAttribute("peerName", peerName);
         jglue.setAttribute("genericsDecl", genericsDecl.toString());
         jglue.setAttribute("interfaceDecl", interfaceDecl.toString());
+        if (fields.length() > 0) {
+            jglue.setAttribute("fields", fields.toString());
+        }
         jglue.setAttribute("usercode", usercode.toString());
         jglue.setAttribute("samplers", samplers.toString());
         jglue.setAttribute("srcRects", srcRects.toString());
@@ -285,14 +365,13 @@ public class MEBackend extends TreeScanner {
         jglue.setAttribute("params", jparams.toString());
         jglue.setAttribute("paramDecls", jparamDecls.toString());
 
-        template = new InputStreamReader(getClass().getResourceAsStream("MENativeGlue.stg"));
-        group = new StringTemplateGroup(template, DefaultTemplateLexer.class);
-        StringTemplate cglue = group.getInstanceOf("glue");
+        StringTemplate cglue = GlueTemplates.getGlue(getClass(), "MENativeGlue.stg");
         cglue.setAttribute("peerName", peerName);
         cglue.setAttribute("jniName", peerName.replace("_", "_1"));
         cglue.setAttribute("paramDecls", cparamDecls.toString());
         cglue.setAttribute("arrayGet", arrayGet.toString());
         cglue.setAttribute("arrayRelease", arrayRelease.toString());
+        cglue.setAttribute("invariants", invariantDecls);
         cglue.setAttribute("posDecls", posDecls.toString());
         cglue.setAttribute("pixInitY", pixInitY.toString());
         cglue.setAttribute("pixInitX", pixInitX.toString());
@@ -301,6 +380,19 @@ public class MEBackend extends TreeScanner {
         cglue.setAttribute("posIncrX", posIncrX.toString());
         cglue.setAttribute("posInitX", posInitX.toString());
         cglue.setAttribute("body", body);
+        if (interiorBody != null) {
+            cglue.setAttribute("interiorBody", interiorBody);
+            cglue.setAttribute("interiorX", getInteriorTest(0));
+            cglue.setAttribute("interiorY", getInteriorTest(1));
+            if (steppedSamples) {
+                setSteppedAttributes(cglue);
+            }
+        }
+        if (colorRange != null) {
+            cglue.setAttribute("alphaInRange", colorRange.isAlphaInRange());
+            cglue.setAttribute("colorNonNegative", colorRange.isColorNonNegative());
+            cglue.setAttribute("colorBelowAlpha", colorRange.isColorBelowAlpha());
+        }
 
         GenCode gen = new GenCode();
         gen.javaCode = jglue.toString();
@@ -308,6 +400,61 @@ public class MEBackend extends TreeScanner {
         return gen;
     }
 
+    /**
+     * Returns the condition under which all of the interior sample() calls
+     * read from inside their source image, along the given axis.
+     */
+    private String getInteriorTest(int axis) {
+        StringBuilder test = new StringBuilder();
+        for (InteriorSampleFinder.Sample sample : interiorSamples) {
+            String loc = "(" + sample.getCoord(getSuffix(axis)) + ")";
+            String size = "src" + sample.getSampler().getReg() + (axis == 0 ? "w" : "h");
+            if (test.length() > 0) {
+                test.append(" && ");
+            }
+            test.append(loc + " >= 0 && (int)(" + loc + "*" + size + ") < " + size);
+        }
+        return test.toString();
+    }
+
+    /**
+     * Sets the code that steps the index of each of the interior sample()
+     * calls: the offset of the row is computed once per row, and the
+     * column in 32.32 fixed point, from its value at the first pixel of
+     * the interior to its value at the last one.  Both ends are computed
+     * from the coordinates in the same way as in the other sample() calls,
+     * so the index stays inside the image, but in between a column that is
+     * within rounding error of the edge of a texel may be off by one.
+     */
+    private void setSteppedAttributes(StringTemplate cglue) {
+        StringBuilder steppedDecls = new StringBuilder();
+        StringBuilder steppedStart = new StringBuilder();
+        StringBuilder steppedEnd = new StringBuilder();
+        StringBuilder steppedInit = new StringBuilder();
+        StringBuilder steppedIncr = new StringBuilder();
+        for (int i = 0; i < interiorSamples.size(); i++) {
+            InteriorSampleFinder.Sample sample = interiorSamples.get(i);
+            String index = "stepped" + i;
+            String src = "src" + sample.getSampler().getReg();
+            // (the float is exact as a double, and so is its product with
+            // 2^32, so the integer part is the same as that of the float)
+            String col = "(jlong)((double)((" + sample.getCoord("_x") + ")*" + src + "w) * 4294967296.0)";
+            steppedDecls.append("jlong " + index + "_col0 = 0, " + index + "_step = 0;\n");
+            steppedStart.append(index + "_col0 = " + col + ";\n");
+            steppedEnd.append(index + "_step = (" + col + " - " + index + "_col0) /\n");
+            steppedEnd.append("    (interiorx1 - 1 - interiorx0);\n");
+            steppedInit.append("int " + index + "_row = (int)((" + sample.getCoord("_y") + ")*" +
+                               src + "h)*" + src + "scan;\n");
+            steppedInit.append("jlong " + index + "_col = " + index + "_col0;\n");
+            steppedIncr.append(index + "_col += " + index + "_step;\n");
+        }
+        cglue.setAttribute("steppedDecls", steppedDecls.toString());
+        cglue.setAttribute("steppedStart", steppedStart.toString());
+        cglue.setAttribute("steppedEnd", steppedEnd.toString());
+        cglue.setAttribute("steppedInit", steppedInit.toString());
+        cglue.setAttribute("steppedIncr", steppedIncr.toString());
+    }
+
     // TODO: need better mechanism for querying fields
     private static char[] fields = {'x', 'y', 'z', 'w'};
     public static String getSuffix(int i) {
@@ -333,31 +480,49 @@ public class MEBackend extends TreeScanner {
         }
     }
 
-    // TODO: these shouldn't be implemented as a static method
-    private static Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
-    static void putFuncDef(FuncDef def) {
+    private final Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
+    void putFuncDef(FuncDef def) {
         funcDefs.put(def.getFunction().getName(), def);
     }
-    static FuncDef getFuncDef(String name) {
+    FuncDef getFuncDef(String name) {
         return funcDefs.get(name);
     }
 
-    private static Set<String> resultVars = new HashSet<String>();
-    static boolean isResultVarDeclared(String vname) {
+    private Set<String> resultVars = new HashSet<String>();
+    boolean isResultVarDeclared(String vname) {
         return resultVars.contains(vname);
     }
-    static void declareResultVar(String vname) {
+    void declareResultVar(String vname) {
         resultVars.add(vname);
     }
+    Set<String> saveResultVars() {
+        return new HashSet<String>(resultVars);
+    }
+    void restoreResultVars(Set<String> vars) {
+        resultVars = vars;
+    }
 
-    private static StringBuilder usercode = new StringBuilder();
-    static void addGlueBlock(String block) {
-        usercode.append(block);
+    private InteriorSampleFinder sampleFinder;
+    private boolean uncheckedSamples;
+    boolean isUncheckedSample(List<Expr> params) {
+        return uncheckedSamples && sampleFinder.match(params) != null;
     }
 
-    private static void resetStatics() {
-        funcDefs.clear();
-        resultVars.clear();
-        usercode = new StringBuilder();
+    /**
+     * Returns the prefix of the variables that hold the stepped index of
+     * the texel read by an interior sample() call with the given
+     * arguments, or null if the index is computed from the coordinates.
+     */
+    String getSteppedIndex(List<Expr> params) {
+        if (!uncheckedSamples || !steppedSamples) {
+            return null;
+        }
+        int i = interiorSamples.indexOf(sampleFinder.match(params));
+        return (i < 0) ? null : "stepped" + i;
+    }
+
+    private final StringBuilder usercode = new StringBuilder();
+    void addGlueBlock(String block) {
+        usercode.append(block);
     }
 }
@@ -25,6 +25,7 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.me;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -124,6 +125,7 @@ import static com.sun.scenario.effect.compiler.backend.sw.me.MEBackend.*;
  *     float val = scale * clamp_res;
  */
 class MECallScanner extends TreeScanner {
+    private final MEBackend backend;
     private StringBuilder sb;
     private boolean inCallExpr = false;
     private Set<Integer> selectedFields = null;
@@ -132,6 +134,10 @@ class MECallScanner extends TreeScanner {
     private boolean inVectorOp = false;
     private int vectorIndex = 0;
 
+    MECallScanner(MEBackend backend) {
+        this.backend = backend;
+    }
+
     private void output(String s) {
         if (sb == null) {
             sb = new StringBuilder();
@@ -146,7 +152,8 @@ class MECallScanner extends TreeScanner {
     @Override
     public void visitCallExpr(CallExpr e) {
         if (inCallExpr) {
-            throw new InternalError("Nested function calls not yet supported");
+            // these are moved out of the statement by CallLifter
+            throw new InternalError("Nested function calls not supported");
         }
 
         Function func = e.getFunction();
@@ -162,28 +169,29 @@ class MECallScanner extends TreeScanner {
                 }
             }
         }
-        if (!MEBackend.isResultVarDeclared(vname)) {
-            // only declare result variables if they haven't been already
-            // TODO: there's a bug here; suppose a function like
-            // min(float,float) is inlined, then later we inline
-            // min(float3,float3), the second time we'll think we already have
-            // declared the result variables, but min_res_y/z won't be there...
-            MEBackend.declareResultVar(vname);
-            if (t.isVector()) {
-                output(vtype + " ");
-                boolean first = true;
-                for (Integer f : fields) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        output(", ");
-                    }
-                    output(vname + "_res" + getSuffix(f));
-                }
-                output(";\n");
-            } else {
-                output(vtype + " " + vname + "_res;\n");
+        // only declare the result variables that haven't been already (the
+        // same function may be called with a different number of components,
+        // e.g. min(float,float) and min(float3,float3), or with a different
+        // field selection)
+        List<String> rnames = new ArrayList<String>();
+        if (t.isVector()) {
+            for (Integer f : fields) {
+                rnames.add(vname + "_res" + getSuffix(f));
             }
+        } else {
+            rnames.add(vname + "_res");
+        }
+        boolean first = true;
+        for (String rname : rnames) {
+            if (!backend.isResultVarDeclared(rname)) {
+                backend.declareResultVar(rname);
+                output(first ? vtype + " " : ", ");
+                output(rname);
+                first = false;
+            }
+        }
+        if (!first) {
+            output(";\n");
         }
 
         inCallExpr = true;
@@ -220,6 +228,10 @@ class MECallScanner extends TreeScanner {
         }
 
         FuncImpl impl = MEFuncImpls.get(func);
+        if (backend.isUncheckedSample(argExprs)) {
+            String index = backend.getSteppedIndex(argExprs);
+            impl = (index != null) ? MEFuncImpls.getStepped(index) : MEFuncImpls.getUnchecked(func);
+        }
         if (impl != null) {
             // core (built-in) function
             String preamble = impl.getPreamble(argExprs);
@@ -240,8 +252,8 @@ class MECallScanner extends TreeScanner {
             }
         } else {
             // user-defined function
-            METreeScanner scanner = new METreeScanner(func.getName());
-            scanner.scan(MEBackend.getFuncDef(func.getName()).getStmt());
+            METreeScanner scanner = new METreeScanner(backend, func.getName());
+            scanner.scan(backend.getFuncDef(func.getName()).getStmt());
             output(scanner.getResult());
         }
 
@@ -253,14 +265,22 @@ class MECallScanner extends TreeScanner {
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         if (inCallExpr) {
             if (e.getExpr() instanceof VariableExpr &&
-                e.getIndex() instanceof VariableExpr)
+                (e.getIndex() instanceof VariableExpr ||
+                 e.getIndex() instanceof LiteralExpr))
             {
                 VariableExpr ve = (VariableExpr)e.getExpr();
-                VariableExpr ie = (VariableExpr)e.getIndex();
+                int numFields = ve.getVariable().getType().getNumFields();
+                int field = getFieldIndex(selectedField);
                 output(ve.getVariable().getName());
-                output("_arr[" + ie.getVariable().getName());
-                output(" * " + ve.getVariable().getType().getNumFields());
-                output(" + " + getFieldIndex(selectedField) + "]");
+                if (e.getIndex() instanceof LiteralExpr) {
+                    // a constant index, e.g. in an unrolled loop
+                    int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                    output("_arr[" + (index * numFields + field) + "]");
+                } else {
+                    output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                    output(" * " + numFields);
+                    output(" + " + field + "]");
+                }
             } else {
                 throw new InternalError("Array access only supports variable expr/index (for now)");
             }
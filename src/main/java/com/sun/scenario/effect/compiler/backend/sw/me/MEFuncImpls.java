@@ -45,20 +45,40 @@ import static com.sun.scenario.effect.compiler.model.Types.*;
 class MEFuncImpls {
 
     private static Map<Function, FuncImpl> funcs = new HashMap<Function, FuncImpl>();
+    private static Map<Function, FuncImpl> uncheckedFuncs = new HashMap<Function, FuncImpl>();
 
     static FuncImpl get(Function func) {
         return funcs.get(func);
     }
 
+    /**
+     * Returns the implementation to use where the location passed to
+     * sample() is known to be inside the image (see
+     * MEBackend.isUncheckedSample()), or null if the function has none.
+     */
+    static FuncImpl getUnchecked(Function func) {
+        return uncheckedFuncs.get(func);
+    }
+
+    /**
+     * Returns the implementation of sample(sampler, float2) that reads the
+     * texel at the index stepped along the row in the variables with the
+     * given prefix (see MEBackend.getSteppedIndex()).
+     */
+    static FuncImpl getStepped(String index) {
+        return newSampleImpl(SAMPLER, true, index);
+    }
+
     static {
         // float4 sample(sampler s, float2 loc)
-        declareFunctionSample(SAMPLER);
+        declareFunctionSample(SAMPLER, false);
+        declareFunctionSample(SAMPLER, true);
 
         // float4 sample(lsampler s, float2 loc)
-        declareFunctionSample(LSAMPLER);
+        declareFunctionSample(LSAMPLER, false);
 
         // float4 sample(fsampler s, float2 loc)
-        declareFunctionSample(FSAMPLER);
+        declareFunctionSample(FSAMPLER, false);
 
         // int intcast(float x)
         declareFunctionIntCast();
@@ -147,12 +167,22 @@ class MEFuncImpls {
      * Used to declare sample function:
      *   float4 sample([l,f]sampler s, float2 loc)
      */
-    private static void declareFunctionSample(final Type type) {
-        FuncImpl fimpl = new FuncImpl() {
+    private static void declareFunctionSample(Type type, boolean unchecked) {
+        FuncImpl fimpl = newSampleImpl(type, unchecked, null);
+        if (unchecked) {
+            uncheckedFuncs.put(CoreSymbols.getFunction("sample", Arrays.asList(type, FLOAT2)), fimpl);
+        } else {
+            declareFunction(fimpl, "sample", type, FLOAT2);
+        }
+    }
+
+    private static FuncImpl newSampleImpl(final Type type, final boolean unchecked,
+                                          final String index)
+    {
+        return new FuncImpl() {
             @Override
             public String getPreamble(List<Expr> params) {
                 String s = getSamplerName(params);
-                // TODO: this bounds checking is way too costly...
                 String p = getPosName(params);
                 if (type == LSAMPLER) {
                     return
@@ -174,6 +204,19 @@ class MEFuncImpls {
                         "        iloc_tmp = 4 * (iloc_tmp_y*" + p + "scan + iloc_tmp_x);\n" +
                         "    }\n" +
                         "}\n";
+                } else if (index != null) {
+                    // the row offset and the 32.32 fixed-point column
+                    // are stepped by MEBackend
+                    return
+                        "int " + s + "_tmp =\n" +
+                        "    " + s + "[" + index + "_row + (int)(" + index + "_col >> 32)];\n";
+                } else if (unchecked) {
+                    // MEBackend only uses this in the part of the row
+                    // where the location is known to be inside the image
+                    return
+                        "int " + s + "_tmp =\n" +
+                        "    " + s + "[(int)(loc_tmp_y*" + p + "h)*" + p + "scan +\n" +
+                        "        (int)(loc_tmp_x*" + p + "w)];\n";
                 } else {
                     return
                         "int " + s + "_tmp;\n" +
@@ -232,7 +275,6 @@ class MEFuncImpls {
                 return "src" + e.getVariable().getReg();
             }
         };
-        declareFunction(fimpl, "sample", type, FLOAT2);
     }
 
     /**
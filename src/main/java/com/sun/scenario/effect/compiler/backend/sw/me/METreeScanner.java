@@ -25,6 +25,7 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.me;
 
+import java.util.Set;
 import com.sun.scenario.effect.compiler.model.Function;
 import com.sun.scenario.effect.compiler.model.Type;
 import com.sun.scenario.effect.compiler.model.Variable;
@@ -36,6 +37,7 @@ import static com.sun.scenario.effect.compiler.backend.sw.me.MEBackend.getSuffix
  */
 class METreeScanner extends TreeScanner {
 
+    private final MEBackend backend;
     private final String funcName;
     private final StringBuilder sb = new StringBuilder();
 
@@ -44,11 +46,12 @@ class METreeScanner extends TreeScanner {
     private boolean inFieldSelect = false;
     private char selectedField = 'x';
 
-    METreeScanner() {
-        this(null);
+    METreeScanner(MEBackend backend) {
+        this(backend, null);
     }
 
-    METreeScanner(String funcName) {
+    METreeScanner(MEBackend backend, String funcName) {
+        this.backend = backend;
         this.funcName = funcName;
     }
 
@@ -63,14 +66,27 @@ class METreeScanner extends TreeScanner {
     @Override
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         if (e.getExpr() instanceof VariableExpr &&
-            e.getIndex() instanceof VariableExpr)
+            (e.getIndex() instanceof VariableExpr ||
+             e.getIndex() instanceof LiteralExpr))
         {
             VariableExpr ve = (VariableExpr)e.getExpr();
-            VariableExpr ie = (VariableExpr)e.getIndex();
+            int numFields = ve.getVariable().getType().getNumFields();
+            int field = 0;
+            if (inFieldSelect) {
+                field = getFieldIndex(selectedField);
+            } else if (inVectorOp && numFields > 1) {
+                field = vectorIndex;
+            }
             output(ve.getVariable().getName());
-            output("_arr[" + ie.getVariable().getName());
-            output(" * " + ve.getVariable().getType().getNumFields());
-            output(" + " + getFieldIndex(selectedField) + "]");
+            if (e.getIndex() instanceof LiteralExpr) {
+                // a constant index, e.g. in an unrolled loop
+                int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                output("_arr[" + (index * numFields + field) + "]");
+            } else {
+                output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                output(" * " + numFields);
+                output(" + " + field + "]");
+            }
         } else {
             throw new InternalError("Array access only supports variable expr/index (for now)");
         }
@@ -106,9 +122,13 @@ class METreeScanner extends TreeScanner {
 
     @Override
     public void visitCompoundStmt(CompoundStmt s) {
+        // the result variables declared in this block (as part of an
+        // inlined call) go out of scope at the end of it
+        Set<String> resultVars = backend.saveResultVars();
         output("{\n");
         super.visitCompoundStmt(s);
         output("}\n");
+        backend.restoreResultVars(resultVars);
     }
 
     @Override
@@ -187,13 +207,13 @@ class METreeScanner extends TreeScanner {
         } else {
             // TODO: this is a hacky approach to saving func defs, which
             // will be inlined later at point of use)...
-            MEBackend.putFuncDef(d);
+            backend.putFuncDef(d);
         }
     }
 
     @Override
     public void visitGlueBlock(GlueBlock b) {
-        MEBackend.addGlueBlock(b.getText());
+        backend.addGlueBlock(b.getText());
     }
 
     @Override
@@ -226,6 +246,8 @@ class METreeScanner extends TreeScanner {
             throw new RuntimeException("Return statement not expected");
         }
 
+        outputPreambles(expr);
+
         Type t = expr.getResultType();
         if (t.isVector()) {
             inVectorOp = true;
@@ -332,7 +354,7 @@ class METreeScanner extends TreeScanner {
     }
 
     private void outputPreambles(Tree tree) {
-        MECallScanner scanner = new MECallScanner();
+        MECallScanner scanner = new MECallScanner(backend);
         scanner.scan(tree);
         String res = scanner.getResult();
         if (res != null) {
@@ -25,6 +25,7 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.sse;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -33,18 +34,10 @@ import com.sun.scenario.effect.compiler.model.FuncImpl;
 import com.sun.scenario.effect.compiler.model.Function;
 import com.sun.scenario.effect.compiler.model.Param;
 import com.sun.scenario.effect.compiler.model.Type;
-import com.sun.scenario.effect.compiler.model.Variable;
-import com.sun.scenario.effect.compiler.tree.ArrayAccessExpr;
-import com.sun.scenario.effect.compiler.tree.BinaryExpr;
 import com.sun.scenario.effect.compiler.tree.CallExpr;
 import com.sun.scenario.effect.compiler.tree.Expr;
 import com.sun.scenario.effect.compiler.tree.FieldSelectExpr;
-import com.sun.scenario.effect.compiler.tree.LiteralExpr;
-import com.sun.scenario.effect.compiler.tree.ParenExpr;
 import com.sun.scenario.effect.compiler.tree.TreeScanner;
-import com.sun.scenario.effect.compiler.tree.UnaryExpr;
-import com.sun.scenario.effect.compiler.tree.VariableExpr;
-import com.sun.scenario.effect.compiler.tree.VectorCtorExpr;
 
 import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.*;
 
@@ -60,10 +53,14 @@ import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.*;
  * the function call itself.
  *
  * First declare the result variables using the name of the
- * called function and a field suffix, if needed; for example:
- *     float3 val = sample(...).rgb;
+ * called function and a field suffix, if needed; float3 and float4
+ * results are held in a single __m128 (see SSETreeScanner):
+ *     float2 val = min(foo, bar).xy;
  * ==>
- *     float sample_res_r, sample_res_g, sample_res_b;
+ *     float min_res_x, min_res_y;
+ *     float4 val = sample(...);
+ * ==>
+ *     __m128 sample_res_v;
  *
  * Inside the inlined function, assign parameter expressions to
  * temporary variables, using the name of the declared parameters
@@ -72,65 +69,54 @@ import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.*;
  * ==>
  *     float min_res;
  *     {
- *         float a_tmp = foo + 0.25f;
- *         float b_tmp = 1.0f;
- *         min_res = (a_tmp < b_tmp) a_tmp : b_tmp;
- *     }
- *
- * In a future version, references to scalar variables and literals
- * could easily be inlined; for example:
- *     float val = min(foo+0.25*bar, 1.0);
- * ==>
- *     float min_res;
- *     {
- *         float a_tmp = foo + 0.25f * bar;
- *         min_res = (a_tmp < 1.0f) a_tmp : 1.0f;
+ *         float x_tmp = foo + 0.25f;
+ *         float y_tmp = 1.0f;
+ *         min_res = ((x_tmp < y_tmp) ? x_tmp : y_tmp);
  *     }
  *
- * Note that this system will likely produce less-than-efficient
- * Java code in many cases; for now we're just trying to get things
- * functional, and performance improvements will certainly come later.
+ * The float3 and float4 parameters of the user-defined functions, and
+ * of the core functions that have an SSE implementation (see
+ * SSEFuncImpls.isPacked()), are held in an __m128 as well; those of
+ * the other core functions are split into one scalar per component.
  *
  *
  * Example #1:
- *     float3 val = scale * sample(baseImg, pos + off.xy).rgb;
+ *     float4 val = scale * sample(baseImg, pos0 + off.xy);
  * ==>
- *     float sample_res_r, sample_res_g, sample_res_b;
+ *     __m128 sample_res_v;
  *     {
- *         float pos_x_tmp = pos_x + off_x;
- *         float pos_y_tmp = pos_y + off_y;
- *         int baseImg_tmp =
- *             baseImg[(int)(pos_y_tmp*srch*srcscan) + (int)(pos_x_tmp*srcw)];
- *         sample_res_r = (((baseImg_tmp >>  16) & 0xff) / 255f);
- *         sample_res_g = (((baseImg_tmp >>   8) & 0xff) / 255f);
- *         sample_res_b = (((baseImg_tmp       ) & 0xff) / 255f);
+ *         float loc_tmp_x = pos0_x + off_x;
+ *         float loc_tmp_y = pos0_y + off_y;
+ *         int baseImg_tmp = ...;
+ *         ...
+ *         sample_res_v = sse_swizzle<2, 1, 0, 3>(baseImg_tmpv);
  *     }
- *     float val_r = scale * sample_res_r;
- *     float val_g = scale * sample_res_g;
- *     float val_b = scale * sample_res_b;
+ *     __m128 val = _mm_mul_ps(_mm_set1_ps(scale), sample_res_v);
  *
  * Example #2:
- *     float val = scale * clamp(foo, 0.0, 1.0);
+ *     float3 val = scale * clamp(foo.rgb, 0.0, 1.0);
  * ==>
- *     float clamp_res;
+ *     __m128 clamp_res_v;
  *     {
- *         float val_tmp = foo;
+ *         __m128 val_tmp = foo;
  *         float min_tmp = 0.0f;
  *         float max_tmp = 1.0f;
- *         if (val_tmp < min_tmp) clamp_res = min_tmp;
- *         else if (val_tmp > max_tmp) clamp_res = max_tmp;
- *         else clamp_res = val_tmp;
+ *         ...
+ *         clamp_res_v = ...;
  *     }
- *     float val = scale * clamp_res;
+ *     __m128 val = _mm_mul_ps(_mm_set1_ps(scale), clamp_res_v);
+ *
+ * The argument expressions are translated by an SSETreeScanner.
  */
 class SSECallScanner extends TreeScanner {
+    private final SSEBackend backend;
     private StringBuilder sb;
     private boolean inCallExpr = false;
     private Set<Integer> selectedFields = null;
-    private boolean inFieldSelect = false;
-    private char selectedField = 'x';
-    private boolean inVectorOp = false;
-    private int vectorIndex = 0;
+
+    SSECallScanner(SSEBackend backend) {
+        this.backend = backend;
+    }
 
     private void output(String s) {
         if (sb == null) {
@@ -146,13 +132,24 @@ class SSECallScanner extends TreeScanner {
     @Override
     public void visitCallExpr(CallExpr e) {
         if (inCallExpr) {
-            throw new InternalError("Nested function calls not yet supported");
+            // these are moved out of the statement by CallLifter
+            throw new InternalError("Nested function calls not supported");
         }
 
         Function func = e.getFunction();
         Type t = func.getReturnType();
         String vtype = t.getBaseType().toString();
         String vname = func.getName();
+        FuncImpl impl = SSEFuncImpls.get(func);
+        List<Expr> argExprs = e.getParams();
+        if (backend.isUncheckedSample(argExprs)) {
+            String index = backend.getSteppedIndex(argExprs);
+            impl = (index != null) ? SSEFuncImpls.getStepped(index) : SSEFuncImpls.getUnchecked(func);
+        }
+        // the params of the user-defined functions are handled like
+        // local variables
+        boolean packedImpl = (impl == null) || SSEFuncImpls.isPacked(func);
+
         Set<Integer> fields = selectedFields;
         if (t.isVector()) {
             if (fields == null) {
@@ -162,34 +159,37 @@ class SSECallScanner extends TreeScanner {
                 }
             }
         }
-        if (!SSEBackend.isResultVarDeclared(vname)) {
-            // only declare result variables if they haven't been already
-            // TODO: there's a bug here; suppose a function like
-            // min(float,float) is inlined, then later we inline
-            // min(float3,float3), the second time we'll think we already have
-            // declared the result variables, but min_res_y/z won't be there...
-            SSEBackend.declareResultVar(vname);
-            if (t.isVector()) {
-                output(vtype + " ");
-                boolean first = true;
-                for (Integer f : fields) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        output(", ");
-                    }
-                    output(vname + "_res" + getSuffix(f));
-                }
-                output(";\n");
-            } else {
-                output(vtype + " " + vname + "_res;\n");
+        // only declare the result variables that haven't been already (the
+        // same function may be called with a different number of components,
+        // e.g. min(float,float) and min(float2,float2), or with a different
+        // field selection)
+        List<String> rnames = new ArrayList<String>();
+        if (isPacked(t)) {
+            vtype = "__m128";
+            rnames.add(getPackedResultName(vname));
+        } else if (t.isVector()) {
+            for (Integer f : fields) {
+                rnames.add(vname + "_res" + getSuffix(f));
             }
+        } else {
+            rnames.add(vname + "_res");
+        }
+        boolean first = true;
+        for (String rname : rnames) {
+            if (!backend.isResultVarDeclared(rname)) {
+                backend.declareResultVar(rname);
+                output(first ? vtype + " " : ", ");
+                output(rname);
+                first = false;
+            }
+        }
+        if (!first) {
+            output(";\n");
         }
 
         inCallExpr = true;
         output("{\n");
         List<Param> params = func.getParams();
-        List<Expr> argExprs = e.getParams();
         for (int i = 0; i < params.size(); i++) {
             Param param = params.get(i);
             String pname = param.getName();
@@ -199,27 +199,30 @@ class SSECallScanner extends TreeScanner {
                 // skip these for now
                 continue;
             }
-            if (ptype.isVector()) {
-                inVectorOp = true;
+            // check for nested calls before translating the argument
+            scan(argExprs.get(i));
+            SSETreeScanner scanner = new SSETreeScanner(backend);
+            if (isPacked(ptype) && packedImpl) {
+                output("__m128 " + pname + "_tmp = ");
+                output(scanner.getPacked(argExprs.get(i)));
+                output(";\n");
+            } else if (ptype.isVector()) {
                 for (int j = 0; j < ptype.getNumFields(); j++) {
-                    vectorIndex = j;
                     output(pbasetype.toString());
                     output(" ");
                     output(pname + "_tmp" + getSuffix(j) + " = ");
-                    scan(argExprs.get(i));
+                    output(scanner.getComponent(argExprs.get(i), j));
                     output(";\n");
                 }
-                inVectorOp = false;
             } else {
                 output(pbasetype.toString());
                 output(" ");
                 output(pname + "_tmp = ");
-                scan(argExprs.get(i));
+                output(scanner.getComponent(argExprs.get(i), 0));
                 output(";\n");
             }
         }
 
-        FuncImpl impl = SSEFuncImpls.get(func);
         if (impl != null) {
             // core (built-in) function
             String preamble = impl.getPreamble(argExprs);
@@ -227,7 +230,22 @@ class SSECallScanner extends TreeScanner {
                 output(preamble);
             }
 
-            if (t.isVector()) {
+            if (isPacked(t)) {
+                output(getPackedResultName(vname) + " = ");
+                if (packedImpl) {
+                    output(impl.toString(0, argExprs));
+                } else {
+                    output("_mm_setr_ps(");
+                    for (int i = 0; i < 4; i++) {
+                        if (i > 0) {
+                            output(",\n    ");
+                        }
+                        output(i < t.getNumFields() ? impl.toString(i, argExprs) : "0.f");
+                    }
+                    output(")");
+                }
+                output(";\n");
+            } else if (t.isVector()) {
                 for (Integer f : fields) {
                     output(vname + "_res" + getSuffix(f) + " = ");
                     output(impl.toString(f, argExprs));
@@ -240,8 +258,8 @@ class SSECallScanner extends TreeScanner {
             }
         } else {
             // user-defined function
-            SSETreeScanner scanner = new SSETreeScanner(func.getName());
-            scanner.scan(SSEBackend.getFuncDef(func.getName()).getStmt());
+            SSETreeScanner scanner = new SSETreeScanner(backend, func.getName());
+            scanner.scan(backend.getFuncDef(func.getName()).getStmt());
             output(scanner.getResult());
         }
 
@@ -249,49 +267,10 @@ class SSECallScanner extends TreeScanner {
         inCallExpr = false;
     }
 
-    @Override
-    public void visitArrayAccessExpr(ArrayAccessExpr e) {
-        if (inCallExpr) {
-            if (e.getExpr() instanceof VariableExpr &&
-                e.getIndex() instanceof VariableExpr)
-            {
-                VariableExpr ve = (VariableExpr)e.getExpr();
-                VariableExpr ie = (VariableExpr)e.getIndex();
-                output(ve.getVariable().getName());
-                output("_arr[" + ie.getVariable().getName());
-                output(" * " + ve.getVariable().getType().getNumFields());
-                output(" + " + getFieldIndex(selectedField) + "]");
-            } else {
-                throw new InternalError("Array access only supports variable expr/index (for now)");
-            }
-        } else {
-            super.visitArrayAccessExpr(e);
-        }
-    }
-
-    @Override
-    public void visitBinaryExpr(BinaryExpr e) {
-        if (inCallExpr) {
-            scan(e.getLeft());
-            output(" " + e.getOp() + " ");
-            scan(e.getRight());
-        } else {
-            super.visitBinaryExpr(e);
-        }
-    }
-
     @Override
     public void visitFieldSelectExpr(FieldSelectExpr e) {
         if (inCallExpr) {
-            if (e.getFields().length() == 1) {
-                selectedField = e.getFields().charAt(0);
-            } else {
-                int index = inVectorOp ? vectorIndex : 0;
-                selectedField = e.getFields().charAt(index);
-            }
-            inFieldSelect = true;
-            scan(e.getExpr());
-            inFieldSelect = false;
+            super.visitFieldSelectExpr(e);
         } else {
             selectedFields = getFieldSet(e.getFields());
             super.visitFieldSelectExpr(e);
@@ -306,66 +285,4 @@ class SSECallScanner extends TreeScanner {
         }
         return fieldSet;
     }
-
-    @Override
-    public void visitLiteralExpr(LiteralExpr e) {
-        if (inCallExpr) {
-            output(e.getValue().toString());
-            if (e.getValue() instanceof Float) {
-                output("f");
-            }
-        } else {
-            super.visitLiteralExpr(e);
-        }
-    }
-
-    @Override
-    public void visitParenExpr(ParenExpr e) {
-        if (inCallExpr) {
-            output("(");
-            scan(e.getExpr());
-            output(")");
-        } else {
-            super.visitParenExpr(e);
-        }
-    }
-
-    @Override
-    public void visitUnaryExpr(UnaryExpr e) {
-        if (inCallExpr) {
-            output(e.getOp().toString());
-            scan(e.getExpr());
-        } else {
-            super.visitUnaryExpr(e);
-        }
-    }
-
-    @Override
-    public void visitVariableExpr(VariableExpr e) {
-        if (inCallExpr) {
-            Variable var = e.getVariable();
-            output(var.getName());
-            if (var.isParam()) {
-                output("_tmp");
-            }
-            if (var.getType().isVector()) {
-                if (inFieldSelect) {
-                    output(getSuffix(getFieldIndex(selectedField)));
-                } else if (inVectorOp) {
-                    output(getSuffix(vectorIndex));
-                } else {
-                    throw new InternalError("TBD");
-                }
-            }
-        } else {
-            super.visitVariableExpr(e);
-        }
-    }
-
-    @Override
-    public void visitVectorCtorExpr(VectorCtorExpr e) {
-        // TODO: this will likely work for simple variables and literals,
-        // but we need something more for embedded function calls, etc...
-        scan(e.getParams().get(vectorIndex));
-    }
 }
@@ -27,8 +27,10 @@ package com.sun.scenario.effect.compiler.backend.sw.sse;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import com.sun.scenario.effect.compiler.model.CoreSymbols;
 import com.sun.scenario.effect.compiler.model.FuncImpl;
 import com.sun.scenario.effect.compiler.model.Function;
@@ -45,31 +47,65 @@ import static com.sun.scenario.effect.compiler.model.Types.*;
 class SSEFuncImpls {
 
     private static Map<Function, FuncImpl> funcs = new HashMap<Function, FuncImpl>();
+    private static Map<Function, FuncImpl> uncheckedFuncs = new HashMap<Function, FuncImpl>();
+    private static Set<Function> packedFuncs = new HashSet<Function>();
 
     static FuncImpl get(Function func) {
         return funcs.get(func);
     }
 
+    /**
+     * Returns true if the implementation of the given function takes its
+     * float3 and float4 params (as x_tmp etc.) in an __m128, and returns
+     * the whole result (a float3 or float4 one also as an __m128) from a
+     * single call to toString(0, params).
+     */
+    static boolean isPacked(Function func) {
+        return packedFuncs.contains(func);
+    }
+
+    /**
+     * Returns the implementation to use where the location passed to
+     * sample() is known to be inside the image (see
+     * SSEBackend.isUncheckedSample()), or null if the function has none.
+     */
+    static FuncImpl getUnchecked(Function func) {
+        return uncheckedFuncs.get(func);
+    }
+
+    /**
+     * Returns the implementation of sample(sampler, float2) that reads the
+     * texel at the index stepped along the row in the variables with the
+     * given prefix (see SSEBackend.getSteppedIndex()).
+     */
+    static FuncImpl getStepped(String index) {
+        return newSampleImpl(SAMPLER, true, index);
+    }
+
     static {
         // float4 sample(sampler s, float2 loc)
-        declareFunctionSample(SAMPLER);
+        declareFunctionSample(SAMPLER, false);
+        declareFunctionSample(SAMPLER, true);
 
         // float4 sample(lsampler s, float2 loc)
-        declareFunctionSample(LSAMPLER);
+        declareFunctionSample(LSAMPLER, false);
 
         // float4 sample(fsampler s, float2 loc)
-        declareFunctionSample(FSAMPLER);
+        declareFunctionSample(FSAMPLER, false);
 
         // int intcast(float x)
         declareFunctionIntCast();
 
         // <ftype> min(<ftype> x, <ftype> y)
         // <ftype> min(<ftype> x, float y)
-        declareOverloadsMinMax("min", "((x_tmp$1 < y_tmp$2) ? x_tmp$1 : y_tmp$2)");
+        // (_mm_min_ps(a, b) is (a < b) ? a : b, even for NaNs)
+        declareOverloadsMinMax("min", "((x_tmp$1 < y_tmp$2) ? x_tmp$1 : y_tmp$2)",
+                               "_mm_min_ps(x_tmp, $2)");
 
         // <ftype> max(<ftype> x, <ftype> y)
         // <ftype> max(<ftype> x, float y)
-        declareOverloadsMinMax("max", "((x_tmp$1 > y_tmp$2) ? x_tmp$1 : y_tmp$2)");
+        declareOverloadsMinMax("max", "((x_tmp$1 > y_tmp$2) ? x_tmp$1 : y_tmp$2)",
+                               "_mm_max_ps(x_tmp, $2)");
 
         // <ftype> clamp(<ftype> val, <ftype> min, <ftype> max)
         // <ftype> clamp(<ftype> val, float min, float max)
@@ -80,38 +116,39 @@ class SSEFuncImpls {
         declareOverloadsSmoothstep();
 
         // <ftype> abs(<ftype> x)
-        declareOverloadsSimple("abs", "fabs(x_tmp$1)");
+        declareOverloadsSimple("abs", "fabs(x_tmp$1)",
+                               "_mm_andnot_ps(_mm_set1_ps(-0.f), x_tmp)");
 
         // <ftype> floor(<ftype> x)
-        declareOverloadsSimple("floor", "floor(x_tmp$1)");
+        declareOverloadsSimple("floor", "floor(x_tmp$1)", null);
 
         // <ftype> ceil(<ftype> x)
-        declareOverloadsSimple("ceil", "ceil(x_tmp$1)");
+        declareOverloadsSimple("ceil", "ceil(x_tmp$1)", null);
 
         // <ftype> fract(<ftype> x)
-        declareOverloadsSimple("fract", "(x_tmp$1 - floor(x_tmp$1))");
+        declareOverloadsSimple("fract", "(x_tmp$1 - floor(x_tmp$1))", null);
 
         // <ftype> sign(<ftype> x)
-        declareOverloadsSimple("sign", "((x_tmp$1 < 0.f) ? -1.f : (x_tmp$1 > 0.f) ? 1.f : 0.f)");
+        declareOverloadsSimple("sign", "((x_tmp$1 < 0.f) ? -1.f : (x_tmp$1 > 0.f) ? 1.f : 0.f)", null);
 
         // <ftype> sqrt(<ftype> x)
-        declareOverloadsSimple("sqrt", "sqrt(x_tmp$1)");
+        declareOverloadsSimple("sqrt", "sqrt(x_tmp$1)", "_mm_sqrt_ps(x_tmp)");
 
         // <ftype> sin(<ftype> x)
-        declareOverloadsSimple("sin", "sin(x_tmp$1)");
+        declareOverloadsSimple("sin", "sin(x_tmp$1)", null);
 
         // <ftype> cos(<ftype> x)
-        declareOverloadsSimple("cos", "cos(x_tmp$1)");
+        declareOverloadsSimple("cos", "cos(x_tmp$1)", null);
 
         // <ftype> tan(<ftype> x)
-        declareOverloadsSimple("tan", "tan(x_tmp$1)");
+        declareOverloadsSimple("tan", "tan(x_tmp$1)", null);
 
         // <ftype> pow(<ftype> x, <ftype> y)
         declareOverloadsSimple2("pow", "pow(x_tmp$1, y_tmp$2)");
 
         // <ftype> mod(<ftype> x, <ftype> y)
         // <ftype> mod(<ftype> x, float y)
-        declareOverloadsMinMax("mod", "(x_tmp$1 % y_tmp$2)");
+        declareOverloadsMinMax("mod", "(x_tmp$1 % y_tmp$2)", null);
 
         // float dot(<ftype> x, <ftype> y)
         declareOverloadsDot();
@@ -127,10 +164,10 @@ class SSEFuncImpls {
         declareOverloadsNormalize();
 
         // <ftype> ddx(<ftype> p)
-        declareOverloadsSimple("ddx", "<ddx() not implemented for sw backends>");
+        declareOverloadsSimple("ddx", "<ddx() not implemented for sw backends>", null);
 
         // <ftype> ddy(<ftype> p)
-        declareOverloadsSimple("ddy", "<ddy() not implemented for sw backends>");
+        declareOverloadsSimple("ddy", "<ddy() not implemented for sw backends>", null);
 
         // <ftype> fma(<ftype> x, <ftype> y, <ftype> z)
         declareOverloadsSimple3("fma", "fma(x_tmp$1, y_tmp$2, z_tmp$3)");
@@ -146,16 +183,33 @@ class SSEFuncImpls {
         funcs.put(f, impl);
     }
 
+    private static void declarePackedFunction(FuncImpl impl,
+                                              String name, Type... ptypes)
+    {
+        declareFunction(impl, name, ptypes);
+        packedFuncs.add(CoreSymbols.getFunction(name, Arrays.asList(ptypes)));
+    }
+
     /**
      * Used to declare sample function:
      *   float4 sample([l,f]sampler s, float2 loc)
      */
-    private static void declareFunctionSample(final Type type) {
-        FuncImpl fimpl = new FuncImpl() {
+    private static void declareFunctionSample(Type type, boolean unchecked) {
+        FuncImpl fimpl = newSampleImpl(type, unchecked, null);
+        if (unchecked) {
+            uncheckedFuncs.put(CoreSymbols.getFunction("sample", Arrays.asList(type, FLOAT2)), fimpl);
+        } else {
+            declarePackedFunction(fimpl, "sample", type, FLOAT2);
+        }
+    }
+
+    private static FuncImpl newSampleImpl(final Type type, final boolean unchecked,
+                                          final String index)
+    {
+        return new FuncImpl() {
             @Override
             public String getPreamble(List<Expr> params) {
                 String s = getSamplerName(params);
-                // TODO: this bounds checking is way too costly...
                 String p = getPosName(params);
                 if (type == LSAMPLER) {
                     return
@@ -168,38 +222,56 @@ class SSEFuncImpls {
                                     "        " + p + "w, " + p + "h, " + p + "scan,\n" +
                                     "        " + s + "_vals);\n";
                 } else {
-                    return
+                    String fetch;
+                    if (index != null) {
+                        // the row offset and the 32.32 fixed-point column
+                        // are stepped by SSEBackend
+                        fetch =
+                            "int " + s + "_tmp =\n" +
+                            "    " + s + "[" + index + "_row + (int)(" + index + "_col >> 32)];\n";
+                    } else if (unchecked) {
+                        // SSEBackend only uses this in the part of the row
+                        // where the location is known to be inside the image
+                        fetch =
+                            "int " + s + "_tmp =\n" +
+                            "    " + s + "[(int)(loc_tmp_y*" + p + "h)*" + p + "scan +\n" +
+                            "        (int)(loc_tmp_x*" + p + "w)];\n";
+                    } else {
+                        fetch =
                             "int " + s + "_tmp;\n" +
-                                    "if (loc_tmp_x >= 0 && loc_tmp_y >= 0) {\n" +
-                                    "    int iloc_tmp_x = (int)(loc_tmp_x*" + p + "w);\n" +
-                                    "    int iloc_tmp_y = (int)(loc_tmp_y*" + p + "h);\n" +
-                                    "    jboolean out =\n" +
-                                    "        iloc_tmp_x >= " + p + "w ||\n" +
-                                    "        iloc_tmp_y >= " + p + "h;\n" +
-                                    "    " + s + "_tmp = out ? 0 :\n" +
-                                    "        " + s + "[iloc_tmp_y*" + p + "scan + iloc_tmp_x];\n" +
-                                    "} else {\n" +
-                                    "    " + s + "_tmp = 0;\n" +
-                                    "}\n";
+                            "if (loc_tmp_x >= 0 && loc_tmp_y >= 0) {\n" +
+                            "    int iloc_tmp_x = (int)(loc_tmp_x*" + p + "w);\n" +
+                            "    int iloc_tmp_y = (int)(loc_tmp_y*" + p + "h);\n" +
+                            "    jboolean out =\n" +
+                            "        iloc_tmp_x >= " + p + "w ||\n" +
+                            "        iloc_tmp_y >= " + p + "h;\n" +
+                            "    " + s + "_tmp = out ? 0 :\n" +
+                            "        " + s + "[iloc_tmp_y*" + p + "scan + iloc_tmp_x];\n" +
+                            "} else {\n" +
+                            "    " + s + "_tmp = 0;\n" +
+                            "}\n";
+                    }
+                    return
+                        fetch +
+                        // widen the 4 bytes of the pixel to
+                        // floats and normalize them all at once
+                        "__m128i " + s + "_tmpi = _mm_cvtsi32_si128(" + s + "_tmp);\n" +
+                        s + "_tmpi = _mm_unpacklo_epi8(" + s + "_tmpi, _mm_setzero_si128());\n" +
+                        s + "_tmpi = _mm_unpacklo_epi16(" + s + "_tmpi, _mm_setzero_si128());\n" +
+                        "__m128 " + s + "_tmpv =\n" +
+                        "    _mm_div_ps(_mm_cvtepi32_ps(" + s + "_tmpi), _mm_set1_ps(255.f));\n";
                 }
             }
             public String toString(int i, List<Expr> params) {
                 String s = getSamplerName(params);
                 if (type == LSAMPLER || type == FSAMPLER) {
-                    return (i < 0 || i > 3) ? null : s + "_vals[" + i + "]";
+                    // (the values were just stored one at a time, so a
+                    // vector load of them would stall)
+                    return "_mm_setr_ps(" + s + "_vals[0], " + s + "_vals[1], " +
+                        s + "_vals[2], " + s + "_vals[3])";
                 } else {
-                    switch (i) {
-                        case 0:
-                            return "(((" + s + "_tmp >> 16) & 0xff) / 255.f)";
-                        case 1:
-                            return "(((" + s + "_tmp >>  8) & 0xff) / 255.f)";
-                        case 2:
-                            return "(((" + s + "_tmp      ) & 0xff) / 255.f)";
-                        case 3:
-                            return "(((" + s + "_tmp >> 24) & 0xff) / 255.f)";
-                        default:
-                            return null;
-                    }
+                    // the lanes are in memory (BGRA) order
+                    return "sse_swizzle<2, 1, 0, 3>(" + s + "_tmpv)";
                 }
             }
             private String getSamplerName(List<Expr> params) {
@@ -211,7 +283,6 @@ class SSEFuncImpls {
                 return "src" + e.getVariable().getReg();
             }
         };
-        declareFunction(fimpl, "sample", type, FLOAT2);
     }
 
     /**
@@ -226,9 +297,17 @@ class SSEFuncImpls {
     /**
      * Used to declare simple functions of the following form:
      *   <ftype> name(<ftype> x)
+     *
+     * The packedPattern, if any, is used for the float3 and float4 variants.
      */
-    private static void declareOverloadsSimple(String name, final String pattern) {
+    private static void declareOverloadsSimple(String name, final String pattern,
+                                               final String packedPattern)
+    {
         for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            if (packedPattern != null && SSEBackend.isPacked(type)) {
+                declarePackedFunction((i, params) -> packedPattern, name, type);
+                continue;
+            }
             final boolean useSuffix = (type != FLOAT);
             FuncImpl fimpl = (i, params) -> {
                 String sfx = useSuffix ? getSuffix(i) : "";
@@ -288,6 +367,15 @@ class SSEFuncImpls {
         final String pattern = "x_tmp$1 / denom";
         for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
             int n = type.getNumFields();
+            if (SSEBackend.isPacked(type)) {
+                String packedPreamble =
+                    "__m128 xx_tmp = _mm_mul_ps(x_tmp, x_tmp);\n" +
+                    "float denom = sqrt(" + getLaneSum("xx_tmp", n) + ");\n";
+                declarePackedFunction(
+                    new PackedFuncImpl(packedPreamble, "_mm_div_ps(x_tmp, _mm_set1_ps(denom))", ""),
+                    name, type);
+                continue;
+            }
             final String preamble;
             if (n == 1) {
                 preamble = "float denom = x_tmp;\n";
@@ -324,6 +412,14 @@ class SSEFuncImpls {
         final String name = "dot";
         for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
             int n = type.getNumFields();
+            if (SSEBackend.isPacked(type)) {
+                // the products are summed in the same order as below
+                declarePackedFunction(
+                    new PackedFuncImpl("__m128 xy_tmp = _mm_mul_ps(x_tmp, y_tmp);\n",
+                                       getLaneSum("xy_tmp", n), ""),
+                    name, type, type);
+                continue;
+            }
             String s;
             if (n == 1) {
                 s = "(x_tmp * y_tmp)";
@@ -347,6 +443,15 @@ class SSEFuncImpls {
         final String name = "distance";
         for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
             int n = type.getNumFields();
+            if (SSEBackend.isPacked(type)) {
+                String packedPreamble =
+                    "__m128 d_tmp = _mm_sub_ps(x_tmp, y_tmp);\n" +
+                    "d_tmp = _mm_mul_ps(d_tmp, d_tmp);\n";
+                declarePackedFunction(
+                    new PackedFuncImpl(packedPreamble, "sqrt(" + getLaneSum("d_tmp", n) + ")", ""),
+                    name, type, type);
+                continue;
+            }
             String s;
             if (n == 1) {
                 s = "(x_tmp - y_tmp) * (x_tmp - y_tmp)";
@@ -369,9 +474,21 @@ class SSEFuncImpls {
      *
      * TODO: this is currently geared to simple functions like
      * min and max; we should make this more general...
+     *
+     * The packedPattern, if any, is used for the float3 and float4
+     * variants, with $2 replaced by the (broadcast) y param.
      */
-    private static void declareOverloadsMinMax(String name, final String pattern) {
+    private static void declareOverloadsMinMax(String name, final String pattern,
+                                               final String packedPattern)
+    {
         for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            if (packedPattern != null && SSEBackend.isPacked(type)) {
+                String vv = packedPattern.replace("$2", "y_tmp");
+                declarePackedFunction((i, params) -> vv, name, type, type);
+                String vf = packedPattern.replace("$2", "_mm_set1_ps(y_tmp)");
+                declarePackedFunction((i, params) -> vf, name, type, FLOAT);
+                continue;
+            }
             // declare (vectype,vectype) variants
             final boolean useSuffix = (type != FLOAT);
             FuncImpl fimpl = (i, params) -> {
@@ -409,8 +526,24 @@ class SSEFuncImpls {
         final String pattern =
                 "(val_tmp$1 < min_tmp$2) ? min_tmp$2 : \n" +
                         "(val_tmp$1 > max_tmp$2) ? max_tmp$2 : val_tmp$1";
+        // _mm_min_ps(max, val) is (val > max) ? max : val, and the lanes
+        // that are below the min are then replaced with it
+        final String packedPreamble =
+                "__m128 below_tmp = _mm_cmplt_ps(val_tmp, $2min_tmp$3);\n";
+        final String packedPattern =
+                "_mm_or_ps(_mm_and_ps(below_tmp, $2min_tmp$3),\n" +
+                "    _mm_andnot_ps(below_tmp, _mm_min_ps($2max_tmp$3, val_tmp)))";
 
         for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            if (SSEBackend.isPacked(type)) {
+                declarePackedFunction(
+                    new PackedFuncImpl(packedPreamble, packedPattern, ""),
+                    name, type, type, type);
+                declarePackedFunction(
+                    new PackedFuncImpl(packedPreamble, packedPattern, "_mm_set1_ps("),
+                    name, type, FLOAT, FLOAT);
+                continue;
+            }
             // declare (vectype,vectype,vectype) variants
             final boolean useSuffix = (type != FLOAT);
             FuncImpl fimpl = (i, params) -> {
@@ -488,8 +621,20 @@ class SSEFuncImpls {
         final String name = "mix";
         final String pattern =
                 "(x_tmp$1 * (1.0f - a_tmp$2) + y_tmp$1 * a_tmp$2)";
+        final String packedPattern =
+                "_mm_add_ps(_mm_mul_ps(x_tmp, _mm_sub_ps(_mm_set1_ps(1.0f), $2a_tmp$3)),\n" +
+                "    _mm_mul_ps(y_tmp, $2a_tmp$3))";
 
         for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            if (SSEBackend.isPacked(type)) {
+                declarePackedFunction(
+                    new PackedFuncImpl(null, packedPattern, ""),
+                    name, type, type, type);
+                declarePackedFunction(
+                    new PackedFuncImpl(null, packedPattern, "_mm_set1_ps("),
+                    name, type, type, FLOAT);
+                continue;
+            }
             // declare (vectype,vectype,vectype) variants
             final boolean useSuffix = (type != FLOAT);
             FuncImpl fimpl = (i, params) -> {
@@ -516,4 +661,41 @@ class SSEFuncImpls {
             declareFunction(fimpl, name, type, type, FLOAT);
         }
     }
+
+    /**
+     * Returns the sum of the first n lanes of the given __m128, added
+     * from the lowest lane up.
+     */
+    private static String getLaneSum(String v, int n) {
+        String s = "sse_get<0>(" + v + ")";
+        for (int i = 1; i < n; i++) {
+            s += " +\n    sse_get<" + i + ">(" + v + ")";
+        }
+        return s;
+    }
+
+    /**
+     * A packed implementation (see isPacked()) in which $2..$3 surrounds
+     * the params that are either float3/float4 or broadcast floats.
+     */
+    private static class PackedFuncImpl implements FuncImpl {
+        private final String preamble;
+        private final String pattern;
+
+        PackedFuncImpl(String preamble, String pattern, String broadcast) {
+            String end = broadcast.isEmpty() ? "" : ")";
+            this.preamble = (preamble == null) ? null :
+                preamble.replace("$2", broadcast).replace("$3", end);
+            this.pattern = pattern.replace("$2", broadcast).replace("$3", end);
+        }
+
+        @Override
+        public String getPreamble(List<Expr> params) {
+            return preamble;
+        }
+
+        public String toString(int i, List<Expr> params) {
+            return pattern;
+        }
+    }
 }
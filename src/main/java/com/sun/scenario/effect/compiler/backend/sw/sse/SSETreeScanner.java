@@ -25,30 +25,48 @@
 
 package com.sun.scenario.effect.compiler.backend.sw.sse;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
 import com.sun.scenario.effect.compiler.model.Function;
 import com.sun.scenario.effect.compiler.model.Type;
 import com.sun.scenario.effect.compiler.model.Variable;
 import com.sun.scenario.effect.compiler.tree.*;
 import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.getFieldIndex;
+import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.getPackedResultName;
 import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.getSuffix;
+import static com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend.isPacked;
 
 /**
+ * Translates the main function body (and the bodies of the functions
+ * inlined into it) into C code.
+ *
+ * The float3 and float4 local variables are held in an {@code __m128},
+ * with the x/r component in the lowest lane (the last lane of a float3 is
+ * unused), and the float3 and float4 expressions are evaluated on all of
+ * their components at once with SSE intrinsics.  The other vector types
+ * (and the uniform params) are split into one scalar per component, as
+ * are the expressions that use a single component of an {@code __m128},
+ * which is read with the {@code sse_get()} helper in the native glue.
  */
 class SSETreeScanner extends TreeScanner {
 
+    private final SSEBackend backend;
     private final String funcName;
-    private final StringBuilder sb = new StringBuilder();
+    private StringBuilder sb = new StringBuilder();
 
     private boolean inVectorOp = false;
     private int vectorIndex = 0;
     private boolean inFieldSelect = false;
     private char selectedField = 'x';
 
-    SSETreeScanner() {
-        this(null);
+    SSETreeScanner(SSEBackend backend) {
+        this(backend, null);
     }
 
-    SSETreeScanner(String funcName) {
+    SSETreeScanner(SSEBackend backend, String funcName) {
+        this.backend = backend;
         this.funcName = funcName;
     }
 
@@ -60,17 +78,295 @@ class SSETreeScanner extends TreeScanner {
         return (sb != null) ? sb.toString() : null;
     }
 
+    /**
+     * Returns the code for the given component of the given expression,
+     * as a float (or int or bool) scalar.
+     */
+    String getComponent(Expr e, int index) {
+        boolean savedVectorOp = inVectorOp;
+        int savedIndex = vectorIndex;
+        boolean savedFieldSelect = inFieldSelect;
+        inVectorOp = e.getResultType().isVector();
+        vectorIndex = index;
+        inFieldSelect = false;
+        String res = capture(e);
+        inVectorOp = savedVectorOp;
+        vectorIndex = savedIndex;
+        inFieldSelect = savedFieldSelect;
+        return res;
+    }
+
+    /**
+     * Returns the code for the given vector expression, as an
+     * {@code __m128}.
+     */
+    String getPacked(Expr e) {
+        Type t = e.getResultType();
+        if (isPacked(t)) {
+            if (e instanceof VariableExpr) {
+                Variable var = ((VariableExpr)e).getVariable();
+                if (isPacked(var)) {
+                    return getName(var);
+                }
+            } else if (e instanceof CallExpr) {
+                return getPackedResultName(((CallExpr)e).getFunction().getName());
+            } else if (e instanceof ParenExpr) {
+                return getPacked(((ParenExpr)e).getExpr());
+            } else if (e instanceof BinaryExpr) {
+                BinaryExpr be = (BinaryExpr)e;
+                if (be.getOp().isAssignment()) {
+                    throw new InternalError("Nested assignment to a vector not supported");
+                }
+                return getArithmetic(be.getOp(),
+                                     getOperand(be.getLeft()),
+                                     getOperand(be.getRight()));
+            } else if (e instanceof FieldSelectExpr) {
+                FieldSelectExpr fe = (FieldSelectExpr)e;
+                if (isPacked(fe.getExpr().getResultType())) {
+                    return getSwizzle(getPacked(fe.getExpr()), fe.getFields());
+                }
+            } else if (e instanceof VectorCtorExpr) {
+                // e.g. float4(0.0)
+                List<Expr> params = ((VectorCtorExpr)e).getParams();
+                if (Collections.frequency(params, params.get(0)) == params.size()) {
+                    return "_mm_set1_ps(" + getComponent(params.get(0), 0) + ")";
+                }
+                String res = getGathered(params);
+                if (res != null) {
+                    return res;
+                }
+            } else if (e instanceof ArrayAccessExpr && t.getNumFields() == 4) {
+                ArrayAccessExpr ae = (ArrayAccessExpr)e;
+                if (ae.getExpr() instanceof VariableExpr) {
+                    String name = ((VariableExpr)ae.getExpr()).getVariable().getName();
+                    if (ae.getIndex() instanceof LiteralExpr) {
+                        int index = (Integer)((LiteralExpr)ae.getIndex()).getValue();
+                        return "_mm_loadu_ps(&" + name + "_arr[" + (index * 4) + "])";
+                    } else if (ae.getIndex() instanceof VariableExpr) {
+                        String index = ((VariableExpr)ae.getIndex()).getVariable().getName();
+                        return "_mm_loadu_ps(&" + name + "_arr[" + index + " * 4])";
+                    }
+                }
+            }
+        }
+        // otherwise the components are evaluated one at a time
+        StringBuilder res = new StringBuilder("_mm_setr_ps(");
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                res.append(", ");
+            }
+            res.append(i < t.getNumFields() ? getComponent(e, i) : "0.f");
+        }
+        res.append(")");
+        return res.toString();
+    }
+
+    /**
+     * Returns the code for a vector constructor whose params are single
+     * components of at most two {@code __m128} variables, e.g.
+     * float4(rgb.r, rgb.g, rgb.b, c.a), or null if it isn't one.
+     */
+    private static String getGathered(List<Expr> params) {
+        String[] srcs = new String[2];
+        int[][] lanes = {{0, 1, 2, 3}, {0, 1, 2, 3}};
+        int[] mask = new int[4];
+        for (int i = 0; i < params.size(); i++) {
+            if (!(params.get(i) instanceof FieldSelectExpr)) {
+                return null;
+            }
+            FieldSelectExpr fe = (FieldSelectExpr)params.get(i);
+            String src;
+            if (fe.getExpr() instanceof VariableExpr &&
+                isPacked(((VariableExpr)fe.getExpr()).getVariable()))
+            {
+                src = getName(((VariableExpr)fe.getExpr()).getVariable());
+            } else if (fe.getExpr() instanceof CallExpr &&
+                       isPacked(fe.getExpr().getResultType()))
+            {
+                src = getPackedResultName(((CallExpr)fe.getExpr()).getFunction().getName());
+            } else {
+                return null;
+            }
+            int j = (srcs[0] == null || srcs[0].equals(src)) ? 0 : 1;
+            if (srcs[j] != null && !srcs[j].equals(src)) {
+                return null;
+            }
+            srcs[j] = src;
+            lanes[j][i] = getFieldIndex(fe.getFields().charAt(0));
+            mask[i] = j;
+        }
+        String res = getShuffle(srcs[0], lanes[0]);
+        if (srcs[1] != null) {
+            res = "sse_select<" + mask[0] + ", " + mask[1] + ", " + mask[2] + ", " + mask[3] + ">(" +
+                res + ", " + getShuffle(srcs[1], lanes[1]) + ")";
+        }
+        return res;
+    }
+
+    /**
+     * Returns the code for the given operand of a vector operation, as an
+     * {@code __m128}; float scalars are broadcast to all of the lanes.
+     */
+    private String getOperand(Expr e) {
+        if (e.getResultType().isVector()) {
+            return getPacked(e);
+        }
+        return "_mm_set1_ps(" + getComponent(e, 0) + ")";
+    }
+
+    /**
+     * Returns the code for the given expression, without adding it to the
+     * result of this scanner.
+     */
+    private String capture(Expr e) {
+        StringBuilder saved = sb;
+        sb = new StringBuilder();
+        scan(e);
+        String res = sb.toString();
+        sb = saved;
+        return res;
+    }
+
+    private static String getName(Variable var) {
+        return var.isParam() ? var.getName() + "_tmp" : var.getName();
+    }
+
+    private static String getArithmetic(BinaryOpType op, String l, String r) {
+        switch (op) {
+        case ADD:
+        case ADDEQ:
+            return "_mm_add_ps(" + l + ", " + r + ")";
+        case SUB:
+        case SUBEQ:
+            return "_mm_sub_ps(" + l + ", " + r + ")";
+        case MUL:
+        case MULEQ:
+            return "_mm_mul_ps(" + l + ", " + r + ")";
+        case DIV:
+        case DIVEQ:
+            return "_mm_div_ps(" + l + ", " + r + ")";
+        default:
+            throw new InternalError("Operator " + op + " not supported on float vectors");
+        }
+    }
+
+    /**
+     * Returns the given lane of the given {@code __m128}.
+     */
+    private static String getLane(String v, int i) {
+        return "sse_get<" + i + ">(" + v + ")";
+    }
+
+    /**
+     * Returns the given fields of the given {@code __m128}, in the lowest
+     * lanes of the result.
+     */
+    private static String getSwizzle(String v, String fields) {
+        int[] lanes = {0, 1, 2, 3};
+        for (int i = 0; i < fields.length(); i++) {
+            lanes[i] = getFieldIndex(fields.charAt(i));
+        }
+        return getShuffle(v, lanes);
+    }
+
+    private static String getShuffle(String v, int[] lanes) {
+        if (lanes[0] == 0 && lanes[1] == 1 && lanes[2] == 2 && lanes[3] == 3) {
+            return v;
+        }
+        return "sse_swizzle<" + lanes[0] + ", " + lanes[1] + ", " +
+            lanes[2] + ", " + lanes[3] + ">(" + v + ")";
+    }
+
+    /**
+     * Returns true if the given expression is an assignment to (some of
+     * the components of) a variable held in an {@code __m128}.
+     */
+    private static boolean isPackedAssignment(Expr e) {
+        if (!(e instanceof BinaryExpr) || !((BinaryExpr)e).getOp().isAssignment()) {
+            return false;
+        }
+        Expr target = ((BinaryExpr)e).getLeft();
+        if (target instanceof FieldSelectExpr) {
+            target = ((FieldSelectExpr)target).getExpr();
+        }
+        return target instanceof VariableExpr &&
+            isPacked(((VariableExpr)target).getVariable());
+    }
+
+    private String getPackedAssignment(BinaryExpr e) {
+        BinaryOpType op = e.getOp();
+        Expr target = e.getLeft();
+        Expr value = e.getRight();
+        if (target instanceof VariableExpr) {
+            String v = getName(((VariableExpr)target).getVariable());
+            if (op == BinaryOpType.EQ) {
+                return v + " = " + getPacked(value);
+            }
+            return v + " = " + getArithmetic(op, v, getOperand(value));
+        }
+
+        FieldSelectExpr fe = (FieldSelectExpr)target;
+        String v = getName(((VariableExpr)fe.getExpr()).getVariable());
+        String fields = fe.getFields();
+        String s;
+        if (fields.length() == 1) {
+            // the same scalar arithmetic as for the other vector types,
+            // broadcast to all of the lanes
+            s = getComponent(value, 0);
+            if (op != BinaryOpType.EQ) {
+                String sym = op.getSymbol();
+                s = getLane(v, getFieldIndex(fields.charAt(0))) + " " +
+                    sym.substring(0, sym.length() - 1) + " (" + s + ")";
+            }
+            s = "_mm_set1_ps(" + s + ")";
+        } else {
+            if (op == BinaryOpType.EQ) {
+                s = getPacked(value);
+            } else {
+                s = getArithmetic(op, getSwizzle(v, fields), getOperand(value));
+            }
+            // move the components to the lanes of the assigned fields
+            int[] lanes = {0, 1, 2, 3};
+            for (int i = 0; i < fields.length(); i++) {
+                lanes[getFieldIndex(fields.charAt(i))] = i;
+            }
+            s = getShuffle(s, lanes);
+        }
+        int[] mask = new int[4];
+        for (int i = 0; i < fields.length(); i++) {
+            mask[getFieldIndex(fields.charAt(i))] = 1;
+        }
+        if (mask[0] + mask[1] + mask[2] + mask[3] == 4) {
+            return v + " = " + s;
+        }
+        return v + " = sse_select<" + mask[0] + ", " + mask[1] + ", " +
+            mask[2] + ", " + mask[3] + ">(" + v + ", " + s + ")";
+    }
+
     @Override
     public void visitArrayAccessExpr(ArrayAccessExpr e) {
         if (e.getExpr() instanceof VariableExpr &&
-            e.getIndex() instanceof VariableExpr)
+            (e.getIndex() instanceof VariableExpr ||
+             e.getIndex() instanceof LiteralExpr))
         {
             VariableExpr ve = (VariableExpr)e.getExpr();
-            VariableExpr ie = (VariableExpr)e.getIndex();
+            int numFields = ve.getVariable().getType().getNumFields();
+            int field = 0;
+            if (inFieldSelect) {
+                field = getFieldIndex(selectedField);
+            } else if (inVectorOp && numFields > 1) {
+                field = vectorIndex;
+            }
             output(ve.getVariable().getName());
-            output("_arr[" + ie.getVariable().getName());
-            output(" * " + ve.getVariable().getType().getNumFields());
-            output(" + " + getFieldIndex(selectedField) + "]");
+            if (e.getIndex() instanceof LiteralExpr) {
+                // a constant index, e.g. in an unrolled loop
+                int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                output("_arr[" + (index * numFields + field) + "]");
+            } else {
+                output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                output(" * " + numFields);
+                output(" + " + field + "]");
+            }
         } else {
             throw new InternalError("Array access only supports variable expr/index (for now)");
         }
@@ -78,6 +374,10 @@ class SSETreeScanner extends TreeScanner {
 
     @Override
     public void visitBinaryExpr(BinaryExpr e) {
+        if (isPackedAssignment(e)) {
+            output(getPackedAssignment(e));
+            return;
+        }
         scan(e.getLeft());
         output(" " + e.getOp() + " ");
         scan(e.getRight());
@@ -91,24 +391,40 @@ class SSETreeScanner extends TreeScanner {
     @Override
     public void visitCallExpr(CallExpr e) {
         Function func = e.getFunction();
+        Type t = func.getReturnType();
+        if (isPacked(t)) {
+            output(getLane(getPackedResultName(func.getName()), getLaneIndex()));
+            return;
+        }
         output(func.getName() + "_res");
-        if (func.getReturnType().isVector()) {
-            // TODO: this needs more thought
-            if (inFieldSelect) {
-                output(getSuffix(getFieldIndex(selectedField)));
-            } else if (inVectorOp) {
-                output(getSuffix(vectorIndex));
-            } else {
-                throw new InternalError("TBD");
-            }
+        if (t.isVector()) {
+            output(getSuffix(getLaneIndex()));
+        }
+    }
+
+    /**
+     * Returns the index of the component that is being evaluated.
+     */
+    private int getLaneIndex() {
+        // TODO: this needs more thought
+        if (inFieldSelect) {
+            return getFieldIndex(selectedField);
+        } else if (inVectorOp) {
+            return vectorIndex;
+        } else {
+            throw new InternalError("TBD");
         }
     }
 
     @Override
     public void visitCompoundStmt(CompoundStmt s) {
+        // the result variables declared in this block (as part of an
+        // inlined call) go out of scope at the end of it
+        Set<String> resultVars = backend.saveResultVars();
         output("{\n");
         super.visitCompoundStmt(s);
         output("}\n");
+        backend.restoreResultVars(resultVars);
     }
 
     @Override
@@ -142,7 +458,11 @@ class SSETreeScanner extends TreeScanner {
         outputPreambles(expr);
 
         Type t = expr.getResultType();
-        if (t.isVector()) {
+        if (isPackedAssignment(expr)) {
+            // all of the assigned components at once
+            scan(s.getExpr());
+            output(";\n");
+        } else if (t.isVector()) {
             inVectorOp = true;
             for (int i = 0; i < t.getNumFields(); i++) {
                 vectorIndex = i;
@@ -187,13 +507,13 @@ class SSETreeScanner extends TreeScanner {
         } else {
             // TODO: this is a hacky approach to saving func defs, which
             // will be inlined later at point of use)...
-            SSEBackend.putFuncDef(d);
+            backend.putFuncDef(d);
         }
     }
 
     @Override
     public void visitGlueBlock(GlueBlock b) {
-        SSEBackend.addGlueBlock(b.getText());
+        backend.addGlueBlock(b.getText());
     }
 
     @Override
@@ -226,8 +546,12 @@ class SSETreeScanner extends TreeScanner {
             throw new RuntimeException("Return statement not expected");
         }
 
+        outputPreambles(expr);
+
         Type t = expr.getResultType();
-        if (t.isVector()) {
+        if (isPacked(t)) {
+            output(getPackedResultName(funcName) + " = " + getPacked(expr) + ";\n");
+        } else if (t.isVector()) {
             inVectorOp = true;
             for (int i = 0; i < t.getNumFields(); i++) {
                 vectorIndex = i;
@@ -273,7 +597,12 @@ class SSETreeScanner extends TreeScanner {
         outputPreambles(d);
 
         Type t = var.getType();
-        if (t.isVector()) {
+        if (isPacked(var)) {
+            Expr init = d.getInit();
+            output("__m128 " + var.getName() + " = ");
+            output(init != null ? getPacked(init) : "_mm_setzero_ps()");
+            output(";\n");
+        } else if (t.isVector()) {
             inVectorOp = true;
             for (int i = 0; i < t.getNumFields(); i++) {
                 output(t.getBaseType().toString() + " ");
@@ -301,18 +630,13 @@ class SSETreeScanner extends TreeScanner {
     @Override
     public void visitVariableExpr(VariableExpr e) {
         Variable var = e.getVariable();
-        output(var.getName());
-        if (var.isParam()) {
-            output("_tmp");
+        if (isPacked(var)) {
+            output(getLane(getName(var), getLaneIndex()));
+            return;
         }
+        output(getName(var));
         if (var.getType().isVector()) {
-            if (inFieldSelect) {
-                output(getSuffix(getFieldIndex(selectedField)));
-            } else if (inVectorOp) {
-                output(getSuffix(vectorIndex));
-            } else {
-                throw new InternalError("TBD");
-            }
+            output(getSuffix(getLaneIndex()));
         }
     }
 
@@ -332,7 +656,7 @@ class SSETreeScanner extends TreeScanner {
     }
 
     private void outputPreambles(Tree tree) {
-        SSECallScanner scanner = new SSECallScanner();
+        SSECallScanner scanner = new SSECallScanner(backend);
         scanner.scan(tree);
         String res = scanner.getResult();
         if (res != null) {
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.vector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.JSLParser;
+import com.sun.scenario.effect.compiler.backend.GlueTemplates;
+import com.sun.scenario.effect.compiler.model.*;
+import com.sun.scenario.effect.compiler.tree.FuncDef;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.TreeScanner;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import org.antlr.stringtemplate.StringTemplate;
+
+/**
+ * Generates a software peer that uses the incubating Java Vector API
+ * ({@code jdk.incubator.vector}) to compute a full vector of destination
+ * pixels per iteration of the inner loop.  The generated class must be
+ * compiled and run with {@code --add-modules jdk.incubator.vector}.
+ */
+public class JSWVBackend extends TreeScanner {
+
+    private final JSLParser parser;
+    private final String body;
+    private final List<VarDecl> invariants;
+    private final String invariantDecls;
+
+    public JSWVBackend(JSLParser parser, ProgramUnit program) {
+        this.parser = parser;
+
+        program = new CallLifter(parser.getSymbolTable()).lift(program);
+        InvariantHoister hoister = new InvariantHoister(parser.getSymbolTable());
+        program = hoister.hoist(program);
+        program = new CommonSubexprEliminator(parser.getSymbolTable()).eliminate(program);
+
+        JSWVTreeScanner scanner = new JSWVTreeScanner(this);
+        scanner.scan(program);
+        this.body = scanner.getResult();
+
+        // the hoisted values are computed once, before the per-pixel loop
+        this.invariants = hoister.getInvariants();
+        JSWVTreeScanner invScanner = new JSWVTreeScanner(this);
+        for (VarDecl d : invariants) {
+            invScanner.scan(d);
+        }
+        this.invariantDecls = invScanner.getResult();
+    }
+
+    public final String getGenCode(String effectName,
+                                   String peerName,
+                                   String genericsName,
+                                   String interfaceName)
+    {
+        Map<String, Variable> vars = parser.getSymbolTable().getGlobalVariables();
+        StringBuilder genericsDecl = new StringBuilder();
+        StringBuilder interfaceDecl = new StringBuilder();
+        StringBuilder constants = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
+        StringBuilder samplers = new StringBuilder();
+        StringBuilder cleanup = new StringBuilder();
+        StringBuilder srcRects = new StringBuilder();
+        StringBuilder posDecls = new StringBuilder();
+        StringBuilder pixInitY = new StringBuilder();
+        StringBuilder pixInitX = new StringBuilder();
+        StringBuilder posIncrY = new StringBuilder();
+        StringBuilder posInitY = new StringBuilder();
+        StringBuilder posInitX = new StringBuilder();
+        List<String> rowParams = new ArrayList<String>();
+        List<String> rowArgs = new ArrayList<String>();
+
+        if (parser.getSymbolTable().isCoreVariableReferenced("pixcoord")) {
+            appendRowArray(fields, posDecls, "pixcoord_xs");
+            posDecls.append("for (int i = 0; i < pixcoord_xs.length; i++) {\n");
+            posDecls.append("    pixcoord_xs[i] = (float)(dstx + i);\n");
+            posDecls.append("}\n");
+            pixInitY.append("FloatVector pixcoord_y = FloatVector.broadcast(SPECIES, (float)dy);\n");
+            pixInitX.append("FloatVector pixcoord_x = FloatVector.fromArray(SPECIES, pixcoord_xs, dx - dstx);\n");
+            addRowParam(rowParams, rowArgs, "float[]", "pixcoord_xs");
+        }
+
+        for (Variable v : vars.values()) {
+            if (v.getQualifier() == Qualifier.CONST && v.getConstValue() == null) {
+                // this must be a special built-in variable (e.g. pos0);
+                // these are handled elsewhere, so just continue...
+                continue;
+            }
+
+            Type t = v.getType();
+            BaseType bt = t.getBaseType();
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER && !v.isReferenced()) {
+                // the program never reads this value (see DeadCodeEliminator)
+                continue;
+            }
+            if (v.getQualifier() != null && bt != BaseType.SAMPLER) {
+                String vtype = bt.toString();
+                String vname = v.getName();
+                String accName = v.getAccessorName();
+                if (v.isArray()) {
+                    // same NIO buffer to array access as in JSWBackend
+                    String bufType = (bt == BaseType.FLOAT) ?
+                        "FloatBuffer" : "IntBuffer";
+                    String bufName = vname + "_buf";
+                    String arrayName = vname + "_arr";
+                    String cacheName = vname + "_cache";
+                    fields.append("private " + vtype + "[] " + cacheName + ";\n");
+                    constants.append(bufType + " " + bufName + " = " + accName + "();\n");
+                    constants.append(vtype + "[] " + arrayName + ";\n");
+                    constants.append("if (" + bufName + ".hasArray() && " + bufName + ".arrayOffset() == 0) {\n");
+                    constants.append("    " + arrayName + " = " + bufName + ".array();\n");
+                    constants.append("} else {\n");
+                    constants.append("    if (" + cacheName + " == null || " + cacheName + ".length != " + bufName + ".capacity()) {\n");
+                    constants.append("        " + cacheName + " = new " + vtype + "[" + bufName + ".capacity()];\n");
+                    constants.append("    }\n");
+                    constants.append("    " + arrayName + " = " + cacheName + ";\n");
+                    constants.append("    " + bufName + ".get(" + arrayName + ");\n");
+                    constants.append("}\n");
+                    addRowParam(rowParams, rowArgs, vtype + "[]", arrayName);
+                } else {
+                    if (t.isVector()) {
+                        String arrayName = vname + "_arr";
+                        constants.append(vtype + "[] " + arrayName + " = " + accName + "();\n");
+                        constants.append(vtype + " ");
+                        for (int i = 0; i < t.getNumFields(); i++) {
+                            if (i > 0) {
+                                constants.append(", ");
+                            }
+                            constants.append(vname + getSuffix(i) + " = " + arrayName + "[" + i + "]");
+                            addRowParam(rowParams, rowArgs, vtype, vname + getSuffix(i));
+                        }
+                        constants.append(";\n");
+                    } else {
+                        constants.append(vtype + " " + vname);
+                        if (v.getQualifier() == Qualifier.CONST) {
+                            constants.append(" = " + v.getConstValue());
+                            if (v.getConstValue() instanceof Float) {
+                                constants.append("f");
+                            }
+                        } else {
+                            constants.append(" = " + accName + "()");
+                        }
+                        constants.append(";\n");
+                        addRowParam(rowParams, rowArgs, vtype, vname);
+                    }
+                }
+            } else if (v.getQualifier() == Qualifier.PARAM && bt == BaseType.SAMPLER) {
+                int i = v.getReg();
+                if (t == Types.FSAMPLER) {
+                    samplers.append("FloatMap src" + i + " = (FloatMap)getSamplerData(" + i + ");\n");
+                    samplers.append("int src" + i + "x = 0;\n");
+                    samplers.append("int src" + i + "y = 0;\n");
+                    samplers.append("int src" + i + "w = src" + i + ".getWidth();\n");
+                    samplers.append("int src" + i + "h = src" + i + ".getHeight();\n");
+                    samplers.append("int src" + i + "scan = src" + i + ".getWidth();\n");
+                    samplers.append("float[] " + v.getName() + " = src" + i + ".getData();\n");
+                    addRowParam(rowParams, rowArgs, "float[]", v.getName());
+
+                    // TODO: for now, assume [0,0,1,1]
+                    fields.append("private final float[] src" + i + "Rect = {0,0,1,1};\n");
+                } else {
+                    if (t == Types.LSAMPLER) {
+                        samplers.append("HeapImage src" + i + " = (HeapImage)inputs[" + i + "].getUntransformedImage();\n");
+                    } else {
+                        samplers.append("HeapImage src" + i + " = (HeapImage)inputs[" + i + "].getTransformedImage(dstBounds);\n");
+                        cleanup.append("inputs[" + i + "].releaseTransformedImage(src" + i + ");\n");
+                    }
+                    samplers.append("int src" + i + "x = 0;\n");
+                    samplers.append("int src" + i + "y = 0;\n");
+                    samplers.append("int src" + i + "w = src" + i + ".getPhysicalWidth();\n");
+                    samplers.append("int src" + i + "h = src" + i + ".getPhysicalHeight();\n");
+                    samplers.append("int src" + i + "scan = src" + i + ".getScanlineStride();\n");
+                    samplers.append("int[] " + v.getName() + " =\n");
+                    samplers.append("    src" + i + ".getPixelArray();\n");
+                    // lanes outside of the image are gathered from index 0
+                    samplers.append("if (" + v.getName() + ".length == 0) " + v.getName() + " = new int[1];\n");
+                    addRowParam(rowParams, rowArgs, "int[]", v.getName());
+
+                    fields.append("private final Rectangle src" + i + "Bounds = new Rectangle();\n");
+                    samplers.append("src" + i + "Bounds.setBounds(");
+                    samplers.append("src" + i + "x, ");
+                    samplers.append("src" + i + "y, ");
+                    samplers.append("src" + i + "w, ");
+                    samplers.append("src" + i + "h);\n");
+                    if (t == Types.LSAMPLER) {
+                        samplers.append("Rectangle src" + i + "InputBounds = inputs[" + i + "].getUntransformedBounds();\n");
+                        samplers.append("BaseTransform src" + i + "Transform = inputs[" + i + "].getTransform();\n");
+                    } else {
+                        samplers.append("Rectangle src" + i + "InputBounds = inputs[" + i + "].getTransformedBounds(dstBounds);\n");
+                        samplers.append("BaseTransform src" + i + "Transform = BaseTransform.IDENTITY_TRANSFORM;\n");
+                    }
+                    samplers.append("setInputBounds(" + i + ", src" + i + "InputBounds);\n");
+                    samplers.append("setInputNativeBounds(" + i + ", src" + i + "Bounds);\n");
+
+                    // the source rect decls need to come after all calls to
+                    // setInput[Native]Bounds() for all inputs (see JSWBackend)
+                    fields.append("private final float[] src" + i + "Rect = new float[4];\n");
+                    srcRects.append("getTextureCoordinates(" + i + ", src" + i + "Rect,\n");
+                    srcRects.append("                      src" + i + "InputBounds.x, src" + i + "InputBounds.y,\n");
+                    srcRects.append("                      src" + i + "w, src" + i + "h,\n");
+                    srcRects.append("                      dstBounds, src" + i + "Transform);\n");
+                }
+
+                if (t == Types.LSAMPLER || t == Types.FSAMPLER) {
+                    // lsample()/fsample() work on one pixel at a time, so
+                    // the coordinates and results of each lane are passed
+                    // through these arrays
+                    String s = v.getName();
+                    fields.append("private final float[] " + s + "_vals = new float[4];\n");
+                    fields.append("private final float[] " + s + "_locx = new float[LANES];\n");
+                    fields.append("private final float[] " + s + "_locy = new float[LANES];\n");
+                    fields.append("private final float[] " + s + "_lanes = new float[LANES * 4];\n");
+                    addRowParam(rowParams, rowArgs, "float[]", s + "_vals");
+                    addRowParam(rowParams, rowArgs, "float[]", s + "_locx");
+                    addRowParam(rowParams, rowArgs, "float[]", s + "_locy");
+                    addRowParam(rowParams, rowArgs, "float[]", s + "_lanes");
+                }
+                addRowParam(rowParams, rowArgs, "int", "src" + i + "w");
+                addRowParam(rowParams, rowArgs, "int", "src" + i + "h");
+                addRowParam(rowParams, rowArgs, "int", "src" + i + "scan");
+
+                if (parser.getSymbolTable().isCoreVariableReferenced("pos" + i)) {
+                    posDecls.append("float inc" + i + "_x = (src" + i + "Rect[2] - src" + i + "Rect[0]) / dstw;\n");
+                    posDecls.append("float inc" + i + "_y = (src" + i + "Rect[3] - src" + i + "Rect[1]) / dsth;\n");
+
+                    // the x coordinates are the same for every row, so they are
+                    // accumulated once up front (in the same order as in the JSW
+                    // peer, so that the results match exactly) and then loaded
+                    // a full vector at a time in the inner loop
+                    appendRowArray(fields, posDecls, "pos" + i + "_xs");
+                    posDecls.append("{\n");
+                    posDecls.append("    float pos" + i + "_x = src" + i + "Rect[0] + inc" + i + "_x*0.5f;\n");
+                    posDecls.append("    for (int i = 0; i < pos" + i + "_xs.length; i++) {\n");
+                    posDecls.append("        pos" + i + "_xs[i] = pos" + i + "_x;\n");
+                    posDecls.append("        pos" + i + "_x += inc" + i + "_x;\n");
+                    posDecls.append("    }\n");
+                    posDecls.append("}\n");
+
+                    posInitY.append("float pos" + i + "_yrow = src" + i + "Rect[1] + inc" + i + "_y*0.5f;\n");
+                    posInitX.append("FloatVector pos" + i + "_y = FloatVector.broadcast(SPECIES, pos" + i + "_yrow);\n");
+                    pixInitX.append("FloatVector pos" + i + "_x = FloatVector.fromArray(SPECIES, pos" + i + "_xs, dx - dstx);\n");
+                    posIncrY.append("pos" + i + "_yrow += inc" + i + "_y;\n");
+                    addRowParam(rowParams, rowArgs, "float[]", "pos" + i + "_xs");
+                    addRowParam(rowParams, rowArgs, "float", "pos" + i + "_yrow");
+                }
+            }
+        }
+
+        // the hoisted values are evaluated as FloatVectors (broadcast once
+        // per filter() call) and handed to filterRow() like the constants
+        constants.append(invariantDecls);
+        for (VarDecl d : invariants) {
+            Type t = d.getVariable().getType();
+            String vtype = JSWVTreeScanner.getJavaType(t.getBaseType());
+            String vname = d.getVariable().getName();
+            if (t.isVector()) {
+                for (int i = 0; i < t.getNumFields(); i++) {
+                    addRowParam(rowParams, rowArgs, vtype, vname + getSuffix(i));
+                }
+            } else {
+                addRowParam(rowParams, rowArgs, vtype, vname);
+            }
+        }
+
+        if (genericsName != null) {
+            genericsDecl.append("<"+genericsName+">");
+        }
+
+        if (interfaceName != null) {
+            interfaceDecl.append("implements "+interfaceName);
+        }
+
+        StringTemplate glue = GlueTemplates.getGlue(getClass(), "JSWVGlue.stg");
+        glue.setAttribute("effectName", effectName);
+        glue.setAttribute("peerName", peerName);
+        glue.setAttribute("genericsDecl", genericsDecl.toString());
+        glue.setAttribute("interfaceDecl", interfaceDecl.toString());
+        if (fields.length() > 0) {
+            glue.setAttribute("fields", fields.toString());
+        }
+        glue.setAttribute("usercode", usercode.toString());
+        glue.setAttribute("samplers", samplers.toString());
+        glue.setAttribute("cleanup", cleanup.toString());
+        glue.setAttribute("srcRects", srcRects.toString());
+        glue.setAttribute("constants", constants.toString());
+        glue.setAttribute("posDecls", posDecls.toString());
+        glue.setAttribute("pixInitY", pixInitY.toString());
+        glue.setAttribute("pixInitX", pixInitX.toString());
+        glue.setAttribute("posIncrY", posIncrY.toString());
+        glue.setAttribute("posInitY", posInitY.toString());
+        glue.setAttribute("posInitX", posInitX.toString());
+        glue.setAttribute("rowParams", rowParams);
+        glue.setAttribute("rowArgs", rowArgs);
+        glue.setAttribute("body", body);
+        return glue.toString();
+    }
+
+    private static void addRowParam(List<String> params, List<String> args,
+                                    String type, String name)
+    {
+        params.add(type + " " + name);
+        args.add(name);
+    }
+
+    /**
+     * Declares an array of dstw+LANES floats that is filled in before the
+     * row loop; the peer keeps it until the destination width changes.
+     */
+    private static void appendRowArray(StringBuilder fields, StringBuilder posDecls,
+                                       String name)
+    {
+        fields.append("private float[] " + name + ";\n");
+        posDecls.append("if (" + name + " == null || " + name + ".length != dstw + LANES) {\n");
+        posDecls.append("    " + name + " = new float[dstw + LANES];\n");
+        posDecls.append("}\n");
+    }
+
+    // TODO: need better mechanism for querying fields
+    private static char[] fields = {'x', 'y', 'z', 'w'};
+    public static String getSuffix(int i) {
+        return "_" + fields[i];
+    }
+
+    static int getFieldIndex(char field) {
+        switch (field) {
+        case 'r':
+        case 'x':
+            return 0;
+        case 'g':
+        case 'y':
+            return 1;
+        case 'b':
+        case 'z':
+            return 2;
+        case 'a':
+        case 'w':
+            return 3;
+        default:
+            throw new InternalError();
+        }
+    }
+
+    private final Map<String, FuncDef> funcDefs = new HashMap<String, FuncDef>();
+    void putFuncDef(FuncDef def) {
+        funcDefs.put(def.getFunction().getName(), def);
+    }
+    FuncDef getFuncDef(String name) {
+        return funcDefs.get(name);
+    }
+
+    private Set<String> resultVars = new HashSet<String>();
+    boolean isResultVarDeclared(String vname) {
+        return resultVars.contains(vname);
+    }
+    void declareResultVar(String vname) {
+        resultVars.add(vname);
+    }
+    Set<String> saveResultVars() {
+        return new HashSet<String>(resultVars);
+    }
+    void restoreResultVars(Set<String> vars) {
+        resultVars = vars;
+    }
+
+    private final StringBuilder usercode = new StringBuilder();
+    void addGlueBlock(String block) {
+        usercode.append(block);
+    }
+}
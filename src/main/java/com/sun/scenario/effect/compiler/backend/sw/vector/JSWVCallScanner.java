@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.vector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.FuncImpl;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Param;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.tree.CallExpr;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.FieldSelectExpr;
+import com.sun.scenario.effect.compiler.tree.TreeScanner;
+
+import static com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend.*;
+
+/*
+ * Function calls are inlined in the same way as in the JSW backend
+ * (see JSWCallScanner), except that the result and parameter variables
+ * for float values are declared as FloatVectors; for example:
+ *     float val = min(foo+0.25, 1.0);
+ * ==>
+ *     FloatVector min_res;
+ *     {
+ *         FloatVector x_tmp = foo.add(0.25f);
+ *         FloatVector y_tmp = FloatVector.broadcast(SPECIES, 1.0f);
+ *         min_res = x_tmp.min(y_tmp);
+ *     }
+ *
+ * The argument expressions are translated by a JSWVTreeScanner.
+ */
+class JSWVCallScanner extends TreeScanner {
+    private final JSWVBackend backend;
+    private StringBuilder sb;
+    private boolean inCallExpr = false;
+    private Set<Integer> selectedFields = null;
+
+    JSWVCallScanner(JSWVBackend backend) {
+        this.backend = backend;
+    }
+
+    private void output(String s) {
+        if (sb == null) {
+            sb = new StringBuilder();
+        }
+        sb.append(s);
+    }
+
+    String getResult() {
+        return (sb != null) ? sb.toString() : null;
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        if (inCallExpr) {
+            // these are moved out of the statement by CallLifter
+            throw new InternalError("Nested function calls not supported");
+        }
+
+        Function func = e.getFunction();
+        Type t = func.getReturnType();
+        String vtype = JSWVTreeScanner.getJavaType(t.getBaseType());
+        String vname = func.getName();
+        Set<Integer> fields = selectedFields;
+        if (t.isVector()) {
+            if (fields == null) {
+                fields = new HashSet<Integer>();
+                for (int i = 0; i < t.getNumFields(); i++) {
+                    fields.add(i);
+                }
+            }
+        }
+        // only declare the result variables that haven't been already (the
+        // same function may be called with a different number of components,
+        // e.g. min(float,float) and min(float3,float3), or with a different
+        // field selection)
+        List<String> rnames = new ArrayList<String>();
+        if (t.isVector()) {
+            for (Integer f : fields) {
+                rnames.add(vname + "_res" + getSuffix(f));
+            }
+        } else {
+            rnames.add(vname + "_res");
+        }
+        boolean first = true;
+        for (String rname : rnames) {
+            if (!backend.isResultVarDeclared(rname)) {
+                backend.declareResultVar(rname);
+                output(first ? vtype + " " : ", ");
+                output(rname);
+                first = false;
+            }
+        }
+        if (!first) {
+            output(";\n");
+        }
+
+        inCallExpr = true;
+        output("{\n");
+        List<Param> params = func.getParams();
+        List<Expr> argExprs = e.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            Param param = params.get(i);
+            String pname = param.getName();
+            Type ptype = param.getType();
+            BaseType pbasetype = ptype.getBaseType();
+            if (pbasetype == BaseType.SAMPLER) {
+                // skip these for now
+                continue;
+            }
+            // check for nested calls before translating the argument
+            scan(argExprs.get(i));
+            String ptypeName = JSWVTreeScanner.getJavaType(pbasetype);
+            if (ptype.isVector()) {
+                for (int j = 0; j < ptype.getNumFields(); j++) {
+                    output(ptypeName);
+                    output(" ");
+                    output(pname + "_tmp" + getSuffix(j) + " = ");
+                    output(new JSWVTreeScanner(backend).getArgument(argExprs.get(i), true, j));
+                    output(";\n");
+                }
+            } else {
+                output(ptypeName);
+                output(" ");
+                output(pname + "_tmp = ");
+                output(new JSWVTreeScanner(backend).getArgument(argExprs.get(i), false, 0));
+                output(";\n");
+            }
+        }
+
+        FuncImpl impl = JSWVFuncImpls.get(func);
+        if (impl != null) {
+            // core (built-in) function
+            String preamble = impl.getPreamble(argExprs);
+            if (preamble != null) {
+                output(preamble);
+            }
+
+            if (t.isVector()) {
+                for (Integer f : fields) {
+                    output(vname + "_res" + getSuffix(f) + " = ");
+                    output(impl.toString(f, argExprs));
+                    output(";\n");
+                }
+            } else {
+                output(vname + "_res = ");
+                output(impl.toString(0, argExprs));
+                output(";\n");
+            }
+        } else {
+            // user-defined function
+            JSWVTreeScanner scanner = new JSWVTreeScanner(backend, func.getName());
+            scanner.scan(backend.getFuncDef(func.getName()).getStmt());
+            output(scanner.getResult());
+        }
+
+        output("\n}\n");
+        inCallExpr = false;
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        if (inCallExpr) {
+            super.visitFieldSelectExpr(e);
+        } else {
+            selectedFields = getFieldSet(e.getFields());
+            super.visitFieldSelectExpr(e);
+            selectedFields = null;
+        }
+    }
+
+    private static Set<Integer> getFieldSet(String fields) {
+        Set<Integer> fieldSet = new HashSet<Integer>();
+        for (int i = 0; i < fields.length(); i++) {
+            fieldSet.add(getFieldIndex(fields.charAt(i)));
+        }
+        return fieldSet;
+    }
+}
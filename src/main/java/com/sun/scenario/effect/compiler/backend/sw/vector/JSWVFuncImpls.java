@@ -0,0 +1,539 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.vector;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.model.CoreSymbols;
+import com.sun.scenario.effect.compiler.model.FuncImpl;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.tree.Expr;
+import com.sun.scenario.effect.compiler.tree.VariableExpr;
+
+import static com.sun.scenario.effect.compiler.model.Types.*;
+
+/**
+ * Contains the Java Vector API implementations for all core (built-in)
+ * functions.  All float arguments and results are {@code FloatVector}
+ * values holding one lane per destination pixel.
+ */
+class JSWVFuncImpls {
+
+    private static Map<Function, FuncImpl> funcs = new HashMap<Function, FuncImpl>();
+
+    static FuncImpl get(Function func) {
+        return funcs.get(func);
+    }
+
+    static {
+        // float4 sample(sampler s, float2 loc)
+        declareFunctionSample(SAMPLER);
+
+        // float4 sample(lsampler s, float2 loc)
+        declareFunctionSample(LSAMPLER);
+
+        // float4 sample(fsampler s, float2 loc)
+        declareFunctionSample(FSAMPLER);
+
+        // int intcast(float x)
+        declareFunctionIntCast();
+
+        // <ftype> min(<ftype> x, <ftype> y)
+        // <ftype> min(<ftype> x, float y)
+        declareOverloadsMinMax("min", "x_tmp$1.min(y_tmp$2)");
+
+        // <ftype> max(<ftype> x, <ftype> y)
+        // <ftype> max(<ftype> x, float y)
+        declareOverloadsMinMax("max", "x_tmp$1.max(y_tmp$2)");
+
+        // <ftype> clamp(<ftype> val, <ftype> min, <ftype> max)
+        // <ftype> clamp(<ftype> val, float min, float max)
+        declareOverloadsClamp();
+
+        // <ftype> smoothstep(<ftype> min, <ftype> max, <ftype> val)
+        // <ftype> smoothstep(float min, float max, <ftype> val)
+        declareOverloadsSmoothstep();
+
+        // <ftype> abs(<ftype> x)
+        declareOverloadsSimple("abs", "x_tmp$1.abs()");
+
+        // <ftype> floor(<ftype> x)
+        declareOverloadsSimple("floor", "floor(x_tmp$1)");
+
+        // <ftype> ceil(<ftype> x)
+        declareOverloadsSimple("ceil", "ceil(x_tmp$1)");
+
+        // <ftype> fract(<ftype> x)
+        declareOverloadsSimple("fract", "x_tmp$1.sub(floor(x_tmp$1))");
+
+        // <ftype> sign(<ftype> x)
+        declareOverloadsSimple("sign", "sign(x_tmp$1)");
+
+        // <ftype> sqrt(<ftype> x)
+        declareOverloadsSimple("sqrt", "x_tmp$1.sqrt()");
+
+        // <ftype> sin(<ftype> x)
+        declareOverloadsSimple("sin", "x_tmp$1.lanewise(VectorOperators.SIN)");
+
+        // <ftype> cos(<ftype> x)
+        declareOverloadsSimple("cos", "x_tmp$1.lanewise(VectorOperators.COS)");
+
+        // <ftype> tan(<ftype> x)
+        declareOverloadsSimple("tan", "x_tmp$1.lanewise(VectorOperators.TAN)");
+
+        // <ftype> pow(<ftype> x, <ftype> y)
+        declareOverloadsSimple2("pow", "x_tmp$1.pow(y_tmp$2)");
+
+        // <ftype> mod(<ftype> x, <ftype> y)
+        // <ftype> mod(<ftype> x, float y)
+        declareOverloadsMinMax("mod", "mod(x_tmp$1, y_tmp$2)");
+
+        // float dot(<ftype> x, <ftype> y)
+        declareOverloadsDot();
+
+        // float distance(<ftype> x, <ftype> y)
+        declareOverloadsDistance();
+
+        // <ftype> mix(<ftype> x, <ftype> y, <ftype> a)
+        // <ftype> mix(<ftype> x, <ftype> y, float a)
+        declareOverloadsMix();
+
+        // <ftype> normalize(<ftype> x)
+        declareOverloadsNormalize();
+
+        // <ftype> ddx(<ftype> p)
+        declareOverloadsSimple("ddx", "<ddx() not implemented for sw backends>");
+
+        // <ftype> ddy(<ftype> p)
+        declareOverloadsSimple("ddy", "<ddy() not implemented for sw backends>");
+
+        // <ftype> fma(<ftype> x, <ftype> y, <ftype> z)
+        declareOverloadsSimple3("fma", "x_tmp$1.fma(y_tmp$2, z_tmp$3)");
+    }
+
+    private static void declareFunction(FuncImpl impl,
+                                        String name, Type... ptypes) {
+        Function f = CoreSymbols.getFunction(name, Arrays.asList(ptypes));
+        if (f == null) {
+            throw new InternalError("Core function not found (have you declared the function in CoreSymbols?)");
+        }
+        funcs.put(f, impl);
+    }
+
+    /**
+     * Used to declare sample function:
+     *   float4 sample([l,f]sampler s, float2 loc)
+     *
+     * Plain samplers are fetched with a single gather of the pixels for
+     * all lanes; lanes that fall outside of the source image read index 0
+     * and are then cleared to transparent (masked gathers and F2I
+     * conversions are not intrinsified by C2 on JDK 17, so both are
+     * avoided here).  The lsampler/fsampler variants call the scalar
+     * lsample()/fsample() helpers once per lane and load the results
+     * back into vectors.
+     */
+    private static void declareFunctionSample(final Type type) {
+        FuncImpl fimpl = new FuncImpl() {
+            @Override
+            public String getPreamble(List<Expr> params) {
+                String s = getSamplerName(params);
+                String p = getPosName(params);
+                if (type == LSAMPLER || type == FSAMPLER) {
+                    String func = (type == LSAMPLER) ? "lsample" : "fsample";
+                    return
+                        "loc_tmp_x.intoArray(" + s + "_locx, 0);\n" +
+                        "loc_tmp_y.intoArray(" + s + "_locy, 0);\n" +
+                        "for (int lane = 0; lane < LANES; lane++) {\n" +
+                        "    " + func + "(" + s + ", " + s + "_locx[lane], " + s + "_locy[lane],\n" +
+                        "            " + p + "w, " + p + "h, " + p + "scan,\n" +
+                        "            " + s + "_vals);\n" +
+                        "    " + s + "_lanes[lane          ] = " + s + "_vals[0];\n" +
+                        "    " + s + "_lanes[lane + LANES  ] = " + s + "_vals[1];\n" +
+                        "    " + s + "_lanes[lane + LANES*2] = " + s + "_vals[2];\n" +
+                        "    " + s + "_lanes[lane + LANES*3] = " + s + "_vals[3];\n" +
+                        "}\n";
+                } else {
+                    // note that (int)(loc*w) >= w is the same as loc*w >= w
+                    // for non-negative values, so the bounds are checked
+                    // before converting the coordinates to ints
+                    return
+                        "FloatVector floc_tmp_x = loc_tmp_x.mul((float)" + p + "w);\n" +
+                        "FloatVector floc_tmp_y = loc_tmp_y.mul((float)" + p + "h);\n" +
+                        "VectorMask<Integer> out_tmp =\n" +
+                        "    loc_tmp_x.compare(VectorOperators.GE, 0f)\n" +
+                        "    .and(loc_tmp_y.compare(VectorOperators.GE, 0f))\n" +
+                        "    .and(floc_tmp_x.compare(VectorOperators.LT, (float)" + p + "w))\n" +
+                        "    .and(floc_tmp_y.compare(VectorOperators.LT, (float)" + p + "h))\n" +
+                        "    .cast(ISPECIES).not();\n" +
+                        "toInt(floc_tmp_y).mul(" + p + "scan).add(toInt(floc_tmp_x))\n" +
+                        "    .blend(0, out_tmp).intoArray(gatherIndices, 0);\n" +
+                        "IntVector " + s + "_tmp =\n" +
+                        "    IntVector.fromArray(ISPECIES, " + s + ", 0, gatherIndices, 0)\n" +
+                        "    .blend(0, out_tmp);\n";
+                }
+            }
+            public String toString(int i, List<Expr> params) {
+                String s = getSamplerName(params);
+                if (type == LSAMPLER || type == FSAMPLER) {
+                    return (i < 0 || i > 3) ? null :
+                        "FloatVector.fromArray(SPECIES, " + s + "_lanes, LANES*" + i + ")";
+                } else {
+                    switch (i) {
+                    case 0:
+                        return "unpack(" + s + "_tmp, 16)";
+                    case 1:
+                        return "unpack(" + s + "_tmp,  8)";
+                    case 2:
+                        return "unpack(" + s + "_tmp,  0)";
+                    case 3:
+                        return "unpack(" + s + "_tmp, 24)";
+                    default:
+                        return null;
+                    }
+                }
+            }
+            private String getSamplerName(List<Expr> params) {
+                VariableExpr e = (VariableExpr)params.get(0);
+                return e.getVariable().getName();
+            }
+            private String getPosName(List<Expr> params) {
+                VariableExpr e = (VariableExpr)params.get(0);
+                return "src" + e.getVariable().getReg();
+            }
+        };
+        declareFunction(fimpl, "sample", type, FLOAT2);
+    }
+
+    /**
+     * Used to declare intcast function:
+     *   int intcast(float x)
+     *
+     * Integer values are kept in scalar form by this backend (they are
+     * only used for loop counters and array indices), so there is no
+     * way to narrow a per-pixel float value to an int.
+     */
+    private static void declareFunctionIntCast() {
+        FuncImpl fimpl = (i, params) -> "<intcast() not implemented for vector backend>";
+        declareFunction(fimpl, "intcast", FLOAT);
+    }
+
+    /**
+     * Used to declare simple functions of the following form:
+     *   <ftype> name(<ftype> x)
+     */
+    private static void declareOverloadsSimple(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type);
+        }
+    }
+
+    /**
+     * Used to declare simple two parameter functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsSimple2(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Used to declare simple three parameter functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y, <ftype> z)
+     */
+    private static void declareOverloadsSimple3(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                s = s.replace("$3", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+        }
+    }
+
+    /**
+     * Used to declare normalize functions of the following form:
+     *   <ftype> normalize(<ftype> x)
+     */
+    private static void declareOverloadsNormalize() {
+        final String name = "normalize";
+        final String pattern = "x_tmp$1.div(denom)";
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            final String preamble;
+            if (n == 1) {
+                preamble = "FloatVector denom = x_tmp;\n";
+            } else {
+                String     s  =    "x_tmp_x.mul(x_tmp_x)";
+                           s += "\n.add(x_tmp_y.mul(x_tmp_y))";
+                if (n > 2) s += "\n.add(x_tmp_z.mul(x_tmp_z))";
+                if (n > 3) s += "\n.add(x_tmp_w.mul(x_tmp_w))";
+                preamble = "FloatVector denom = " + s + ".sqrt();\n";
+            }
+
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = new FuncImpl() {
+                @Override
+                public String getPreamble(List<Expr> params) {
+                    return preamble;
+                }
+                public String toString(int i, List<Expr> params) {
+                    String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                    String s = pattern;
+                    s = s.replace("$1", sfx);
+                    return s;
+                }
+            };
+            declareFunction(fimpl, name, type);
+        }
+    }
+
+    /**
+     * Used to declare dot functions of the following form:
+     *   float dot(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsDot() {
+        final String name = "dot";
+        for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            String s;
+            if (n == 1) {
+                s = "x_tmp.mul(y_tmp)";
+            } else {
+                           s  =    "x_tmp_x.mul(y_tmp_x)";
+                           s += "\n.add(x_tmp_y.mul(y_tmp_y))";
+                if (n > 2) s += "\n.add(x_tmp_z.mul(y_tmp_z))";
+                if (n > 3) s += "\n.add(x_tmp_w.mul(y_tmp_w))";
+            }
+            final String str = s;
+            FuncImpl fimpl = (i, params) -> str;
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Used to declare distance functions of the following form:
+     *   float distance(<ftype> x, <ftype> y)
+     */
+    private static void declareOverloadsDistance() {
+        final String name = "distance";
+        for (final Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            int n = type.getNumFields();
+            String s;
+            if (n == 1) {
+                s = "x_tmp.sub(y_tmp).mul(x_tmp.sub(y_tmp))";
+            } else {
+                           s  =    "x_tmp_x.sub(y_tmp_x).mul(x_tmp_x.sub(y_tmp_x))";
+                           s += "\n.add(x_tmp_y.sub(y_tmp_y).mul(x_tmp_y.sub(y_tmp_y)))";
+                if (n > 2) s += "\n.add(x_tmp_z.sub(y_tmp_z).mul(x_tmp_z.sub(y_tmp_z)))";
+                if (n > 3) s += "\n.add(x_tmp_w.sub(y_tmp_w).mul(x_tmp_w.sub(y_tmp_w)))";
+            }
+            final String str = s + ".sqrt()";
+            FuncImpl fimpl = (i, params) -> str;
+            declareFunction(fimpl, name, type, type);
+        }
+    }
+
+    /**
+     * Used to declare min/max functions of the following form:
+     *   <ftype> name(<ftype> x, <ftype> y)
+     *   <ftype> name(<ftype> x, float y)
+     *
+     * TODO: this is currently geared to simple functions like
+     * min and max; we should make this more general...
+     */
+    private static void declareOverloadsMinMax(String name, final String pattern) {
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,float) variants
+            fimpl = (i, params) -> {
+                String sfx = JSWVBackend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, FLOAT);
+        }
+    }
+
+    /**
+     * Used to declare clamp functions of the following form:
+     *   <ftype> clamp(<ftype> val, <ftype> min, <ftype> max)
+     *   <ftype> clamp(<ftype> val, float min, float max)
+     */
+    private static void declareOverloadsClamp() {
+        final String name = "clamp";
+        final String pattern =
+            "val_tmp$1.blend(max_tmp$2, val_tmp$1.compare(VectorOperators.GT, max_tmp$2))\n" +
+            "    .blend(min_tmp$2, val_tmp$1.compare(VectorOperators.LT, min_tmp$2))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,float,float) variants
+            fimpl = (i, params) -> {
+                String sfx = JSWVBackend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, FLOAT, FLOAT);
+        }
+    }
+
+    /**
+     * Used to declare smoothstep functions of the following form:
+     *   <ftype> smoothstep(<ftype> min, <ftype> max, <ftype> val)
+     *   <ftype> smoothstep(float min, float max, <ftype> val)
+     */
+    private static void declareOverloadsSmoothstep() {
+        final String name = "smoothstep";
+        // TODO - the smoothstep function is defined to use Hermite interpolation
+        final String pattern =
+            "val_tmp$1.div(max_tmp$2.sub(min_tmp$2))\n" +
+            "    .blend(1.0f, val_tmp$1.compare(VectorOperators.GT, max_tmp$2))\n" +
+            "    .blend(0.0f, val_tmp$1.compare(VectorOperators.LT, min_tmp$2))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (float,float,vectype) variants
+            fimpl = (i, params) -> {
+                String sfx = JSWVBackend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, FLOAT, FLOAT, type);
+        }
+    }
+
+    /**
+     * Used to declare mix functions of the following form:
+     *   <ftype> mix(<ftype> x, <ftype> y, <ftype> a)
+     *   <ftype> mix(<ftype> x, <ftype> y, float a)
+     */
+    private static void declareOverloadsMix() {
+        final String name = "mix";
+        final String pattern =
+            "x_tmp$1.mul(a_tmp$2.neg().add(1.0f)).add(y_tmp$1.mul(a_tmp$2))";
+
+        for (Type type : new Type[] {FLOAT, FLOAT2, FLOAT3, FLOAT4}) {
+            // declare (vectype,vectype,vectype) variants
+            final boolean useSuffix = (type != FLOAT);
+            FuncImpl fimpl = (i, params) -> {
+                String sfx = useSuffix ? JSWVBackend.getSuffix(i) : "";
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", sfx);
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, type);
+
+            if (type == FLOAT) {
+                continue;
+            }
+
+            // declare (vectype,vectype,float) variants
+            fimpl = (i, params) -> {
+                String sfx = JSWVBackend.getSuffix(i);
+                String s = pattern;
+                s = s.replace("$1", sfx);
+                s = s.replace("$2", "");
+                return s;
+            };
+            declareFunction(fimpl, name, type, type, FLOAT);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.backend.sw.vector;
+
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.*;
+import static com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend.getFieldIndex;
+import static com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend.getSuffix;
+
+/**
+ * Translates the main function body into Java code that operates on
+ * {@code FloatVector.SPECIES_PREFERRED.length()} destination pixels at once.
+ *
+ * Every float-typed expression is evaluated as a {@code FloatVector},
+ * with the exception of uniform values (literals, parameters and parameter
+ * array elements), which are passed as plain {@code float} scalars to the
+ * lanewise operations whenever the Vector API offers such an overload.
+ * Comparisons between floats produce a {@code VectorMask}; int and bool
+ * values are never per-pixel, so they remain plain Java scalars and can
+ * be used for loop counters and array indices as in the JSW backend.
+ */
+class JSWVTreeScanner extends TreeScanner {
+
+    private final JSWVBackend backend;
+    private final String funcName;
+    private StringBuilder sb = new StringBuilder();
+
+    private boolean inVectorOp = false;
+    private int vectorIndex = 0;
+    private boolean inFieldSelect = false;
+    private char selectedField = 'x';
+
+    JSWVTreeScanner(JSWVBackend backend) {
+        this(backend, null);
+    }
+
+    JSWVTreeScanner(JSWVBackend backend, String funcName) {
+        this.backend = backend;
+        this.funcName = funcName;
+    }
+
+    private void output(String s) {
+        sb.append(s);
+    }
+
+    String getResult() {
+        return (sb != null) ? sb.toString() : null;
+    }
+
+    /**
+     * Returns the code for the given function argument, in the form of a
+     * {@code FloatVector} for float arguments.
+     */
+    String getArgument(Expr e, boolean vectorOp, int index) {
+        inVectorOp = vectorOp;
+        vectorIndex = index;
+        return operand(e, false);
+    }
+
+    /**
+     * Returns the code for the given expression, without adding it to the
+     * result of this scanner.
+     */
+    private String capture(Expr e) {
+        StringBuilder saved = sb;
+        sb = new StringBuilder();
+        scan(e);
+        String res = sb.toString();
+        sb = saved;
+        return res;
+    }
+
+    /**
+     * Returns the code for the given operand.  Float operands are returned
+     * as {@code FloatVector} values unless {@code scalarOk} is true, in which
+     * case uniform values are left as plain {@code float} scalars.
+     */
+    private String operand(Expr e, boolean scalarOk) {
+        String s = capture(e);
+        if (isFloat(e) && isUniform(e) && !scalarOk) {
+            s = "FloatVector.broadcast(SPECIES, " + s + ")";
+        }
+        return s;
+    }
+
+    /**
+     * Returns true if the given expression is evaluated as a
+     * {@code FloatVector} (or as a uniform float scalar).
+     */
+    private static boolean isFloat(Expr e) {
+        return e.getResultType().getBaseType() == BaseType.FLOAT;
+    }
+
+    /**
+     * Returns true if the given boolean expression depends on per-pixel
+     * float values, in which case it is evaluated as a {@code VectorMask}.
+     */
+    private static boolean isMask(Expr e) {
+        if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            if (!be.getOp().isRelational()) {
+                return false;
+            }
+            return isFloat(be.getLeft()) || isMask(be.getLeft()) ||
+                   isFloat(be.getRight()) || isMask(be.getRight());
+        } else if (e instanceof UnaryExpr) {
+            return isMask(((UnaryExpr)e).getExpr());
+        } else if (e instanceof ParenExpr) {
+            return isMask(((ParenExpr)e).getExpr());
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given float expression has the same value for
+     * every pixel and is emitted as a plain scalar.
+     */
+    private boolean isUniform(Expr e) {
+        if (e instanceof LiteralExpr) {
+            return true;
+        } else if (e instanceof ArrayAccessExpr) {
+            return true;
+        } else if (e instanceof VariableExpr) {
+            Variable var = ((VariableExpr)e).getVariable();
+            // built-in variables (e.g. pos0) have no constant value
+            return var.getQualifier() == Qualifier.PARAM ||
+                   (var.getQualifier() == Qualifier.CONST &&
+                    var.getConstValue() != null);
+        } else if (e instanceof FieldSelectExpr) {
+            return isUniform(((FieldSelectExpr)e).getExpr());
+        } else if (e instanceof ParenExpr) {
+            return isUniform(((ParenExpr)e).getExpr());
+        } else if (e instanceof VectorCtorExpr) {
+            return isUniform(((VectorCtorExpr)e).getParams().get(vectorIndex));
+        }
+        return false;
+    }
+
+    private static void checkCondition(Expr e) {
+        if (isMask(e)) {
+            throw new InternalError("Per-pixel conditions not supported by vector backend");
+        }
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        if (e.getExpr() instanceof VariableExpr &&
+            (e.getIndex() instanceof VariableExpr ||
+             e.getIndex() instanceof LiteralExpr))
+        {
+            VariableExpr ve = (VariableExpr)e.getExpr();
+            int numFields = ve.getVariable().getType().getNumFields();
+            int field = 0;
+            if (inFieldSelect) {
+                field = getFieldIndex(selectedField);
+            } else if (inVectorOp && numFields > 1) {
+                field = vectorIndex;
+            }
+            output(ve.getVariable().getName());
+            if (e.getIndex() instanceof LiteralExpr) {
+                // a constant index, e.g. in an unrolled loop
+                int index = (Integer)((LiteralExpr)e.getIndex()).getValue();
+                output("_arr[" + (index * numFields + field) + "]");
+            } else {
+                output("_arr[" + ((VariableExpr)e.getIndex()).getVariable().getName());
+                output(" * " + numFields);
+                output(" + " + field + "]");
+            }
+        } else {
+            throw new InternalError("Array access only supports variable expr/index (for now)");
+        }
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        Expr left = e.getLeft();
+        Expr right = e.getRight();
+        BinaryOpType op = e.getOp();
+        if (op.isRelational()) {
+            if (isFloat(left) || isFloat(right)) {
+                output(operand(left, false));
+                output(".compare(VectorOperators." + getComparison(op) + ", ");
+                output(operand(right, true) + ")");
+                return;
+            } else if (isMask(e)) {
+                String l = operand(left, false);
+                String r = operand(right, false);
+                switch (op) {
+                case AND:
+                    output(l + ".and(" + r + ")");
+                    break;
+                case OR:
+                    output(l + ".or(" + r + ")");
+                    break;
+                case XOR:
+                case NEQ:
+                    output(l + ".eq(" + r + ").not()");
+                    break;
+                case EQEQ:
+                    output(l + ".eq(" + r + ")");
+                    break;
+                default:
+                    throw new InternalError("Operator " + op + " not supported on masks");
+                }
+                return;
+            }
+        } else if (isFloat(left)) {
+            if (op.isAssignment()) {
+                String lhs = capture(left);
+                output(lhs + " = ");
+                if (op == BinaryOpType.EQ) {
+                    output(operand(right, false));
+                } else {
+                    output(getArithmetic(op, lhs, operand(right, op != BinaryOpType.MODEQ)));
+                }
+            } else if ((op == BinaryOpType.ADD || op == BinaryOpType.MUL) &&
+                       isUniform(left) && !isUniform(right))
+            {
+                // float addition and multiplication are commutative, so
+                // swap the operands to avoid broadcasting the scalar
+                output(getArithmetic(op, operand(right, false),
+                                     operand(left, true)));
+            } else {
+                output(getArithmetic(op, operand(left, false),
+                                     operand(right, op != BinaryOpType.MOD)));
+            }
+            return;
+        }
+        scan(left);
+        output(" " + op + " ");
+        scan(right);
+    }
+
+    private static String getArithmetic(BinaryOpType op, String l, String r) {
+        switch (op) {
+        case ADD:
+        case ADDEQ:
+            return l + ".add(" + r + ")";
+        case SUB:
+        case SUBEQ:
+            return l + ".sub(" + r + ")";
+        case MUL:
+        case MULEQ:
+            return l + ".mul(" + r + ")";
+        case DIV:
+        case DIVEQ:
+            return l + ".div(" + r + ")";
+        case MOD:
+        case MODEQ:
+            return "mod(" + l + ", " + r + ")";
+        default:
+            throw new InternalError("Operator " + op + " not supported on float vectors");
+        }
+    }
+
+    private static String getComparison(BinaryOpType op) {
+        switch (op) {
+        case EQEQ:
+            return "EQ";
+        case NEQ:
+            return "NE";
+        case LTEQ:
+            return "LE";
+        case GTEQ:
+            return "GE";
+        case LT:
+            return "LT";
+        case GT:
+            return "GT";
+        default:
+            throw new InternalError("Operator " + op + " not supported on float vectors");
+        }
+    }
+
+    @Override
+    public void visitBreakStmt(BreakStmt s) {
+        output("break;");
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        Function func = e.getFunction();
+        output(func.getName() + "_res");
+        if (func.getReturnType().isVector()) {
+            // TODO: this needs more thought
+            if (inFieldSelect) {
+                output(getSuffix(getFieldIndex(selectedField)));
+            } else if (inVectorOp) {
+                output(getSuffix(vectorIndex));
+            } else {
+                throw new InternalError("TBD");
+            }
+        }
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        // the result variables declared in this block (as part of an
+        // inlined call) go out of scope at the end of it
+        Set<String> resultVars = backend.saveResultVars();
+        output("{\n");
+        super.visitCompoundStmt(s);
+        output("}\n");
+        backend.restoreResultVars(resultVars);
+    }
+
+    @Override
+    public void visitContinueStmt(ContinueStmt s) {
+        output("continue;");
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        super.visitDeclStmt(s);
+    }
+
+    @Override
+    public void visitDiscardStmt(DiscardStmt s) {
+        // TODO: not yet implemented
+    }
+
+    @Override
+    public void visitDoWhileStmt(DoWhileStmt s) {
+        checkCondition(s.getExpr());
+        output("do ");
+        scan(s.getStmt());
+        output(" while (");
+        scan(s.getExpr());
+        output(");");
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        Expr expr = s.getExpr();
+
+        outputPreambles(expr);
+
+        Type t = expr.getResultType();
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                vectorIndex = i;
+                scan(s.getExpr());
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            scan(s.getExpr());
+            output(";\n");
+        }
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        if (e.getFields().length() == 1) {
+            selectedField = e.getFields().charAt(0);
+        } else {
+            int index = inVectorOp ? vectorIndex : 0;
+            selectedField = e.getFields().charAt(index);
+        }
+        inFieldSelect = true;
+        scan(e.getExpr());
+        inFieldSelect = false;
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        checkCondition(s.getCondition());
+        output("for (");
+        scan(s.getInit());
+        scan(s.getCondition());
+        output(";");
+        scan(s.getExpr());
+        output(")");
+        scan(s.getStmt());
+    }
+
+    @Override
+    public void visitFuncDef(FuncDef d) {
+        if (d.getFunction().getName().equals("main")) {
+            scan(d.getStmt());
+        } else {
+            // TODO: this is a hacky approach to saving func defs, which
+            // will be inlined later at point of use)...
+            backend.putFuncDef(d);
+        }
+    }
+
+    @Override
+    public void visitGlueBlock(GlueBlock b) {
+        backend.addGlueBlock(b.getText());
+    }
+
+    @Override
+    public void visitLiteralExpr(LiteralExpr e) {
+        output(e.getValue().toString());
+        if (e.getValue() instanceof Float) {
+            output("f");
+        }
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        output("(");
+        scan(e.getExpr());
+        output(")");
+    }
+
+    @Override
+    public void visitProgramUnit(ProgramUnit p) {
+        super.visitProgramUnit(p);
+    }
+
+    @Override
+    public void visitReturnStmt(ReturnStmt s) {
+        Expr expr = s.getExpr();
+        if (expr == null) {
+            throw new InternalError("Empty return not yet implemented");
+        }
+        if (funcName == null) {
+            throw new RuntimeException("Return statement not expected");
+        }
+
+        outputPreambles(expr);
+
+        Type t = expr.getResultType();
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                vectorIndex = i;
+                output(funcName + "_res" + getSuffix(i) + " = ");
+                output(operand(expr, false));
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            output(funcName + "_res = ");
+            output(operand(expr, false));
+            output(";\n");
+        }
+    }
+
+    @Override
+    public void visitSelectStmt(SelectStmt s) {
+        checkCondition(s.getIfExpr());
+        output("if (");
+        scan(s.getIfExpr());
+        output(")");
+        scan(s.getThenStmt());
+        Stmt e = s.getElseStmt();
+        if (e != null) {
+            output(" else ");
+            scan(e);
+        }
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        Expr expr = e.getExpr();
+        UnaryOpType op = e.getOp();
+        if (isFloat(expr)) {
+            switch (op) {
+            case PLUS:
+                output(operand(expr, false));
+                return;
+            case MINUS:
+                output(operand(expr, false) + ".neg()");
+                return;
+            case INC:
+            case DEC:
+                String v = capture(expr);
+                output(v + " = " + v + (op == UnaryOpType.INC ? ".add" : ".sub") + "(1.0f)");
+                return;
+            default:
+                throw new InternalError("Operator " + op + " not supported on float vectors");
+            }
+        } else if (isMask(expr)) {
+            output(operand(expr, false) + ".not()");
+            return;
+        }
+        output(op.toString());
+        scan(expr);
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        Variable var = d.getVariable();
+        if (var.getQualifier() != null) {
+            // these will be declared separately outside the loop body
+            return;
+        }
+
+        outputPreambles(d);
+
+        Type t = var.getType();
+        String vtype = getJavaType(t.getBaseType());
+        Expr init = d.getInit();
+        if (init != null) {
+            checkCondition(init);
+        }
+        if (t.isVector()) {
+            inVectorOp = true;
+            for (int i = 0; i < t.getNumFields(); i++) {
+                output(vtype + " ");
+                output(var.getName() + getSuffix(i));
+                if (init != null) {
+                    output(" = ");
+                    vectorIndex = i;
+                    output(operand(init, false));
+                }
+                output(";\n");
+            }
+            inVectorOp = false;
+        } else {
+            output(vtype + " " + var.getName());
+            if (init != null) {
+                output(" = ");
+                output(operand(init, false));
+            }
+            output(";\n");
+        }
+    }
+
+    static String getJavaType(BaseType t) {
+        return (t == BaseType.FLOAT) ? "FloatVector" : t.toString();
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        Variable var = e.getVariable();
+        output(var.getName());
+        if (var.isParam()) {
+            output("_tmp");
+        }
+        if (var.getType().isVector()) {
+            if (inFieldSelect) {
+                output(getSuffix(getFieldIndex(selectedField)));
+            } else if (inVectorOp) {
+                output(getSuffix(vectorIndex));
+            } else {
+                throw new InternalError("TBD");
+            }
+        }
+    }
+
+    @Override
+    public void visitVectorCtorExpr(VectorCtorExpr e) {
+        // TODO: this will likely work for simple variables and literals,
+        // but we need something more for embedded function calls, etc...
+        scan(e.getParams().get(vectorIndex));
+    }
+
+    @Override
+    public void visitWhileStmt(WhileStmt s) {
+        checkCondition(s.getCondition());
+        output("while (");
+        scan(s.getCondition());
+        output(")");
+        scan(s.getStmt());
+    }
+
+    private void outputPreambles(Tree tree) {
+        JSWVCallScanner scanner = new JSWVCallScanner(backend);
+        scanner.scan(tree);
+        String res = scanner.getResult();
+        if (res != null) {
+            output(scanner.getResult());
+        }
+    }
+}
@@ -36,6 +36,7 @@ import java.util.Set;
 public class SymbolTable {
 
     private final Map<String, Variable> globalVariableMap = new HashMap<>();
+    private final Map<String, Variable> coreVariableMap = new HashMap<>();
     private final Map<String, Variable> localVariableMap = new HashMap<>();
     private final Set<Function> globalFunctionSet = new HashSet<>();
     private int numSamplers;
@@ -44,6 +45,7 @@ public class SymbolTable {
 
     public SymbolTable() {
         declareCoreFunctions();
+        declareCoreVariables();
     }
 
     private Variable declareParamVariable(String name, Type type) {
@@ -109,6 +111,17 @@ public class SymbolTable {
         return v;
     }
 
+    /**
+     * Returns a new unqualified variable for a value computed by the
+     * compiler itself (for example, by one of the optimization passes in
+     * the tree package).  Unlike the other variables, it is not entered
+     * into any scope, so the caller is responsible for choosing a name
+     * that cannot clash with the ones used in the program.
+     */
+    public Variable createTempVariable(String name, Type type) {
+        return new Variable(name, type);
+    }
+
     public Function declareFunction(String name, Type returnType, List<Param> params) {
         if (isFunctionDeclared(name, returnType, params)) {
             throw new RuntimeException("Function '" + name + "' already declared");
@@ -118,9 +131,7 @@ public class SymbolTable {
         if (name.equals("main") && (params == null || params.isEmpty())) {
             if (localVariableMap.isEmpty()) {
                 // core variables are implicitly declared for main() only
-                for (Variable v : CoreSymbols.getAllVariables()) {
-                    localVariableMap.put(v.getName(), v);
-                }
+                localVariableMap.putAll(coreVariableMap);
             }
         }
         if (params != null) {
@@ -150,6 +161,45 @@ public class SymbolTable {
         globalFunctionSet.addAll(CoreSymbols.getAllFunctions());
     }
 
+    // each table has its own copies of the core variables, since their
+    // reference counts depend on the program
+    private void declareCoreVariables() {
+        for (Variable v : CoreSymbols.getAllVariables()) {
+            coreVariableMap.put(v.getName(),
+                                new Variable(v.getName(), v.getType(), v.getQualifier(),
+                                             v.getPrecision(), -1, -1, null, false));
+        }
+    }
+
+    /**
+     * Returns true if the core variable with the given name (e.g.
+     * "pixcoord") is referenced by the program.
+     */
+    public boolean isCoreVariableReferenced(String name) {
+        Variable v = coreVariableMap.get(name);
+        return v != null && v.isReferenced();
+    }
+
+    /**
+     * Returns the core variable with the given name (e.g. "color"), which
+     * is declared for main() only.
+     */
+    public Variable getCoreVariable(String name) {
+        return coreVariableMap.get(name);
+    }
+
+    /**
+     * Clears the reference counts of the global and core variables.
+     */
+    public void resetRefCounts() {
+        for (Variable v : globalVariableMap.values()) {
+            v.resetRefCount();
+        }
+        for (Variable v : coreVariableMap.values()) {
+            v.resetRefCount();
+        }
+    }
+
     public Map<String, Variable> getGlobalVariables() {
         return globalVariableMap;
     }
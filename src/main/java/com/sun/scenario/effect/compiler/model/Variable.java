@@ -110,6 +110,14 @@ public class Variable {
         refCount++;
     }
 
+    /**
+     * Clears the reference count, so that it can be recomputed after the
+     * program has been transformed (see DeadCodeEliminator).
+     */
+    public void resetRefCount() {
+        refCount = 0;
+    }
+
     public boolean isReferenced() {
         return refCount > 0;
     }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.model.SymbolTable;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Moves function calls that the software backends cannot inline in place
+ * into new temporary variables, which are declared just before the
+ * statement that needs them.
+ *
+ * The call scanners of the software backends inline each call before the
+ * statement that contains it, into a block that leaves the result in a
+ * variable named after the function (e.g. {@code min_res}).  This breaks
+ * down in a few cases, which are rewritten as follows:
+ * <ul>
+ * <li>a call nested in the argument of another call, as in
+ * {@code min(abs(x), 1.0)}, is moved out first, so that the inner call is
+ * inlined (and its result copied) before the outer one;</li>
+ * <li>a call used as the argument of a vector constructor, as in
+ * {@code float4(sin(x), cos(x), 0.0, 1.0)}, is moved out as well, since
+ * each component of the constructor is only evaluated as part of the
+ * corresponding component of the statement;</li>
+ * <li>a call followed (in the same statement) by another call to the same
+ * function, or to a user-defined function that may do so, is moved out
+ * so that its result is not overwritten before the statement reads it.
+ * </li>
+ * </ul>
+ *
+ * Nested calls are only supported in expression statements, declarations
+ * and return statements (the ones that the call scanners handle).
+ *
+ * The original tree is left untouched, as it is shared by all backends.
+ */
+public class CallLifter extends TreeTranslator {
+
+    private final SymbolTable symbols;
+    private int numTemps;
+    // the statement of the enclosing block that is being translated, and
+    // the declarations that need to be inserted before it
+    private Stmt current;
+    private List<Stmt> lifted;
+
+    public CallLifter(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public ProgramUnit lift(ProgramUnit program) {
+        return translate(program);
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        Stmt saved = current;
+        List<Stmt> savedLifted = lifted;
+        List<Stmt> res = new ArrayList<Stmt>();
+        boolean changed = false;
+        for (Stmt stmt : s.getStmts()) {
+            current = stmt;
+            lifted = new ArrayList<Stmt>();
+            Stmt tstmt = translate(stmt);
+            res.addAll(lifted);
+            res.add(tstmt);
+            changed |= !lifted.isEmpty() || tstmt != stmt;
+        }
+        current = saved;
+        lifted = savedLifted;
+        result = changed ? new CompoundStmt(res) : s;
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        boolean changed = false;
+        for (VarDecl d : s.getDecls()) {
+            // the initializers of the later variables may refer to the
+            // earlier ones, so each of them gets its own declaration
+            Expr init = d.getInit();
+            Expr tinit = (init != null) ? liftCalls(init, stmts) : null;
+            changed |= (tinit != init);
+            stmts.add(new DeclStmt(Collections.singletonList(new VarDecl(d.getVariable(), tinit))));
+        }
+        result = changed ? insert(s, stmts) : s;
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        Expr expr = liftCalls(s.getExpr(), stmts);
+        if (expr != s.getExpr()) {
+            stmts.add(new ExprStmt(expr));
+            result = insert(s, stmts);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitReturnStmt(ReturnStmt s) {
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        Expr expr = liftCalls(s.getExpr(), stmts);
+        if (expr != s.getExpr()) {
+            stmts.add(new ReturnStmt(expr));
+            result = insert(s, stmts);
+        } else {
+            result = s;
+        }
+    }
+
+    /**
+     * Returns the statement that replaces {@code s}, given the statements
+     * it expands to (the last of which is the rewritten statement itself).
+     */
+    private Stmt insert(Stmt s, List<Stmt> stmts) {
+        if (s == current) {
+            lifted.addAll(stmts.subList(0, stmts.size() - 1));
+            return stmts.get(stmts.size() - 1);
+        }
+        // the statement is not part of a block (e.g. the body of an if
+        // statement without braces), so make one
+        return new CompoundStmt(stmts);
+    }
+
+    /**
+     * Rewrites the given expression, appending the declarations of the
+     * temporary variables it needs to {@code stmts}.
+     */
+    private Expr liftCalls(Expr expr, final List<Stmt> stmts) {
+        if (expr == null) {
+            return null;
+        }
+        // the calls that are evaluated directly by the statement, in the
+        // order in which they are inlined
+        final List<CallExpr> calls = new ArrayList<CallExpr>();
+        new TreeScanner() {
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                calls.add(e);
+            }
+
+            @Override
+            public void visitVectorCtorExpr(VectorCtorExpr e) {
+            }
+        }.scan(expr);
+
+        return new TreeTranslator() {
+            private int nested;
+            // shorthand constructors like float4(x) share the same param node
+            private final Map<CallExpr, Variable> temps =
+                new IdentityHashMap<CallExpr, Variable>();
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                Variable temp = temps.get(e);
+                if (temp == null) {
+                    nested++;
+                    super.visitCallExpr(e);
+                    nested--;
+                    if (nested == 0 && !isOverwritten(e, calls)) {
+                        return;
+                    }
+                    temp = symbols.createTempVariable("_call" + numTemps++,
+                                                      e.getResultType());
+                    stmts.add(new DeclStmt(Collections.singletonList(
+                        new VarDecl(temp, (Expr)result))));
+                    temps.put(e, temp);
+                }
+                result = new VariableExpr(temp);
+            }
+
+            @Override
+            public void visitVectorCtorExpr(VectorCtorExpr e) {
+                nested++;
+                super.visitVectorCtorExpr(e);
+                nested--;
+            }
+        }.translate(expr);
+    }
+
+    /**
+     * Returns true if the result of the given call may be overwritten by
+     * one of the calls that are inlined after it.
+     */
+    private static boolean isOverwritten(CallExpr e, List<CallExpr> calls) {
+        for (int i = calls.indexOf(e) + 1; i < calls.size(); i++) {
+            CallExpr c = calls.get(i);
+            // the result variables are named after the function, whatever
+            // the overload
+            if (c.getFunction().getName().equals(e.getFunction().getName()) ||
+                c.getFunction().isUserFunc())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,650 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Param;
+import com.sun.scenario.effect.compiler.model.SymbolTable;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Evaluates common subexpressions only once, by moving them into new
+ * temporary variables that are declared just before the statement that
+ * needs them.
+ *
+ * This is aimed at the software backends, which expand each vector
+ * operation into one statement per component, and inline each function
+ * call separately.  So a scalar expression that is part of a vector
+ * expression, such as the {@code scale * 0.5} in
+ * {@code color = c * (scale * 0.5)}, would be evaluated once for each
+ * component, and two calls to {@code sample()} with the same arguments
+ * would fetch the same pixel twice.  The following are moved:
+ * <ul>
+ * <li>scalar float expressions that perform some arithmetic, and that
+ * would be evaluated once per component;</li>
+ * <li>float expressions (that perform some arithmetic or call a core
+ * function) that occur more than once, either within a statement or in
+ * the statements that follow it in the same block, as long as none of
+ * the variables they read are assigned in between.</li>
+ * </ul>
+ *
+ * Only expressions without side effects are moved, and the statements
+ * that have side effects other than the assignment they perform are left
+ * alone.  Nested blocks (e.g. the body of a loop) start from scratch.
+ *
+ * The original tree is left untouched, as it is shared by all backends.
+ */
+public class CommonSubexprEliminator extends TreeTranslator {
+
+    private final SymbolTable symbols;
+    private int numTemps;
+    // the non-local variables read by each user function without side
+    // effects (i.e. one that only assigns its own parameters and locals)
+    private final Map<Function, Set<Variable>> pureFuncs =
+        new HashMap<Function, Set<Variable>>();
+
+    public CommonSubexprEliminator(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public ProgramUnit eliminate(ProgramUnit program) {
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof FuncDef) {
+                analyze((FuncDef)d);
+            }
+        }
+        return translate(program);
+    }
+
+    /**
+     * Records the given function as a pure one if it has no side effects
+     * (functions can only call the ones declared before them, so these
+     * have already been analyzed).
+     */
+    private void analyze(FuncDef d) {
+        final Set<Variable> locals = new HashSet<Variable>();
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl decl) {
+                locals.add(decl.getVariable());
+                super.visitVarDecl(decl);
+            }
+        }.scan(d.getStmt());
+        Set<Variable> written = getWritten(d.getStmt());
+        for (Variable v : written) {
+            if (!v.isParam() && !locals.contains(v)) {
+                return;
+            }
+        }
+        Set<Variable> read = getRead(d.getStmt());
+        for (Variable v : new ArrayList<Variable>(read)) {
+            if (v.isParam() || locals.contains(v)) {
+                read.remove(v);
+            }
+        }
+        if (!hasSideEffects(d.getStmt())) {
+            pureFuncs.put(d.getFunction(), read);
+        }
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        List<Stmt> stmts = s.getStmts();
+        List<Stmt> res = new ArrayList<Stmt>();
+        // the expressions that are held by a temporary variable
+        Map<Expr, Variable> available = new LinkedHashMap<Expr, Variable>();
+        boolean changed = false;
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt stmt = stmts.get(i);
+            List<Expr> roots = getRoots(stmt);
+            Stmt tstmt;
+            if (roots == null) {
+                // control flow, or a nested block
+                available.clear();
+                tstmt = translate(stmt);
+            } else if (!hasSideEffects(roots)) {
+                tstmt = eliminate(stmt, stmts.subList(i + 1, stmts.size()), available, res);
+            } else {
+                // this may assign anything
+                available.clear();
+                tstmt = stmt;
+            }
+            Set<Variable> written = getWritten(stmt);
+            available.keySet().removeIf(e -> readsAny(e, written));
+            changed |= (tstmt != stmt);
+            res.add(tstmt);
+        }
+        result = changed ? new CompoundStmt(res) : s;
+    }
+
+    /**
+     * Rewrites the given simple statement, appending the declarations of
+     * the temporary variables it needs to {@code res}.
+     */
+    private Stmt eliminate(Stmt stmt, List<Stmt> following,
+                           Map<Expr, Variable> available, List<Stmt> res)
+    {
+        List<Expr> roots = getRoots(stmt);
+        for (Map.Entry<Expr, Variable> entry : available.entrySet()) {
+            roots = replace(roots, entry.getKey(), entry.getValue());
+        }
+        Set<Variable> declared = getDeclared(stmt);
+        boolean perComponent = getType(stmt).isVector();
+        while (true) {
+            Expr e = null;
+            for (Expr root : roots) {
+                e = findCandidate(root, perComponent, roots, following, declared);
+                if (e != null) {
+                    break;
+                }
+            }
+            if (e == null) {
+                break;
+            }
+            Variable temp = symbols.createTempVariable("_cse" + numTemps++, e.getResultType());
+            res.add(new DeclStmt(Collections.singletonList(new VarDecl(temp, e))));
+            roots = replace(roots, e, temp);
+            available.put(e, temp);
+        }
+        return rebuild(stmt, roots);
+    }
+
+    /**
+     * Returns the outermost subexpression of the given expression that is
+     * worth moving into a temporary variable, or null if there is none.
+     */
+    private Expr findCandidate(Expr e, boolean perComponent, List<Expr> roots,
+                               List<Stmt> following, Set<Variable> declared)
+    {
+        if (e == null) {
+            return null;
+        }
+        if (!(e instanceof ParenExpr) && isMovable(e) && !readsAny(e, declared)) {
+            if (perComponent && !e.getResultType().isVector() && hasArithmetic(e)) {
+                return e;
+            }
+            if (countUses(e, roots, following) > 1) {
+                return e;
+            }
+        }
+        List<Expr> children = getChildren(e);
+        for (int i = 0; i < children.size(); i++) {
+            boolean childPerComponent;
+            if (e instanceof VectorCtorExpr) {
+                // only one of the arguments is used for each component
+                childPerComponent = false;
+            } else if (e instanceof CallExpr) {
+                // the arguments are evaluated when the call is inlined, once
+                // for each component of the corresponding parameter
+                List<Param> params = ((CallExpr)e).getFunction().getParams();
+                childPerComponent = params.get(i).getType().isVector();
+            } else {
+                childPerComponent = perComponent;
+            }
+            Expr res = findCandidate(children.get(i), childPerComponent,
+                                     roots, following, declared);
+            if (res != null) {
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of times the given expression is evaluated by the
+     * current statement and by the following ones in the same block, up
+     * to the point where one of the variables it reads may change.
+     */
+    private int countUses(Expr e, List<Expr> roots, List<Stmt> following) {
+        int count = count(roots, e);
+        Set<Variable> read = getRead(e);
+        for (Stmt stmt : following) {
+            List<Expr> froots = getRoots(stmt);
+            if (froots == null || hasSideEffects(froots)) {
+                break;
+            }
+            count += count(froots, e);
+            if (readsAny(e, getWritten(stmt)) || !Collections.disjoint(read, getDeclared(stmt))) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static int count(List<Expr> roots, Expr e) {
+        int count = 0;
+        for (Expr root : roots) {
+            count += count(root, e);
+        }
+        return count;
+    }
+
+    private static int count(Expr root, Expr e) {
+        if (root == null) {
+            return 0;
+        }
+        if (isSame(root, e)) {
+            return 1;
+        }
+        int count = 0;
+        for (Expr child : getChildren(root)) {
+            count += count(child, e);
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the given expression is a float expression without
+     * side effects that does some work (i.e. more than reading a variable
+     * or a literal).
+     */
+    private boolean isMovable(Expr e) {
+        if (e.getResultType().getBaseType() != BaseType.FLOAT ||
+            e instanceof LiteralExpr || e instanceof VariableExpr ||
+            e instanceof VectorCtorExpr || hasSideEffects(e))
+        {
+            return false;
+        }
+        final boolean[] found = new boolean[2];
+        new TreeScanner() {
+            @Override
+            public void visitArrayAccessExpr(ArrayAccessExpr e) {
+                found[1] = true;
+            }
+
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                found[0] = true;
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                found[0] = true;
+                super.visitCallExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                found[0] = true;
+                super.visitUnaryExpr(e);
+            }
+        }.scan(e);
+        // the software backends only support array elements as part of a
+        // scalar expression (e.g. kernel[i].x * 2.0)
+        return found[0] && !(found[1] && e.getResultType().isVector());
+    }
+
+    /**
+     * Returns true if the given expression does some arithmetic outside
+     * of the arguments of a function call (which are evaluated only once
+     * when the call is inlined).
+     */
+    private static boolean hasArithmetic(Expr e) {
+        final boolean[] found = { false };
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                found[0] = true;
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                found[0] = true;
+            }
+        }.scan(e);
+        return found[0];
+    }
+
+    private boolean hasSideEffects(Tree tree) {
+        return hasSideEffects(Collections.singletonList(tree));
+    }
+
+    private boolean hasSideEffects(List<? extends Tree> trees) {
+        final boolean[] found = { false };
+        TreeScanner scanner = new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (isAssignment(e.getOp())) {
+                    found[0] = true;
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                if (e.getFunction().isUserFunc() &&
+                    !pureFuncs.containsKey(e.getFunction()))
+                {
+                    found[0] = true;
+                }
+                super.visitCallExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    found[0] = true;
+                }
+                super.visitUnaryExpr(e);
+            }
+        };
+        for (Tree t : trees) {
+            scanner.scan(t);
+        }
+        return found[0];
+    }
+
+    private static boolean isAssignment(BinaryOpType op) {
+        switch (op) {
+        case LSEQ:
+        case RSEQ:
+        case ANDEQ:
+        case OREQ:
+        case XOREQ:
+            return true;
+        default:
+            return op.isAssignment();
+        }
+    }
+
+    private Set<Variable> getRead(Tree tree) {
+        final Set<Variable> read = new HashSet<Variable>();
+        new TreeScanner() {
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                Set<Variable> funcRead = pureFuncs.get(e.getFunction());
+                if (funcRead != null) {
+                    read.addAll(funcRead);
+                }
+                super.visitCallExpr(e);
+            }
+
+            @Override
+            public void visitVariableExpr(VariableExpr e) {
+                read.add(e.getVariable());
+            }
+        }.scan(tree);
+        return read;
+    }
+
+    private boolean readsAny(Expr e, Set<Variable> vars) {
+        return !vars.isEmpty() && !Collections.disjoint(getRead(e), vars);
+    }
+
+    /**
+     * Returns the variables that are (or may be) assigned by the given
+     * statement.
+     */
+    private Set<Variable> getWritten(Stmt stmt) {
+        final Set<Variable> written = new HashSet<Variable>(getDeclared(stmt));
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (isAssignment(e.getOp())) {
+                    written.addAll(getRead(e.getLeft()));
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitDeclStmt(DeclStmt s) {
+                for (VarDecl d : s.getDecls()) {
+                    written.add(d.getVariable());
+                }
+                super.visitDeclStmt(s);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    written.addAll(getRead(e.getExpr()));
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(stmt);
+        return written;
+    }
+
+    private static Set<Variable> getDeclared(Stmt stmt) {
+        Set<Variable> declared = new HashSet<Variable>();
+        if (stmt instanceof DeclStmt) {
+            for (VarDecl d : ((DeclStmt)stmt).getDecls()) {
+                declared.add(d.getVariable());
+            }
+        }
+        return declared;
+    }
+
+    /**
+     * Returns the expressions evaluated by the given statement that this
+     * pass may rewrite (the right-hand side of an assignment, the
+     * initializers of a declaration, or the value that is returned), or
+     * null if the statement is not one of these.
+     */
+    private static List<Expr> getRoots(Stmt stmt) {
+        if (stmt instanceof ExprStmt && ((ExprStmt)stmt).getExpr() != null) {
+            Expr e = ((ExprStmt)stmt).getExpr();
+            if (e instanceof BinaryExpr && isAssignment(((BinaryExpr)e).getOp())) {
+                return Collections.singletonList(((BinaryExpr)e).getRight());
+            }
+            return Collections.singletonList(e);
+        } else if (stmt instanceof DeclStmt) {
+            List<Expr> roots = new ArrayList<Expr>();
+            for (VarDecl d : ((DeclStmt)stmt).getDecls()) {
+                roots.add(d.getInit());
+            }
+            return roots;
+        } else if (stmt instanceof ReturnStmt && ((ReturnStmt)stmt).getExpr() != null) {
+            return Collections.singletonList(((ReturnStmt)stmt).getExpr());
+        }
+        return null;
+    }
+
+    private static Type getType(Stmt stmt) {
+        if (stmt instanceof DeclStmt) {
+            // all of the variables in a declaration have the same type
+            return ((DeclStmt)stmt).getDecls().get(0).getVariable().getType();
+        }
+        Expr e = (stmt instanceof ExprStmt) ?
+            ((ExprStmt)stmt).getExpr() : ((ReturnStmt)stmt).getExpr();
+        return e.getResultType();
+    }
+
+    private static Stmt rebuild(Stmt stmt, List<Expr> roots) {
+        if (roots.equals(getRoots(stmt))) {
+            return stmt;
+        }
+        if (stmt instanceof ExprStmt) {
+            Expr e = ((ExprStmt)stmt).getExpr();
+            if (e instanceof BinaryExpr && isAssignment(((BinaryExpr)e).getOp())) {
+                BinaryExpr be = (BinaryExpr)e;
+                return new ExprStmt(new BinaryExpr(be.getOp(), be.getLeft(), roots.get(0)));
+            }
+            return new ExprStmt(roots.get(0));
+        } else if (stmt instanceof DeclStmt) {
+            List<VarDecl> decls = new ArrayList<VarDecl>();
+            List<VarDecl> orig = ((DeclStmt)stmt).getDecls();
+            for (int i = 0; i < orig.size(); i++) {
+                decls.add(new VarDecl(orig.get(i).getVariable(), roots.get(i)));
+            }
+            return new DeclStmt(decls);
+        } else {
+            return new ReturnStmt(roots.get(0));
+        }
+    }
+
+    /**
+     * Replaces each occurrence of the given expression with a reference to
+     * the given variable.
+     */
+    private static List<Expr> replace(List<Expr> roots, final Expr e, final Variable var) {
+        TreeTranslator replacer = new TreeTranslator() {
+            @Override
+            public void visitArrayAccessExpr(ArrayAccessExpr a) {
+                if (!replaced(a)) {
+                    super.visitArrayAccessExpr(a);
+                }
+            }
+
+            @Override
+            public void visitBinaryExpr(BinaryExpr b) {
+                if (!replaced(b)) {
+                    super.visitBinaryExpr(b);
+                }
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr c) {
+                if (!replaced(c)) {
+                    super.visitCallExpr(c);
+                }
+            }
+
+            @Override
+            public void visitFieldSelectExpr(FieldSelectExpr f) {
+                if (!replaced(f)) {
+                    super.visitFieldSelectExpr(f);
+                }
+            }
+
+            @Override
+            public void visitParenExpr(ParenExpr p) {
+                if (!replaced(p)) {
+                    super.visitParenExpr(p);
+                }
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr u) {
+                if (!replaced(u)) {
+                    super.visitUnaryExpr(u);
+                }
+            }
+
+            @Override
+            public void visitVectorCtorExpr(VectorCtorExpr v) {
+                if (!replaced(v)) {
+                    super.visitVectorCtorExpr(v);
+                }
+            }
+
+            private boolean replaced(Expr x) {
+                if (isSame(x, e)) {
+                    result = new VariableExpr(var);
+                    return true;
+                }
+                return false;
+            }
+        };
+        List<Expr> res = new ArrayList<Expr>();
+        for (Expr root : roots) {
+            res.add(replacer.translate(root));
+        }
+        return res;
+    }
+
+    private static List<Expr> getChildren(Expr e) {
+        if (e instanceof BinaryExpr) {
+            return Arrays.asList(((BinaryExpr)e).getLeft(), ((BinaryExpr)e).getRight());
+        } else if (e instanceof UnaryExpr) {
+            return Collections.singletonList(((UnaryExpr)e).getExpr());
+        } else if (e instanceof ParenExpr) {
+            return Collections.singletonList(((ParenExpr)e).getExpr());
+        } else if (e instanceof FieldSelectExpr) {
+            return Collections.singletonList(((FieldSelectExpr)e).getExpr());
+        } else if (e instanceof ArrayAccessExpr) {
+            return Arrays.asList(((ArrayAccessExpr)e).getExpr(), ((ArrayAccessExpr)e).getIndex());
+        } else if (e instanceof CallExpr) {
+            return ((CallExpr)e).getParams();
+        } else if (e instanceof VectorCtorExpr) {
+            return ((VectorCtorExpr)e).getParams();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns true if the two expressions have the same structure, and
+     * hence the same value when evaluated at the same point.
+     */
+    private static boolean isSame(Expr a, Expr b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.getClass() != b.getClass() || a.getResultType() != b.getResultType()) {
+            return false;
+        }
+        if (a instanceof LiteralExpr) {
+            return ((LiteralExpr)a).getValue().equals(((LiteralExpr)b).getValue());
+        } else if (a instanceof VariableExpr) {
+            return ((VariableExpr)a).getVariable() == ((VariableExpr)b).getVariable();
+        } else if (a instanceof BinaryExpr) {
+            if (((BinaryExpr)a).getOp() != ((BinaryExpr)b).getOp()) {
+                return false;
+            }
+        } else if (a instanceof UnaryExpr) {
+            if (((UnaryExpr)a).getOp() != ((UnaryExpr)b).getOp()) {
+                return false;
+            }
+        } else if (a instanceof FieldSelectExpr) {
+            if (!((FieldSelectExpr)a).getFields().equals(((FieldSelectExpr)b).getFields())) {
+                return false;
+            }
+        } else if (a instanceof CallExpr) {
+            if (((CallExpr)a).getFunction() != ((CallExpr)b).getFunction()) {
+                return false;
+            }
+        }
+        List<Expr> ac = getChildren(a);
+        List<Expr> bc = getChildren(b);
+        if (ac.size() != bc.size()) {
+            return false;
+        }
+        for (int i = 0; i < ac.size(); i++) {
+            if (!isSame(ac.get(i), bc.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Simplifies the program before it is handed to the backends:
+ * <ul>
+ * <li>arithmetic and comparisons on literals are evaluated (in float
+ * precision, as they would be at runtime), as are the unary operators,
+ * and double negations are removed;</li>
+ * <li>references to scalar {@code const} variables are replaced by their
+ * value;</li>
+ * <li>identities such as {@code x * 1.0}, {@code x / 1.0},
+ * {@code x - 0.0} and {@code x + 0.0} are reduced to {@code x} (the
+ * latter turns -0.0 into +0.0 when x is -0.0, which the shading
+ * languages do not preserve anyway);</li>
+ * <li>swizzles of vector constructors, e.g. {@code float4(a, b, c, d).yx},
+ * select the constructor arguments directly;</li>
+ * <li>parentheses around a single literal or variable are dropped.</li>
+ * </ul>
+ *
+ * Function calls are never evaluated, and nothing is folded when the
+ * result would not be a finite value that all backends can print, or
+ * when the backends disagree on the semantics (e.g. {@code %}).
+ */
+public class ConstantFolder extends TreeTranslator {
+
+    public ProgramUnit fold(ProgramUnit program) {
+        return translate(program);
+    }
+
+    private static boolean isLeaf(Expr e) {
+        return e instanceof LiteralExpr || e instanceof VariableExpr;
+    }
+
+    private static Object getValue(Expr e) {
+        return (e instanceof LiteralExpr) ? ((LiteralExpr)e).getValue() : null;
+    }
+
+    /**
+     * Returns true if the given expression is a literal, or a vector
+     * constructor made up of literals, with the given (numeric) value.
+     */
+    private static boolean isConstant(Expr e, float value) {
+        if (e instanceof VectorCtorExpr) {
+            for (Expr param : ((VectorCtorExpr)e).getParams()) {
+                if (!isConstant(param, value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        Object v = getValue(e);
+        return v instanceof Number && ((Number)v).floatValue() == value;
+    }
+
+    /**
+     * Returns true if evaluating the given expression cannot have any
+     * effect other than producing its value.
+     */
+    private static boolean isPure(Expr e) {
+        final boolean[] pure = { true };
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (e.getOp().isAssignment()) {
+                    pure[0] = false;
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                pure[0] = false;
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    pure[0] = false;
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(e);
+        return pure[0];
+    }
+
+    private static Expr literal(Type type, Object value) {
+        return (value != null) ? new LiteralExpr(type, value) : null;
+    }
+
+    private static Object foldFloat(BinaryOpType op, float l, float r) {
+        float res;
+        switch (op) {
+        case ADD: res = l + r; break;
+        case SUB: res = l - r; break;
+        case MUL: res = l * r; break;
+        case DIV: res = l / r; break;
+        case EQEQ: return l == r;
+        case NEQ:  return l != r;
+        case LT:   return l < r;
+        case GT:   return l > r;
+        case LTEQ: return l <= r;
+        case GTEQ: return l >= r;
+        default:
+            return null;
+        }
+        // Infinity and NaN have no literal form
+        return Float.isFinite(res) ? res : null;
+    }
+
+    private static Object foldInt(BinaryOpType op, int l, int r) {
+        try {
+            switch (op) {
+            case ADD: return Math.addExact(l, r);
+            case SUB: return Math.subtractExact(l, r);
+            case MUL: return Math.multiplyExact(l, r);
+            case DIV:
+                // the rounding of negative quotients is not specified
+                // by all of the shading languages
+                return (l >= 0 && r > 0) ? l / r : null;
+            case EQEQ: return l == r;
+            case NEQ:  return l != r;
+            case LT:   return l < r;
+            case GT:   return l > r;
+            case LTEQ: return l <= r;
+            case GTEQ: return l >= r;
+            default:
+                return null;
+            }
+        } catch (ArithmeticException ex) {
+            // overflow is undefined in C
+            return null;
+        }
+    }
+
+    private static Object foldBool(BinaryOpType op, boolean l, boolean r) {
+        switch (op) {
+        case AND:  return l && r;
+        case OR:   return l || r;
+        case XOR:  return l ^ r;
+        case EQEQ: return l == r;
+        case NEQ:  return l != r;
+        default:
+            return null;
+        }
+    }
+
+    private static Expr fold(BinaryExpr e) {
+        Object lv = getValue(e.getLeft());
+        Object rv = getValue(e.getRight());
+        if (lv instanceof Boolean && rv instanceof Boolean) {
+            return literal(Types.BOOL, foldBool(e.getOp(), (Boolean)lv, (Boolean)rv));
+        } else if (lv instanceof Integer && rv instanceof Integer) {
+            Object res = foldInt(e.getOp(), (Integer)lv, (Integer)rv);
+            return literal((res instanceof Boolean) ? Types.BOOL : Types.INT, res);
+        } else if (lv instanceof Number && rv instanceof Number) {
+            // int operands are promoted to float, as in the backends
+            Object res = foldFloat(e.getOp(),
+                                   ((Number)lv).floatValue(),
+                                   ((Number)rv).floatValue());
+            return literal((res instanceof Boolean) ? Types.BOOL : Types.FLOAT, res);
+        }
+        return null;
+    }
+
+    private static Expr simplify(BinaryExpr e) {
+        Expr left = e.getLeft();
+        Expr right = e.getRight();
+        Type t = e.getResultType();
+        switch (e.getOp()) {
+        case ADD:
+            if (isConstant(left, 0f) && right.getResultType() == t) {
+                return right;
+            }
+            return getLeftIfIdentity(left, right, 0f, t);
+        case SUB:
+            return getLeftIfIdentity(left, right, 0f, t);
+        case MUL:
+            if (isConstant(left, 1f) && right.getResultType() == t) {
+                return right;
+            }
+            return getLeftIfIdentity(left, right, 1f, t);
+        case DIV:
+            return getLeftIfIdentity(left, right, 1f, t);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the left operand if the right one is the given identity
+     * value of the operator (e.g. x - 0.0 or x / 1.0).
+     */
+    private static Expr getLeftIfIdentity(Expr left, Expr right, float identity, Type t) {
+        if (isConstant(right, identity) && left.getResultType() == t) {
+            return left;
+        }
+        return null;
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        // the backends only accept a variable or a constant as the array
+        // index, so the index is left as it is unless it folds to an int
+        // (as it does in the loops expanded by LoopUnroller)
+        Expr expr = translate(e.getExpr());
+        Expr index = translate(e.getIndex());
+        if (!(getValue(index) instanceof Integer)) {
+            index = e.getIndex();
+        }
+        if (expr != e.getExpr() || index != e.getIndex()) {
+            result = new ArrayAccessExpr(expr, index);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        super.visitBinaryExpr(e);
+        BinaryExpr be = (BinaryExpr)result;
+        Expr res = fold(be);
+        if (res == null) {
+            res = simplify(be);
+        }
+        if (res != null) {
+            result = res;
+        }
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        super.visitFieldSelectExpr(e);
+        FieldSelectExpr fse = (FieldSelectExpr)result;
+        Expr expr = fse.getExpr();
+        while (expr instanceof ParenExpr) {
+            expr = ((ParenExpr)expr).getExpr();
+        }
+        if (!(expr instanceof VectorCtorExpr)) {
+            return;
+        }
+        List<Expr> params = ((VectorCtorExpr)expr).getParams();
+        String fields = fse.getFields();
+        int[] counts = new int[params.size()];
+        for (int i = 0; i < fields.length(); i++) {
+            int index = getFieldIndex(fields.charAt(i));
+            if (index < 0 || index >= params.size()) {
+                return;
+            }
+            counts[index]++;
+        }
+        for (int i = 0; i < params.size(); i++) {
+            Expr param = params.get(i);
+            // dropped arguments must not have side effects, and repeated
+            // ones must be cheap enough to evaluate more than once
+            if ((counts[i] == 0 && !isPure(param)) ||
+                (counts[i] > 1 && !isLeaf(param)))
+            {
+                return;
+            }
+        }
+        if (fields.length() == 1) {
+            Expr param = params.get(getFieldIndex(fields.charAt(0)));
+            result = isLeaf(param) ? param : new ParenExpr(param);
+        } else {
+            List<Expr> selected = new ArrayList<Expr>();
+            for (int i = 0; i < fields.length(); i++) {
+                selected.add(params.get(getFieldIndex(fields.charAt(i))));
+            }
+            result = new VectorCtorExpr(fse.getResultType(), selected);
+        }
+    }
+
+    private static int getFieldIndex(char field) {
+        switch (field) {
+        case 'r':
+        case 'x':
+            return 0;
+        case 'g':
+        case 'y':
+            return 1;
+        case 'b':
+        case 'z':
+            return 2;
+        case 'a':
+        case 'w':
+            return 3;
+        default:
+            return -1;
+        }
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        super.visitParenExpr(e);
+        ParenExpr pe = (ParenExpr)result;
+        if (isLeaf(pe.getExpr())) {
+            result = pe.getExpr();
+        }
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        super.visitUnaryExpr(e);
+        UnaryExpr ue = (UnaryExpr)result;
+        Object v = getValue(ue.getExpr());
+        switch (ue.getOp()) {
+        case PLUS:
+            if (ue.getExpr().getResultType() == ue.getResultType()) {
+                result = ue.getExpr();
+            }
+            break;
+        case MINUS:
+            Expr inner = ue.getExpr();
+            while (inner instanceof ParenExpr) {
+                inner = ((ParenExpr)inner).getExpr();
+            }
+            if (inner instanceof UnaryExpr &&
+                ((UnaryExpr)inner).getOp() == UnaryOpType.MINUS)
+            {
+                result = ((UnaryExpr)inner).getExpr();
+            } else if (v instanceof Float) {
+                result = new LiteralExpr(Types.FLOAT, -(Float)v);
+            } else if (v instanceof Integer && (Integer)v != Integer.MIN_VALUE) {
+                result = new LiteralExpr(Types.INT, -(Integer)v);
+            }
+            break;
+        case NOT:
+            if (v instanceof Boolean) {
+                result = new LiteralExpr(Types.BOOL, !(Boolean)v);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        Variable var = e.getVariable();
+        Object v = var.getConstValue();
+        Type t = var.getType();
+        // complex initializers are only kept as text for now
+        if (var.getQualifier() == Qualifier.CONST && !var.isArray() &&
+            !t.isVector() && t.getBaseType() != BaseType.SAMPLER &&
+            (v instanceof Float || v instanceof Integer || v instanceof Boolean))
+        {
+            result = new LiteralExpr(t, v);
+        } else {
+            result = e;
+        }
+    }
+}
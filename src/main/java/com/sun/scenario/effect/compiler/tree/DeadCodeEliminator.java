@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.SymbolTable;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Removes the code that has no effect on the result of the program:
+ * <ul>
+ * <li>local variables that are never read, along with the statements
+ * that only assign to them (as long as the values assigned do not have
+ * side effects of their own, i.e. no assignments or calls to user
+ * functions);</li>
+ * <li>the branches of {@code if} statements with a constant condition,
+ * and {@code while} loops whose condition is {@code false}.</li>
+ * </ul>
+ *
+ * Once the program no longer changes, the reference counts of all
+ * variables are recomputed from the remaining tree, so that the backends
+ * can use {@link Variable#isReferenced()} to leave out the declarations
+ * and setup code for params and built-in variables (such as
+ * {@code pixcoord}) that the program does not read.
+ *
+ * The original tree is left untouched, as it is shared by all backends.
+ */
+public class DeadCodeEliminator extends TreeTranslator {
+
+    private static final CompoundStmt EMPTY =
+        new CompoundStmt(Collections.<Stmt>emptyList());
+
+    private final SymbolTable symbols;
+    private final Set<Variable> locals = new HashSet<Variable>();
+    private final Set<Variable> read = new HashSet<Variable>();
+
+    public DeadCodeEliminator(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns a copy of the given program without the dead code, and
+     * updates the reference counts of the variables to match.
+     */
+    public ProgramUnit eliminate(ProgramUnit program) {
+        while (true) {
+            locals.clear();
+            read.clear();
+            new UsageScanner().scan(program);
+            ProgramUnit res = translate(program);
+            if (res == program) {
+                break;
+            }
+            // removing a statement may make other variables dead
+            program = res;
+        }
+        countReferences(program);
+        return program;
+    }
+
+    private boolean isDead(Variable var) {
+        return locals.contains(var) && !read.contains(var);
+    }
+
+    /**
+     * Returns the variable written by the given expression statement, or
+     * null if it is not a plain assignment (or increment/decrement) of a
+     * variable or of some of its fields.
+     */
+    private static Variable getTarget(Expr e) {
+        Expr lhs;
+        if (e instanceof BinaryExpr && ((BinaryExpr)e).getOp().isAssignment()) {
+            lhs = ((BinaryExpr)e).getLeft();
+        } else if (e instanceof UnaryExpr &&
+                   (((UnaryExpr)e).getOp() == UnaryOpType.INC ||
+                    ((UnaryExpr)e).getOp() == UnaryOpType.DEC))
+        {
+            lhs = ((UnaryExpr)e).getExpr();
+        } else {
+            return null;
+        }
+        if (lhs instanceof FieldSelectExpr) {
+            lhs = ((FieldSelectExpr)lhs).getExpr();
+        }
+        return (lhs instanceof VariableExpr) ? ((VariableExpr)lhs).getVariable() : null;
+    }
+
+    /**
+     * Returns true if evaluating the given expression has no effect other
+     * than producing its value.  The core functions have no side effects,
+     * but user functions are left alone.
+     */
+    private static boolean isRemovable(Expr e) {
+        final boolean[] removable = { true };
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (e.getOp().isAssignment()) {
+                    removable[0] = false;
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                if (e.getFunction().isUserFunc()) {
+                    removable[0] = false;
+                }
+                super.visitCallExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    removable[0] = false;
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(e);
+        return removable[0];
+    }
+
+    private static boolean isEmpty(Stmt s) {
+        return s == null ||
+            (s instanceof CompoundStmt && ((CompoundStmt)s).getStmts().isEmpty());
+    }
+
+    private static Boolean getCondition(Expr e) {
+        if (e instanceof LiteralExpr && ((LiteralExpr)e).getValue() instanceof Boolean) {
+            return (Boolean)((LiteralExpr)e).getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the local variables and the ones among them that are read.
+     * A variable that is only written by statements that can be removed
+     * does not count as read.
+     */
+    private class UsageScanner extends TreeScanner {
+        @Override
+        public void visitDeclStmt(DeclStmt s) {
+            for (VarDecl d : s.getDecls()) {
+                locals.add(d.getVariable());
+                Expr init = d.getInit();
+                if (init != null && !isRemovable(init)) {
+                    read.add(d.getVariable());
+                }
+            }
+            super.visitDeclStmt(s);
+        }
+
+        @Override
+        public void visitExprStmt(ExprStmt s) {
+            Expr e = s.getExpr();
+            Variable target = getTarget(e);
+            if (target == null) {
+                super.visitExprStmt(s);
+            } else if (e instanceof BinaryExpr) {
+                Expr rhs = ((BinaryExpr)e).getRight();
+                if (!isRemovable(rhs)) {
+                    read.add(target);
+                }
+                scan(rhs);
+            }
+        }
+
+        @Override
+        public void visitVariableExpr(VariableExpr e) {
+            read.add(e.getVariable());
+        }
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        boolean changed = false;
+        for (Stmt stmt : s.getStmts()) {
+            Stmt tstmt = translate(stmt);
+            if (tstmt != stmt) {
+                changed = true;
+            }
+            if (isEmpty(tstmt) && tstmt != stmt) {
+                // nested blocks are kept (even if empty) unless they were
+                // emptied here, so that the tree settles
+                continue;
+            }
+            stmts.add(tstmt);
+        }
+        result = changed ? new CompoundStmt(stmts) : s;
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        List<VarDecl> decls = new ArrayList<VarDecl>();
+        for (VarDecl d : s.getDecls()) {
+            if (!isDead(d.getVariable())) {
+                decls.add(d);
+            }
+        }
+        if (decls.isEmpty()) {
+            result = EMPTY;
+        } else if (decls.size() != s.getDecls().size()) {
+            result = new DeclStmt(decls);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        Variable target = getTarget(s.getExpr());
+        if (target != null && isDead(target)) {
+            result = EMPTY;
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        // the loop variable is always read by the condition, and the init
+        // statement cannot be empty
+        Stmt stmt = translate(s.getStmt());
+        if (stmt != s.getStmt()) {
+            result = new ForStmt(s.getInit(), s.getCondition(), s.getExpr(), stmt,
+                                 s.getUnrollMax(), s.getUnrollCheck());
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitSelectStmt(SelectStmt s) {
+        Boolean cond = getCondition(s.getIfExpr());
+        Stmt thenStmt = translate(s.getThenStmt());
+        Stmt elseStmt = translate(s.getElseStmt());
+        if (cond != null) {
+            Stmt taken = cond ? thenStmt : elseStmt;
+            result = (taken != null) ? taken : EMPTY;
+        } else if (isEmpty(thenStmt) && isEmpty(elseStmt) &&
+                   isRemovable(s.getIfExpr()))
+        {
+            result = EMPTY;
+        } else if (thenStmt != s.getThenStmt() || elseStmt != s.getElseStmt()) {
+            result = new SelectStmt(s.getIfExpr(), thenStmt, elseStmt);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitWhileStmt(WhileStmt s) {
+        if (Boolean.FALSE.equals(getCondition(s.getCondition()))) {
+            result = EMPTY;
+        } else {
+            super.visitWhileStmt(s);
+        }
+    }
+
+    /**
+     * Sets the reference count of each variable to the number of times it
+     * is read or written in the given program.
+     */
+    private void countReferences(ProgramUnit program) {
+        symbols.resetRefCounts();
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                d.getVariable().resetRefCount();
+                super.visitVarDecl(d);
+            }
+
+            @Override
+            public void visitVariableExpr(VariableExpr e) {
+                e.getVariable().incrementRefCount();
+            }
+        }.scan(program);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Finds the {@code sample()} calls whose coordinates move along with one
+ * of the {@code posN} variables, i.e. calls of the form
+ * {@code sample(s, posN)} or {@code sample(s, posN +/- offset)}, where
+ * {@code offset} is pixel-invariant.
+ *
+ * Since {@code posN} advances by the same amount for each pixel, the
+ * software backends can work out before the per-pixel loop which part of
+ * each row these calls read from inside the source image, and skip their
+ * bounds checks there (see {@link Sample#getCoord(String)}).  Only plain
+ * samplers are considered; the {@code lsample()} and {@code fsample()}
+ * helpers used for the other sampler types keep their own checks.
+ *
+ * By default the index of the texel read by these calls is still computed
+ * from the coordinates at each pixel.  With {@code -stepped}, the SSE and
+ * ME backends step it along the row instead: the offset of the row is
+ * computed once per row, and the column is stepped in 32.32 fixed point
+ * from its value at the first pixel of the interior to its value at the
+ * last one (see PeerBenchmark, backend SSE_STEPPED).
+ */
+public class InteriorSampleFinder {
+
+    /**
+     * The coordinates of a {@code sample()} call, in terms of
+     * {@code posN} and an invariant offset.
+     */
+    public static final class Sample {
+        private final Variable sampler;
+        private final Variable pos;
+        private final BinaryOpType op;
+        private final Variable offset;
+
+        private Sample(Variable sampler, Variable pos, BinaryOpType op, Variable offset) {
+            this.sampler = sampler;
+            this.pos = pos;
+            this.op = op;
+            this.offset = offset;
+        }
+
+        public Variable getSampler() {
+            return sampler;
+        }
+
+        public Variable getPos() {
+            return pos;
+        }
+
+        /**
+         * Returns the operator (ADD or SUB) that applies the offset, or
+         * null if there is no offset.
+         */
+        public BinaryOpType getOp() {
+            return op;
+        }
+
+        public Variable getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the expression for one component of the coordinates
+         * (evaluated in the same way as in the body of the loop), given the
+         * suffix of that component (e.g. "_x").
+         */
+        public String getCoord(String suffix) {
+            String coord = pos.getName() + suffix;
+            if (offset != null) {
+                coord += " " + op + " " + offset.getName();
+                if (offset.getType().isVector()) {
+                    coord += suffix;
+                }
+            }
+            return coord;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Sample)) {
+                return false;
+            }
+            Sample other = (Sample)obj;
+            return sampler == other.sampler && pos == other.pos &&
+                   op == other.op && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sampler.getName(), pos.getName(), op,
+                                (offset != null) ? offset.getName() : null);
+        }
+    }
+
+    private final InvariantHoister hoister;
+
+    /**
+     * Creates a finder for a program that was rewritten by the given
+     * hoister, which tells which of the variables are invariant.
+     */
+    public InteriorSampleFinder(InvariantHoister hoister) {
+        this.hoister = hoister;
+    }
+
+    /**
+     * Returns the distinct {@code sample()} coordinates of this form that
+     * are used by the main function of the given program.
+     */
+    public List<Sample> find(ProgramUnit program) {
+        final List<Sample> samples = new ArrayList<Sample>();
+        TreeScanner scanner = new TreeScanner() {
+            @Override
+            public void visitCallExpr(CallExpr e) {
+                if (e.getFunction().getName().equals("sample")) {
+                    Sample sample = match(e.getParams());
+                    if (sample != null && !samples.contains(sample)) {
+                        samples.add(sample);
+                    }
+                }
+                super.visitCallExpr(e);
+            }
+        };
+        for (ExtDecl d : program.getDecls()) {
+            if (d instanceof FuncDef &&
+                ((FuncDef)d).getFunction().getName().equals("main"))
+            {
+                scanner.scan(d);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the coordinates of a {@code sample()} call given its
+     * arguments, or null if they are not of the supported form.
+     */
+    public Sample match(List<Expr> params) {
+        if (params.size() != 2 || !(params.get(0) instanceof VariableExpr)) {
+            return null;
+        }
+        Variable sampler = ((VariableExpr)params.get(0)).getVariable();
+        if (sampler.getType() != Types.SAMPLER) {
+            return null;
+        }
+        Expr loc = strip(params.get(1));
+        if (isPos(loc)) {
+            return new Sample(sampler, getVariable(loc), null, null);
+        }
+        if (loc instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)loc;
+            Expr left = strip(be.getLeft());
+            Expr right = strip(be.getRight());
+            if (be.getOp() == BinaryOpType.ADD || be.getOp() == BinaryOpType.SUB) {
+                if (isPos(left) && isOffset(right)) {
+                    return new Sample(sampler, getVariable(left), be.getOp(), getVariable(right));
+                }
+                // (the order only matters for rounding when subtracting)
+                if (be.getOp() == BinaryOpType.ADD && isOffset(left) && isPos(right)) {
+                    return new Sample(sampler, getVariable(right), be.getOp(), getVariable(left));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Expr strip(Expr e) {
+        while (e instanceof ParenExpr) {
+            e = ((ParenExpr)e).getExpr();
+        }
+        return e;
+    }
+
+    private static Variable getVariable(Expr e) {
+        return ((VariableExpr)e).getVariable();
+    }
+
+    private static boolean isPos(Expr e) {
+        if (!(e instanceof VariableExpr)) {
+            return false;
+        }
+        Variable var = getVariable(e);
+        // the built-in pos0/pos1 variables are read-only
+        return var.getName().matches("pos[0-9]+") &&
+               var.getQualifier() == Qualifier.CONST &&
+               var.getConstValue() == null;
+    }
+
+    private boolean isOffset(Expr e) {
+        if (!(e instanceof VariableExpr)) {
+            return false;
+        }
+        Variable var = getVariable(e);
+        return !var.isArray() &&
+               (var.getType() == Types.FLOAT || var.getType() == Types.FLOAT2) &&
+               (var.getQualifier() == Qualifier.PARAM || var.getQualifier() == null) &&
+               hoister.isInvariant(var);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.SymbolTable;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Moves pixel-invariant expressions out of the function bodies.
+ *
+ * An expression is pixel-invariant if it only depends on literals, on
+ * {@code param} variables (other than samplers) and on {@code const}
+ * variables with a known value, none of which are assigned anywhere in
+ * the program.  Each maximal invariant float expression that performs at
+ * least one operation on such a variable (e.g. {@code scale * 2.0} or
+ * {@code -offset.xy}) is replaced by a reference to a new temporary
+ * variable, and the declarations of those temporaries are made available
+ * through {@link #getInvariants()} so that the software backends can
+ * evaluate them once per {@code filter()} call, outside of the per-pixel
+ * loop.
+ *
+ * Function calls are never hoisted, since the call scanners of the
+ * software backends expect to find them in the loop body; int expressions
+ * are left alone as well, since an int division that was guarded by a
+ * condition could then raise an exception.
+ *
+ * The original tree is left untouched, as it is shared by all backends.
+ */
+public class InvariantHoister extends TreeTranslator {
+
+    private final SymbolTable symbols;
+    private final List<VarDecl> invariants = new ArrayList<VarDecl>();
+    private final Set<Variable> assigned = new HashSet<Variable>();
+    // shorthand constructors like float4(x) share the same param node
+    private final Map<Expr, Variable> hoisted = new IdentityHashMap<Expr, Variable>();
+
+    public InvariantHoister(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns a copy of the given program in which the pixel-invariant
+     * expressions have been replaced by references to the variables
+     * declared by {@link #getInvariants()}.
+     */
+    public ProgramUnit hoist(ProgramUnit program) {
+        // a param that is modified by the program is no longer invariant
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (isAssignment(e.getOp())) {
+                    addAssigned(e.getLeft());
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    addAssigned(e.getExpr());
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(program);
+
+        return translate(program);
+    }
+
+    /**
+     * Returns the declarations of the hoisted variables, in the order in
+     * which they need to be evaluated.
+     */
+    public List<VarDecl> getInvariants() {
+        return Collections.unmodifiableList(invariants);
+    }
+
+    /**
+     * Returns true if the given variable has the same value for all of the
+     * pixels, i.e. if it is one of the hoisted variables, or a param or
+     * constant that is never assigned.  This is only meaningful after
+     * {@link #hoist(ProgramUnit)} has been called.
+     */
+    public boolean isInvariant(Variable var) {
+        for (VarDecl d : invariants) {
+            if (d.getVariable() == var) {
+                return true;
+            }
+        }
+        return isInvariant(new VariableExpr(var));
+    }
+
+    private void addAssigned(Expr e) {
+        while (!(e instanceof VariableExpr)) {
+            if (e instanceof FieldSelectExpr) {
+                e = ((FieldSelectExpr)e).getExpr();
+            } else if (e instanceof ArrayAccessExpr) {
+                e = ((ArrayAccessExpr)e).getExpr();
+            } else if (e instanceof ParenExpr) {
+                e = ((ParenExpr)e).getExpr();
+            } else {
+                return;
+            }
+        }
+        assigned.add(((VariableExpr)e).getVariable());
+    }
+
+    private static boolean isAssignment(BinaryOpType op) {
+        switch (op) {
+        case LSEQ:
+        case RSEQ:
+        case ANDEQ:
+        case OREQ:
+        case XOREQ:
+            return true;
+        default:
+            return op.isAssignment();
+        }
+    }
+
+    private boolean isInvariant(Expr e) {
+        if (e instanceof LiteralExpr) {
+            return true;
+        } else if (e instanceof VariableExpr) {
+            Variable var = ((VariableExpr)e).getVariable();
+            if (assigned.contains(var)) {
+                return false;
+            }
+            // built-in variables (e.g. pos0) have no constant value
+            return (var.getQualifier() == Qualifier.PARAM &&
+                    var.getType().getBaseType() != BaseType.SAMPLER) ||
+                   (var.getQualifier() == Qualifier.CONST &&
+                    var.getConstValue() != null);
+        } else if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            switch (be.getOp()) {
+            case ADD:
+            case SUB:
+            case MUL:
+                break;
+            case DIV:
+            case MOD:
+                if (be.getResultType().getBaseType() != BaseType.FLOAT) {
+                    return false;
+                }
+                break;
+            default:
+                return false;
+            }
+            return isInvariant(be.getLeft()) && isInvariant(be.getRight());
+        } else if (e instanceof UnaryExpr) {
+            UnaryExpr ue = (UnaryExpr)e;
+            return (ue.getOp() == UnaryOpType.PLUS ||
+                    ue.getOp() == UnaryOpType.MINUS) &&
+                   isInvariant(ue.getExpr());
+        } else if (e instanceof ParenExpr) {
+            return isInvariant(((ParenExpr)e).getExpr());
+        } else if (e instanceof FieldSelectExpr) {
+            return isInvariant(((FieldSelectExpr)e).getExpr());
+        } else if (e instanceof ArrayAccessExpr) {
+            ArrayAccessExpr ae = (ArrayAccessExpr)e;
+            return isInvariant(ae.getExpr()) && isInvariant(ae.getIndex());
+        } else if (e instanceof VectorCtorExpr) {
+            for (Expr param : ((VectorCtorExpr)e).getParams()) {
+                if (!isInvariant(param)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if evaluating the given (invariant) expression involves
+     * some arithmetic on a variable, as opposed to a plain variable
+     * reference, a swizzle or an expression made up of literals only
+     * (which is better left to constant folding).
+     */
+    private static boolean isWorthHoisting(Expr e) {
+        final boolean[] found = new boolean[2];
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                found[0] = true;
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                found[0] = true;
+                super.visitUnaryExpr(e);
+            }
+
+            @Override
+            public void visitVariableExpr(VariableExpr e) {
+                found[1] = true;
+            }
+        }.scan(e);
+        return found[0] && found[1];
+    }
+
+    /**
+     * Replaces the given expression by a reference to a new invariant
+     * variable if possible, and returns false otherwise.
+     */
+    private boolean hoist(Expr e) {
+        if (e.getResultType().getBaseType() != BaseType.FLOAT ||
+            !isInvariant(e) || !isWorthHoisting(e))
+        {
+            return false;
+        }
+        Variable var = hoisted.get(e);
+        if (var == null) {
+            var = symbols.createTempVariable("_inv" + invariants.size(),
+                                             e.getResultType());
+            invariants.add(new VarDecl(var, e));
+            hoisted.put(e, var);
+        }
+        result = new VariableExpr(var);
+        return true;
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        if (!hoist(e)) {
+            super.visitArrayAccessExpr(e);
+        }
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        if (!hoist(e)) {
+            super.visitBinaryExpr(e);
+        }
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        if (!hoist(e)) {
+            super.visitFieldSelectExpr(e);
+        }
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        if (!hoist(e)) {
+            super.visitParenExpr(e);
+        }
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        if (!hoist(e)) {
+            super.visitUnaryExpr(e);
+        }
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        if (d.getVariable().getQualifier() != null) {
+            // global param and const declarations are not evaluated
+            // per pixel
+            result = d;
+        } else {
+            super.visitVarDecl(d);
+        }
+    }
+
+    @Override
+    public void visitVectorCtorExpr(VectorCtorExpr e) {
+        if (!hoist(e)) {
+            super.visitVectorCtorExpr(e);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.SymbolTable;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Replaces the {@code for} loops marked with {@code unroll(max, check)}
+ * by one copy of the loop body per iteration, in which the loop variable
+ * is replaced by its value in that iteration, so that array indices
+ * such as {@code weights[i]} become constants.
+ *
+ * An unrolled loop must have the form
+ * <pre>
+ *     unroll(max, check) for (int i = start; i op bound; update) body
+ * </pre>
+ * where start evaluates to an integer constant, op is one of
+ * {@code <, <=, >, >=}, update is {@code i++}, {@code i--},
+ * {@code i += c} or {@code i -= c} for an integer constant c, and the body
+ * neither assigns to i nor contains a {@code break} or {@code continue}
+ * that belongs to the loop.  If the bound is a constant, the loop is
+ * replaced by exactly as many copies as it runs iterations (which must
+ * not exceed max).  Otherwise it is expected to run at least
+ * {@code max - check} and at most max iterations: the first
+ * {@code max - check} copies are unconditional and each of the last
+ * check copies is guarded by the loop condition.  The bound must not be
+ * assigned in the body either.
+ *
+ * Nested loops are unrolled from the outside in, so the start and bound
+ * of an inner loop may depend on the variable of an outer one.  The
+ * local variables declared in the body are declared anew in each copy.
+ *
+ * The original tree is left untouched, as it is shared by all backends.
+ */
+public class LoopUnroller extends TreeTranslator {
+
+    private final SymbolTable symbols;
+    // the values of the variables of the loops being unrolled, and the
+    // variables that replace the locals declared in their bodies
+    private final Map<Variable, Expr> substitutions = new HashMap<Variable, Expr>();
+
+    public LoopUnroller(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public ProgramUnit unroll(ProgramUnit program) {
+        return translate(program);
+    }
+
+    private static RuntimeException error(String msg) {
+        return new RuntimeException("Cannot unroll 'for' loop: " + msg);
+    }
+
+    private static boolean isVariable(Expr e, Variable var) {
+        while (e instanceof ParenExpr) {
+            e = ((ParenExpr)e).getExpr();
+        }
+        return e instanceof VariableExpr && ((VariableExpr)e).getVariable() == var;
+    }
+
+    /**
+     * Returns the integer value of the given expression, which must be
+     * constant once the variables of the enclosing loops are substituted.
+     */
+    private int evalInt(Expr e, String what) {
+        Expr folded = new ConstantFolder().translate(translate(e));
+        Object v = (folded instanceof LiteralExpr) ? ((LiteralExpr)folded).getValue() : null;
+        if (!(v instanceof Integer)) {
+            throw error(what + " must be an integer constant: " + e);
+        }
+        return (Integer)v;
+    }
+
+    /**
+     * Returns true if the given variable is assigned anywhere in the
+     * given tree.
+     */
+    private static boolean isWritten(Tree tree, final Variable var) {
+        final boolean[] written = { false };
+        new TreeScanner() {
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (e.getOp().isAssignment()) {
+                    Expr lhs = e.getLeft();
+                    while (lhs instanceof FieldSelectExpr) {
+                        lhs = ((FieldSelectExpr)lhs).getExpr();
+                    }
+                    if (isVariable(lhs, var)) {
+                        written[0] = true;
+                    }
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if ((e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) &&
+                    isVariable(e.getExpr(), var))
+                {
+                    written[0] = true;
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(tree);
+        return written[0];
+    }
+
+    /**
+     * Returns true if the given statement contains a break or continue
+     * statement that is not inside a nested loop.
+     */
+    private static boolean hasJump(Stmt stmt) {
+        final boolean[] jump = { false };
+        new TreeScanner() {
+            @Override
+            public void visitBreakStmt(BreakStmt s) {
+                jump[0] = true;
+            }
+
+            @Override
+            public void visitContinueStmt(ContinueStmt s) {
+                jump[0] = true;
+            }
+
+            @Override
+            public void visitDoWhileStmt(DoWhileStmt s) {
+            }
+
+            @Override
+            public void visitForStmt(ForStmt s) {
+            }
+
+            @Override
+            public void visitWhileStmt(WhileStmt s) {
+            }
+        }.scan(stmt);
+        return jump[0];
+    }
+
+    private int getStep(Expr update, Variable var) {
+        if (update instanceof UnaryExpr && isVariable(((UnaryExpr)update).getExpr(), var)) {
+            switch (((UnaryExpr)update).getOp()) {
+            case INC: return 1;
+            case DEC: return -1;
+            default: break;
+            }
+        } else if (update instanceof BinaryExpr && isVariable(((BinaryExpr)update).getLeft(), var)) {
+            BinaryExpr be = (BinaryExpr)update;
+            switch (be.getOp()) {
+            case ADDEQ: return evalInt(be.getRight(), "the step");
+            case SUBEQ: return -evalInt(be.getRight(), "the step");
+            default: break;
+            }
+        }
+        throw error("the update must increment or decrement the loop variable");
+    }
+
+    private static boolean test(BinaryOpType op, int value, int bound) {
+        switch (op) {
+        case LT:   return value < bound;
+        case LTEQ: return value <= bound;
+        case GT:   return value > bound;
+        case GTEQ: return value >= bound;
+        default:
+            throw new InternalError();
+        }
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        int max = s.getUnrollMax();
+        if (max <= 0) {
+            super.visitForStmt(s);
+            return;
+        }
+        int check = s.getUnrollCheck();
+        if (check < 0 || check > max) {
+            throw error("invalid unroll(" + max + ", " + check + ")");
+        }
+
+        // for (int i = start; ...
+        Stmt init = s.getInit();
+        if (!(init instanceof DeclStmt) || ((DeclStmt)init).getDecls().size() != 1) {
+            throw error("the loop variable must be declared in the initializer");
+        }
+        VarDecl decl = ((DeclStmt)init).getDecls().get(0);
+        Variable var = decl.getVariable();
+        if (var.getType() != Types.INT || decl.getInit() == null) {
+            throw error("the loop variable must be an initialized int");
+        }
+        int start = evalInt(decl.getInit(), "the initial value");
+
+        // ... i op bound; ...
+        Expr cond = s.getCondition();
+        while (cond instanceof ParenExpr) {
+            cond = ((ParenExpr)cond).getExpr();
+        }
+        if (!(cond instanceof BinaryExpr) || !isVariable(((BinaryExpr)cond).getLeft(), var)) {
+            throw error("the condition must compare the loop variable to a bound");
+        }
+        BinaryOpType op = ((BinaryExpr)cond).getOp();
+        if (op != BinaryOpType.LT && op != BinaryOpType.LTEQ &&
+            op != BinaryOpType.GT && op != BinaryOpType.GTEQ)
+        {
+            throw error("the condition must be one of <, <=, > or >=");
+        }
+        Expr bound = translate(((BinaryExpr)cond).getRight());
+
+        // ... update)
+        int step = getStep(s.getExpr(), var);
+        boolean up = (op == BinaryOpType.LT || op == BinaryOpType.LTEQ);
+        if (step == 0 || (step > 0) != up) {
+            throw error("the update must move the loop variable towards the bound");
+        }
+
+        Stmt body = s.getStmt();
+        if (isWritten(body, var)) {
+            throw error("the loop variable is assigned in the body");
+        }
+        if (hasJump(body)) {
+            throw error("the body contains break or continue");
+        }
+
+        Expr folded = new ConstantFolder().translate(bound);
+        Object bv = (folded instanceof LiteralExpr) ? ((LiteralExpr)folded).getValue() : null;
+        int count = max;
+        int guarded = check;
+        if (bv instanceof Integer) {
+            count = 0;
+            long value = start;
+            while (test(op, (int)value, (Integer)bv)) {
+                if (++count > max) {
+                    throw error("it runs more than " + max + " iterations");
+                }
+                value += step;
+                if (value != (int)value) {
+                    throw error("the loop variable overflows");
+                }
+            }
+            guarded = 0;
+        } else if (bound instanceof VariableExpr) {
+            if (isWritten(body, ((VariableExpr)bound).getVariable())) {
+                throw error("the bound is assigned in the body");
+            }
+        } else if (guarded > 0) {
+            throw error("the bound must be a constant or a variable");
+        }
+
+        List<Stmt> copies = new ArrayList<Stmt>();
+        for (int i = 0; i < count; i++) {
+            long value = start + (long)i * step;
+            if (value != (int)value) {
+                throw error("the loop variable overflows");
+            }
+            LiteralExpr literal = new LiteralExpr(Types.INT, (int)value);
+            Map<Variable, Expr> saved = new HashMap<Variable, Expr>(substitutions);
+            substitutions.put(var, literal);
+            Stmt copy = translate(body);
+            substitutions.clear();
+            substitutions.putAll(saved);
+            if (i >= count - guarded) {
+                Expr guard = new BinaryExpr(op, new LiteralExpr(Types.INT, (int)value),
+                                            new VariableExpr(((VariableExpr)bound).getVariable()));
+                copy = new SelectStmt(guard, copy, null);
+            }
+            copies.add(copy);
+        }
+        result = new CompoundStmt(copies);
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        Variable var = d.getVariable();
+        // only the locals of the loop bodies are copied
+        if (substitutions.isEmpty() || var.getQualifier() != null || var.isArray()) {
+            super.visitVarDecl(d);
+            return;
+        }
+        Expr init = translate(d.getInit());
+        Variable copy = symbols.createTempVariable(var.getName(), var.getType());
+        substitutions.put(var, new VariableExpr(copy));
+        result = new VarDecl(copy, init);
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        // each reference gets its own node
+        Expr sub = substitutions.get(e.getVariable());
+        if (sub instanceof LiteralExpr) {
+            result = new LiteralExpr(sub.getResultType(), ((LiteralExpr)sub).getValue());
+        } else if (sub instanceof VariableExpr) {
+            result = new VariableExpr(((VariableExpr)sub).getVariable());
+        } else {
+            result = e;
+        }
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Qualifier;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+import com.sun.scenario.effect.compiler.model.Variable;
+
+/**
+ * Works out the range of values that each float variable of a program can
+ * hold, so that the software backends can leave out the clamps of
+ * {@code color} before it is stored when they can't change anything.
+ *
+ * The analysis doesn't look at the order of the statements: the range of
+ * a variable covers every value that is assigned to it anywhere in the
+ * program, until that no longer changes (variables that keep growing,
+ * e.g. in a loop, are given up on).  The bounds are computed with the
+ * same float operations as the generated code, and since rounding is
+ * monotonic they hold for the values computed at runtime as well.
+ *
+ * Besides the bounds of each component, a float4 can be known to be
+ * premultiplied, i.e. to have its color components no greater than its
+ * alpha.  This is true of the texels read by {@code sample()} from a
+ * plain sampler, and is kept by sums of premultiplied values, scaling by
+ * non-negative values, and {@code mix()}, {@code min()}, {@code max()}
+ * and {@code clamp()}.
+ */
+public class RangeAnalyzer {
+
+    /**
+     * The maximum number of passes over the program before the variables
+     * that are still changing are given up on.
+     */
+    private static final int MAX_PASSES = 8;
+
+    /**
+     * The largest value that the pixel store turns into 255, as it does
+     * with 1, with some room for the rounding of the product by 255.
+     */
+    private static final float MAX_STORED = 1.001f;
+
+    /**
+     * The bounds of the components of a value.
+     */
+    public static final class Range {
+        private final float[] min;
+        private final float[] max;
+        private final boolean premultiplied;
+
+        private Range(float[] min, float[] max, boolean premultiplied) {
+            this.min = min;
+            this.max = max;
+            // the intervals may show it by themselves
+            if (!premultiplied && min.length == 4) {
+                premultiplied = true;
+                for (int i = 0; i < 3; i++) {
+                    premultiplied &= max[i] <= min[3];
+                }
+            }
+            this.premultiplied = premultiplied;
+        }
+
+        private static Range unknown(int n) {
+            float[] min = new float[n];
+            float[] max = new float[n];
+            Arrays.fill(min, Float.NEGATIVE_INFINITY);
+            Arrays.fill(max, Float.POSITIVE_INFINITY);
+            return new Range(min, max, false);
+        }
+
+        private static Range of(float min, float max, int n) {
+            float[] mins = new float[n];
+            float[] maxs = new float[n];
+            Arrays.fill(mins, min);
+            Arrays.fill(maxs, max);
+            return new Range(mins, maxs, false);
+        }
+
+        public int getNumFields() {
+            return min.length;
+        }
+
+        public float getMin(int i) {
+            return min[i];
+        }
+
+        public float getMax(int i) {
+            return max[i];
+        }
+
+        public boolean isPremultiplied() {
+            return premultiplied;
+        }
+
+        /**
+         * Returns true if this float4 color has an alpha that is stored in
+         * the same way whether or not it is clamped to [0, 1].
+         */
+        public boolean isAlphaInRange() {
+            return min[3] >= 0f && max[3] <= MAX_STORED;
+        }
+
+        /**
+         * Returns true if none of the color components of this float4
+         * color are negative.
+         */
+        public boolean isColorNonNegative() {
+            return min[0] >= 0f && min[1] >= 0f && min[2] >= 0f;
+        }
+
+        /**
+         * Returns true if none of the color components of this float4
+         * color are greater than its alpha, and they are all stored in the
+         * same way whether or not they are clamped to its alpha once that
+         * is clamped to 1.
+         */
+        public boolean isColorBelowAlpha() {
+            return premultiplied && max[0] <= MAX_STORED && max[1] <= MAX_STORED &&
+                   max[2] <= MAX_STORED && max[3] <= MAX_STORED;
+        }
+
+        private Range join(Range other) {
+            float[] jmin = new float[min.length];
+            float[] jmax = new float[min.length];
+            for (int i = 0; i < min.length; i++) {
+                jmin[i] = Math.min(min[i], other.min[i]);
+                jmax[i] = Math.max(max[i], other.max[i]);
+            }
+            return new Range(jmin, jmax, premultiplied && other.premultiplied);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Range)) {
+                return false;
+            }
+            Range other = (Range)obj;
+            return Arrays.equals(min, other.min) && Arrays.equals(max, other.max) &&
+                   premultiplied == other.premultiplied;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(min) * 31 + Arrays.hashCode(max);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < min.length; i++) {
+                sb.append(i == 0 ? "[" : ", ");
+                sb.append(min[i]).append("..").append(max[i]);
+            }
+            return sb.append(premultiplied ? "] premultiplied" : "]").toString();
+        }
+    }
+
+    /**
+     * An assignment to a variable, or to some of its fields (if fields is
+     * not null), with the given operator (EQ for a declaration).
+     */
+    private static final class Def {
+        private final Variable var;
+        private final String fields;
+        private final BinaryOpType op;
+        private final Expr value;
+
+        private Def(Variable var, String fields, BinaryOpType op, Expr value) {
+            this.var = var;
+            this.fields = fields;
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    private final List<Def> defs = new ArrayList<Def>();
+    private final Set<Variable> unknown = new HashSet<Variable>();
+    private final Map<Variable, Range> ranges = new HashMap<Variable, Range>();
+    private final Set<Variable> tracked = new HashSet<Variable>();
+
+    /**
+     * Analyzes all of the functions of the given program.
+     */
+    public RangeAnalyzer analyze(ProgramUnit program) {
+        new TreeScanner() {
+            @Override
+            public void visitVarDecl(VarDecl d) {
+                tracked.add(d.getVariable());
+                if (d.getVariable().getQualifier() == Qualifier.PARAM) {
+                    // set by the effect
+                    unknown.add(d.getVariable());
+                } else if (d.getInit() != null) {
+                    defs.add(new Def(d.getVariable(), null, BinaryOpType.EQ, d.getInit()));
+                }
+                super.visitVarDecl(d);
+            }
+
+            @Override
+            public void visitBinaryExpr(BinaryExpr e) {
+                if (e.getOp().isAssignment()) {
+                    addDef(e.getLeft(), e.getOp(), e.getRight());
+                }
+                super.visitBinaryExpr(e);
+            }
+
+            @Override
+            public void visitUnaryExpr(UnaryExpr e) {
+                if (e.getOp() == UnaryOpType.INC || e.getOp() == UnaryOpType.DEC) {
+                    addDef(e.getExpr(), null, null);
+                }
+                super.visitUnaryExpr(e);
+            }
+        }.scan(program);
+
+        while (true) {
+            iterate();
+            // the assignments that still have no value read variables that
+            // were never initialized (which the backends would reject)
+            Set<Variable> unset = new HashSet<Variable>();
+            for (Def def : defs) {
+                if (!unknown.contains(def.var) && getValue(def) == null) {
+                    unset.add(def.var);
+                }
+            }
+            if (unset.isEmpty()) {
+                break;
+            }
+            unknown.addAll(unset);
+        }
+        return this;
+    }
+
+    private void iterate() {
+        for (int pass = 0; ; pass++) {
+            Set<Variable> changed = new HashSet<Variable>();
+            for (Def def : defs) {
+                if (unknown.contains(def.var)) {
+                    continue;
+                }
+                Range value = getValue(def);
+                Range old = ranges.get(def.var);
+                Range range = (old != null && value != null) ? old.join(value) :
+                              (old != null) ? old : value;
+                if (range != null && !range.equals(old)) {
+                    ranges.put(def.var, range);
+                    changed.add(def.var);
+                }
+            }
+            if (changed.isEmpty()) {
+                break;
+            }
+            if (pass >= MAX_PASSES) {
+                unknown.addAll(changed);
+            }
+        }
+    }
+
+    /**
+     * Returns the range of the values that the given variable can hold,
+     * or null if it is never assigned.
+     */
+    public Range getRange(Variable var) {
+        if (!tracked.contains(var) && !unknown.contains(var)) {
+            return null;
+        }
+        if (unknown.contains(var)) {
+            return Range.unknown(var.getType().getNumFields());
+        }
+        return ranges.get(var);
+    }
+
+    private void addDef(Expr target, BinaryOpType op, Expr value) {
+        String fields = null;
+        while (target instanceof ParenExpr) {
+            target = ((ParenExpr)target).getExpr();
+        }
+        if (target instanceof FieldSelectExpr &&
+            ((FieldSelectExpr)target).getExpr() instanceof VariableExpr)
+        {
+            fields = ((FieldSelectExpr)target).getFields();
+            target = ((FieldSelectExpr)target).getExpr();
+        }
+        Variable var = getRoot(target);
+        if (var == null) {
+            return;
+        }
+        tracked.add(var);
+        if (op == null || !(target instanceof VariableExpr) || var.isArray() ||
+            var.getType().getBaseType() != BaseType.FLOAT || var.isParam())
+        {
+            // not worth following (or, for the parameters of a function,
+            // also holding a value that can't be seen here)
+            unknown.add(var);
+        } else {
+            defs.add(new Def(var, fields, op, value));
+        }
+    }
+
+    private static Variable getRoot(Expr e) {
+        while (true) {
+            if (e instanceof VariableExpr) {
+                return ((VariableExpr)e).getVariable();
+            } else if (e instanceof FieldSelectExpr) {
+                e = ((FieldSelectExpr)e).getExpr();
+            } else if (e instanceof ArrayAccessExpr) {
+                e = ((ArrayAccessExpr)e).getExpr();
+            } else if (e instanceof ParenExpr) {
+                e = ((ParenExpr)e).getExpr();
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the range of the value that the given assignment stores in
+     * its variable, or null if it isn't known yet.
+     */
+    private Range getValue(Def def) {
+        Range value = getRange(def.value);
+        if (value == null) {
+            return null;
+        }
+        int n = def.var.getType().getNumFields();
+        Range old = null;
+        if (def.op != BinaryOpType.EQ || def.fields != null) {
+            old = ranges.get(def.var);
+            if (old == null) {
+                return null;
+            }
+        }
+        if (def.fields == null) {
+            return (def.op == BinaryOpType.EQ) ? value : compute(getMathOp(def.op), old, value);
+        }
+        // the other fields keep their values
+        float[] min = Arrays.copyOf(old.min, n);
+        float[] max = Arrays.copyOf(old.max, n);
+        Range cur = select(old, def.fields);
+        if (def.op != BinaryOpType.EQ) {
+            value = compute(getMathOp(def.op), cur, value);
+        }
+        for (int i = 0; i < def.fields.length(); i++) {
+            int f = getField(def.fields.charAt(i));
+            int j = (value.min.length == 1) ? 0 : i;
+            if (f < 0 || f >= n || j >= value.min.length) {
+                return Range.unknown(n);
+            }
+            min[f] = value.min[j];
+            max[f] = value.max[j];
+        }
+        return new Range(min, max, false);
+    }
+
+    private static BinaryOpType getMathOp(BinaryOpType op) {
+        switch (op) {
+        case ADDEQ: return BinaryOpType.ADD;
+        case SUBEQ: return BinaryOpType.SUB;
+        case MULEQ: return BinaryOpType.MUL;
+        case DIVEQ: return BinaryOpType.DIV;
+        default:    return null;
+        }
+    }
+
+    private static int getField(char c) {
+        switch (c) {
+        case 'x': case 'r': return 0;
+        case 'y': case 'g': return 1;
+        case 'z': case 'b': return 2;
+        case 'w': case 'a': return 3;
+        default:            return -1;
+        }
+    }
+
+    /**
+     * Returns the range of the given expression, or null if it depends on
+     * a variable whose range isn't known yet.
+     */
+    private Range getRange(Expr e) {
+        Type type = e.getResultType();
+        int n = (type != null) ? type.getNumFields() : 1;
+        if (e instanceof LiteralExpr) {
+            Object value = ((LiteralExpr)e).getValue();
+            if (value instanceof Float || value instanceof Integer) {
+                float f = ((Number)value).floatValue();
+                return Range.of(f, f, n);
+            }
+        } else if (type == null || type.getBaseType() != BaseType.FLOAT) {
+            // (integer division doesn't follow the rules below)
+            return Range.unknown(n);
+        } else if (e instanceof ParenExpr) {
+            return getRange(((ParenExpr)e).getExpr());
+        } else if (e instanceof VariableExpr) {
+            Variable var = ((VariableExpr)e).getVariable();
+            if (var.getConstValue() instanceof Number) {
+                float f = ((Number)var.getConstValue()).floatValue();
+                return Range.of(f, f, n);
+            }
+            if (!var.isArray() && tracked.contains(var) && !unknown.contains(var)) {
+                return ranges.get(var);
+            }
+        } else if (e instanceof FieldSelectExpr) {
+            Range r = getRange(((FieldSelectExpr)e).getExpr());
+            return (r != null) ? select(r, ((FieldSelectExpr)e).getFields()) : null;
+        } else if (e instanceof UnaryExpr) {
+            UnaryExpr ue = (UnaryExpr)e;
+            Range r = getRange(ue.getExpr());
+            if (r == null) {
+                return null;
+            }
+            if (ue.getOp() == UnaryOpType.PLUS) {
+                return r;
+            } else if (ue.getOp() == UnaryOpType.MINUS) {
+                float[] min = new float[r.min.length];
+                float[] max = new float[r.min.length];
+                for (int i = 0; i < min.length; i++) {
+                    min[i] = -r.max[i];
+                    max[i] = -r.min[i];
+                }
+                return new Range(min, max, false);
+            }
+        } else if (e instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr)e;
+            if (be.getOp().isAssignment()) {
+                // the value of an assignment is the value of its variable
+                return getRange(be.getLeft());
+            }
+            Range l = getRange(be.getLeft());
+            Range r = getRange(be.getRight());
+            if (l == null || r == null) {
+                return null;
+            }
+            return compute(be.getOp(), l, r);
+        } else if (e instanceof VectorCtorExpr) {
+            List<Expr> params = ((VectorCtorExpr)e).getParams();
+            float[] min = new float[n];
+            float[] max = new float[n];
+            int i = 0;
+            Range last = null;
+            for (Expr param : params) {
+                last = getRange(param);
+                if (last == null) {
+                    return null;
+                }
+                for (int j = 0; j < last.min.length && i < n; j++, i++) {
+                    min[i] = last.min[j];
+                    max[i] = last.max[j];
+                }
+            }
+            if (params.size() == 1 && last.min.length == 1) {
+                // e.g. float4(0.5), which is premultiplied too
+                return new Range(min.length == 1 ? min : fill(min, last.min[0]),
+                                 max.length == 1 ? max : fill(max, last.max[0]), n == 4);
+            }
+            return (i == n) ? new Range(min, max, false) : Range.unknown(n);
+        } else if (e instanceof CallExpr) {
+            return getCallRange((CallExpr)e, n);
+        }
+        return Range.unknown(n);
+    }
+
+    private static float[] fill(float[] a, float value) {
+        Arrays.fill(a, value);
+        return a;
+    }
+
+    private static Range select(Range r, String fields) {
+        float[] min = new float[fields.length()];
+        float[] max = new float[fields.length()];
+        for (int i = 0; i < min.length; i++) {
+            int f = getField(fields.charAt(i));
+            if (f < 0 || f >= r.min.length) {
+                return Range.unknown(min.length);
+            }
+            min[i] = r.min[f];
+            max[i] = r.max[f];
+        }
+        boolean all = fields.equals("xyzw") || fields.equals("rgba");
+        return new Range(min, max, all && r.premultiplied);
+    }
+
+    /**
+     * Returns the range of the result of a call to a core function, or
+     * null if one of its arguments isn't known yet.  The functions that
+     * are not handled here give no bounds.
+     */
+    private Range getCallRange(CallExpr e, int n) {
+        Function func = e.getFunction();
+        List<Expr> params = e.getParams();
+        if (func.isUserFunc()) {
+            return Range.unknown(n);
+        }
+        String name = func.getName();
+        if (name.equals("sample")) {
+            if (params.get(0).getResultType() == Types.SAMPLER) {
+                // the texels are premultiplied bytes (or 0 outside of the
+                // image), divided by 255
+                return new Range(new float[] {0f, 0f, 0f, 0f},
+                                 new float[] {1f, 1f, 1f, 1f}, true);
+            }
+            return Range.unknown(n);
+        }
+        List<Range> args = new ArrayList<Range>();
+        for (Expr param : params) {
+            Range r = getRange(param);
+            if (r == null) {
+                return null;
+            }
+            args.add(r);
+        }
+        switch (name) {
+        case "min":
+        case "max": {
+            Range x = args.get(0);
+            Range y = args.get(1);
+            boolean min = name.equals("min");
+            float[] rmin = new float[n];
+            float[] rmax = new float[n];
+            for (int i = 0; i < n; i++) {
+                int j = (y.min.length == 1) ? 0 : i;
+                rmin[i] = min ? Math.min(x.min[i], y.min[j]) : Math.max(x.min[i], y.min[j]);
+                rmax[i] = min ? Math.min(x.max[i], y.max[j]) : Math.max(x.max[i], y.max[j]);
+            }
+            // both sides order the components in the same way
+            boolean premultiplied =
+                x.premultiplied && (y.premultiplied || y.min.length == 1);
+            return new Range(rmin, rmax, premultiplied);
+        }
+        case "clamp": {
+            Range val = args.get(0);
+            Range lo = args.get(1);
+            Range hi = args.get(2);
+            float[] rmin = new float[n];
+            float[] rmax = new float[n];
+            boolean ordered = true;
+            for (int i = 0; i < n; i++) {
+                int j = (lo.min.length == 1) ? 0 : i;
+                // (val < min) ? min : (val > max) ? max : val
+                rmin[i] = Math.min(Math.min(lo.min[j], hi.min[j]), Math.max(val.min[i], lo.min[j]));
+                rmax[i] = Math.max(Math.max(lo.max[j], hi.max[j]), Math.min(val.max[i], hi.max[j]));
+                ordered &= lo.max[j] <= hi.min[j];
+            }
+            boolean premultiplied = val.premultiplied && lo.min.length == 1 && ordered;
+            return new Range(rmin, rmax, premultiplied);
+        }
+        case "mix": {
+            // x * (1 - a) + y * a
+            Range x = args.get(0);
+            Range y = args.get(1);
+            Range a = args.get(2);
+            Range one = Range.of(1f, 1f, 1);
+            Range r = compute(BinaryOpType.ADD,
+                              compute(BinaryOpType.MUL, x, compute(BinaryOpType.SUB, one, a)),
+                              compute(BinaryOpType.MUL, y, a));
+            boolean blend = true;
+            for (int i = 0; i < a.min.length; i++) {
+                blend &= a.min[i] >= 0f && a.max[i] <= 1f;
+            }
+            if (blend) {
+                // the result lies between x and y, give or take the
+                // rounding of the three operations
+                for (int i = 0; i < n; i++) {
+                    int j = (y.min.length == 1) ? 0 : i;
+                    float lo = Math.min(x.min[i], y.min[j]);
+                    float hi = Math.max(x.max[i], y.max[j]);
+                    lo = (lo >= 0f) ? Math.max(0f, lo - 4 * Math.ulp(lo)) : lo - 4 * Math.ulp(lo);
+                    hi = (hi <= 0f) ? Math.min(0f, hi + 4 * Math.ulp(hi)) : hi + 4 * Math.ulp(hi);
+                    r.min[i] = Math.max(r.min[i], lo);
+                    r.max[i] = Math.min(r.max[i], hi);
+                }
+            }
+            boolean premultiplied = x.premultiplied && y.premultiplied &&
+                                    a.min.length == 1 && blend;
+            return new Range(r.min, r.max, premultiplied);
+        }
+        case "abs": {
+            Range x = args.get(0);
+            float[] rmin = new float[n];
+            float[] rmax = new float[n];
+            for (int i = 0; i < n; i++) {
+                rmin[i] = (x.min[i] >= 0f) ? x.min[i] : (x.max[i] <= 0f) ? -x.max[i] : 0f;
+                rmax[i] = Math.max(Math.abs(x.min[i]), Math.abs(x.max[i]));
+            }
+            return new Range(rmin, rmax, false);
+        }
+        case "sqrt":
+        case "floor":
+        case "ceil": {
+            Range x = args.get(0);
+            float[] rmin = new float[n];
+            float[] rmax = new float[n];
+            for (int i = 0; i < n; i++) {
+                if (name.equals("sqrt") && x.min[i] < 0f) {
+                    return Range.unknown(n);
+                }
+                rmin[i] = apply(name, x.min[i]);
+                rmax[i] = apply(name, x.max[i]);
+            }
+            return new Range(rmin, rmax, false);
+        }
+        default:
+            return Range.unknown(n);
+        }
+    }
+
+    private static float apply(String name, float x) {
+        switch (name) {
+        case "sqrt":  return (float)Math.sqrt(x);
+        case "floor": return (float)Math.floor(x);
+        default:      return (float)Math.ceil(x);
+        }
+    }
+
+    /**
+     * Returns the range of the result of the given arithmetic operator,
+     * applied component by component (with scalars applying to every
+     * component of the other side).
+     */
+    private static Range compute(BinaryOpType op, Range l, Range r) {
+        int n = Math.max(l.min.length, r.min.length);
+        if (op != BinaryOpType.ADD && op != BinaryOpType.SUB &&
+            op != BinaryOpType.MUL && op != BinaryOpType.DIV)
+        {
+            return Range.unknown(n);
+        }
+        float[] min = new float[n];
+        float[] max = new float[n];
+        for (int i = 0; i < n; i++) {
+            float lmin = l.min[l.min.length == 1 ? 0 : i];
+            float lmax = l.max[l.min.length == 1 ? 0 : i];
+            float rmin = r.min[r.min.length == 1 ? 0 : i];
+            float rmax = r.max[r.min.length == 1 ? 0 : i];
+            switch (op) {
+            case ADD:
+                min[i] = lmin + rmin;
+                max[i] = lmax + rmax;
+                break;
+            case SUB:
+                min[i] = lmin - rmax;
+                max[i] = lmax - rmin;
+                break;
+            case MUL:
+                min[i] = Math.min(Math.min(lmin * rmin, lmin * rmax),
+                                  Math.min(lmax * rmin, lmax * rmax));
+                max[i] = Math.max(Math.max(lmin * rmin, lmin * rmax),
+                                  Math.max(lmax * rmin, lmax * rmax));
+                break;
+            default:
+                if (rmin <= 0f && rmax >= 0f) {
+                    return Range.unknown(n);
+                }
+                min[i] = Math.min(Math.min(lmin / rmin, lmin / rmax),
+                                  Math.min(lmax / rmin, lmax / rmax));
+                max[i] = Math.max(Math.max(lmin / rmin, lmin / rmax),
+                                  Math.max(lmax / rmin, lmax / rmax));
+                break;
+            }
+            if (Float.isNaN(min[i]) || Float.isNaN(max[i])) {
+                // e.g. 0 * infinity
+                return Range.unknown(n);
+            }
+        }
+        // scaling a premultiplied color by a positive value, or adding two
+        // of them, leaves the color components below the alpha
+        boolean premultiplied = false;
+        if (n == 4) {
+            switch (op) {
+            case ADD:
+                premultiplied = l.premultiplied && r.premultiplied;
+                break;
+            case MUL:
+                premultiplied =
+                    (l.premultiplied && r.min.length == 1 && r.min[0] >= 0f) ||
+                    (r.premultiplied && l.min.length == 1 && l.min[0] >= 0f);
+                break;
+            case DIV:
+                premultiplied = l.premultiplied && r.min.length == 1 && r.min[0] > 0f;
+                break;
+            default:
+                break;
+            }
+        }
+        return new Range(min, max, premultiplied);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.Collections;
+import java.util.List;
+import com.sun.scenario.effect.compiler.model.BaseType;
+import com.sun.scenario.effect.compiler.model.BinaryOpType;
+import com.sun.scenario.effect.compiler.model.CoreSymbols;
+import com.sun.scenario.effect.compiler.model.Function;
+import com.sun.scenario.effect.compiler.model.Type;
+import com.sun.scenario.effect.compiler.model.Types;
+import com.sun.scenario.effect.compiler.model.UnaryOpType;
+
+/**
+ * Replaces costly operations with cheaper ones for the software backends,
+ * where they are not left to the GPU driver:
+ * <ul>
+ * <li>{@code pow(x, y)} with a constant exponent of 1, 2, 0.5 or -1 becomes
+ * {@code x}, {@code x * x}, {@code sqrt(x)} or {@code 1.0 / x} (the squares
+ * are only expanded when x is a variable or a field of one);</li>
+ * <li>a division by a constant power of two becomes a product by its
+ * reciprocal, e.g. {@code x / 4.0} becomes {@code x * 0.25};</li>
+ * <li>{@code x / length(x)} becomes {@code normalize(x)}, which the
+ * software backends implement (unlike {@code length()}).</li>
+ * </ul>
+ *
+ * Apart from {@code pow(x, 0.5)}, which is undefined for negative x in the
+ * shading languages, these give the same results as the original code in
+ * the Java peers: the reciprocals are exact, and the products and
+ * quotients are rounded only once, as the exact results of
+ * {@code Math.pow()} are.
+ * Divisions by other constants are left as they are, since the product by
+ * the rounded reciprocal can be off by one ulp.
+ */
+public class StrengthReducer extends TreeTranslator {
+
+    public ProgramUnit reduce(ProgramUnit program) {
+        return translate(program);
+    }
+
+    private static Expr strip(Expr e) {
+        while (e instanceof ParenExpr) {
+            e = ((ParenExpr)e).getExpr();
+        }
+        return e;
+    }
+
+    /**
+     * Returns true if the given expression is a variable, or a field of
+     * one, which is cheap to evaluate twice.
+     */
+    private static boolean isLeaf(Expr e) {
+        e = strip(e);
+        if (e instanceof FieldSelectExpr) {
+            e = strip(((FieldSelectExpr)e).getExpr());
+        }
+        return e instanceof VariableExpr;
+    }
+
+    private static boolean isSameLeaf(Expr a, Expr b) {
+        a = strip(a);
+        b = strip(b);
+        if (a instanceof FieldSelectExpr && b instanceof FieldSelectExpr) {
+            FieldSelectExpr fa = (FieldSelectExpr)a;
+            FieldSelectExpr fb = (FieldSelectExpr)b;
+            return fa.getFields().equals(fb.getFields()) &&
+                   isSameLeaf(fa.getExpr(), fb.getExpr());
+        }
+        return a instanceof VariableExpr && b instanceof VariableExpr &&
+               ((VariableExpr)a).getVariable() == ((VariableExpr)b).getVariable();
+    }
+
+    /**
+     * Returns the value of the given (possibly negated) literal, or of the
+     * given vector constructor if all of its arguments have the same such
+     * value, or NaN if it has no such value.
+     */
+    private static float getConstant(Expr e) {
+        e = strip(e);
+        if (e instanceof VectorCtorExpr) {
+            float value = Float.NaN;
+            for (Expr param : ((VectorCtorExpr)e).getParams()) {
+                float v = getConstant(param);
+                if (Float.isNaN(v) || (!Float.isNaN(value) && v != value)) {
+                    return Float.NaN;
+                }
+                value = v;
+            }
+            return value;
+        }
+        if (e instanceof UnaryExpr && ((UnaryExpr)e).getOp() == UnaryOpType.MINUS) {
+            return -getConstant(((UnaryExpr)e).getExpr());
+        }
+        if (e instanceof LiteralExpr) {
+            Object value = ((LiteralExpr)e).getValue();
+            if (value instanceof Float || value instanceof Integer) {
+                return ((Number)value).floatValue();
+            }
+        }
+        return Float.NaN;
+    }
+
+    /**
+     * Returns the reciprocal of the given value if it is a power of two
+     * whose reciprocal is a normal float, or NaN otherwise.
+     */
+    private static float getExactReciprocal(float value) {
+        float abs = Math.abs(value);
+        int exp = Math.getExponent(abs);
+        if (exp < Float.MIN_EXPONENT || exp >= Float.MAX_EXPONENT ||
+            abs != Math.scalb(1f, exp))
+        {
+            return Float.NaN;
+        }
+        return 1f / value;
+    }
+
+    private static Expr call(String name, Expr arg) {
+        Type type = arg.getResultType();
+        Function func = CoreSymbols.getFunction(name, Collections.singletonList(type));
+        return new CallExpr(func, Collections.singletonList(arg));
+    }
+
+    private static Expr reducePow(List<Expr> params) {
+        Expr x = params.get(0);
+        float y = getConstant(params.get(1));
+        if (y == 1f) {
+            return new ParenExpr(x);
+        } else if (y == 2f && isLeaf(x)) {
+            return new ParenExpr(new BinaryExpr(BinaryOpType.MUL, x, x));
+        } else if (y == 0.5f) {
+            return call("sqrt", x);
+        } else if (y == -1f) {
+            return new ParenExpr(new BinaryExpr(BinaryOpType.DIV,
+                                                new LiteralExpr(Types.FLOAT, 1f), x));
+        }
+        return null;
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        super.visitBinaryExpr(e);
+        BinaryExpr be = (BinaryExpr)result;
+        BinaryOpType op = be.getOp();
+        if ((op != BinaryOpType.DIV && op != BinaryOpType.DIVEQ) ||
+            be.getResultType().getBaseType() != BaseType.FLOAT ||
+            be.getLeft().getResultType().getBaseType() != BaseType.FLOAT)
+        {
+            return;
+        }
+        Expr right = strip(be.getRight());
+        if (op == BinaryOpType.DIV && right instanceof CallExpr &&
+            ((CallExpr)right).getFunction().getName().equals("length") &&
+            be.getLeft().getResultType().isVector() &&
+            isLeaf(be.getLeft()) &&
+            isSameLeaf(be.getLeft(), ((CallExpr)right).getParams().get(0)))
+        {
+            result = call("normalize", be.getLeft());
+            return;
+        }
+        if (right.getResultType().isVector()) {
+            return;
+        }
+        float recip = getExactReciprocal(getConstant(right));
+        if (!Float.isNaN(recip)) {
+            BinaryOpType mul = (op == BinaryOpType.DIV) ?
+                BinaryOpType.MUL : BinaryOpType.MULEQ;
+            result = new BinaryExpr(mul, be.getLeft(), new LiteralExpr(Types.FLOAT, recip));
+        }
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        super.visitCallExpr(e);
+        CallExpr ce = (CallExpr)result;
+        Function func = ce.getFunction();
+        if (!func.isUserFunc() && func.getName().equals("pow")) {
+            Expr res = reducePow(ce.getParams());
+            if (res != null) {
+                result = res;
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A visitor that rebuilds the tree bottom-up.  Subclasses override the
+ * visit methods for the nodes they want to rewrite and store the
+ * replacement in {@code result}; nodes whose children are unchanged are
+ * returned as they are, so that an untouched subtree is shared with the
+ * original tree (which may still be in use by other backends).
+ */
+public class TreeTranslator extends TreeVisitor {
+
+    protected Tree result;
+
+    @SuppressWarnings("unchecked")
+    public final <T extends Tree> T translate(T node) {
+        if (node == null) {
+            return null;
+        }
+        node.accept(this);
+        T res = (T)result;
+        result = null;
+        return res;
+    }
+
+    protected final <T extends Tree> List<T> translate(List<T> nodes) {
+        List<T> res = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            T node = nodes.get(i);
+            T tnode = translate(node);
+            if (tnode != node && res == null) {
+                res = new ArrayList<T>(nodes.subList(0, i));
+            }
+            if (res != null) {
+                res.add(tnode);
+            }
+        }
+        return (res != null) ? res : nodes;
+    }
+
+    @Override
+    public void visitArrayAccessExpr(ArrayAccessExpr e) {
+        Expr expr = translate(e.getExpr());
+        Expr index = translate(e.getIndex());
+        if (expr != e.getExpr() || index != e.getIndex()) {
+            result = new ArrayAccessExpr(expr, index);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr e) {
+        Expr left = translate(e.getLeft());
+        Expr right = translate(e.getRight());
+        if (left != e.getLeft() || right != e.getRight()) {
+            result = new BinaryExpr(e.getOp(), left, right);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitBreakStmt(BreakStmt s) {
+        result = s;
+    }
+
+    @Override
+    public void visitCallExpr(CallExpr e) {
+        List<Expr> params = translate(e.getParams());
+        if (params != e.getParams()) {
+            result = new CallExpr(e.getFunction(), params);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitCompoundStmt(CompoundStmt s) {
+        List<Stmt> stmts = translate(s.getStmts());
+        if (stmts != s.getStmts()) {
+            result = new CompoundStmt(stmts);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitContinueStmt(ContinueStmt s) {
+        result = s;
+    }
+
+    @Override
+    public void visitDeclStmt(DeclStmt s) {
+        List<VarDecl> decls = translate(s.getDecls());
+        if (decls != s.getDecls()) {
+            result = new DeclStmt(decls);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitDiscardStmt(DiscardStmt s) {
+        result = s;
+    }
+
+    @Override
+    public void visitDoWhileStmt(DoWhileStmt s) {
+        Stmt stmt = translate(s.getStmt());
+        Expr expr = translate(s.getExpr());
+        if (stmt != s.getStmt() || expr != s.getExpr()) {
+            result = new DoWhileStmt(stmt, expr);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitExprStmt(ExprStmt s) {
+        Expr expr = translate(s.getExpr());
+        if (expr != s.getExpr()) {
+            result = new ExprStmt(expr);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitFieldSelectExpr(FieldSelectExpr e) {
+        Expr expr = translate(e.getExpr());
+        if (expr != e.getExpr()) {
+            result = new FieldSelectExpr(expr, e.getFields());
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitForStmt(ForStmt s) {
+        Stmt init = translate(s.getInit());
+        Expr cond = translate(s.getCondition());
+        Expr expr = translate(s.getExpr());
+        Stmt stmt = translate(s.getStmt());
+        if (init != s.getInit() || cond != s.getCondition() ||
+            expr != s.getExpr() || stmt != s.getStmt())
+        {
+            result = new ForStmt(init, cond, expr, stmt,
+                                 s.getUnrollMax(), s.getUnrollCheck());
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitFuncDef(FuncDef d) {
+        Stmt stmt = translate(d.getStmt());
+        if (stmt != d.getStmt()) {
+            result = new FuncDef(d.getFunction(), stmt);
+        } else {
+            result = d;
+        }
+    }
+
+    @Override
+    public void visitGlueBlock(GlueBlock b) {
+        result = b;
+    }
+
+    @Override
+    public void visitLiteralExpr(LiteralExpr e) {
+        result = e;
+    }
+
+    @Override
+    public void visitParenExpr(ParenExpr e) {
+        Expr expr = translate(e.getExpr());
+        if (expr != e.getExpr()) {
+            result = new ParenExpr(expr);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitProgramUnit(ProgramUnit p) {
+        List<ExtDecl> decls = translate(p.getDecls());
+        if (decls != p.getDecls()) {
+            result = new ProgramUnit(decls);
+        } else {
+            result = p;
+        }
+    }
+
+    @Override
+    public void visitReturnStmt(ReturnStmt s) {
+        Expr expr = translate(s.getExpr());
+        if (expr != s.getExpr()) {
+            result = new ReturnStmt(expr);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitSelectStmt(SelectStmt s) {
+        Expr ifExpr = translate(s.getIfExpr());
+        Stmt thenStmt = translate(s.getThenStmt());
+        Stmt elseStmt = translate(s.getElseStmt());
+        if (ifExpr != s.getIfExpr() || thenStmt != s.getThenStmt() ||
+            elseStmt != s.getElseStmt())
+        {
+            result = new SelectStmt(ifExpr, thenStmt, elseStmt);
+        } else {
+            result = s;
+        }
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr e) {
+        Expr expr = translate(e.getExpr());
+        if (expr != e.getExpr()) {
+            result = new UnaryExpr(e.getOp(), expr);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitVarDecl(VarDecl d) {
+        Expr init = translate(d.getInit());
+        if (init != d.getInit()) {
+            result = new VarDecl(d.getVariable(), init);
+        } else {
+            result = d;
+        }
+    }
+
+    @Override
+    public void visitVariableExpr(VariableExpr e) {
+        result = e;
+    }
+
+    @Override
+    public void visitVectorCtorExpr(VectorCtorExpr e) {
+        List<Expr> params = translate(e.getParams());
+        if (params != e.getParams()) {
+            result = new VectorCtorExpr(e.getType(), params);
+        } else {
+            result = e;
+        }
+    }
+
+    @Override
+    public void visitWhileStmt(WhileStmt s) {
+        Expr cond = translate(s.getCondition());
+        Stmt stmt = translate(s.getStmt());
+        if (cond != s.getCondition() || stmt != s.getStmt()) {
+            result = new WhileStmt(cond, stmt);
+        } else {
+            result = s;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect;
+
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.impl.HeapImage;
+
+/**
+ * Stand-in for the class of the same name in the decora runtime.  The
+ * images used by the tests are never transformed, so the transformed
+ * image and bounds are the untransformed ones.
+ */
+public class ImageData {
+
+    private final HeapImage image;
+    private final Rectangle bounds;
+
+    public ImageData(FilterContext fctx, HeapImage image, Rectangle bounds) {
+        this.image = image;
+        this.bounds = bounds;
+    }
+
+    public HeapImage getUntransformedImage() {
+        return image;
+    }
+
+    public HeapImage getTransformedImage(Rectangle clip) {
+        return image;
+    }
+
+    public void releaseTransformedImage(HeapImage image) {
+    }
+
+    public Rectangle getUntransformedBounds() {
+        return bounds;
+    }
+
+    public Rectangle getTransformedBounds(Rectangle clip) {
+        return bounds;
+    }
+
+    public BaseTransform getTransform() {
+        return BaseTransform.IDENTITY_TRANSFORM;
+    }
+}
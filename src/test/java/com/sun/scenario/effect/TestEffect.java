@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The effect passed to the generated peers that are run by the tests.
+ * The accessors declared in the glue blocks of the test shaders read the
+ * param values from here, and the peers get the data of their
+ * {@code fsampler} inputs from it.
+ */
+public class TestEffect extends Effect {
+
+    private final Map<String, float[]> values = new HashMap<>();
+    private final Map<Integer, Object> samplerData = new HashMap<>();
+
+    public void setValues(String name, float... v) {
+        values.put(name, v);
+    }
+
+    public float getFloat(String name) {
+        return values.get(name)[0];
+    }
+
+    public float[] getFloats(String name) {
+        return values.get(name);
+    }
+
+    public FloatBuffer getFloatBuffer(String name) {
+        return FloatBuffer.wrap(values.get(name));
+    }
+
+    public void setSamplerData(int reg, Object data) {
+        samplerData.put(reg, data);
+    }
+
+    public Object getSamplerData(int reg) {
+        return samplerData.get(reg);
+    }
+}
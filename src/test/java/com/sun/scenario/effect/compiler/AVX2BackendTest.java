@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import com.sun.scenario.effect.compiler.backend.sw.avx2.AVX2Backend;
+import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ */
+public class AVX2BackendTest {
+
+    static String genCode(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        AVX2Backend backend = new AVX2Backend(pinfo.parser, pinfo.program);
+        return backend.getGenCode("Foo");
+    }
+
+    @Test
+    public void sample() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n");
+        // the native method of the AVX2 peer, not of the SSE one
+        assertTrue(code.contains("#include \"com_sun_scenario_effect_impl_sw_sse_AVX2FooPeer.h\""));
+        assertTrue(code.contains("Java_com_sun_scenario_effect_impl_sw_sse_AVX2FooPeer_filter"));
+        assertTrue(code.contains("jintArray baseImg_arr,\n"));
+        assertTrue(code.contains("for (int dx = dstx; dx < dstx+dstw; dx += 8)"));
+        assertTrue(code.contains("_mm256_mask_i32gather_epi32("));
+        assertTrue(code.contains("color_x = _mm256_mul_ps(sample_res_x, _mm256_set1_ps(scale));"));
+    }
+
+    @Test
+    public void dot() throws Exception {
+        String code = genCode(
+            "param float3 light;\n" +
+            "void main() {\n" +
+            "    float d = dot(pos0.xyx, light);\n" +
+            "    color = float4(d, d, d, 1.0);\n" +
+            "}\n");
+        // summed in the same order as in the SSE peer, without fusing
+        assertTrue(code.contains("dot_res = _mm256_add_ps(_mm256_add_ps(_mm256_mul_ps(x_tmp_x, y_tmp_x),"));
+        assertTrue(code.contains("_mm256_mul_ps(x_tmp_y, y_tmp_y)),"));
+        assertTrue(code.contains("_mm256_mul_ps(x_tmp_z, y_tmp_z));"));
+        assertFalse(code.contains("_mm256_fmadd_ps"));
+    }
+
+    @Test
+    public void mix() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float level;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    color = mix(c, float4(0.5), level);\n" +
+            "}\n");
+        // x*(1-a) + y*a, as in the SSE peer
+        assertTrue(code.contains("mix_res_x = _mm256_add_ps(_mm256_mul_ps(x_tmp_x, _mm256_sub_ps(_mm256_set1_ps(1.0f), a_tmp)),"));
+        assertTrue(code.contains("_mm256_mul_ps(y_tmp_x, a_tmp));"));
+        assertFalse(code.contains("_mm256_fmadd_ps"));
+    }
+
+    @Test(expected = InternalError.class)
+    public void perPixelCondition() throws Exception {
+        genCode(
+            "void main() {\n" +
+            "    float a = pos0.x;\n" +
+            "    if (a < 0.5) {\n" +
+            "        a = 0.0;\n" +
+            "    }\n" +
+            "    color = float4(a, a, a, 1.0);\n" +
+            "}\n");
+    }
+
+    @Test
+    public void avx2Option() {
+        JSLC.JSLCInfo jslcinfo = new JSLC.JSLCInfo();
+        jslcinfo.parseAllArgs(new String[] {"-avx2"});
+        assertEquals(JSLC.OUT_AVX2_JAVA | JSLC.OUT_AVX2_NATIVE, jslcinfo.outTypes);
+    }
+
+    @Test
+    public void javaPeer() throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(
+            "param sampler baseImg;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0);\n" +
+            "}\n");
+        SSEBackend backend = new SSEBackend(pinfo.parser, pinfo.program);
+        String code = backend.getGenCode("Effect", "Foo", null, null, "AVX2", "decora_avx2").javaCode;
+        assertTrue(code.contains("public class AVX2FooPeer extends SSEEffectPeer"));
+        assertTrue(code.contains("public AVX2FooPeer(FilterContext fctx, Renderer r, String uniqueName)"));
+        assertTrue(code.contains("System.loadLibrary(\"decora_avx2\");"));
+
+        // the SSE peer is unchanged
+        code = backend.getGenCode("Effect", "Foo", null, null).javaCode;
+        assertTrue(code.contains("public class SSEFooPeer extends SSEEffectPeer"));
+        assertFalse(code.contains("loadLibrary"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.CallLifter;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class CallLifterTest {
+
+    private static String lift(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo("param sampler baseImg;\n" + s);
+        ProgramUnit program = new CallLifter(pinfo.parser.getSymbolTable()).lift(pinfo.program);
+        List<ExtDecl> decls = program.getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    @Test
+    public void nested() throws Exception {
+        String main = lift(
+            "void main() {\n" +
+            "    float a = min(abs(pos0.x - 0.5), sqrt(pos0.y));\n" +
+            "    color = float4(a);\n" +
+            "}\n");
+        assertTrue(main.contains("float _call0 = abs(pos0.x - 0.5;);"));
+        assertTrue(main.contains("float _call1 = sqrt(pos0.y);"));
+        assertTrue(main.contains("float a = min(_call0, _call1);"));
+    }
+
+    @Test
+    public void vectorCtor() throws Exception {
+        String main = lift(
+            "void main() {\n" +
+            "    color = float4(sin(pos0.x), cos(pos0.y), 0.0, 1.0);\n" +
+            "}\n");
+        assertTrue(main.contains("float _call0 = sin(pos0.x);"));
+        assertTrue(main.contains("float _call1 = cos(pos0.y);"));
+        assertTrue(main.contains("color = float4(_call0, _call1, 0.0, 1.0);"));
+    }
+
+    @Test
+    public void sameFunction() throws Exception {
+        String main = lift(
+            "void main() {\n" +
+            "    float a = min(pos0.x, 0.5) + min(pos0.y, 0.5) * sin(pos0.x);\n" +
+            "    color = float4(a);\n" +
+            "}\n");
+        assertTrue(main.contains("float _call0 = min(pos0.x, 0.5);"));
+        assertTrue(main.contains("float a = _call0 + min(pos0.y, 0.5); * sin(pos0.x);"));
+    }
+
+    @Test
+    public void unchanged() throws Exception {
+        String main = lift(
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0) * sin(pos0.x);\n" +
+            "    color = c;\n" +
+            "}\n");
+        assertFalse(main.contains("_call"));
+    }
+
+    @Test
+    public void generatedCode() throws Exception {
+        String code = JSWBackendTest.genCode(
+            "param sampler baseImg;\n" +
+            "float luma(float3 v) {\n" +
+            "    return dot(v, float3(0.299, 0.587, 0.114));\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float a = min(sqrt(luma(c.rgb)), 1.0);\n" +
+            "    color = min(c, float4(a));\n" +
+            "}\n", false);
+        assertTrue(code.contains("float _call0 = luma_res;"));
+        assertTrue(code.contains("float x_tmp = _call1;"));
+        // min(float,float) and min(float4,float4) share the result variables
+        assertTrue(code.contains("float min_res;"));
+        assertTrue(code.contains("float min_res_x, min_res_y, min_res_z, min_res_w;"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.CommonSubexprEliminator;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class CommonSubexprEliminatorTest {
+
+    private static String eliminate(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo("param sampler baseImg;\n" + s);
+        ProgramUnit program = new CommonSubexprEliminator(pinfo.parser.getSymbolTable())
+            .eliminate(pinfo.program);
+        List<ExtDecl> decls = program.getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    @Test
+    public void perComponent() throws Exception {
+        String main = eliminate(
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    color = c * (c.a * 0.5);\n" +
+            "}\n");
+        assertTrue(main.contains("float _cse0 = c.a * 0.5;"));
+        assertTrue(main.contains("color = c * (_cse0);"));
+    }
+
+    @Test
+    public void repeated() throws Exception {
+        String main = eliminate(
+            "void main() {\n" +
+            "    float a = sample(baseImg, pos0 * 0.5).a;\n" +
+            "    float b = sample(baseImg, pos0 * 0.5).r;\n" +
+            "    color = float4(a, b, a, b);\n" +
+            "}\n");
+        assertTrue(main.contains("float4 _cse0 = sample(baseImg, pos0 * 0.5;);"));
+        assertTrue(main.contains("float a = _cse0.a"));
+        assertTrue(main.contains("float b = _cse0.r"));
+    }
+
+    @Test
+    public void reassigned() throws Exception {
+        String main = eliminate(
+            "void main() {\n" +
+            "    float a = pos0.x;\n" +
+            "    float b = a * 2.0;\n" +
+            "    a = 1.0;\n" +
+            "    float c = a * 2.0;\n" +
+            "    color = float4(a, b, c, 1.0);\n" +
+            "}\n");
+        assertFalse(main.contains("_cse"));
+    }
+
+    @Test
+    public void sideEffects() throws Exception {
+        String main = eliminate(
+            "float n;\n" +
+            "float4 f(float2 p) { n = n + 1.0; return sample(baseImg, p); }\n" +
+            "void main() {\n" +
+            "    float4 a = f(pos0) * (pos0.x * 0.5);\n" +
+            "    float4 b = f(pos0) * (pos0.x * 0.5);\n" +
+            "    color = a + b;\n" +
+            "}\n");
+        assertFalse(main.contains("_cse"));
+    }
+
+    @Test
+    public void pureFunction() throws Exception {
+        String main = eliminate(
+            "float4 f(float2 p) { float2 q = p * 0.5; return sample(baseImg, q); }\n" +
+            "void main() {\n" +
+            "    float4 a = f(pos0) * 2.0;\n" +
+            "    color = f(pos0) + a;\n" +
+            "}\n");
+        assertTrue(main.contains("float4 _cse0 = f(pos0);"));
+        assertTrue(main.contains("color = _cse0 + a;"));
+    }
+}
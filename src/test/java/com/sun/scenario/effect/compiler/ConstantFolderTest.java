@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.ConstantFolder;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ConstantFolderTest {
+
+    private static String fold(String body) throws Exception {
+        // the locals are not used, so this skips the other passes
+        ProgramUnit program = JSLC.parse(
+            "param float scale;\n" +
+            "const float HALF = 0.5;\n" +
+            "void main() {\n" + body + "}\n").translation_unit();
+        List<ExtDecl> decls = new ConstantFolder().fold(program).getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    @Test
+    public void literals() throws Exception {
+        assertTrue(fold("float a = (2.0 * HALF + 0.25) / 2.0;").contains("a = 0.625"));
+        assertTrue(fold("float a = -(3.0 - 4.0);").contains("a = 1.0"));
+        assertTrue(fold("int i = 7 / 2 - 1;").contains("i = 2"));
+        assertTrue(fold("bool b = 1.0 < 2;").contains("b = true"));
+    }
+
+    @Test
+    public void leftToRight() throws Exception {
+        // the literals are not adjacent operands, so nothing is folded
+        String main = fold("float a = scale / 2.0 * 4.0;");
+        assertTrue(main.contains("a = scale / 2.0"));
+        assertTrue(main.contains("* 4.0"));
+    }
+
+    @Test
+    public void notFolded() throws Exception {
+        assertTrue(fold("float a = 1.0 / 0.0;").contains("a = 1.0 / 0.0"));
+        assertTrue(fold("int i = -7 / 2;").contains("i = -7 / 2"));
+        assertTrue(fold("float a = sin(0.0);").contains("a = sin(0.0)"));
+    }
+
+    @Test
+    public void identities() throws Exception {
+        assertTrue(fold("float a = scale * 1.0 + 0.0;").contains("a = scale"));
+        assertTrue(fold("float4 c = float4(1.0) * scale;").contains("c = float4(1.0, 1.0, 1.0, 1.0) * scale"));
+        assertTrue(fold("float4 c = color * float4(1.0);").contains("c = color"));
+        assertTrue(fold("float a = 0.0 - scale;").contains("a = 0.0 - scale"));
+        assertTrue(fold("float a = -(-scale);").contains("a = scale"));
+    }
+
+    @Test
+    public void swizzles() throws Exception {
+        assertTrue(fold("float a = float4(scale, 0.0, 1.0, HALF).w;").contains("a = 0.5"));
+        assertTrue(fold("float2 v = float4(scale, 0.0, 1.0, 2.0).zx;").contains("v = float2(1.0, scale)"));
+        assertTrue(fold("float2 v = float2(scale + 1.0, 0.0).xx;").endsWith(", 0.0).xx\n}"));
+        assertTrue(fold("float a = (float2(scale * 2.0, 0.0)).x * 3.0;").contains("a = (scale * 2.0"));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.backend.hw.ES2Backend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class DeadCodeEliminatorTest {
+
+    private static String eliminate(String body) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "const float HALF = 0.5;\n" +
+            "void main() {\n" + body + "}\n");
+        List<ExtDecl> decls = pinfo.program.getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    @Test
+    public void unusedLocals() throws Exception {
+        // b is only read by a, which is never read
+        String main = eliminate(
+            "float b = scale * 2.0;\n" +
+            "float a = b + 1.0;\n" +
+            "a = sample(baseImg, pos0).x;\n" +
+            "a += 1.0;\n" +
+            "a++;\n" +
+            "color = float4(scale);\n");
+        assertFalse(main.contains("float a"));
+        assertFalse(main.contains("a ="));
+        assertFalse(main.contains("++a"));
+        assertFalse(main.contains("float b"));
+        assertFalse(main.contains("sample"));
+        assertTrue(main.contains("color = "));
+    }
+
+    @Test
+    public void sideEffects() throws Exception {
+        // the increment of c is kept, and so is b, which it is assigned to
+        String main = eliminate(
+            "float c = 0.0;\n" +
+            "float b = c++;\n" +
+            "color = float4(c);\n");
+        assertTrue(main.contains("float b"));
+        assertTrue(main.contains("++c"));
+    }
+
+    @Test
+    public void constantConditions() throws Exception {
+        String main = eliminate(
+            "if (HALF > 1.0) {\n" +
+            "    color = float4(1.0);\n" +
+            "} else {\n" +
+            "    color = float4(scale);\n" +
+            "}\n" +
+            "while (false) {\n" +
+            "    color = float4(0.0);\n" +
+            "}\n");
+        assertFalse(main.contains("if"));
+        assertFalse(main.contains("while"));
+        assertFalse(main.contains("1.0"));
+        assertTrue(main.contains("scale"));
+    }
+
+    @Test
+    public void unusedParams() throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "param float2 offset;\n" +
+            "param float4 kernel[3];\n" +
+            "void main() {\n" +
+            "    float2 unused = offset * kernel[1].xy;\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n");
+        JSWBackend backend = new JSWBackend(pinfo.parser, pinfo.program);
+        String peer = backend.getGenCode("Effect", "Foo", null, null);
+        assertTrue(peer.contains("getScale()"));
+        assertFalse(peer.contains("getOffset()"));
+        assertFalse(peer.contains("getKernel()"));
+        assertFalse(peer.contains("pixcoord"));
+        assertFalse(peer.contains("pos1"));
+        assertTrue(peer.contains("pos0_x"));
+
+        ES2Backend es2Backend = new ES2Backend(pinfo.parser);
+        es2Backend.scan(pinfo.program);
+        String shader = es2Backend.getShader();
+        assertTrue(shader.contains("scale"));
+        assertFalse(shader.contains("offset"));
+        assertFalse(shader.contains("kernel"));
+    }
+
+    @Test
+    public void pixcoord() throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(
+            "void main() {\n" +
+            "    color = float4(pixcoord.x, 0.0, 0.0, 1.0);\n" +
+            "}\n");
+        JSWBackend backend = new JSWBackend(pinfo.parser, pinfo.program);
+        String peer = backend.getGenCode("Effect", "Foo", null, null);
+        assertTrue(peer.contains("float pixcoord_x = (float)dx;"));
+    }
+}
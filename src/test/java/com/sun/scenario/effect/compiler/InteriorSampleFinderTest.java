@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.backend.sw.me.MEBackend;
+import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import com.sun.scenario.effect.compiler.tree.InteriorSampleFinder;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class InteriorSampleFinderTest {
+
+    private static final String PARAMS =
+        "param sampler baseImg;\n" +
+        "param float2 offset;\n" +
+        "param float scale;\n";
+
+    private static List<InteriorSampleFinder.Sample> find(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(PARAMS + s);
+        InvariantHoister hoister = new InvariantHoister(pinfo.parser.getSymbolTable());
+        ProgramUnit program = hoister.hoist(pinfo.program);
+        return new InteriorSampleFinder(hoister).find(program);
+    }
+
+    @Test
+    public void pos() throws Exception {
+        List<InteriorSampleFinder.Sample> samples = find(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) + sample(baseImg, pos0);\n" +
+            "}\n");
+        assertEquals(1, samples.size());
+        assertEquals("pos0_x", samples.get(0).getCoord("_x"));
+    }
+
+    @Test
+    public void offset() throws Exception {
+        List<InteriorSampleFinder.Sample> samples = find(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0 - offset) + sample(baseImg, (offset + pos0));\n" +
+            "}\n");
+        assertEquals(2, samples.size());
+        assertEquals("pos0_y - offset_y", samples.get(0).getCoord("_y"));
+        assertEquals("pos0_y + offset_y", samples.get(1).getCoord("_y"));
+    }
+
+    @Test
+    public void hoistedOffset() throws Exception {
+        List<InteriorSampleFinder.Sample> samples = find(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0 + offset * scale);\n" +
+            "}\n");
+        assertEquals(1, samples.size());
+        assertEquals("pos0_x + _inv0_x", samples.get(0).getCoord("_x"));
+    }
+
+    @Test
+    public void unsupported() throws Exception {
+        List<InteriorSampleFinder.Sample> samples = find(
+            "void main() {\n" +
+            "    float2 loc = pos0 * 2.0;\n" +
+            "    color = sample(baseImg, loc) + sample(baseImg, pos0 * scale) +\n" +
+            "            sample(baseImg, offset - pos0) + sample(baseImg, pos0 + loc);\n" +
+            "}\n");
+        assertTrue(samples.isEmpty());
+    }
+
+    @Test
+    public void generatedCode() throws Exception {
+        String code = JSWBackendTest.genCode(PARAMS +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0 + offset) * scale;\n" +
+            "}\n", false);
+        // only the copy of the loop body for the interior skips the checks
+        assertTrue(code.contains("(pos0_x + offset_x) >= 0 && (int)((pos0_x + offset_x)*src0w) < src0w"));
+        assertTrue(code.contains("for (; dx < dxi1; dx++)"));
+        assertTrue(code.contains("baseImg[(int)(loc_tmp_y*src0h)*src0scan +"));
+        assertTrue(code.contains("baseImg[iloc_tmp_y*src0scan + iloc_tmp_x]"));
+
+        code = JSWBackendTest.genCode(PARAMS +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0 * scale);\n" +
+            "}\n", true);
+        assertFalse(code.contains("interiorx"));
+    }
+
+    @Test
+    public void nativeGlobals() throws Exception {
+        String source = PARAMS +
+            "float g;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    g = c.g * scale;\n" +
+            "    color = c * g;\n" +
+            "}\n";
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(source);
+        String sse = new SSEBackend(pinfo.parser, pinfo.program)
+            .getGenCode("Effect", "Foo", null, null).nativeCode;
+        pinfo = JSLC.getParserInfo(source);
+        String me = new MEBackend(pinfo.parser, pinfo.program)
+            .getGenCode("Effect", "Foo", null, null).nativeCode;
+        for (String code : new String[] { sse, me }) {
+            // each copy of the loop body declares the global before using it
+            String interior = code.substring(code.indexOf("for (; dx < dxi1; dx++)"));
+            String edge = interior.substring(interior.indexOf("for (; dx < dxEnd; dx++)"));
+            interior = interior.substring(0, interior.length() - edge.length());
+            for (String copy : new String[] { interior, edge }) {
+                int decl = copy.indexOf("float g;");
+                assertTrue(copy, decl >= 0);
+                assertTrue(copy, decl < copy.indexOf("g = "));
+            }
+        }
+    }
+}
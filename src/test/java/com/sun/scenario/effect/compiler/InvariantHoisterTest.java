@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.InvariantHoister;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.VarDecl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class InvariantHoisterTest {
+
+    private InvariantHoister hoister;
+
+    private ProgramUnit hoist(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        hoister = new InvariantHoister(pinfo.parser.getSymbolTable());
+        return hoister.hoist(pinfo.program);
+    }
+
+    @Test
+    public void params() throws Exception {
+        ProgramUnit program = hoist(
+            "param float scale;\n" +
+            "param float2 offset;\n" +
+            "void main() {\n" +
+            "    float2 loc = pos0 + offset * (scale * 0.5);\n" +
+            "    color = float4(loc.x, loc.y, -scale, 1.0);\n" +
+            "}\n");
+        List<VarDecl> invariants = hoister.getInvariants();
+        assertEquals(2, invariants.size());
+        assertEquals("_inv0", invariants.get(0).getVariable().getName());
+        assertEquals("float2", invariants.get(0).getVariable().getType().toString());
+        assertEquals("float", invariants.get(1).getVariable().getType().toString());
+        List<ExtDecl> decls = program.getDecls();
+        String main = decls.get(decls.size() - 1).toString();
+        assertTrue(main.contains("loc = pos0 + _inv0;"));
+    }
+
+    @Test
+    public void perPixel() throws Exception {
+        hoist(
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    float a = pos0.x * scale;\n" +
+            "    color = float4(a, a, a, 1.0);\n" +
+            "}\n");
+        assertTrue(hoister.getInvariants().isEmpty());
+    }
+
+    @Test
+    public void assignedParam() throws Exception {
+        hoist(
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    scale = scale * 2.0;\n" +
+            "    color = float4(scale * 0.5);\n" +
+            "}\n");
+        assertTrue(hoister.getInvariants().isEmpty());
+    }
+
+    @Test
+    public void callsAndLiterals() throws Exception {
+        hoist(
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    float a = sin(scale) + 2.0 * 0.5;\n" +
+            "    color = float4(a, a, a, scale);\n" +
+            "}\n");
+        assertTrue(hoister.getInvariants().isEmpty());
+    }
+
+    @Test
+    public void sharedShorthandParam() throws Exception {
+        hoist(
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = pos0.x * float4(scale * 0.5);\n" +
+            "}\n");
+        assertEquals(1, hoister.getInvariants().size());
+    }
+
+    @Test
+    public void hoistedBeforeLoop() throws Exception {
+        String code = JSWBackendTest.genCode(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * (scale * scale);\n" +
+            "}\n", false);
+        int decl = code.indexOf("float _inv0 = (scale * scale);");
+        assertTrue(decl >= 0);
+        assertTrue(decl < code.indexOf("for (int dy = dsty; dy < dsty+dsth; dy++)"));
+        assertTrue(code.contains("color_x = sample_res_x * _inv0;"));
+    }
+}
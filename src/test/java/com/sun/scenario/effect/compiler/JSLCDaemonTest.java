@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSLCDaemonTest {
+
+    private static final String SOURCE =
+        "param sampler img;\n" +
+        "void main() {\n" +
+        "    color = sample(img, pos0);\n" +
+        "}\n";
+
+    @Test
+    public void split() {
+        assertEquals(Arrays.asList("-java", "-o", "a b", "X.jsl"),
+                     JSLCDaemon.split("  -java -o \"a b\"\tX.jsl "));
+        assertEquals(Arrays.asList(""), JSLCDaemon.split("\"\""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitUnterminated() {
+        JSLCDaemon.split("-o \"a b");
+    }
+
+    @Test
+    public void serve() throws Exception {
+        File dir = Files.createTempDirectory("jslcd").toFile();
+        File src = new File(dir, "Simple.jsl");
+        Files.write(src.toPath(), SOURCE.getBytes("UTF-8"));
+        File out = new File(dir, "out");
+        String good = "-java -t -o \"" + out + "\" -i \"" + dir + "\" Simple.jsl";
+        String requests =
+            good + "\n" +
+            "\n" +
+            "-java -bogus Simple.jsl\n" +
+            "-java -i \"" + dir + "\" Missing.jsl\n" +
+            "-threads\n" +
+            good + "\n" +
+            "exit\n" +
+            good + "\n";
+
+        StringWriter sw = new StringWriter();
+        JSLCDaemon.serve(new BufferedReader(new StringReader(requests)), new PrintWriter(sw));
+        String[] replies = sw.toString().split("\\R");
+        assertEquals(5, replies.length);
+        assertTrue(replies[0], replies[0].startsWith("OK "));
+        assertTrue(replies[1], replies[1].startsWith("ERROR "));
+        assertTrue(replies[2], replies[2].startsWith("ERROR Input file not found"));
+        assertTrue(replies[3], replies[3].startsWith("ERROR missing or invalid value"));
+        assertTrue(replies[4], replies[4].startsWith("OK "));
+        assertTrue(new File(out, "com/sun/scenario/effect/impl/sw/java/JSWSimplePeer.java").exists());
+    }
+
+    @Test
+    public void sharedCache() throws Exception {
+        File dir = Files.createTempDirectory("jslcd").toFile();
+        Files.write(new File(dir, "A.jsl").toPath(), SOURCE.getBytes("UTF-8"));
+        Files.write(new File(dir, "B.jsl").toPath(), SOURCE.getBytes("UTF-8"));
+        File out = new File(dir, "out");
+        File cacheFile = new File(out, ".jslc-cache");
+        assertSame(JSLCDaemon.getCache(cacheFile),
+                   JSLCDaemon.getCache(new File(out, "../out/.jslc-cache")));
+
+        String prefix = "-java -t -o \"" + out + "\" -i \"" + dir + "\" ";
+        assertTrue(JSLCDaemon.handle(prefix + "A.jsl").startsWith("OK "));
+        // a request that loaded the cache before the first one saved it
+        // must not drop the entry of the first one from the file
+        assertTrue(cacheFile.delete());
+        assertTrue(JSLCDaemon.handle(prefix + "B.jsl").startsWith("OK "));
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(cacheFile)) {
+            props.load(in);
+        }
+        File peers = new File(out, "com/sun/scenario/effect/impl/sw/java");
+        for (String name : new String[] { "JSWAPeer.java", "JSWBPeer.java" }) {
+            String path = new File(peers, name).getAbsoluteFile().toPath().normalize().toString();
+            assertNotNull(path, props.getProperty(path));
+        }
+    }
+}
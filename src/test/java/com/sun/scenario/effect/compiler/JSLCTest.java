@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import com.sun.scenario.effect.compiler.JSLC.JSLCInfo;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSLCTest {
+
+    private static final int OUT_TYPES =
+        JSLC.OUT_JAVA | JSLC.OUT_JAVA_VECTOR | JSLC.OUT_SSE | JSLC.OUT_ME |
+        JSLC.OUT_AVX2 | JSLC.OUT_HW_SHADERS | JSLC.OUT_PRISM;
+
+    // each shader has its own helper function, glue code and mix of core
+    // variables, so that state leaking from one compilation into another
+    // shows up in the output
+    private static String source(int i) {
+        return
+            "param sampler img;\n" +
+            "param float scale" + i + ";\n" +
+            "glue {\n" +
+            "    // glue" + i + "\n" +
+            "}\n" +
+            "float4 helper" + i + "(float4 v) {\n" +
+            "    return v * scale" + i + ";\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(img, pos0" + (i % 2 == 0 ? "" : " + float2(0.5, 0.0)") + ");\n" +
+            (i % 3 == 0 ? "    c.r += pixcoord.x;\n" : "") +
+            "    color = helper" + i + "(c);\n" +
+            "}\n";
+    }
+
+    private static JSLCInfo info(File outDir) {
+        JSLCInfo jslcinfo = new JSLCInfo();
+        jslcinfo.outDir = outDir.getAbsolutePath();
+        jslcinfo.trimToOutDir = true;
+        jslcinfo.force = true;
+        jslcinfo.outTypes = OUT_TYPES;
+        return jslcinfo;
+    }
+
+    private static List<String> list(File dir, String prefix) {
+        List<String> res = new ArrayList<String>();
+        for (File f : dir.listFiles()) {
+            String name = prefix + f.getName();
+            if (f.isDirectory()) {
+                res.addAll(list(f, name + "/"));
+            } else {
+                res.add(name);
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void batchMatchesSingleCompiles() throws Exception {
+        File srcDir = Files.createTempDirectory("jslc").toFile();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 16; i++) {
+            File f = new File(srcDir, "Effect" + i + ".jsl");
+            JSLC.write(source(i), f);
+            files.add(f);
+        }
+
+        File batchDir = Files.createTempDirectory("jslc").toFile();
+        JSLCInfo batchInfo = info(batchDir);
+        batchInfo.threads = 4;
+        JSLC.compile(batchInfo, files);
+
+        File singleDir = Files.createTempDirectory("jslc").toFile();
+        for (int i = 0; i < files.size(); i++) {
+            JSLCInfo jslcinfo = info(singleDir);
+            jslcinfo.shaderName = "Effect" + i;
+            JSLC.compile(jslcinfo, files.get(i));
+        }
+
+        List<String> names = list(singleDir, "");
+        assertEquals(16 * 12, names.size());
+        assertEquals(names.size(), list(batchDir, "").size());
+        for (String name : names) {
+            assertArrayEquals(name,
+                              Files.readAllBytes(new File(singleDir, name).toPath()),
+                              Files.readAllBytes(new File(batchDir, name).toPath()));
+        }
+    }
+
+    @Test
+    public void batchReportsFailure() throws Exception {
+        File srcDir = Files.createTempDirectory("jslc").toFile();
+        File good = new File(srcDir, "Good.jsl");
+        File bad = new File(srcDir, "Bad.jsl");
+        JSLC.write(source(0), good);
+        JSLC.write("void main() { color = undeclared; }\n", bad);
+
+        File outDir = Files.createTempDirectory("jslc").toFile();
+        JSLCInfo jslcinfo = info(outDir);
+        jslcinfo.outTypes = JSLC.OUT_JAVA;
+        try {
+            JSLC.compile(jslcinfo, Arrays.asList(bad, good));
+            fail("expected the compilation of Bad.jsl to fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        // the other files are still compiled
+        assertTrue(jslcinfo.forShader("Good").getOutputFile(JSLC.OUT_JAVA).exists());
+    }
+
+    @Test
+    public void singleFileInSourceDir() throws Exception {
+        File srcDir = Files.createTempDirectory("jslc").toFile();
+        JSLC.write(source(2), new File(srcDir, "Effect.jsl"));
+        File outDir = Files.createTempDirectory("jslc").toFile();
+
+        JSLCInfo jslcinfo = new JSLCInfo();
+        JSLC.run(jslcinfo, new String[] {
+            "-java", "-i", srcDir.getAbsolutePath(), "-o", outDir.getAbsolutePath(),
+        });
+        assertEquals("Effect", jslcinfo.shaderName);
+        assertTrue(jslcinfo.getOutputFile(JSLC.OUT_JAVA).exists());
+    }
+
+    @Test
+    public void cacheIgnoresTimestamps() throws Exception {
+        File srcDir = Files.createTempDirectory("jslc").toFile();
+        File src = new File(srcDir, "Effect.jsl");
+        JSLC.write(source(1), src);
+        File outDir = Files.createTempDirectory("jslc").toFile();
+        File cacheFile = new File(outDir, ".jslc-cache");
+
+        JSLCInfo jslcinfo = info(outDir);
+        jslcinfo.force = false;
+        jslcinfo.shaderName = "Effect";
+        jslcinfo.cache = new BuildCache(cacheFile);
+        JSLC.compile(jslcinfo, src);
+        jslcinfo.cache.save();
+        File outFile = jslcinfo.getOutputFile(JSLC.OUT_JAVA);
+        assertTrue(outFile.exists());
+
+        // as after a fresh checkout: the source is newer than the output
+        assertTrue(outFile.setLastModified(1000));
+        assertTrue(src.setLastModified(System.currentTimeMillis()));
+        jslcinfo.cache = new BuildCache(cacheFile);
+        JSLC.compile(jslcinfo, src);
+        assertEquals(1000, outFile.lastModified());
+
+        // a different option is a different key
+        jslcinfo.parallel = true;
+        JSLC.compile(jslcinfo, src);
+        assertTrue(outFile.lastModified() != 1000);
+        assertTrue(new String(Files.readAllBytes(outFile.toPath())).contains("ForkJoinPool"));
+    }
+
+    @Test
+    public void writeKeepsIdenticalFile() throws Exception {
+        File outFile = new File(Files.createTempDirectory("jslc").toFile(), "Out.java");
+        JSLC.write("class Out {}\n", outFile);
+        assertTrue(outFile.setLastModified(1000));
+        JSLC.write("class Out {}\n", outFile);
+        assertEquals(1000, outFile.lastModified());
+        JSLC.write("class Out { }\n", outFile);
+        assertTrue(outFile.lastModified() != 1000);
+    }
+
+    @Test
+    public void threadsOption() {
+        JSLCInfo jslcinfo = new JSLCInfo();
+        jslcinfo.parseAllArgs(new String[] {"-java", "-threads", "3"});
+        assertEquals(3, jslcinfo.threads);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import com.sun.scenario.effect.compiler.backend.sw.interp.JSLInterpreter;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSLInterpreterTest {
+
+    static JSLInterpreter interpret(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        return new JSLInterpreter(pinfo.parser, pinfo.program);
+    }
+
+    @Test
+    public void sample() throws Exception {
+        JSLInterpreter interp = interpret(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n");
+        interp.setInput("baseImg", new int[] { 0xffffffff, 0xff000000 }, 2, 1, 2);
+        interp.setParam("scale", 0.5f);
+        assertArrayEquals(new int[] { 0x7f7f7f7f, 0x7f000000 }, interp.filter(2, 1));
+    }
+
+    @Test
+    public void sampleOutside() throws Exception {
+        JSLInterpreter interp = interpret(
+            "param sampler baseImg;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0 + float2(0.5, 0.0));\n" +
+            "}\n");
+        interp.setInput("baseImg", new int[] { 0xff0000ff, 0xffff0000 }, 2, 1, 2);
+        // the right half of the destination reads past the edge of the image
+        assertArrayEquals(new int[] { 0xffff0000, 0 }, interp.filter(2, 1));
+    }
+
+    @Test
+    public void funcsAndLoops() throws Exception {
+        JSLInterpreter interp = interpret(
+            "param float weights[3];\n" +
+            "param float4 tint[2];\n" +
+            "float half(float v) {\n" +
+            "    return v * 0.5;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float sum = 0.0;\n" +
+            "    for (int i = 0; i < 3; i++) {\n" +
+            "        sum += weights[i];\n" +
+            "    }\n" +
+            "    int t = intcast(pixcoord.x);\n" +
+            "    color = tint[t];\n" +
+            "    color.r = half(sum);\n" +
+            "}\n");
+        interp.setParam("weights", 0.25f, 0.5f, 0.25f);
+        interp.setParam("tint", 0f, 0f, 0f, 1f, 1f, 1f, 1f, 1f);
+        assertArrayEquals(new int[] { 0xff7f0000, 0xff7fffff }, interp.filter(2, 1));
+    }
+
+    @Test
+    public void globals() throws Exception {
+        JSLInterpreter interp = interpret(
+            "float g;\n" +
+            "float n = 0.25;\n" +
+            "float bump(float v) {\n" +
+            "    g = g + v;\n" +
+            "    n += v;\n" +
+            "    return g;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    g = pixcoord.x * 0.5;\n" +
+            "    float b = bump(0.25);\n" +
+            "    color = float4(b, n, 0.0, 1.0);\n" +
+            "}\n");
+        // the globals start over at each pixel, as in the generated code
+        assertArrayEquals(new int[] { 0xff3f7f00, 0xffbf7f00 }, interp.filter(2, 1));
+    }
+
+    @Test
+    public void overlappingSwizzle() throws Exception {
+        JSLInterpreter interp = interpret(
+            "void main() {\n" +
+            "    float4 t = float4(1.0, 0.0, 0.0, 0.5);\n" +
+            "    t.ra = t.ar;\n" +
+            "    color = t;\n" +
+            "}\n");
+        // the right side is evaluated before any of it is assigned
+        assertArrayEquals(new int[] { 0xff7f0000 }, interp.filter(1, 1));
+    }
+
+    @Test
+    public void discard() throws Exception {
+        JSLInterpreter interp = interpret(
+            "void main() {\n" +
+            "    if (pixcoord.x > 0.5) {\n" +
+            "        discard;\n" +
+            "    }\n" +
+            "    color = float4(1.0);\n" +
+            "}\n");
+        int[] dst = { 0x12345678, 0x12345678 };
+        interp.filter(dst, 2, 1, 2);
+        assertArrayEquals(new int[] { 0xffffffff, 0x12345678 }, dst);
+    }
+
+    @Test
+    public void missingParam() throws Exception {
+        JSLInterpreter interp = interpret(
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = float4(scale);\n" +
+            "}\n");
+        try {
+            interp.filter(1, 1);
+            fail("expected an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("Value of param 'scale' is not set", e.getMessage());
+        }
+    }
+}
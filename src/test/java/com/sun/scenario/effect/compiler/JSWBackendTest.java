@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.FloatMap;
+import com.sun.scenario.effect.ImageData;
+import com.sun.scenario.effect.TestEffect;
+import com.sun.scenario.effect.compiler.backend.sw.interp.JSLInterpreter;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWPeerCompiler;
+import com.sun.scenario.effect.impl.EffectPeer;
+import com.sun.scenario.effect.impl.HeapImage;
+import com.sun.scenario.effect.impl.Renderer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSWBackendTest {
+
+    private static final String SOURCE =
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n";
+
+    static String genCode(String s, boolean parallel) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        JSWBackend backend = new JSWBackend(pinfo.parser, pinfo.program);
+        return backend.getGenCode("Effect", "Foo", null, null, parallel);
+    }
+
+    /**
+     * Generates the peer for the given shader and compiles it against the
+     * stand-ins for the decora runtime classes in the test sources.
+     */
+    static EffectPeer<?> peer(String s, boolean parallel) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        String code = new JSWBackend(pinfo.parser, pinfo.program)
+            .getGenCode("TestEffect", "Foo", null, null, parallel);
+        Class<?> c = new JSWPeerCompiler(JSWBackendTest.class.getClassLoader())
+            .compile("com.sun.scenario.effect.impl.sw.java.JSWFooPeer", code);
+        return (EffectPeer<?>)c
+            .getConstructor(FilterContext.class, Renderer.class, String.class)
+            .newInstance(new FilterContext(), new Renderer(), "Foo");
+    }
+
+    /**
+     * Wraps the given pixels, which are all {@code w*h}, for a peer.
+     */
+    static ImageData[] images(int w, int h, int[]... inputs) {
+        ImageData[] images = new ImageData[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            HeapImage image = new HeapImage(w, h);
+            System.arraycopy(inputs[i], 0, image.getPixelArray(), 0, w * h);
+            images[i] = new ImageData(new FilterContext(), image, new Rectangle(0, 0, w, h));
+        }
+        return images;
+    }
+
+    /**
+     * Generates and compiles the peer for the given shader (see
+     * {@link #peer}) and runs it on the given images, which are all
+     * {@code w*h}.
+     */
+    static int[] filter(String s, boolean parallel, TestEffect effect,
+                        int w, int h, int[]... inputs)
+        throws Exception
+    {
+        ImageData res = peer(s, parallel).filter(effect, null, BaseTransform.IDENTITY_TRANSFORM,
+                                                 new Rectangle(0, 0, w, h), images(w, h, inputs));
+        return res.getUntransformedImage().getPixelArray();
+    }
+
+    static int[] image(int w, int h, int seed) {
+        int[] pixels = new int[w * h];
+        Random r = new Random(seed);
+        for (int i = 0; i < pixels.length; i++) {
+            int a = r.nextInt(256);
+            pixels[i] = (a << 24) | (r.nextInt(a + 1) << 16) |
+                        (r.nextInt(a + 1) << 8) | r.nextInt(a + 1);
+        }
+        return pixels;
+    }
+
+    @Test
+    public void serial() throws Exception {
+        String code = genCode(SOURCE, false);
+        assertFalse(code.contains("ForkJoinPool"));
+        assertTrue(code.contains("for (int dy = dsty; dy < dsty+dsth; dy++)"));
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        String code = genCode(SOURCE, true);
+        assertTrue(code.contains("import java.util.concurrent.ForkJoinPool;"));
+        assertTrue(code.contains("for (int dy = bandy; dy < bandyEnd; dy++)"));
+        // rows above the band are skipped by replaying the serial increments
+        assertTrue(code.contains("for (int dy = dsty; dy < bandy; dy++)"));
+    }
+
+    @Test
+    public void parallelMatchesSerial() throws Exception {
+        // the positions accumulate rounding errors from row to row, so a
+        // band that doesn't start from the same pos0_y as the serial loop
+        // gives different pixels
+        String source =
+            "param sampler baseImg;\n" +
+            "param sampler maskImg;\n" +
+            "param float scale;\n" +
+            "<<\n" +
+            "private float getScale() { return getEffect().getFloat(\"scale\"); }\n" +
+            ">>\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0 + float2(0.013, -0.021));\n" +
+            "    float4 m = sample(maskImg, pos1 * 0.75);\n" +
+            "    color = c * m.a * scale + float4(pos0.y * 0.001);\n" +
+            "}\n";
+        int w = 61, h = 157;
+        TestEffect effect = new TestEffect();
+        effect.setValues("scale", 0.9f);
+        int[] base = image(w, h, 1);
+        int[] mask = image(w, h, 2);
+        int[] serial = filter(source, false, effect, w, h, base, mask);
+        int[] parallel = filter(source, true, effect, w, h, base, mask);
+        assertFalse(Arrays.equals(new int[w * h], serial));
+        assertArrayEquals(serial, parallel);
+    }
+
+    private static final String GLOBALS =
+            "param sampler baseImg;\n" +
+            "float g;\n" +
+            "float bump(float v) {\n" +
+            "    g = g + v;\n" +
+            "    return g;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    g = c.g;\n" +
+            "    float b = bump(0.25) * c.a;\n" +
+            "    color = float4(c.r, min(b, c.a), c.b, c.a);\n" +
+            "}\n";
+
+    @Test
+    public void globals() throws Exception {
+        // the copy of the loop body for the interior declares the globals
+        // as well
+        String code = genCode(GLOBALS, false);
+        assertTrue(code.contains("for (; dx < dxi1; dx++)"));
+        int w = 23, h = 9;
+        int[] base = image(w, h, 3);
+        int[] res = filter(GLOBALS, false, new TestEffect(), w, h, base);
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(GLOBALS);
+        interp.setInput("baseImg", base, w, h, w);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+
+    @Test
+    public void paramArrays() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float weights[4];\n" +
+            "void main() {\n" +
+            "    float4 sum = float4(0.0);\n" +
+            "    for (int i = 0; i < 4; i++) {\n" +
+            "        sum += sample(baseImg, pos0) * weights[i];\n" +
+            "    }\n" +
+            "    color = sum;\n" +
+            "}\n", true);
+        // the array is only allocated when the buffer size changes
+        assertTrue(code.contains("private float[] weights_cache;"));
+        assertTrue(code.contains("weights_arr = weights_buf.array();"));
+        assertTrue(code.contains("weights_cache = new float[weights_buf.capacity()];"));
+        assertFalse(code.contains("float[] weights_arr = new float["));
+    }
+
+    private static final String SAMPLERS =
+            "param sampler baseImg;\n" +
+            "param lsampler mapImg;\n" +
+            "param fsampler fmap;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float4 m = sample(mapImg, pos1);\n" +
+            "    color = c * m * sample(fmap, pos0);\n" +
+            "}\n";
+
+    @Test
+    public void vectorParamArrays() throws Exception {
+        String code = genCode(
+            "param float weights[2];\n" +
+            "param float4 tint[2];\n" +
+            "void main() {\n" +
+            "    float4 sum = float4(0.0);\n" +
+            "    for (int i = 0; i < 2; i++) {\n" +
+            "        sum += tint[i] * weights[i] + tint[i].b;\n" +
+            "    }\n" +
+            "    color = sum;\n" +
+            "}\n", false);
+        // each component of the sum reads its own component of the element
+        assertTrue(code.contains("sum_y += tint_arr[i * 4 + 1] * weights_arr[i * 1 + 0] + tint_arr[i * 4 + 2];"));
+        assertTrue(code.contains("sum_w += tint_arr[i * 4 + 3] * weights_arr[i * 1 + 0] + tint_arr[i * 4 + 2];"));
+    }
+
+    @Test
+    public void noAllocation() throws Exception {
+        String code = genCode(SAMPLERS, false);
+        assertTrue(code.contains("private final float[] mapImg_vals = new float[4];"));
+        assertTrue(code.contains("private final float[] src1Rect = new float[4];"));
+
+        int w = 32, h = 32;
+        EffectPeer<?> peer = peer(SAMPLERS, false);
+        FloatMap map = new FloatMap(w, h);
+        Arrays.fill(map.getData(), 0.5f);
+        TestEffect effect = new TestEffect();
+        effect.setSamplerData(2, map);
+        ImageData[] inputs = images(w, h, image(w, h, 4), image(w, h, 5));
+        Rectangle dstBounds = new Rectangle(0, 0, w, h);
+        for (int i = 0; i < 2000; i++) {
+            peer.filter(effect, null, BaseTransform.IDENTITY_TRANSFORM, dstBounds, inputs);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int calls = 100;
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < calls; i++) {
+            peer.filter(effect, null, BaseTransform.IDENTITY_TRANSFORM, dstBounds, inputs);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // the only objects created by filter() are its result: the
+        // ImageData and the image and pixels it wraps (a few more bytes for
+        // the headers, and for one scratch array per pixel it'd be at
+        // least 16 times as many)
+        long result = 4L * w * h + 256;
+        assertTrue(allocated + " bytes", allocated <= calls * result);
+    }
+
+    @Test
+    public void parallelScratch() throws Exception {
+        String code = genCode(SAMPLERS, true);
+        // lsample() writes the scratch array, so each thread needs its own
+        assertTrue(code.contains("private final ThreadLocal<float[]> mapImg_vals_local ="));
+        assertTrue(code.contains("float[] mapImg_vals = mapImg_vals_local.get();"));
+    }
+
+    private static final String UNROLLED =
+            "param sampler baseImg;\n" +
+            "param float weights[64];\n" +
+            "void main() {\n" +
+            "    float4 sum = float4(0.0);\n" +
+            "    float2 loc = pos0;\n" +
+            "    unroll(64, 0) for (int i = 0; i < 64; i++) {\n" +
+            "        sum += sample(baseImg, loc) * weights[i];\n" +
+            "        loc.x += 0.01;\n" +
+            "    }\n" +
+            "    color = sum;\n" +
+            "}\n";
+
+    private static String method(String code, String decl) {
+        int start = code.indexOf(decl);
+        assertTrue(decl, start >= 0);
+        int depth = 0;
+        for (int i = code.indexOf('{', start); ; i++) {
+            if (code.charAt(i) == '{') {
+                depth++;
+            } else if (code.charAt(i) == '}' && --depth == 0) {
+                return code.substring(start, i + 1);
+            }
+        }
+    }
+
+    @Test
+    public void outlined() throws Exception {
+        String code = genCode(UNROLLED, false);
+        // the unrolled loop is too big for one method that HotSpot will
+        // compile, so it is split into static methods that keep the values
+        // they share in the frame arrays
+        assertTrue(code.contains("private final float[] frame_f = new float["));
+        assertTrue(code.contains("filterPart0(pos0_x, pos0_y, baseImg, src0w, src0h, src0scan, weights_arr, frame_f);"));
+        assertTrue(code.contains("color_w = frame_f["));
+        String part = method(code, "private static void filterPart1(");
+        assertFalse(part.contains("float sum_x"));
+        assertTrue(part.contains("frame_f["));
+        // (the channels of the samples are read from the table of the peer)
+        assertTrue(code.contains("private static final float[] UNPACK = new float[256];"));
+        new JSWPeerCompiler(getClass().getClassLoader())
+            .compile("foo.Part", "package foo;\nclass Part {\n" +
+                     "private static final float[] UNPACK = new float[256];\n" +
+                     part + "\n}\n");
+
+        code = genCode(UNROLLED, true);
+        assertTrue(code.contains("float[] frame_f = frame_f_local.get();"));
+    }
+
+    @Test
+    public void outlinedGlobals() throws Exception {
+        // the globals live in the frame, since any of the parts may use
+        // them, and they are initialized by the caller
+        String source =
+            "param sampler baseImg;\n" +
+            "param float weights[64];\n" +
+            "<<\n" +
+            "private java.nio.FloatBuffer getWeights() { return getEffect().getFloatBuffer(\"weights\"); }\n" +
+            ">>\n" +
+            "float total = 0.0;\n" +
+            UNROLLED.substring(UNROLLED.indexOf("void main()"))
+                .replace("loc.x += 0.01;", "loc.x += 0.01;\n        total += weights[i];")
+                .replace("color = sum;", "color = sum * (1.0 / total) + sample(baseImg, pos0) * 0.25;");
+        String code = genCode(source, false);
+        assertTrue(code.contains("filterPart1("));
+        assertTrue(code.contains("filterInteriorPart0("));
+        assertFalse(code.contains("float total"));
+
+        float[] weights = new float[64];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (i % 5) * 0.25f + 0.125f;
+        }
+        TestEffect effect = new TestEffect();
+        effect.setValues("weights", weights);
+        int w = 31, h = 5;
+        int[] base = image(w, h, 4);
+        int[] res = filter(source, false, effect, w, h, base);
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(source);
+        interp.setInput("baseImg", base, w, h, w);
+        interp.setParam("weights", weights);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+
+    @Test
+    public void parallelOption() {
+        JSLC.JSLCInfo jslcinfo = new JSLC.JSLCInfo();
+        jslcinfo.parseAllArgs(new String[] {"-java", "-parallel"});
+        assertTrue(jslcinfo.parallel);
+        assertEquals(JSLC.OUT_JAVA, jslcinfo.outTypes);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.scenario.effect.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.FloatMap;
+import com.sun.scenario.effect.ImageData;
+import com.sun.scenario.effect.TestEffect;
+import com.sun.scenario.effect.compiler.backend.sw.interp.JSLInterpreter;
+import com.sun.scenario.effect.impl.EffectPeer;
+import com.sun.scenario.effect.impl.HeapImage;
+import com.sun.scenario.effect.impl.Renderer;
+import com.sun.scenario.effect.impl.state.RenderState;
+import com.sun.scenario.effect.impl.sw.java.JSWEffectPeer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSWBytecodeBackendTest {
+
+    /**
+     * The superclass of the generated peers, with the accessors that the
+     * glue blocks would declare.
+     */
+    public static abstract class Base extends JSWEffectPeer<RenderState> {
+        protected Base(FilterContext fctx, Renderer r, String uniqueName) {
+            super(fctx, r, uniqueName);
+        }
+
+        private TestEffect effect() {
+            return (TestEffect)getEffect();
+        }
+
+        protected float getScale() {
+            return effect().getFloat("scale");
+        }
+
+        protected float[] getOffset() {
+            return effect().getFloats("offset");
+        }
+
+        protected float[] getTint() {
+            return effect().getFloats("tint");
+        }
+
+        protected FloatBuffer getWeights() {
+            float[] weights = effect().getFloats("weights");
+            if (effect().getFloats("direct") == null) {
+                return FloatBuffer.wrap(weights);
+            }
+            // a buffer without a backing array
+            FloatBuffer buf = ByteBuffer.allocateDirect(weights.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            buf.put(weights).flip();
+            return buf;
+        }
+    }
+
+    private static final String GLUE =
+            "<<\n" +
+            "private float getScale() { return getEffect().getFloat(\"scale\"); }\n" +
+            "private float[] getOffset() { return getEffect().getFloats(\"offset\"); }\n" +
+            "private float[] getTint() { return getEffect().getFloats(\"tint\"); }\n" +
+            "private java.nio.FloatBuffer getWeights() { return getEffect().getFloatBuffer(\"weights\"); }\n" +
+            ">>\n";
+
+    /**
+     * Generates the peer for the given shader as bytecode, and runs it on
+     * the given images, which are all {@code w*h}.
+     */
+    static int[] filter(String s, TestEffect effect, int w, int h, int[]... inputs)
+        throws Exception
+    {
+        JSLC.JSLCInfo info = new JSLC.JSLCInfo();
+        info.shaderName = "Foo";
+        Class<?> c = JSLC.compileBytecodePeer(info, s, Base.class);
+        assertEquals("com.sun.scenario.effect.impl.sw.java.JSWFooPeer", c.getName());
+        assertSame(Base.class, c.getSuperclass());
+        FilterContext fctx = new FilterContext();
+        EffectPeer<?> peer = (EffectPeer<?>)c
+            .getConstructor(FilterContext.class, Renderer.class, String.class)
+            .newInstance(fctx, new Renderer(), "Foo");
+        ImageData[] images = new ImageData[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            HeapImage image = new HeapImage(w, h);
+            System.arraycopy(inputs[i], 0, image.getPixelArray(), 0, w * h);
+            images[i] = new ImageData(fctx, image, new Rectangle(0, 0, w, h));
+        }
+        // (a second call must give the same result as the first one)
+        int[] first = peer.filter(effect, null, BaseTransform.IDENTITY_TRANSFORM,
+                                  new Rectangle(0, 0, w, h), images)
+            .getUntransformedImage().getPixelArray();
+        ImageData res = peer.filter(effect, null, BaseTransform.IDENTITY_TRANSFORM,
+                                    new Rectangle(0, 0, w, h), images);
+        assertArrayEquals(first, res.getUntransformedImage().getPixelArray());
+        return first;
+    }
+
+    private static final String FUNCS =
+            "param sampler baseImg;\n" +
+            "param sampler maskImg;\n" +
+            "param float scale;\n" +
+            "param float2 offset;\n" +
+            "float4 tint(float4 c, float k) {\n" +
+            "    float4 res;\n" +
+            "    if (k > 0.5) {\n" +
+            "        res = c * k;\n" +
+            "    } else {\n" +
+            "        res = float4(c.r * (1.0 - k), c.g, c.b, c.a);\n" +
+            "    }\n" +
+            "    return res;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0 + offset);\n" +
+            "    float4 m = sample(maskImg, pos1 * 0.75);\n" +
+            "    float d = dot(c.rgb, m.rgb) + distance(pos0, float2(0.5, 0.5));\n" +
+            "    float3 n = normalize(c.rgb + 0.01);\n" +
+            "    float k = clamp(smoothstep(0.1, 0.9, d), 0.0, 1.0);\n" +
+            "    int steps = 0;\n" +
+            "    while (steps < 3 && k > 0.2) {\n" +
+            "        k = k * 0.5;\n" +
+            "        steps++;\n" +
+            "    }\n" +
+            "    if (steps == 2) {\n" +
+            "        k += 0.1;\n" +
+            "    }\n" +
+            "    color = tint(mix(c, m, k), fract(scale * 3.7)) +\n" +
+            "            float4(n.x, n.y, n.z, 0.0) * 0.1;\n" +
+            "    color.a = max(color.a, min(c.a, m.a));\n" +
+            "}\n";
+
+    @Test
+    public void sameAsJavac() throws Exception {
+        int w = 37, h = 21;
+        TestEffect effect = new TestEffect();
+        effect.setValues("scale", 0.9f);
+        effect.setValues("offset", 0.05f, -0.1f);
+        int[] base = JSWBackendTest.image(w, h, 5);
+        int[] mask = JSWBackendTest.image(w, h, 6);
+        int[] res = filter(FUNCS, effect, w, h, base, mask);
+        assertFalse(Arrays.equals(new int[w * h], res));
+        assertArrayEquals(JSWBackendTest.filter(GLUE + FUNCS, false, effect, w, h, base, mask), res);
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(FUNCS);
+        interp.setInput("baseImg", base, w, h, w);
+        interp.setInput("maskImg", mask, w, h, w);
+        interp.setParam("scale", 0.9f);
+        interp.setParam("offset", 0.05f, -0.1f);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+
+    @Test
+    public void samplers() throws Exception {
+        String source =
+            "param sampler baseImg;\n" +
+            "param lsampler mapImg;\n" +
+            "param fsampler fmap;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float4 m = sample(mapImg, pos1 + float2(0.03, 0.02));\n" +
+            "    color = c * m * sample(fmap, pos0 * 0.5);\n" +
+            "}\n";
+        int w = 19, h = 13;
+        FloatMap map = new FloatMap(7, 5);
+        float[] data = map.getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i % 11) / 10f;
+        }
+        TestEffect effect = new TestEffect();
+        effect.setSamplerData(2, map);
+        int[] base = JSWBackendTest.image(w, h, 7);
+        int[] mapImg = JSWBackendTest.image(w, h, 8);
+        int[] res = filter(source, effect, w, h, base, mapImg);
+        assertArrayEquals(JSWBackendTest.filter(source, false, effect, w, h, base, mapImg), res);
+    }
+
+    private static final String ARRAYS =
+            "param sampler baseImg;\n" +
+            "param float weights[3];\n" +
+            "param float4 tint;\n" +
+            "void main() {\n" +
+            "    float4 sum = float4(0.0, 0.0, 0.0, 0.0);\n" +
+            "    float2 loc = pos0;\n" +
+            "    for (int i = 0; i < 3; i++) {\n" +
+            "        sum += sample(baseImg, loc) * weights[i];\n" +
+            "        loc.x += 0.04;\n" +
+            "    }\n" +
+            "    color = sum * tint;\n" +
+            "}\n";
+
+    @Test
+    public void paramArrays() throws Exception {
+        int w = 17, h = 6;
+        TestEffect effect = new TestEffect();
+        effect.setValues("weights", 0.25f, 0.5f, 0.25f);
+        effect.setValues("tint", 1f, 0.5f, 0.75f, 1f);
+        int[] base = JSWBackendTest.image(w, h, 9);
+        int[] res = filter(ARRAYS, effect, w, h, base);
+        assertArrayEquals(JSWBackendTest.filter(GLUE + ARRAYS, false, effect, w, h, base), res);
+
+        // the same, from a buffer that has to be copied
+        effect.setValues("direct", 1f);
+        assertArrayEquals(res, filter(ARRAYS, effect, w, h, base));
+    }
+
+    @Test
+    public void sameAsInterpreter() throws Exception {
+        // early returns, discard and length() have no Java version to
+        // compare with
+        String source =
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "float weight(float2 p) {\n" +
+            "    if (p.x < 0.25) {\n" +
+            "        return 0.5;\n" +
+            "    }\n" +
+            "    return length(p - float2(0.5, 0.5)) * scale;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0 - float2(0.1, 0.0));\n" +
+            "    if (c.a < 0.1) {\n" +
+            "        discard;\n" +
+            "    }\n" +
+            "    color = c * weight(pos0);\n" +
+            "    if (pixcoord.y > 4.0) {\n" +
+            "        return;\n" +
+            "    }\n" +
+            "    color.g = 1.0;\n" +
+            "}\n";
+        int w = 15, h = 9;
+        TestEffect effect = new TestEffect();
+        effect.setValues("scale", 1.5f);
+        int[] base = JSWBackendTest.image(w, h, 10);
+        int[] res = filter(source, effect, w, h, base);
+        assertTrue(Arrays.stream(res).anyMatch(p -> p == 0));
+        // (green is clamped to alpha)
+        assertTrue(Arrays.stream(res).anyMatch(p -> p != 0 && ((p >> 8) & 0xff) == (p >>> 24)));
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(source);
+        interp.setInput("baseImg", base, w, h, w);
+        interp.setParam("scale", 1.5f);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+
+    @Test
+    public void missingAccessor() throws Exception {
+        try {
+            filter("param float missing;\n" +
+                   "void main() {\n" +
+                   "    color = float4(missing, 0.0, 0.0, 1.0);\n" +
+                   "}\n", new TestEffect(), 1, 1);
+            fail("expected an exception");
+        } catch (RuntimeException e) {
+            assertEquals(Base.class.getName() + " must declare a public or protected method " +
+                         "float getMissing() for param 'missing'", e.getMessage());
+        }
+    }
+
+    private static final String KERNEL =
+            "param sampler baseImg;\n" +
+            "param float weights[81];\n" +
+            "float total = 0.0;\n" +
+            "float4 tap(float2 loc, float k) {\n" +
+            "    total += k;\n" +
+            "    return sample(baseImg, loc) * k;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 sum = float4(0.0);\n" +
+            "    float2 loc = pos0 - float2(0.08, 0.08);\n" +
+            "    unroll(9, 0) for (int j = 0; j < 9; j++) {\n" +
+            "        unroll(9, 0) for (int i = 0; i < 9; i++) {\n" +
+            "            sum += tap(loc, weights[j * 9 + i]);\n" +
+            "            loc.x += 0.02;\n" +
+            "        }\n" +
+            "        loc.x -= 0.18;\n" +
+            "        loc.y += 0.02;\n" +
+            "    }\n" +
+            "    color = sum * (1.0 / total) + sample(baseImg, pos0) * 0.25;\n" +
+            "}\n";
+
+    @Test
+    public void outlined() throws Exception {
+        // the unrolled 9x9 kernel is too big for one method that HotSpot
+        // will compile (or for one method at all), so it is split into
+        // static methods that keep the values they share in the frame
+        float[] weights = new float[81];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (i % 7) * 0.125f + 0.0625f;
+        }
+        TestEffect effect = new TestEffect();
+        effect.setValues("weights", weights);
+        int w = 23, h = 11;
+        int[] base = JSWBackendTest.image(w, h, 11);
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+        int[] res;
+        try {
+            System.setErr(new PrintStream(warnings, true));
+            res = filter(KERNEL, effect, w, h, base);
+        } finally {
+            System.setErr(err);
+        }
+        // (no method is left that only runs in the interpreter)
+        assertEquals("", warnings.toString());
+        Class<?> c = JSLC.compileBytecodePeer(new JSLC.JSLCInfo() {{ shaderName = "Foo"; }},
+                                              KERNEL, Base.class);
+        // (weights, baseImg, UNPACK and frame_f, but not pos0, which only
+        // the first and the last part read)
+        Method part = c.getDeclaredMethod("filterPart1", float[].class,
+                                          int[].class, int.class, int.class, int.class,
+                                          float[].class, float[].class);
+        assertTrue(Modifier.isPrivate(part.getModifiers()));
+        assertTrue(Modifier.isStatic(part.getModifiers()));
+        assertTrue(Arrays.stream(c.getDeclaredMethods())
+                   .anyMatch(m -> m.getName().equals("filterInteriorPart0")));
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(KERNEL);
+        interp.setInput("baseImg", base, w, h, w);
+        interp.setParam("weights", weights);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+
+    @Test
+    public void outlinedDiscard() throws Exception {
+        // a part that can end main() tells the caller to skip the others
+        String source = KERNEL.replace(
+            "    float4 sum = float4(0.0);\n",
+            "    float4 sum = float4(0.0);\n" +
+            "    if (pos0.x > 0.8) {\n" +
+            "        discard;\n" +
+            "    }\n").replace(
+            "        loc.y += 0.02;\n",
+            "        loc.y += 0.02;\n" +
+            "        if (j == 6 && pos0.y < 0.3) {\n" +
+            "            color = sum;\n" +
+            "            return;\n" +
+            "        }\n");
+        float[] weights = new float[81];
+        Arrays.fill(weights, 0.01f);
+        TestEffect effect = new TestEffect();
+        effect.setValues("weights", weights);
+        int w = 13, h = 9;
+        int[] base = JSWBackendTest.image(w, h, 12);
+        int[] res = filter(source, effect, w, h, base);
+        assertTrue(Arrays.stream(res).anyMatch(p -> p == 0));
+
+        JSLInterpreter interp = JSLInterpreterTest.interpret(source);
+        interp.setInput("baseImg", base, w, h, w);
+        interp.setParam("weights", weights);
+        assertArrayEquals(interp.filter(w, h), res);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.concurrent.Callable;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWPeerCompiler;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSWPeerCompilerTest {
+
+    @Test
+    public void compile() throws Exception {
+        JSWPeerCompiler compiler = new JSWPeerCompiler(getClass().getClassLoader());
+        Class<?> c = compiler.compile("foo.Answer",
+            "package foo;\n" +
+            "public class Answer implements java.util.concurrent.Callable<Integer> {\n" +
+            "    public Integer call() {\n" +
+            "        java.util.function.IntSupplier s = () -> 42;\n" +
+            "        return s.getAsInt();\n" +
+            "    }\n" +
+            "}\n");
+        assertNotSame(getClass().getClassLoader(), c.getClassLoader());
+        Callable<?> answer = (Callable<?>)c.getConstructor().newInstance();
+        assertEquals(42, answer.call());
+    }
+
+    @Test
+    public void replacesParentClass() throws Exception {
+        // a class of the same name in the parent loader is not used
+        JSWPeerCompiler compiler = new JSWPeerCompiler(getClass().getClassLoader());
+        Class<?> c = compiler.compile(getClass().getName(),
+            "package com.sun.scenario.effect.compiler;\n" +
+            "public class JSWPeerCompilerTest {\n" +
+            "}\n");
+        assertNotSame(getClass(), c);
+        assertEquals(0, c.getDeclaredMethods().length);
+    }
+
+    @Test
+    public void errors() throws Exception {
+        JSWPeerCompiler compiler = new JSWPeerCompiler(getClass().getClassLoader());
+        try {
+            compiler.compile("foo.Broken",
+                "package foo;\n" +
+                "public class Broken {\n" +
+                "    int x = y;\n" +
+                "}\n");
+            fail("expected an exception");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Compilation of foo.Broken failed:\n3: "));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import com.sun.scenario.effect.compiler.backend.sw.vector.JSWVBackend;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JSWVBackendTest {
+
+    static String genCode(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        JSWVBackend backend = new JSWVBackend(pinfo.parser, pinfo.program);
+        return backend.getGenCode("Effect", "Foo", null, null);
+    }
+
+    @Test
+    public void sample() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n");
+        assertTrue(code.contains("public class JSWVFooPeer"));
+        assertTrue(code.contains("private void filterRow("));
+        assertTrue(code.contains("for (int dx = dstx; dx < dstx+dstw; dx += LANES)"));
+        assertTrue(code.contains("IntVector.fromArray(ISPECIES, baseImg, 0, gatherIndices, 0)"));
+        // uniform params are passed as scalars
+        assertTrue(code.contains("color_x = sample_res_x.mul(scale);"));
+    }
+
+    @Test
+    public void scalarOperands() throws Exception {
+        String code = genCode(
+            "param float amount;\n" +
+            "void main() {\n" +
+            "    float a = 1.0 - amount;\n" +
+            "    float b = -a + min(a, 0.5);\n" +
+            "    float c = 2.0 * a;\n" +
+            "    color = float4(a, b, c, 1.0);\n" +
+            "}\n");
+        // (1.0 - amount is pixel-invariant, so it is computed in filter())
+        assertTrue(code.contains("FloatVector _inv0 = FloatVector.broadcast(SPECIES, 1.0f).sub(amount);"));
+        assertTrue(code.contains("FloatVector a = _inv0;"));
+        assertTrue(code.contains("FloatVector y_tmp = FloatVector.broadcast(SPECIES, 0.5f);"));
+        assertTrue(code.contains("FloatVector b = a.neg().add(min_res);"));
+        // uniform left operands of commutative ops are swapped
+        assertTrue(code.contains("FloatVector c = a.mul(2.0f);"));
+        assertTrue(code.contains("color_w = FloatVector.broadcast(SPECIES, 1.0f);"));
+    }
+
+    @Test
+    public void uniformLoop() throws Exception {
+        String code = genCode(
+            "param float4 kernel[4];\n" +
+            "void main() {\n" +
+            "    float sum = 0.0;\n" +
+            "    for (int i = 0; i < 4; i++) {\n" +
+            "        sum += kernel[i].x;\n" +
+            "    }\n" +
+            "    color = float4(sum, sum, sum, 1.0);\n" +
+            "}\n");
+        assertTrue(code.contains("i < 4;++i)"));
+        assertTrue(code.contains("sum = sum.add(kernel_arr[i * 4 + 0]);"));
+    }
+
+    @Test(expected = InternalError.class)
+    public void perPixelCondition() throws Exception {
+        genCode(
+            "void main() {\n" +
+            "    float a = pos0.x;\n" +
+            "    if (a < 0.5) {\n" +
+            "        a = 0.0;\n" +
+            "    }\n" +
+            "    color = float4(a, a, a, 1.0);\n" +
+            "}\n");
+    }
+
+    @Test
+    public void vectorOption() {
+        JSLC.JSLCInfo jslcinfo = new JSLC.JSLCInfo();
+        jslcinfo.parseAllArgs(new String[] {"-vector"});
+        assertEquals(JSLC.OUT_JAVA_VECTOR, jslcinfo.outTypes);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.backend.hw.ES2Backend;
+import com.sun.scenario.effect.compiler.backend.sw.interp.JSLInterpreter;
+import com.sun.scenario.effect.compiler.backend.sw.java.JSWBackend;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class LoopUnrollerTest {
+
+    private static final String NESTED =
+        "param sampler img;\n" +
+        "param float weights[6];\n" +
+        "void main() {\n" +
+        "    float4 sum = float4(0.0);\n" +
+        "    %s for (int y = 0; y < 2; y++) {\n" +
+        "        %s for (int x = y; x <= 2; x++) {\n" +
+        "            float w = weights[y * 3 + x];\n" +
+        "            sum += w * sample(img, pos0);\n" +
+        "        }\n" +
+        "    }\n" +
+        "    color = sum;\n" +
+        "}\n";
+
+    private static String main(JSLC.ParserInfo pinfo) {
+        List<ExtDecl> decls = pinfo.program.getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    private static JSLInterpreter interpret(String source) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(source);
+        JSLInterpreter interp = new JSLInterpreter(pinfo.parser, pinfo.program);
+        interp.setInput("img", new int[] { 0xff102030, 0x80404040 }, 2, 1, 2);
+        interp.setParam("weights", 0.01f, 0.02f, 0.04f, 0.08f, 0.16f, 0.32f);
+        return interp;
+    }
+
+    @Test
+    public void nested() throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(
+            String.format(NESTED, "unroll(2, 0)", "unroll(3, 0)"));
+        String main = main(pinfo);
+        assertFalse(main.contains("for"));
+        // x starts at y, so weights[3] is skipped
+        for (int i : new int[] { 0, 1, 2, 4, 5 }) {
+            assertTrue(main.contains("weights[" + i + "]"));
+        }
+        assertFalse(main.contains("weights[3]"));
+
+        String peer = new JSWBackend(pinfo.parser, pinfo.program).getGenCode("Effect", "Foo", null, null);
+        assertFalse(peer.contains("x <= 2"));
+        assertTrue(peer.contains("weights_arr[5]"));
+        ES2Backend es2Backend = new ES2Backend(pinfo.parser);
+        es2Backend.scan(pinfo.program);
+        String shader = es2Backend.getShader();
+        assertFalse(shader.contains("for ("));
+        assertTrue(shader.contains("weights[5]"));
+
+        assertArrayEquals(interpret(String.format(NESTED, "", "")).filter(2, 1),
+                          interpret(String.format(NESTED, "unroll(2, 0)", "unroll(3, 0)")).filter(2, 1));
+    }
+
+    @Test
+    public void checkedIterations() throws Exception {
+        String source =
+            "param sampler img;\n" +
+            "param float weights[6];\n" +
+            "void main() {\n" +
+            "    float sum = 0.0;\n" +
+            "    int n = intcast(pixcoord.x) + 1;\n" +
+            "    %s for (int i = 0; i < n; i++) {\n" +
+            "        sum += weights[i];\n" +
+            "    }\n" +
+            "    color = sample(img, pos0) * sum;\n" +
+            "}\n";
+        String main = main(JSLC.getParserInfo(String.format(source, "unroll(3, 2)")));
+        assertFalse(main.contains("for"));
+        assertFalse(main.contains("if (0 < n"));
+        assertTrue(main.contains("if (1 < n"));
+        assertTrue(main.contains("if (2 < n"));
+        assertArrayEquals(interpret(String.format(source, "")).filter(2, 1),
+                          interpret(String.format(source, "unroll(3, 2)")).filter(2, 1));
+    }
+
+    private static void assertRejected(String loop) throws Exception {
+        try {
+            JSLC.getParserInfo(
+                "param float weights[8];\n" +
+                "void main() {\n" +
+                "    float sum = 0.0;\n" +
+                "    " + loop + " {\n" +
+                "        sum += weights[i];\n" +
+                "    }\n" +
+                "    color = float4(sum);\n" +
+                "}\n");
+            fail("expected an exception for " + loop);
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Cannot unroll"));
+        }
+    }
+
+    @Test
+    public void rejected() throws Exception {
+        assertRejected("unroll(4, 0) for (int i = 0; i < 8; i++)");
+        assertRejected("unroll(8, 0) for (int i = 0; i < 8; i--)");
+        assertRejected("unroll(8, 0) for (int i = 0; i != 8; i++)");
+        assertRejected("unroll(8, 0) for (int i = 0; i < 8; i++) if (sum > 1.0) break; else");
+        assertRejected("unroll(8, 0) for (int i = 0; i < 8; i++) i++;");
+    }
+}
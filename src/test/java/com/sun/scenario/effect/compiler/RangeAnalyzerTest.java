@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import com.sun.scenario.effect.compiler.model.Variable;
+import com.sun.scenario.effect.compiler.tree.RangeAnalyzer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class RangeAnalyzerTest {
+
+    private static final String PARAMS =
+        "param sampler baseImg;\n" +
+        "param lsampler linearImg;\n" +
+        "param float scale;\n" +
+        "param float4 tint;\n";
+
+    private static RangeAnalyzer.Range analyze(String s) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(PARAMS + s);
+        Variable color = pinfo.parser.getSymbolTable().getCoreVariable("color");
+        return new RangeAnalyzer().analyze(pinfo.program).getRange(color);
+    }
+
+    @Test
+    public void sample() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0);\n" +
+            "}\n");
+        assertTrue(r.isAlphaInRange());
+        assertTrue(r.isColorNonNegative());
+        assertTrue(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void blend() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    float4 a = sample(baseImg, pos0);\n" +
+            "    float4 b = sample(baseImg, pos0 + float2(1.0, 0.0));\n" +
+            "    float t = clamp(scale, 0.0, 1.0);\n" +
+            "    color = mix(a, b, t) * 0.5 + max(a, b) * 0.5;\n" +
+            "}\n");
+        assertTrue(r.isAlphaInRange());
+        assertTrue(r.isColorNonNegative());
+        assertTrue(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void accumulate() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    float4 sum = float4(0.0);\n" +
+            "    for (int i = 0; i < 4; i++) {\n" +
+            "        sum += sample(baseImg, pos0);\n" +
+            "    }\n" +
+            "    color = sum;\n" +
+            "}\n");
+        // the sum keeps growing, so its range is given up on
+        assertFalse(r.isAlphaInRange());
+        assertFalse(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void scaled() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * 2.0;\n" +
+            "}\n");
+        assertEquals(2f, r.getMax(3), 0f);
+        assertFalse(r.isAlphaInRange());
+        assertTrue(r.isColorNonNegative());
+        assertTrue(r.isPremultiplied());
+        assertFalse(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void fields() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0);\n" +
+            "    color.rgb = float3(1.0) - color.rgb;\n" +
+            "}\n");
+        assertTrue(r.isAlphaInRange());
+        assertTrue(r.isColorNonNegative());
+        assertFalse(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void unknown() throws Exception {
+        RangeAnalyzer.Range r = analyze(
+            "void main() {\n" +
+            "    color = sample(linearImg, pos0) * tint;\n" +
+            "}\n");
+        assertFalse(r.isAlphaInRange());
+        assertFalse(r.isColorNonNegative());
+        assertFalse(r.isColorBelowAlpha());
+    }
+
+    @Test
+    public void genCode() throws Exception {
+        String code = JSWBackendTest.genCode(
+            PARAMS +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0);\n" +
+            "}\n", false);
+        assertFalse(code.contains("color_w > 1f"));
+        assertFalse(code.contains("color_x < 0f"));
+        assertFalse(code.contains("color_x > color_w"));
+
+        code = JSWBackendTest.genCode(
+            PARAMS +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n", false);
+        assertTrue(code.contains("if (color_w < 0f) color_w = 0f; else if (color_w > 1f) color_w = 1f;"));
+        assertTrue(code.contains("if (color_x < 0f) color_x = 0f; else if (color_x > color_w) color_x = color_w;"));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import com.sun.scenario.effect.compiler.backend.sw.sse.SSEBackend;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ */
+public class SSEBackendTest {
+
+    static String genCode(String s) throws Exception {
+        return genCode(s, false);
+    }
+
+    static String genCode(String s, boolean stepped) throws Exception {
+        JSLC.ParserInfo pinfo = JSLC.getParserInfo(s);
+        SSEBackend backend = new SSEBackend(pinfo.parser, pinfo.program, stepped);
+        return backend.getGenCode("Effect", "Foo", null, null).nativeCode;
+    }
+
+    @Test
+    public void sample() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float scale;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * scale;\n" +
+            "}\n");
+        // the sampled pixel stays in a register, and the color math is
+        // done on all four components at once
+        assertTrue(code.contains("__m128 color = _mm_setzero_ps();"));
+        assertTrue(code.contains("sample_res_v = sse_swizzle<2, 1, 0, 3>(baseImg_tmpv);"));
+        assertTrue(code.contains("color = _mm_mul_ps(sample_res_v, _mm_set1_ps(scale));"));
+        assertFalse(code.contains("baseImg_tmpv["));
+        assertFalse(code.contains("color_x"));
+    }
+
+    @Test
+    public void swizzles() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float4 tint;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float4 t = c.bgra * tint;\n" +
+            "    float3 rgb = t.rgb * c.a;\n" +
+            "    t.rgb = rgb;\n" +
+            "    t.a *= 0.5;\n" +
+            "    t.gr = pos0;\n" +
+            "    color = float4(rgb.r, rgb.g, rgb.b, t.a);\n" +
+            "}\n");
+        assertTrue(code.contains("__m128 t = _mm_mul_ps(sse_swizzle<2, 1, 0, 3>(c), " +
+                                 "_mm_setr_ps(tint_x, tint_y, tint_z, tint_w));"));
+        assertTrue(code.contains("__m128 rgb = _mm_mul_ps(t, _mm_set1_ps(sse_get<3>(c)));"));
+        assertTrue(code.contains("t = sse_select<1, 1, 1, 0>(t, rgb);"));
+        assertTrue(code.contains("t = sse_select<0, 0, 0, 1>(t, _mm_set1_ps(sse_get<3>(t) * (0.5f)));"));
+        assertTrue(code.contains("t = sse_select<1, 1, 0, 0>(t, sse_swizzle<1, 0, 2, 3>(" +
+                                 "_mm_setr_ps(pos0_x, pos0_y, 0.f, 0.f)));"));
+        assertTrue(code.contains("color = sse_select<0, 0, 0, 1>(rgb, t);"));
+    }
+
+    @Test
+    public void functions() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float amount;\n" +
+            "float4 shade(float4 c, float k) {\n" +
+            "    return c * k;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float4 m = clamp(shade(c, amount), 0.0, 1.0);\n" +
+            "    float l = dot(m.rgb, float3(0.3, 0.59, 0.11));\n" +
+            "    color = floor(m * l);\n" +
+            "}\n");
+        // the float4 params and results of the user-defined functions, and
+        // of the core functions with an SSE implementation, are __m128s
+        assertTrue(code.contains("__m128 c_tmp = c;"));
+        assertTrue(code.contains("shade_res_v = _mm_mul_ps(c_tmp, _mm_set1_ps(k_tmp));"));
+        assertTrue(code.contains("__m128 val_tmp = _call0;"));
+        assertTrue(code.contains("__m128 xy_tmp = _mm_mul_ps(x_tmp, y_tmp);"));
+        // the others get one scalar per component
+        assertTrue(code.contains("float x_tmp_w = sse_get<3>(m) * l;"));
+        assertTrue(code.contains("floor_res_v = _mm_setr_ps(floor(x_tmp_x),"));
+    }
+
+    @Test
+    public void otherVectors() throws Exception {
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "param float2 offset;\n" +
+            "void main() {\n" +
+            "    float4 c = sample(baseImg, pos0);\n" +
+            "    float2 loc = pos0 + c.ba * offset;\n" +
+            "    color = sample(baseImg, loc);\n" +
+            "}\n");
+        // float2 values are still split into their components
+        assertTrue(code.contains("float loc_x = pos0_x + sse_get<2>(c) * offset_x;"));
+        assertTrue(code.contains("float loc_y = pos0_y + sse_get<3>(c) * offset_y;"));
+    }
+
+    @Test
+    public void unusedAlpha() throws Exception {
+        // the alpha of the color is only declared for the clamps that use
+        // it (or -Wunused-variable warns about it)
+        String code = genCode(
+            "param sampler baseImg;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0);\n" +
+            "}\n");
+        assertFalse(code.contains("outalpha"));
+        code = genCode(
+            "param sampler baseImg;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * 2.0;\n" +
+            "}\n");
+        assertTrue(code.contains("__m128 outalpha = sse_swizzle<3, 3, 3, 3>(color);"));
+        assertTrue(code.contains("outcolor = _mm_min_ps(outcolor, outalpha);"));
+    }
+
+    @Test
+    public void stepped() throws Exception {
+        String s =
+            "param sampler baseImg;\n" +
+            "void main() {\n" +
+            "    color = sample(baseImg, pos0) * 2.0;\n" +
+            "}\n";
+        assertFalse(genCode(s).contains("stepped"));
+        // with -stepped, the row of the interior sample() is computed once
+        // per row, and its column is stepped in 32.32 fixed point
+        String code = genCode(s, true);
+        assertTrue(code.contains("jlong stepped0_col0 = 0, stepped0_step = 0;"));
+        assertTrue(code.contains("stepped0_col0 = (jlong)((double)((pos0_x)*src0w) * 4294967296.0);"));
+        assertTrue(code.contains("int stepped0_row = (int)((pos0_y)*src0h)*src0scan;"));
+        assertTrue(code.contains("baseImg[stepped0_row + (int)(stepped0_col >> 32)];"));
+        assertTrue(code.contains("stepped0_col += stepped0_step;"));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.compiler;
+
+import java.util.List;
+import com.sun.scenario.effect.compiler.tree.ExtDecl;
+import com.sun.scenario.effect.compiler.tree.ProgramUnit;
+import com.sun.scenario.effect.compiler.tree.StrengthReducer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class StrengthReducerTest {
+
+    private static String reduce(String body) throws Exception {
+        ProgramUnit program = JSLC.parse(
+            "param float scale;\n" +
+            "param float3 dir;\n" +
+            "void main() {\n" + body + "}\n").translation_unit();
+        List<ExtDecl> decls = new StrengthReducer().reduce(program).getDecls();
+        return decls.get(decls.size() - 1).toString();
+    }
+
+    @Test
+    public void pow() throws Exception {
+        assertTrue(reduce("float a = pow(scale, 2.0);").contains("a = (scale * scale"));
+        assertTrue(reduce("float3 v = pow(dir, float3(2.0));").contains("v = (dir * dir"));
+        assertTrue(reduce("float a = pow(scale, 0.5);").contains("a = sqrt(scale)"));
+        assertTrue(reduce("float a = pow(scale, -1.0);").contains("a = (1.0 / scale"));
+        assertTrue(reduce("float a = pow(scale, 1.0);").contains("a = (scale"));
+    }
+
+    @Test
+    public void powNotReduced() throws Exception {
+        // the base would be evaluated twice
+        assertTrue(reduce("float a = pow(scale + 1.0, 2.0);").contains("pow("));
+        assertTrue(reduce("float a = pow(scale, 3.0);").contains("pow("));
+        assertTrue(reduce("float3 v = pow(dir, float3(2.0, 2.0, 3.0));").contains("pow("));
+    }
+
+    @Test
+    public void division() throws Exception {
+        assertTrue(reduce("float a = scale / 4.0;").contains("a = scale * 0.25"));
+        assertTrue(reduce("float3 v = dir / -0.5;").contains("v = dir * -2.0"));
+        assertTrue(reduce("float a = scale; a /= 8.0;").contains("a *= 0.125"));
+        // the reciprocals of these are not exact
+        assertTrue(reduce("float a = scale / 3.0;").contains("a = scale / 3.0"));
+        assertTrue(reduce("float a = scale / 0.0;").contains("a = scale / 0.0"));
+        assertTrue(reduce("int i = 7 / 2;").contains("i = 7 / 2"));
+    }
+
+    @Test
+    public void normalize() throws Exception {
+        assertTrue(reduce("float3 n = dir / length(dir);").contains("n = normalize(dir)"));
+        assertTrue(reduce("float2 n = dir.xy / length(dir.xy);").contains("n = normalize(dir.xy)"));
+        assertTrue(reduce("float2 n = dir.xy / length(dir.yx);").contains("length("));
+    }
+}
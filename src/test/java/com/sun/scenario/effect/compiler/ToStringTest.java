@@ -59,8 +59,10 @@ public class ToStringTest {
                 "void main() {\n" +
                 "    float funcres = fma(1.5, 3.0, 5.0);\n" +
                 "}\n";
-        JSLC.ParserInfo info = compile(s);
-        assertSame(s, info.program);
+        compile(s);
+        // the compiled program no longer has the unused local variable
+        // (see DeadCodeEliminator), so check the tree as it was parsed
+        assertSame(s, JSLC.parse(s).translation_unit());
     }
 
     private void assertSame(String program, ProgramUnit programUnit) {
@@ -62,6 +62,13 @@ public class MultExprTest extends UnaryExprTest {
         assertEquals(BinaryOpType.MUL, tree.getOp());
     }
 
+    @Test
+    public void leftAssociative() throws Exception {
+        BinaryExpr tree = parseTreeFor(unary + " / " + unary + " * " + unary);
+        assertEquals(BinaryOpType.MUL, tree.getOp());
+        assertEquals(BinaryOpType.DIV, ((BinaryExpr)tree.getLeft()).getOp());
+    }
+
     @Test(expected = ClassCastException.class)
     public void notAMultiplicativeExpression() throws Exception {
         parseTreeFor("3 + 3");
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.impl;
+
+import com.sun.javafx.geom.Rectangle;
+import com.sun.javafx.geom.transform.BaseTransform;
+import com.sun.scenario.effect.TestEffect;
+import com.sun.scenario.effect.Effect;
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.ImageData;
+import com.sun.scenario.effect.impl.state.RenderState;
+
+/**
+ * Stand-in for the common base class of the JSW and SSE peers in the
+ * decora runtime.  It only does what is needed for an untransformed
+ * destination that covers the whole of each input.
+ */
+public abstract class EffectPeer<T extends RenderState> {
+
+    private final FilterContext fctx;
+    private final Renderer renderer;
+    private Effect effect;
+
+    protected EffectPeer(FilterContext fctx, Renderer renderer, String uniqueName) {
+        this.fctx = fctx;
+        this.renderer = renderer;
+    }
+
+    public abstract ImageData filter(Effect effect,
+                                     RenderState rstate,
+                                     BaseTransform transform,
+                                     Rectangle outputClip,
+                                     ImageData... inputs);
+
+    protected void setEffect(Effect effect) {
+        this.effect = effect;
+    }
+
+    protected Effect getEffect() {
+        return effect;
+    }
+
+    protected FilterContext getFilterContext() {
+        return fctx;
+    }
+
+    protected Renderer getRenderer() {
+        return renderer;
+    }
+
+    protected Rectangle getResultBounds(BaseTransform transform,
+                                        Rectangle outputClip,
+                                        ImageData... inputs)
+    {
+        return outputClip;
+    }
+
+    protected void setDestBounds(Rectangle r) {
+    }
+
+    protected void setDestNativeBounds(int w, int h) {
+    }
+
+    protected void setInputBounds(int inputIndex, Rectangle r) {
+    }
+
+    protected void setInputNativeBounds(int inputIndex, Rectangle r) {
+    }
+
+    protected Object getSamplerData(int i) {
+        return ((TestEffect)effect).getSamplerData(i);
+    }
+
+    protected void getTextureCoordinates(int inputIndex, float coords[],
+                                         float srcX, float srcY,
+                                         float srcNativeWidth,
+                                         float srcNativeHeight,
+                                         Rectangle dstBounds,
+                                         BaseTransform transform)
+    {
+        coords[0] = (dstBounds.x - srcX) / srcNativeWidth;
+        coords[1] = (dstBounds.y - srcY) / srcNativeHeight;
+        coords[2] = coords[0] + dstBounds.width / srcNativeWidth;
+        coords[3] = coords[1] + dstBounds.height / srcNativeHeight;
+    }
+}
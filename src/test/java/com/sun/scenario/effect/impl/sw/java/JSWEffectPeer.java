@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.scenario.effect.impl.sw.java;
+
+import com.sun.scenario.effect.FilterContext;
+import com.sun.scenario.effect.impl.EffectPeer;
+import com.sun.scenario.effect.impl.Renderer;
+import com.sun.scenario.effect.impl.state.RenderState;
+
+/**
+ * Stand-in for the base class of the peers generated by the JSW and JSWV
+ * backends.  The sampling helpers are the same as in the decora runtime.
+ */
+public abstract class JSWEffectPeer<T extends RenderState> extends EffectPeer<T> {
+
+    protected JSWEffectPeer(FilterContext fctx, Renderer renderer, String uniqueName) {
+        super(fctx, renderer, uniqueName);
+    }
+
+    protected static final void laccum(int pixel, float mul, float fvals[]) {
+        mul /= 255f;
+        fvals[0] += ((pixel >>  16) & 0xff) * mul;
+        fvals[1] += ((pixel >>   8) & 0xff) * mul;
+        fvals[2] += ((pixel       ) & 0xff) * mul;
+        fvals[3] += ((pixel >>> 24)       ) * mul;
+    }
+
+    protected static final void lsample(int img[],
+                                        float floc_x, float floc_y,
+                                        int w, int h, int scan,
+                                        float fvals[])
+    {
+        fvals[0] = 0f;
+        fvals[1] = 0f;
+        fvals[2] = 0f;
+        fvals[3] = 0f;
+        // If we subtract 0.5 then floor, we can get our 4 neighbors as
+        // floor and floor+1; instead we add 0.5 and truncate, which gives
+        // the neighbors as the truncated value and the one before it
+        floc_x = floc_x * w + 0.5f;
+        floc_y = floc_y * h + 0.5f;
+        int iloc_x = (int) floc_x;
+        int iloc_y = (int) floc_y;
+        if (floc_x > 0 && floc_y > 0 && iloc_x <= w && iloc_y <= h) {
+            floc_x -= iloc_x;
+            floc_y -= iloc_y;
+            int offset = iloc_y * scan + iloc_x;
+            float fract = floc_x * floc_y;
+            if (iloc_y < h) {
+                if (iloc_x < w) {
+                    laccum(img[offset], fract, fvals);
+                }
+                if (iloc_x > 0) {
+                    laccum(img[offset-1], floc_y - fract, fvals);
+                }
+            }
+            if (iloc_y > 0) {
+                if (iloc_x < w) {
+                    laccum(img[offset-scan], floc_x - fract, fvals);
+                }
+                if (iloc_x > 0) {
+                    laccum(img[offset-scan-1], 1f - floc_x - floc_y + fract, fvals);
+                }
+            }
+        }
+    }
+
+    protected static final void faccum(float map[], int offset, float mul,
+                                       float fvals[])
+    {
+        fvals[0] += map[offset  ] * mul;
+        fvals[1] += map[offset+1] * mul;
+        fvals[2] += map[offset+2] * mul;
+        fvals[3] += map[offset+3] * mul;
+    }
+
+    protected static final void fsample(float map[],
+                                        float floc_x, float floc_y,
+                                        int w, int h, int scan,
+                                        float fvals[])
+    {
+        fvals[0] = 0f;
+        fvals[1] = 0f;
+        fvals[2] = 0f;
+        fvals[3] = 0f;
+        floc_x = floc_x * w + 0.5f;
+        floc_y = floc_y * h + 0.5f;
+        int iloc_x = (int) floc_x;
+        int iloc_y = (int) floc_y;
+        if (floc_x > 0 && floc_y > 0 && iloc_x <= w && iloc_y <= h) {
+            floc_x -= iloc_x;
+            floc_y -= iloc_y;
+            int offset = 4*(iloc_y * scan + iloc_x);
+            float fract = floc_x * floc_y;
+            if (iloc_y < h) {
+                if (iloc_x < w) {
+                    faccum(map, offset, fract, fvals);
+                }
+                if (iloc_x > 0) {
+                    faccum(map, offset-4, floc_y - fract, fvals);
+                }
+            }
+            if (iloc_y > 0) {
+                if (iloc_x < w) {
+                    faccum(map, offset-scan*4, floc_x - fract, fvals);
+                }
+                if (iloc_x > 0) {
+                    faccum(map, offset-scan*4-4, 1f - floc_x - floc_y + fract, fvals);
+                }
+            }
+        }
+    }
+}